@@ -24,6 +24,7 @@ import dev.blackilykat.pmp.FilterInfo;
 import dev.blackilykat.pmp.PMPConnection;
 import dev.blackilykat.pmp.RepeatOption;
 import dev.blackilykat.pmp.ShuffleOption;
+import dev.blackilykat.pmp.TranscodeProfile;
 import dev.blackilykat.pmp.messages.ActionResponse;
 import dev.blackilykat.pmp.messages.GetActionsRequest;
 import dev.blackilykat.pmp.messages.LoginAsExistingDeviceRequest;
@@ -126,6 +127,47 @@ public class ClientStorage {
 		/// The client will attempt to send these actions when connecting.
 		public StoredBlockingDeque<Action> actionsToSend = new StoredBlockingDeque<>(Action.class, this);
 
+		/// Checksums of all tracks in the server's library by filename, as of [#serverCatalogActionId].
+		///
+		/// Acts as a cache: it is kept up to date by only downloading the changes since [#serverCatalogActionId]
+		/// when connecting, and rebuilt from the server's full track list if that is not possible.
+		public StoredMap<String, Long> serverCatalog = new StoredMap<>(String.class, Long.class, this);
+
+		/// The ID of the last action [#serverCatalog] accounts for, or -1 if it was never downloaded.
+		public StoredInt serverCatalogActionId = new StoredInt(this, -1);
+
+		/// The smaller version of tracks to download from the server, or null to download them as they are.
+		///
+		/// Only affects tracks downloaded after it is changed.
+		public Stored<TranscodeProfile> transcodeProfile = new Stored<>(TranscodeProfile.class, this, null);
+
+		/// Checksums of the server's version of tracks which were downloaded transcoded, by filename. These are
+		/// compared with the server's instead of the checksums of the local files, which never match.
+		///
+		/// @see Library#serverChecksum
+		public StoredMap<String, Long> transcodedTracks = new StoredMap<>(String.class, Long.class, this);
+
+		/// Whether to keep no tracks locally and play them from the server instead, see [TrackStream].
+		///
+		/// Only affects tracks added or replaced after it is changed.
+		public Stored<Boolean> streamOnly = new Stored<>(Boolean.class, this, false);
+
+		/// Whether to let the server evaluate filters instead of going through the whole library locally, which is
+		/// slow on big libraries. Only affects connections made after it is changed.
+		///
+		/// @see Library#reloadSelection
+		public Stored<Boolean> serverSideFilters = new Stored<>(Boolean.class, this, false);
+
+		/// Whether to share tracks with other devices and fetch tracks from them, see [Peers]. Off by default, as
+		/// tracks are then served over plain HTTP on every network interface, only protected by a secret which is
+		/// also sent in plain text.
+		public Stored<Boolean> peerSharing = new Stored<>(Boolean.class, this, false);
+
+		/// The port of the HTTP server other devices fetch this device's tracks from.
+		///
+		/// Defaults to {@value PMPConnection#DEFAULT_PEER_PORT}.
+		public StoredInt peerPort = new StoredInt(this, PMPConnection.DEFAULT_PEER_PORT);
+
 		private Main() {
 			super(NAME);
 		}
@@ -19,6 +19,7 @@ package dev.blackilykat.pmp.client;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import dev.blackilykat.pmp.FilterInfo;
 import dev.blackilykat.pmp.event.EventSource;
 
 import java.util.Collections;
@@ -41,10 +42,10 @@ import javax.annotation.Nonnull;
 /// @see FilterOption.State
 public class Filter {
 	/// String used in filter options to represent matching every track for the filter.
-	public static final String OPTION_EVERYTHING = "__PMP_OPTION_EVERYTHING__";
+	public static final String OPTION_EVERYTHING = FilterInfo.OPTION_EVERYTHING;
 	/// String used in filter options to represent matching tracks which do not have the metadata
 	/// described by the filter.
-	public static final String OPTION_UNKNOWN = "__PMP_OPTION_UNKNOWN__";
+	public static final String OPTION_UNKNOWN = FilterInfo.OPTION_UNKNOWN;
 
 	/// Emitted when a filter option has been added to any filter. For updating UI.
 	///
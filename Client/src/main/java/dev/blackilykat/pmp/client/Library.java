@@ -18,9 +18,12 @@
 package dev.blackilykat.pmp.client;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -28,9 +31,12 @@ import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -47,11 +53,17 @@ import dev.blackilykat.pmp.Action;
 import dev.blackilykat.pmp.FilterInfo;
 import dev.blackilykat.pmp.Globals;
 import dev.blackilykat.pmp.Order;
+import dev.blackilykat.pmp.TranscodeProfile;
 import dev.blackilykat.pmp.event.EventSource;
 import dev.blackilykat.pmp.event.RetroactiveEventSource;
 import dev.blackilykat.pmp.messages.FilterListMessage;
 import dev.blackilykat.pmp.messages.PlaybackControlMessage;
 import dev.blackilykat.pmp.messages.PlaybackUpdateMessage;
+import dev.blackilykat.pmp.messages.SelectionRequest;
+import dev.blackilykat.pmp.messages.SelectionResponse;
+import dev.blackilykat.pmp.messages.SelectionUpdateMessage;
+import dev.blackilykat.pmp.util.ContentHash;
+import dev.blackilykat.pmp.util.Delta;
 import dev.blackilykat.pmp.util.FLACUtil;
 import dev.blackilykat.pmp.util.Pair;
 import dev.blackilykat.pmp.util.ScopedValue;
@@ -129,6 +141,9 @@ public class Library {
 
 	private static final Logger LOGGER = LogManager.getLogger(Library.class);
 	private static final AtomicBoolean INITIALIZED = new AtomicBoolean(false);
+	/// The size of the ranges requested while reading the metadata of streamed tracks, see [#registerStreamedTrack].
+	/// Most tracks' metadata fits in the first one, unless it contains large pictures.
+	private static final int STREAMED_METADATA_CHUNK_SIZE = 64 * 1024;
 
 	/// The directory containing the library.
 	private static File library = null;
@@ -138,10 +153,16 @@ public class Library {
 	private static List<Track> selectedTracks = new LinkedList<>();
 	private static Header sortingHeader = null;
 	private static Order sortingOrder = Order.ASCENDING;
+	/// The tracks matching the filters as evaluated by the server, or null if filters are evaluated locally.
+	///
+	/// @see ClientStorage.Main#serverSideFilters
+	private static volatile ServerSelection serverSelection = null;
 
 	/// Reloads the selection if [#NO_RELOAD_SELECTION] does not prevent it from doing so.
 	///
-	/// Applies filters and filter options and sorts the filtered list.
+	/// Applies filters and filter options and sorts the filtered list. If the server evaluates filters (see
+	/// [ClientStorage.Main#serverSideFilters]), its selection and option values are used instead of going through
+	/// the whole library.
 	///
 	/// @see #EVENT_SELECTED_TRACKS_UPDATED
 	public static void reloadSelection() {
@@ -150,75 +171,93 @@ public class Library {
 		}
 		LOGGER.debug("Reloading selection");
 
-		Set<Track> selection = new HashSet<>(ClientStorage.MAIN.tracks.values());
-		Set<Track> newSelection = new HashSet<>();
-
-		for(Filter filter : ClientStorage.MAIN.filters.get()) {
-			Set<String> foundValues = new HashSet<>();
-			foundValues.add(Filter.OPTION_EVERYTHING);
-			boolean anyUnknowns = false;
-			for(Track track : selection) {
-				boolean unknown = true;
-				for(Pair<String, String> metadatum : track.metadata) {
-					if(metadatum.key.equalsIgnoreCase(filter.key)) {
-						unknown = false;
-						foundValues.add(metadatum.value);
-					}
-				}
-				if(unknown) {
-					anyUnknowns = true;
+		ServerSelection server = serverSelection;
+		Set<Track> selection;
+		if(server != null) {
+			selection = new HashSet<>();
+			for(String filename : server.filenames) {
+				Track track = ClientStorage.MAIN.tracks.get(filename);
+				if(track != null) {
+					selection.add(track);
 				}
 			}
-			if(anyUnknowns) {
-				foundValues.add(Filter.OPTION_UNKNOWN);
-			}
-
-			filter.applyOptionValues(new ArrayList<>(foundValues));
-
-			boolean anyNegative = false;
-			boolean anyPositive = false;
-			FilterOption everything = null;
-			for(FilterOption option : filter.getOptions()) {
-				FilterOption.State state = option.getState();
-				if(option.value.equals(Filter.OPTION_EVERYTHING)) {
-					everything = option;
-				}
-
-				if(state == FilterOption.State.NONE) {
-					continue;
-				}
-				if(state == FilterOption.State.NEGATIVE) {
-					anyNegative = true;
-					continue;
+			for(Filter filter : ClientStorage.MAIN.filters.get()) {
+				List<String> values = server.optionValues.get(filter.id);
+				if(values != null) {
+					filter.applyOptionValues(new ArrayList<>(values));
 				}
-				anyPositive = true;
-
+				selectEverythingIfNoPositive(filter);
+			}
+		} else {
+			selection = new HashSet<>(ClientStorage.MAIN.tracks.values());
+			Set<Track> newSelection = new HashSet<>();
+			for(Filter filter : ClientStorage.MAIN.filters.get()) {
+				Set<String> foundValues = new HashSet<>();
+				foundValues.add(Filter.OPTION_EVERYTHING);
+				boolean anyUnknowns = false;
 				for(Track track : selection) {
-					if(track.matches(option)) {
-						newSelection.add(track);
+					boolean unknown = true;
+					for(Pair<String, String> metadatum : track.metadata) {
+						if(metadatum.key.equalsIgnoreCase(filter.key)) {
+							unknown = false;
+							foundValues.add(metadatum.value);
+						}
+					}
+					if(unknown) {
+						anyUnknowns = true;
 					}
 				}
-			}
+				if(anyUnknowns) {
+					foundValues.add(Filter.OPTION_UNKNOWN);
+				}
 
-			if(!anyPositive) {
-				final FilterOption fEverything = everything;
-				ScopedValue.where(NO_RELOAD_SELECTION, true).run(() -> {
-					fEverything.setState(FilterOption.State.POSITIVE);
-				});
-				newSelection.addAll(selection);
-			}
+				filter.applyOptionValues(new ArrayList<>(foundValues));
 
-			if(anyNegative) {
+				boolean anyNegative = false;
+				boolean anyPositive = false;
+				FilterOption everything = null;
 				for(FilterOption option : filter.getOptions()) {
-					if(option.getState() != FilterOption.State.NEGATIVE) {
+					FilterOption.State state = option.getState();
+					if(option.value.equals(Filter.OPTION_EVERYTHING)) {
+						everything = option;
+					}
+
+					if(state == FilterOption.State.NONE) {
+						continue;
+					}
+					if(state == FilterOption.State.NEGATIVE) {
+						anyNegative = true;
 						continue;
 					}
+					anyPositive = true;
 
-					newSelection.removeIf(track -> track.matches(option));
+					for(Track track : selection) {
+						if(track.matches(option)) {
+							newSelection.add(track);
+						}
+					}
 				}
+
+				if(!anyPositive) {
+					final FilterOption fEverything = everything;
+					ScopedValue.where(NO_RELOAD_SELECTION, true).run(() -> {
+						fEverything.setState(FilterOption.State.POSITIVE);
+					});
+					newSelection.addAll(selection);
+				}
+
+				if(anyNegative) {
+					for(FilterOption option : filter.getOptions()) {
+						if(option.getState() != FilterOption.State.NEGATIVE) {
+							continue;
+						}
+
+						newSelection.removeIf(track -> track.matches(option));
+					}
+				}
+				selection = newSelection;
+				newSelection = new HashSet<>();
 			}
-			selection = newSelection;
-			newSelection = new HashSet<>();
 		}
 
 		List<Track> oldSelectedTracks = selectedTracks;
@@ -238,6 +277,82 @@ public class Library {
 						Collections.unmodifiableList(selectedTracks)));
 	}
 
+	/// Makes [Filter#OPTION_EVERYTHING] positive if no option of a filter is, like the server does when evaluating
+	/// it.
+	private static void selectEverythingIfNoPositive(Filter filter) {
+		FilterOption everything = null;
+		for(FilterOption option : filter.getOptions()) {
+			if(option.getState() == FilterOption.State.POSITIVE) {
+				return;
+			}
+			if(option.value.equals(Filter.OPTION_EVERYTHING)) {
+				everything = option;
+			}
+		}
+		if(everything != null) {
+			final FilterOption fEverything = everything;
+			ScopedValue.where(NO_RELOAD_SELECTION, true).run(() -> {
+				fEverything.setState(FilterOption.State.POSITIVE);
+			});
+		}
+	}
+
+	/// Asks the server for its selection if [ClientStorage.Main#serverSideFilters] is enabled, subscribing to its
+	/// updates. Called once logged in.
+	///
+	/// @see #setServerSelection
+	/// @see #updateServerSelection
+	public static void requestServerSelection() {
+		if(ClientStorage.MAIN.serverSideFilters.get()) {
+			Server.send(new SelectionRequest(true));
+		}
+	}
+
+	/// Uses the server's selection from a [SelectionResponse] instead of evaluating filters locally.
+	public static void setServerSelection(long version, List<String> filenames,
+			Map<Integer, List<String>> optionValues) {
+		if(!ClientStorage.MAIN.serverSideFilters.get()) {
+			return;
+		}
+		LOGGER.info("Using server selection version {} with {} tracks", version, filenames.size());
+		serverSelection = new ServerSelection(version, Set.copyOf(filenames), Map.copyOf(optionValues));
+		reloadSelection();
+	}
+
+	/// Applies what changed in the server's selection. If an update was missed, the whole selection is requested
+	/// again and filters are evaluated locally until it arrives.
+	public static void updateServerSelection(SelectionUpdateMessage message) {
+		ServerSelection previous = serverSelection;
+		if(previous == null) {
+			return;
+		}
+		if(message.version != previous.version + 1) {
+			LOGGER.warn("Got server selection version {} after {}, requesting it again", message.version,
+					previous.version);
+			serverSelection = null;
+			requestServerSelection();
+			reloadSelection();
+			return;
+		}
+
+		Set<String> filenames = new HashSet<>(previous.filenames);
+		message.removed.forEach(filenames::remove);
+		filenames.addAll(message.added);
+		Map<Integer, List<String>> optionValues = new HashMap<>(previous.optionValues);
+		optionValues.putAll(message.optionValues);
+		serverSelection = new ServerSelection(message.version, filenames, optionValues);
+		reloadSelection();
+	}
+
+	/// Goes back to evaluating filters locally, as the server's selection can no longer be kept up to date. Called
+	/// once disconnected.
+	public static void clearServerSelection() {
+		if(serverSelection != null) {
+			serverSelection = null;
+			reloadSelection();
+		}
+	}
+
 	/// Add a new filter and send the update to the server if possible.
 	///
 	/// @see #EVENT_FILTER_ADDED
@@ -496,17 +611,56 @@ public class Library {
 			File[] children = library.listFiles();
 			int totalCached = 0;
 			if(children != null) {
+				// checksum -> cached track whose file no longer exists, which may have been renamed
+				Map<Long, Track> vanished = new HashMap<>();
+				for(Track track : ClientStorage.MAIN.tracks.values()) {
+					if(!track.isStreamed() && !track.getFile().exists()) {
+						vanished.put(track.getChecksum(), track);
+					}
+				}
+
 				for(File file : children) {
 					if(!ClientStorage.MAIN.tracks.containsKey(file.getName())) {
 						LOGGER.warn("Track {} was not cached", file.getName());
 						try {
 							Track track = new Track(file);
 							ClientStorage.MAIN.tracks.put(file.getName(), track);
+
+							Track renamed = vanished.get(track.getChecksum());
+							// the checksum alone is not enough, as CRC32 collisions are likely across big libraries
+							if(renamed != null && sameMetadata(renamed.metadata, track.metadata)) {
+								vanished.remove(track.getChecksum());
+								String oldFilename = renamed.getFile().getName();
+								LOGGER.info("Track {} was renamed to {}", oldFilename, file.getName());
+								ClientStorage.MAIN.tracks.remove(oldFilename);
+								Long originalChecksum = ClientStorage.MAIN.transcodedTracks.get(oldFilename);
+								ClientStorage.MAIN.transcodedTracks.remove(oldFilename);
+								if(originalChecksum != null) {
+									ClientStorage.MAIN.transcodedTracks.put(file.getName(), originalChecksum);
+								} else {
+									// Server only listens for library changes once the library is loaded. Transcoded
+									// tracks cannot prove their contents to the server, so they are left to be
+									// recognized by comparing libraries.
+									Action rename = new Action(oldFilename, file.getName());
+									rename.contentHash = track.getContentHash();
+									ClientStorage.MAIN.actionsToSend.add(rename);
+								}
+							}
 						} catch(IOException e) {
 							LOGGER.error("Error loading {}", file.getName(), e);
 						}
 					} else if(ClientStorage.MAIN.tracks.get(file.getName()).getLastModified() != file.lastModified()) {
 						LOGGER.warn("Track {} was modified after it was cached", file.getName());
+						try {
+							Track track = new Track(file);
+							ClientStorage.MAIN.tracks.remove(file.getName());
+							ClientStorage.MAIN.tracks.put(file.getName(), track);
+							ClientStorage.MAIN.transcodedTracks.remove(file.getName());
+						} catch(IOException e) {
+							LOGGER.error("Error reloading {}", file.getName(), e);
+						}
+					} else if(ClientStorage.MAIN.tracks.get(file.getName()).getContentHash() == null) {
+						LOGGER.info("Track {} was cached without its content hash", file.getName());
 						try {
 							Track track = new Track(file);
 							ClientStorage.MAIN.tracks.remove(file.getName());
@@ -520,9 +674,10 @@ public class Library {
 				}
 
 				for(Track track : ClientStorage.MAIN.tracks.values().toArray(new Track[0])) {
-					if(!track.getFile().exists()) {
+					if(!track.isStreamed() && !track.getFile().exists()) {
 						LOGGER.warn("Cached track {} no longer exists", track.getFile().getName());
 						ClientStorage.MAIN.tracks.remove(track.getFile().getName());
+						ClientStorage.MAIN.transcodedTracks.remove(track.getFile().getName());
 					}
 				}
 			}
@@ -761,10 +916,37 @@ public class Library {
 	public static void registerNewTrack(File file) throws IOException {
 		Track track = new Track(file);
 		ClientStorage.MAIN.tracks.put(track.getFile().getName(), track);
+		ClientStorage.MAIN.transcodedTracks.remove(track.getFile().getName());
+		EVENT_TRACK_ADDED.call(track);
+		reloadSelection();
+	}
+
+	/// Adds a track to the library which is played from the server instead of being stored locally, replacing any
+	/// local version of it.
+	///
+	/// @see ClientStorage.Main#streamOnly
+	/// @see #EVENT_TRACK_ADDED
+	private static void registerStreamedTrack(File file) throws IOException {
+		Track track;
+		// only the start of the original is downloaded, so that the server does not transcode the track just for it
+		try(TrackStream stream = new TrackStream(file.getName(), null, STREAMED_METADATA_CHUNK_SIZE)) {
+			track = Track.streamed(file, stream, ClientStorage.MAIN.transcodeProfile.get());
+		}
+		if(file.isFile() && !file.delete()) {
+			LOGGER.error("Failed to delete local version of streamed track {}", file);
+		}
+		ClientStorage.MAIN.tracks.put(file.getName(), track);
+		ClientStorage.MAIN.transcodedTracks.remove(file.getName());
 		EVENT_TRACK_ADDED.call(track);
 		reloadSelection();
 	}
 
+	/// Returns whether the track with the given filename is in the library and is streamed, see [Track#isStreamed].
+	private static boolean isStreamed(String filename) {
+		Track track = ClientStorage.MAIN.tracks.get(filename);
+		return track != null && track.isStreamed();
+	}
+
 	/// Remove an existing track from the library.
 	///
 	/// @see #EVENT_TRACK_REMOVED
@@ -776,8 +958,9 @@ public class Library {
 		LOGGER.info("Removing track {}", track.getFile());
 
 		ClientStorage.MAIN.tracks.remove(track.getFile().getName());
+		ClientStorage.MAIN.transcodedTracks.remove(track.getFile().getName());
 
-		if(!track.getFile().delete()) {
+		if(!track.isStreamed() && !track.getFile().delete()) {
 			LOGGER.error("Failed to delete file {}", track.getFile());
 		}
 
@@ -886,7 +1069,7 @@ public class Library {
 	/// @see #EVENT_TRACK_ADDED
 	public static void handleAddAction(Action action) throws IOException {
 		File target = library.toPath().resolve(action.filename).toFile();
-		if(target.exists()) {
+		if(target.exists() || isStreamed(action.filename)) {
 			LOGGER.error("Received ADD action for track {} which already exists, ignoring", action.filename);
 			return;
 		}
@@ -895,24 +1078,49 @@ public class Library {
 
 	/// Handles a [Action.Type#REPLACE] action received from the server.
 	///
-	/// Downloads the track from the server's HTTP endpoint, stores it and adds it to the library.
+	/// Downloads the track from the server's HTTP endpoint, stores it and adds it to the library. If there is a
+	/// previous version of the track, only what changed is downloaded, see [#downloadDelta]. If a
+	/// [ClientStorage.Main#transcodeProfile] is set, the whole track is downloaded in that profile instead.
+	///
+	/// Tracks being added are first fetched from other devices which have them (see [Peers#fetch]), if the action
+	/// has their [Action#contentHash]. Replaced tracks are not, as only what changed is downloaded for them.
 	///
 	/// Uses `.tmp` files to prevent leftover incomplete downloads.
 	///
+	/// If [ClientStorage.Main#streamOnly] is set, only the track's metadata is read from the server and the track is
+	/// streamed when played, see [#registerStreamedTrack].
+	///
 	/// @see ClientStorage.Main#serverFilePort
 	public static void handleReplaceAction(Action action) throws IOException {
 		File target = library.toPath().resolve(action.filename).toFile();
+		if(ClientStorage.MAIN.streamOnly.get()) {
+			ClientStorage.MAIN.tracks.remove(target.getName());
+			registerStreamedTrack(target);
+			return;
+		}
+		Path tmpTarget = new File(target.getAbsolutePath() + ".tmp").toPath();
+		TranscodeProfile profile = ClientStorage.MAIN.transcodeProfile.get();
+		String originalChecksum = null;
 
-		HttpsURLConnection conn = Server.startTransferRequest("GET", action.filename);
-		int res = conn.getResponseCode();
-		if(res != 200) {
-			LOGGER.error("Got unexpected response {} while downloading track {}", res, action.filename);
-			throw new IllegalStateException(res + " response from server");
+		boolean fetched = false;
+		if(action.actionType == Action.Type.ADD && !target.isFile() && profile == null
+				&& action.contentHash != null) {
+			fetched = Peers.fetch(action.contentHash, tmpTarget);
 		}
 
-		Path tmpTarget = new File(target.getAbsolutePath() + ".tmp").toPath();
-		Files.copy(conn.getInputStream(), tmpTarget, StandardCopyOption.REPLACE_EXISTING);
-		conn.getInputStream().close();
+		// deltas are made from the server's original, which a transcoded track cannot be patched to
+		if(!fetched && (!target.isFile() || profile != null || !downloadDelta(action.filename, target, tmpTarget))) {
+			HttpsURLConnection conn = Server.startTrackRequest(action.filename, profile, _ -> {});
+			int res = conn.getResponseCode();
+			if(res != 200) {
+				LOGGER.error("Got unexpected response {} while downloading track {}", res, action.filename);
+				throw new IllegalStateException(res + " response from server");
+			}
+			originalChecksum = conn.getHeaderField("original-checksum");
+
+			Files.copy(conn.getInputStream(), tmpTarget, StandardCopyOption.REPLACE_EXISTING);
+			conn.getInputStream().close();
+		}
 
 		try {
 			// According to the javadocs, it is implementation specific whether the atomic move is allowed to override
@@ -925,6 +1133,161 @@ public class Library {
 		}
 		ClientStorage.MAIN.tracks.remove(target.getName());
 		registerNewTrack(target);
+		if(originalChecksum != null) {
+			try {
+				ClientStorage.MAIN.transcodedTracks.put(target.getName(), Long.parseLong(originalChecksum));
+			} catch(NumberFormatException e) {
+				LOGGER.error("Got invalid original checksum {} for transcoded track {}", originalChecksum,
+						action.filename);
+			}
+		}
+	}
+
+	/// Downloads the server's version of a track as a [Delta] from the local one, rebuilding it in `tmpTarget`.
+	///
+	/// @return false if the delta could not be downloaded or applied, in which case the whole track needs to be
+	/// downloaded
+	private static boolean downloadDelta(String filename, File target, Path tmpTarget) throws IOException {
+		ByteArrayOutputStream signature = new ByteArrayOutputStream();
+		Delta.Signature.of(target).write(signature);
+
+		HttpsURLConnection conn = Server.startTransferRequest("POST", "/delta/" + filename);
+		conn.setFixedLengthStreamingMode(signature.size());
+		try(OutputStream os = conn.getOutputStream()) {
+			signature.writeTo(os);
+		}
+		int res = conn.getResponseCode();
+		if(res != 200) {
+			LOGGER.info("Got response {} while requesting delta of {}, downloading whole track", res, filename);
+			return false;
+		}
+
+		try(InputStream is = new BufferedInputStream(conn.getInputStream());
+				OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmpTarget))) {
+			Delta.patch(target, is, os);
+		} catch(IllegalArgumentException e) {
+			LOGGER.warn("Could not apply delta of {}, downloading whole track", filename, e);
+			return false;
+		}
+		LOGGER.info("Downloaded {} as a delta", filename);
+		return true;
+	}
+
+	/// Handles a [Action.Type#CHANGE_METADATA] action received from the server.
+	///
+	/// Writes the new metadata to the local file the same way the server did, so that the track does not need to be
+	/// downloaded again. If the result does not match the server's [Action#contentHash], for example because the
+	/// local file was different to begin with, the track is downloaded through [#handleReplaceAction] instead.
+	///
+	/// Streamed tracks have their metadata read from the server again.
+	public static void handleChangeMetadataAction(Action action) throws IOException {
+		File target = library.toPath().resolve(action.filename).toFile();
+		if(isStreamed(action.filename)) {
+			ClientStorage.MAIN.tracks.remove(action.filename);
+			registerStreamedTrack(target);
+			return;
+		}
+		if(!target.exists()) {
+			LOGGER.error("Received CHANGE_METADATA action for track {} which does not exist, ignoring",
+					action.filename);
+			return;
+		}
+
+		try {
+			if(!FLACUtil.writeMetadataInPlace(target, action.newMetadata)) {
+				Path tmpTarget = new File(target.getAbsolutePath() + ".tmp").toPath();
+				FLACUtil.writeMetadata(target, action.newMetadata, tmpTarget.toFile());
+				try {
+					Files.move(tmpTarget, target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+							StandardCopyOption.REPLACE_EXISTING);
+				} catch(IOException _) {
+					LOGGER.debug("Atomic move of {} to {} failed, using normal move", tmpTarget, target);
+					Files.move(tmpTarget, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+		} catch(IllegalArgumentException e) {
+			LOGGER.error("Could not change metadata of {}, downloading it instead", action.filename, e);
+			handleReplaceAction(action);
+			return;
+		}
+
+		if(action.contentHash != null && !action.contentHash.equals(ContentHash.of(target))) {
+			LOGGER.warn("Changing metadata of {} resulted in a different file than the server's, downloading it",
+					action.filename);
+			handleReplaceAction(action);
+			return;
+		}
+
+		ClientStorage.MAIN.tracks.remove(target.getName());
+		registerNewTrack(target);
+	}
+
+	/// Handles a [Action.Type#RENAME] action received from the server.
+	///
+	/// Moves the local file, so that the track does not need to be downloaded again. If the file is missing, or its
+	/// contents do not match the action's [Action#contentHash], the track is downloaded under its new filename
+	/// through [#handleAddAction] instead.
+	public static void handleRenameAction(Action action) throws IOException {
+		File source = library.toPath().resolve(action.filename).toFile();
+		File target = library.toPath().resolve(action.newFilename).toFile();
+		if(target.exists()) {
+			LOGGER.error("Received RENAME action of track {} to {} which already exists, ignoring", action.filename,
+					action.newFilename);
+			return;
+		}
+		if(isStreamed(action.filename)) {
+			Track track = ClientStorage.MAIN.tracks.get(action.filename);
+			ClientStorage.MAIN.tracks.remove(action.filename);
+			track.moveTo(target);
+			ClientStorage.MAIN.tracks.put(action.newFilename, track);
+			reloadSelection();
+			return;
+		}
+		if(!source.isFile()) {
+			LOGGER.error("Received RENAME action for track {} which does not exist, downloading it as {}",
+					action.filename, action.newFilename);
+			handleAddAction(new Action(action.newFilename, Action.Type.ADD));
+			return;
+		}
+		// transcoded files never match the server's hash, and were matched through their metadata instead
+		if(action.contentHash != null && ClientStorage.MAIN.transcodedTracks.get(action.filename) == null
+				&& !action.contentHash.equals(ContentHash.of(source))) {
+			LOGGER.error("Received RENAME action for track {} whose contents differ from the server's, downloading "
+					+ "it as {}", action.filename, action.newFilename);
+			Track track = ClientStorage.MAIN.tracks.get(action.filename);
+			if(track != null) {
+				removeTrack(track);
+			} else if(!source.delete()) {
+				LOGGER.error("Failed to delete {}", source);
+			}
+			Action add = new Action(action.newFilename, Action.Type.ADD);
+			add.contentHash = action.contentHash;
+			handleAddAction(add);
+			return;
+		}
+
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException _) {
+			LOGGER.debug("Atomic move of {} to {} failed, using normal move", source, target);
+			Files.move(source.toPath(), target.toPath());
+		}
+
+		Long originalChecksum = ClientStorage.MAIN.transcodedTracks.get(action.filename);
+		ClientStorage.MAIN.transcodedTracks.remove(action.filename);
+		if(originalChecksum != null) {
+			ClientStorage.MAIN.transcodedTracks.put(action.newFilename, originalChecksum);
+		}
+
+		Track track = ClientStorage.MAIN.tracks.get(action.filename);
+		ClientStorage.MAIN.tracks.remove(action.filename);
+		if(track == null) {
+			registerNewTrack(target);
+			return;
+		}
+		track.moveTo(target);
+		ClientStorage.MAIN.tracks.put(action.newFilename, track);
+		reloadSelection();
 	}
 
 	/// Handles a [Action.Type#REMOVE] action received from the server.
@@ -935,15 +1298,40 @@ public class Library {
 	/// @see #EVENT_TRACK_REMOVED
 	public static void handleRemoveAction(Action action) throws IOException {
 		File target = library.toPath().resolve(action.filename).toFile();
-		if(!target.delete()) {
+		if(!isStreamed(action.filename) && !target.delete()) {
 			LOGGER.error("Failed to delete {}. Were permissions messed with?", target);
 			throw new IOException("Failed to delete file");
 		}
 
 		ClientStorage.MAIN.tracks.remove(target.getName());
+		ClientStorage.MAIN.transcodedTracks.remove(target.getName());
 		reloadSelection();
 	}
 
+	/// Returns whether two lists of metadata have the same entries in the same order.
+	public static boolean sameMetadata(List<Pair<String, String>> a, List<Pair<String, String>> b) {
+		if(a == null || b == null || a.size() != b.size()) {
+			return a == b;
+		}
+		Iterator<Pair<String, String>> aIterator = a.iterator();
+		Iterator<Pair<String, String>> bIterator = b.iterator();
+		while(aIterator.hasNext()) {
+			Pair<String, String> aPair = aIterator.next();
+			Pair<String, String> bPair = bIterator.next();
+			if(!Objects.equals(aPair.key, bPair.key) || !Objects.equals(aPair.value, bPair.value)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/// Returns the checksum the server's version of a track has: that of the original if the track was downloaded
+	/// transcoded (see [ClientStorage.Main#transcodedTracks]), otherwise that of the local file.
+	public static long serverChecksum(Track track) {
+		Long original = ClientStorage.MAIN.transcodedTracks.get(track.getFile().getName());
+		return original != null ? original : track.getChecksum();
+	}
+
 	/// Block until library is initialized.
 	///
 	/// @see #EVENT_LOADED
@@ -969,4 +1357,11 @@ public class Library {
 
 	/// Data for [Library#EVENT_FILTER_MOVED]
 	public record FilterMovedEvent(Filter filter, int newPosition) {}
+
+	/// The server's selection, see [SelectionResponse].
+	///
+	/// @param version the version of the selection, see [SelectionUpdateMessage#version]
+	/// @param filenames the filenames of the matching tracks
+	/// @param optionValues the values of the options of each filter, by filter id
+	private record ServerSelection(long version, Set<String> filenames, Map<Integer, List<String>> optionValues) {}
 }
@@ -51,6 +51,8 @@ public class Main {
 
 			Player.init();
 
+			Peers.init();
+
 			Server.connect();
 		}).start();
 
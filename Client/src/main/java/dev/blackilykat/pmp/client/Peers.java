@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.pmp.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import dev.blackilykat.pmp.PeerInfo;
+import dev.blackilykat.pmp.messages.PeerAnnounceMessage;
+import dev.blackilykat.pmp.messages.PeersRequest;
+import dev.blackilykat.pmp.messages.PeersResponse;
+import dev.blackilykat.pmp.util.ContentHash;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/// Transfer of tracks between devices, so that a device can download a track from another one on the same network
+/// which already has it rather than from the server.
+///
+/// When [ClientStorage.Main#peerSharing] is enabled, this device serves its tracks over HTTP on
+/// [ClientStorage.Main#peerPort] and tells the server which ones it has through [PeerAnnounceMessage]s. The
+/// endpoint is read-only: `GET /<content hash>` returns the track with that [ContentHash], supporting a `Range` header
+/// with a single range. Requests must have a `secret` header with the random value announced to the server, which
+/// the server only gives to logged in devices.
+///
+/// Downloading devices ask the server which peers have a track through a [PeersRequest] and [#fetch] it from them,
+/// each peer sending different ranges at the same time. The result is only used if its content hash matches the one
+/// the server reported for the track, so a peer can never make a device store anything else.
+public class Peers {
+	private static final Logger LOGGER = LogManager.getLogger(Peers.class);
+	/// Size of the ranges tracks are fetched in. Only this much data is fetched again when a peer fails midway.
+	private static final int CHUNK_SIZE = 1024 * 1024;
+	/// The maximum amount of peers a track is fetched from at the same time, and of requests served at the same time.
+	private static final int MAX_PEERS = 4;
+	private static final int TIMEOUT_MS = 5000;
+	/// The maximum length of a track fetched from peers, so that a peer cannot make a device fill its disk.
+	private static final long MAX_LENGTH = 4L * 1024 * 1024 * 1024;
+	/// The value the `secret` header of requests to this device must have, changed every time the client starts.
+	private static final String SECRET = newSecret();
+	/// The tracks this device shares by [ContentHash], so that requests do not need to go through the whole library.
+	/// May contain tracks which were since removed or replaced, which are checked for when serving them.
+	private static final Map<String, Track> SHARED = new ConcurrentHashMap<>();
+
+	/// Starts serving tracks to other devices if [ClientStorage.Main#peerSharing] is enabled, announcing them to the
+	/// server whenever logging in and whenever a track is added.
+	public static void init() {
+		if(!ClientStorage.MAIN.peerSharing.get()) {
+			return;
+		}
+		int port = ClientStorage.MAIN.peerPort.get();
+		try {
+			HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+			server.createContext("/", Peers::handle);
+			server.setExecutor(Executors.newFixedThreadPool(MAX_PEERS, r -> {
+				Thread thread = new Thread(r, "Peer transfer thread");
+				thread.setDaemon(true);
+				return thread;
+			}));
+			server.start();
+		} catch(IOException e) {
+			LOGGER.error("Failed to start peer transfer server on port {}, not sharing tracks", port, e);
+			return;
+		}
+
+		Server.EVENT_LOGGED_IN.register(_ -> {
+			SHARED.clear();
+			for(Track track : ClientStorage.MAIN.tracks.viewValues()) {
+				share(track);
+			}
+			announce(List.copyOf(SHARED.keySet()), true);
+		});
+		Library.EVENT_TRACK_ADDED.register(track -> {
+			if(share(track) && Server.isLoggedIn()) {
+				announce(List.of(track.getContentHash()), false);
+			}
+		});
+		Library.EVENT_TRACK_REMOVED.register(track -> {
+			if(track.getContentHash() != null) {
+				SHARED.remove(track.getContentHash(), track);
+			}
+		});
+	}
+
+	/// Adds a track to [#SHARED] if it can be shared.
+	///
+	/// @return whether the track was added
+	private static boolean share(Track track) {
+		if(track.isStreamed() || track.getContentHash() == null) {
+			return false;
+		}
+		SHARED.put(track.getContentHash(), track);
+		return true;
+	}
+
+	private static void announce(List<String> contentHashes, boolean full) {
+		try {
+			Server.send(new PeerAnnounceMessage(Server.getLocalAddress(), ClientStorage.MAIN.peerPort.get(), SECRET,
+					contentHashes, full));
+		} catch(IllegalStateException e) {
+			LOGGER.debug("Not announcing tracks to peers while disconnected");
+		}
+	}
+
+	/// Fetches the track with the given [ContentHash] from other devices which have it into `target`.
+	///
+	/// @param contentHash the content hash the server reported for the track
+	/// @return true if the whole track was fetched and its content hash matches, false if no peer has it or it could
+	/// not be fetched from them, in which case it must be downloaded from the server
+	/// @throws InterruptedIOException if the thread is interrupted
+	public static boolean fetch(String contentHash, Path target) throws InterruptedIOException {
+		if(!ClientStorage.MAIN.peerSharing.get() || !Server.isLoggedIn()) {
+			return false;
+		}
+
+		List<PeerInfo> peers;
+		try {
+			PeersRequest request = new PeersRequest(contentHash);
+			Server.send(request);
+			PeersResponse response = request.takeResponse();
+			peers = new ArrayList<>(response.peers);
+		} catch(SocketException | IllegalStateException e) {
+			return false;
+		} catch(InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		if(peers.isEmpty()) {
+			return false;
+		}
+		// spread the load of devices downloading the same tracks across all peers
+		Collections.shuffle(peers);
+		if(peers.size() > MAX_PEERS) {
+			peers = peers.subList(0, MAX_PEERS);
+		}
+
+		long length = -1;
+		for(PeerInfo peer : peers) {
+			try {
+				// the length is in the Content-Range header, after the range
+				HttpURLConnection conn = startPeerRequest(peer, contentHash);
+				conn.setRequestProperty("Range", "bytes=0-0");
+				String contentRange = conn.getHeaderField("Content-Range");
+				conn.getInputStream().close();
+				if(conn.getResponseCode() == 206 && contentRange != null) {
+					length = Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1));
+					break;
+				}
+			} catch(IOException | NumberFormatException e) {
+				LOGGER.debug("Could not reach peer {} at {}:{}", peer.deviceId(), peer.address(), peer.port(), e);
+			}
+		}
+		if(length < 0) {
+			return false;
+		}
+		if(length > MAX_LENGTH) {
+			LOGGER.warn("Peers reported a length of {} bytes for track {}, not fetching it", length, contentHash);
+			return false;
+		}
+
+		Queue<long[]> chunks = new ConcurrentLinkedQueue<>();
+		for(long start = 0; start < length; start += CHUNK_SIZE) {
+			chunks.add(new long[]{start, Math.min(length, start + CHUNK_SIZE) - 1});
+		}
+
+		try(FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			List<Callable<Void>> workers = new ArrayList<>();
+			for(PeerInfo peer : peers) {
+				workers.add(() -> {
+					fetchChunks(peer, contentHash, chunks, channel);
+					return null;
+				});
+			}
+			ExecutorService pool = Executors.newFixedThreadPool(workers.size(), r -> {
+				Thread thread = new Thread(r, "Peer fetching thread");
+				thread.setDaemon(true);
+				return thread;
+			});
+			try {
+				pool.invokeAll(workers);
+			} catch(InterruptedException e) {
+				throw new InterruptedIOException();
+			} finally {
+				pool.shutdownNow();
+			}
+		} catch(InterruptedIOException e) {
+			throw e;
+		} catch(IOException e) {
+			LOGGER.error("Failed to write track fetched from peers to {}", target, e);
+			return false;
+		}
+
+		if(!chunks.isEmpty()) {
+			LOGGER.info("Could not fetch all of track {} from peers", contentHash);
+			return false;
+		}
+
+		try {
+			String actual = ContentHash.of(target.toFile());
+			if(!actual.equals(contentHash)) {
+				LOGGER.warn("Track fetched from peers has content hash {} instead of {}", actual, contentHash);
+				return false;
+			}
+		} catch(IOException e) {
+			LOGGER.error("Failed to read track fetched from peers", e);
+			return false;
+		}
+		LOGGER.info("Fetched track {} from {} peers", contentHash, peers.size());
+		return true;
+	}
+
+	/// Fetches chunks from a peer until there are none left. If the peer fails, its chunk is put back for the others
+	/// to fetch and it is no longer used.
+	private static void fetchChunks(PeerInfo peer, String contentHash, Queue<long[]> chunks, FileChannel channel) {
+		byte[] buffer = new byte[65536];
+		long[] chunk;
+		while((chunk = chunks.poll()) != null) {
+			try {
+				HttpURLConnection conn = startPeerRequest(peer, contentHash);
+				conn.setRequestProperty("Range", "bytes=" + chunk[0] + "-" + chunk[1]);
+				int code = conn.getResponseCode();
+				if(code != 206) {
+					throw new IOException("Got response " + code);
+				}
+				long position = chunk[0];
+				try(InputStream is = conn.getInputStream()) {
+					int read;
+					while((read = is.read(buffer)) != -1) {
+						if(position + read > chunk[1] + 1) {
+							throw new IOException("Sent more than the requested range");
+						}
+						ByteBuffer written = ByteBuffer.wrap(buffer, 0, read);
+						while(written.hasRemaining()) {
+							position += channel.write(written, position);
+						}
+					}
+				}
+				if(position != chunk[1] + 1) {
+					throw new IOException("Sent less than the requested range");
+				}
+			} catch(IOException e) {
+				LOGGER.info("Stopped fetching from peer {} at {}:{}: {}", peer.deviceId(), peer.address(),
+						peer.port(), e.toString());
+				chunks.add(chunk);
+				return;
+			}
+		}
+	}
+
+	private static HttpURLConnection startPeerRequest(PeerInfo peer, String contentHash) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) URI.create(
+				"http://" + peer.address() + ":" + peer.port() + "/" + contentHash).toURL().openConnection();
+		conn.setConnectTimeout(TIMEOUT_MS);
+		conn.setReadTimeout(TIMEOUT_MS);
+		conn.setRequestProperty("secret", peer.secret());
+		return conn;
+	}
+
+	/// Handles a request from another device, responding with the following status codes:
+	///
+	/// | Status code | Description                                                   |
+	/// |:-----------:|---------------------------------------------------------------|
+	/// |         200 | Valid request, response body contains the whole track.        |
+	/// |         206 | Valid request, response body contains the requested range.    |
+	/// |         400 | The path is not a content hash.                               |
+	/// |         403 | The `secret` header is missing or wrong.                      |
+	/// |         404 | This device has no track with the content hash.               |
+	/// |         405 | The method is not GET.                                        |
+	/// |         416 | The `Range` header is not a single range within the track.    |
+	private static void handle(HttpExchange exchange) throws IOException {
+		try(exchange) {
+			if(!SECRET.equals(exchange.getRequestHeaders().getFirst("secret"))) {
+				exchange.sendResponseHeaders(403, -1);
+				return;
+			}
+			if(!exchange.getRequestMethod().equals("GET")) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+
+			String contentHash = exchange.getRequestURI().getPath().substring(1);
+			if(!ContentHash.isValid(contentHash)) {
+				exchange.sendResponseHeaders(400, -1);
+				return;
+			}
+
+			Track track = SHARED.get(contentHash);
+			File file = track != null ? track.getFile() : null;
+			// the track may have been replaced or removed since it was shared
+			if(file == null || ClientStorage.MAIN.tracks.get(file.getName()) != track || !file.isFile()) {
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+
+			long length = file.length();
+			long start = 0;
+			long end = length - 1;
+			String range = exchange.getRequestHeaders().getFirst("Range");
+			if(range != null) {
+				try {
+					if(!range.startsWith("bytes=")) {
+						throw new NumberFormatException();
+					}
+					String[] bounds = range.substring("bytes=".length()).split("-", 2);
+					start = Long.parseLong(bounds[0]);
+					if(bounds.length > 1 && !bounds[1].isEmpty()) {
+						end = Math.min(Long.parseLong(bounds[1]), length - 1);
+					}
+				} catch(NumberFormatException _) {
+					start = -1;
+				}
+				if(start < 0 || start > end) {
+					exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+					exchange.sendResponseHeaders(416, -1);
+					return;
+				}
+				exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + length);
+			}
+			exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+
+			exchange.sendResponseHeaders(range == null ? 200 : 206, end - start + 1);
+			try(FileChannel channel = FileChannel.open(file.toPath());
+					OutputStream os = exchange.getResponseBody()) {
+				WritableByteChannel out = Channels.newChannel(os);
+				long position = start;
+				while(position <= end) {
+					long sent = channel.transferTo(position, end - position + 1, out);
+					if(sent == 0 && position >= channel.size()) {
+						throw new IOException("File shrank while sending it");
+					}
+					position += sent;
+				}
+			}
+		} catch(IOException e) {
+			LOGGER.warn("Failed to serve track to peer {}", exchange.getRemoteAddress(), e);
+		}
+	}
+
+	private static String newSecret() {
+		byte[] bytes = new byte[24];
+		new SecureRandom().nextBytes(bytes);
+		return HexFormat.of().formatHex(bytes);
+	}
+}
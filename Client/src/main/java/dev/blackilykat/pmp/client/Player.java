@@ -44,6 +44,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
@@ -53,6 +54,7 @@ import java.util.List;
 import java.util.Objects;
 import java.util.Random;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -436,8 +438,13 @@ public class Player {
 		CompletableFuture<byte[]> pcmDataFuture = new CompletableFuture<>();
 
 		if(loadAudio) {
-			pcmDataFuture.thenAccept(pcmData -> {
-				pcm = pcmData;
+			pcmDataFuture.whenComplete((pcmData, e) -> {
+				if(e == null) {
+					pcm = pcmData;
+				} else if(currentTrack == track) {
+					LOGGER.error("Could not load {}, pausing", track.getFile().getName());
+					pause();
+				}
 			});
 		} else {
 			pcm = null;
@@ -471,6 +478,16 @@ public class Player {
 		EVENT_TRACK_CHANGE.call(new TrackChangeEvent(track, albumArtFuture));
 	}
 
+	/// Opens the FLAC data of a track, streaming it from the server if it is not stored locally.
+	///
+	/// @see Track#isStreamed
+	private static InputStream open(Track track) throws IOException {
+		if(track.isStreamed()) {
+			return new TrackStream(track.getFile().getName(), ClientStorage.MAIN.transcodeProfile.get());
+		}
+		return new FileInputStream(track.getFile());
+	}
+
 	/// Loads the specified track's album art and PCM data in the playback audio format.
 	/// 
 	/// @param track The track to load
@@ -478,6 +495,8 @@ public class Player {
 	/// art is returned as it is found in the track's metadata.
 	/// @param pcmDataFuture A future which will get completed as soon as the PCM data array is created. It will
 	/// immediately be empty. If this is null, PCM data won't be loaded at all.
+	///
+	/// Both futures are completed exceptionally if the track cannot be opened or decoded before they are completed.
 	/// @param onPcmLoad A consumer which will be called each time a chunk of the PCM data is loaded. It accepts the
 	/// amount of bytes of the pcm data read.
 	private static void load(@Nonnull Track track, @Nullable CompletableFuture<byte[]> albumArtFuture,
@@ -492,27 +511,24 @@ public class Player {
 			// unreachable
 		}
 
-		final AtomicReference<byte[]> pcmData = new AtomicReference<>(null);
-
 		DECODING_EXECUTOR.submit(() -> {
-			try {
-				FLACDecoder decoder = new FLACDecoder(new FileInputStream(track.getFile()));
+			try(InputStream is = open(track)) {
+				FLACDecoder decoder = new FLACDecoder(is);
 				decoder.addPCMProcessor(new PCMProcessor() {
 
 					@Override
 					public void processStreamInfo(StreamInfo streamInfo) {
 						if(pcmDataFuture != null) {
 							LOGGER.debug("Streaminfo: {}", streamInfo);
+							if(track.isStreamed()) {
+								// before the PCM data is available, so that the audio backend is set up with it
+								track.setStreamedPlaybackInfo(new Track.PlaybackInfo(streamInfo));
+							}
 							// These are inter-channel samples, meaning they're really just frames
 							int size = (int) streamInfo.getTotalSamples() * streamInfo.getChannels()
 									* streamInfo.getBitsPerSample() / 8;
 
-							synchronized(pcmData) {
-								pcmData.set(new byte[size]);
-								pcmData.notifyAll();
-							}
-
-							pcmDataFuture.complete(pcmData.get());
+							pcmDataFuture.complete(new byte[size]);
 						}
 					}
 
@@ -555,17 +571,17 @@ public class Player {
 					throw e;
 				} catch(IOException e) {
 					LOGGER.error("Error ", e);
-					if(albumArtFuture != null && !albumArtFuture.isDone()) {
-						albumArtFuture.completeExceptionally(e);
-					}
+					failLoading(albumArtFuture, pcmDataFuture, e);
 					throw new RuntimeException(e);
 				} catch(Exception e) {
 					LOGGER.error("Unknown exception", e);
+					failLoading(albumArtFuture, pcmDataFuture, e);
 				}
 
 				LOGGER.info("Done decoding");
 			} catch(IOException e) {
 				LOGGER.error("Could not decode", e);
+				failLoading(albumArtFuture, pcmDataFuture, e);
 			}
 		});
 
@@ -573,14 +589,14 @@ public class Player {
 		if(pcmDataFuture != null) {
 			LOADING_EXECUTOR.submit(() -> {
 				try {
-					synchronized(pcmData) {
-						while(pcmData.get() == null) {
-							pcmData.wait();
-						}
+					byte[] pcm;
+					try {
+						pcm = pcmDataFuture.get();
+					} catch(ExecutionException _) {
+						// already reported by the decoding task
+						return;
 					}
 
-					byte[] pcm = pcmData.get();
-
 					int processed = 0;
 					byte[] buffer = new byte[LOADING_BUFFER_SIZE];
 
@@ -624,6 +640,17 @@ public class Player {
 		}
 	}
 
+	/// Completes the futures passed to [#load] exceptionally, unless they were already completed.
+	private static void failLoading(@Nullable CompletableFuture<byte[]> albumArtFuture,
+			@Nullable CompletableFuture<byte[]> pcmDataFuture, Exception e) {
+		if(albumArtFuture != null) {
+			albumArtFuture.completeExceptionally(e);
+		}
+		if(pcmDataFuture != null) {
+			pcmDataFuture.completeExceptionally(e);
+		}
+	}
+
 	/// Initialize the state of the player and start necessary threads.
 	public static void init() {
 		if(audioThread != null) {
@@ -17,10 +17,12 @@
 
 package dev.blackilykat.pmp.client;
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import dev.blackilykat.pmp.Action;
 import dev.blackilykat.pmp.PMPConnection;
+import dev.blackilykat.pmp.TranscodeProfile;
 import dev.blackilykat.pmp.client.handlers.ActionMessageHandler;
 import dev.blackilykat.pmp.client.handlers.FilterListMessageHandler;
 import dev.blackilykat.pmp.client.handlers.LoginFailResponseHandler;
@@ -28,6 +30,8 @@ import dev.blackilykat.pmp.client.handlers.LoginSuccessResponseHandler;
 import dev.blackilykat.pmp.client.handlers.PlaybackControlMessageHandler;
 import dev.blackilykat.pmp.client.handlers.PlaybackOwnershipMessageHandler;
 import dev.blackilykat.pmp.client.handlers.PlaybackUpdateMessageHandler;
+import dev.blackilykat.pmp.client.handlers.SelectionResponseHandler;
+import dev.blackilykat.pmp.client.handlers.SelectionUpdateMessageHandler;
 import dev.blackilykat.pmp.event.EventSource;
 import dev.blackilykat.pmp.messages.ActionRequest;
 import dev.blackilykat.pmp.messages.ActionResponse;
@@ -38,6 +42,9 @@ import dev.blackilykat.pmp.messages.LoginAsExistingDeviceRequest;
 import dev.blackilykat.pmp.messages.LoginAsNewDeviceRequest;
 import dev.blackilykat.pmp.messages.LoginSuccessResponse;
 import dev.blackilykat.pmp.messages.Message;
+import dev.blackilykat.pmp.messages.PlaybackUpdateMessage;
+import dev.blackilykat.pmp.util.ContentHash;
+import dev.blackilykat.pmp.util.Delta;
 import dev.blackilykat.pmp.util.Pair;
 import dev.blackilykat.pmp.util.ScopedValue;
 import org.apache.logging.log4j.LogManager;
@@ -47,8 +54,15 @@ import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.ConnectException;
 import java.net.MalformedURLException;
 import java.net.SocketException;
@@ -63,9 +77,17 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /// Handles the connection with the server.
 ///
@@ -102,11 +124,15 @@ public class Server {
 	private static final ScopedValue<Boolean> HANDLING_ACTION = ScopedValue.newInstance();
 
 	private static final long RECONNECT_COOLDOWN_MS = 10_000;
+	/// How long, in seconds, to wait for the server to transcode a track before requesting the original instead.
+	private static final long TRANSCODE_WAIT_SECONDS = 60;
 	private static final Logger LOGGER = LogManager.getLogger(Server.class);
 	private static final Timer RECONNECT_TIMER = new Timer("Server reconnect timer");
 
 	/// Used to prevent multiple threads opening a connection at the same time
 	private static final Object connectionLock = new Object();
+	/// The last [PlaybackUpdateMessage#version] sent, which must increase with every update.
+	private static final AtomicLong playbackUpdateVersion = new AtomicLong(0);
 
 	/// This device's id
 	public static Integer deviceId = null;
@@ -117,6 +143,9 @@ public class Server {
 	/// connection drops before the server can send a [GetActionsResponse].
 	public static int lastActionId = -1;
 
+	/// Whether the server can skip uploads of files it already has, see [LoginSuccessResponse#deduplicates].
+	public static boolean serverDeduplicates = false;
+
 	/// If true user has ordered to disconnect, do not automatically reconnect.
 	private static boolean shouldNotReconnect = false;
 
@@ -129,6 +158,12 @@ public class Server {
 	private static ActionSendingThread actionSendingThread = null;
 	private static ActionThreadDispatcher actionThreadDispatcher = null;
 	private static List<TrackElement> serverTracks = null;
+	/// Released once [#serverTracks] is up to date and all actions from the [GetActionsRequest] are in
+	/// [ClientStorage.Main#actionsToHandle].
+	private static CountDownLatch serverTracksReady = null;
+	/// Notified whenever a page of actions is queued or [#serverTracksReady] is released, so that the
+	/// [ActionHandlingThread] does not need to poll for either.
+	private static final Object actionPagesLock = new Object();
 
 	/// Connect to the server. Does not block.
 	public static void connect() {
@@ -267,6 +302,9 @@ public class Server {
 	///@throws IllegalStateException if not connected
 	/// @see PMPConnection#send
 	public static void send(Message message) {
+		if(message instanceof PlaybackUpdateMessage update && update.version == null) {
+			update.version = playbackUpdateVersion.incrementAndGet();
+		}
 		if(connection != null) {
 			connection.send(message);
 		} else {
@@ -304,15 +342,38 @@ public class Server {
 		return isConnected() && deviceId != null;
 	}
 
+	/// Returns the address this device is connected to the server from, which other devices on the same network can
+	/// reach it at, or null if not connected.
+	public static String getLocalAddress() {
+		PMPConnection current = connection;
+		if(current == null) {
+			return null;
+		}
+		return current.socket.getLocalAddress().getHostAddress();
+	}
+
 	/// Creates an HTTP request to the server at its transfer port, filling required authentication headers.
 	///
 	/// @param method HTTP method for the request
 	/// @param target URL path with or without the leading slash
 	public static HttpsURLConnection startTransferRequest(String method, String target) throws IOException {
+		return startTransferRequest(method, target, null);
+	}
+
+	/// Creates an HTTP request to the server at its transfer port, filling required authentication headers.
+	///
+	/// @param method HTTP method for the request
+	/// @param target URL path with or without the leading slash
+	/// @param query already encoded URL query without the leading question mark, or null for no query
+	public static HttpsURLConnection startTransferRequest(String method, String target, String query)
+			throws IOException {
 		if(!target.startsWith("/")) {
 			target = '/' + target;
 		}
 		target = URLEncoder.encode(target, StandardCharsets.UTF_8).replace("%2F", "/");
+		if(query != null) {
+			target += '?' + query;
+		}
 		URL url;
 		try {
 			url = URI.create(
@@ -337,6 +398,44 @@ public class Server {
 		return conn;
 	}
 
+	/// Creates a GET request for a track at the transfer port, in the given [TranscodeProfile] if not null.
+	///
+	/// While the server responds with `202 Accepted` because it is still transcoding the track, the request is sent
+	/// again after the delay in its `Retry-After` header. Once {@value #TRANSCODE_WAIT_SECONDS} seconds have passed,
+	/// the original is requested instead.
+	///
+	/// @param setup called on every request before it is sent, for example to set headers
+	/// @return the request, already sent, whose response is not `202 Accepted`
+	public static HttpsURLConnection startTrackRequest(String filename, TranscodeProfile profile,
+			Consumer<HttpsURLConnection> setup) throws IOException {
+		long deadline = System.currentTimeMillis() + TRANSCODE_WAIT_SECONDS * 1000;
+		while(true) {
+			boolean transcoded = profile != null && System.currentTimeMillis() < deadline;
+			HttpsURLConnection conn = startTransferRequest("GET", filename,
+					transcoded ? "profile=" + profile.name() : null);
+			setup.accept(conn);
+			if(conn.getResponseCode() != 202) {
+				return conn;
+			}
+			conn.disconnect();
+
+			long retryAfter;
+			try {
+				retryAfter = Long.parseLong(conn.getHeaderField("Retry-After"));
+			} catch(NumberFormatException _) {
+				retryAfter = 1;
+			}
+			LOGGER.debug("Server is transcoding {} to {}, asking again in {} seconds", filename, profile,
+					retryAfter);
+			try {
+				Thread.sleep(Math.clamp(retryAfter, 1, TRANSCODE_WAIT_SECONDS) * 1000);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for " + filename + " to be transcoded");
+			}
+		}
+	}
+
 	/// Method called from UI once the user responds after [#EVENT_SHOULD_ASK_PASSWORD] is called
 	public static void submitPassword(String password) {
 		if(isLoggedIn()) {
@@ -353,7 +452,8 @@ public class Server {
 
 	/// The thread responsible for handling incoming library actions.
 	///
-	/// - Performs all incomplete [ClientStorage.Main#actionsToHandle];
+	/// - Performs all incomplete [ClientStorage.Main#actionsToHandle], including the ones still being received
+	///   from the server, until [#serverTracksReady] is released;
 	/// - compares the client's and the server's library and downloads any track the client is missing or of which the client has a different checksum;
 	/// - stays listening until disconnection for fresh [ClientStorage.Main#actionsToHandle].
 	///
@@ -368,33 +468,42 @@ public class Server {
 			ScopedValue.where(HANDLING_ACTION, true).run(() -> {
 
 				try {
-					{
+					while(true) {
+						synchronized(actionPagesLock) {
+							// more actions may still be arriving from the server
+							while(ClientStorage.MAIN.actionsToHandle.peek() == null
+									&& serverTracksReady.getCount() != 0) {
+								actionPagesLock.wait();
+							}
+						}
 						Action action = ClientStorage.MAIN.actionsToHandle.peek();
-						while(action != null) {
-							boolean skip = false;
-							if(action.actionType == Action.Type.ADD || action.actionType == Action.Type.REPLACE) {
-								for(Action viewing : ClientStorage.MAIN.actionsToHandle.viewAll()) {
-									if(viewing != action && (viewing.actionType == Action.Type.REPLACE
-											|| viewing.actionType == Action.Type.REMOVE) && viewing.filename.equals(
-											action.filename)) {
-										skip = true;
-										break;
-									}
+						if(action == null) {
+							break;
+						}
+
+						boolean skip = false;
+						if(action.actionType == Action.Type.ADD || action.actionType == Action.Type.REPLACE
+								|| action.actionType == Action.Type.CHANGE_METADATA) {
+							for(Action viewing : ClientStorage.MAIN.actionsToHandle.viewAll()) {
+								if(viewing != action && (viewing.actionType == Action.Type.REPLACE
+										|| viewing.actionType == Action.Type.REMOVE) && viewing.filename.equals(
+										action.filename)) {
+									skip = true;
+									break;
 								}
 							}
-							if(skip) {
-								LOGGER.info("Skipping {} action of track {} because it was removed or replaced in a "
-										+ "later action", action.actionType, action.filename);
-								ClientStorage.MAIN.actionsToHandle.take();
-							} else {
-								LOGGER.info("(non-blocking) Handling {} action of track {}", action.actionType,
-										action.filename);
-								handleAction(action);
-								ClientStorage.MAIN.actionsToHandle.take();
-								LOGGER.info("(non-blocking) Handled {} action of track {}", action.actionType,
-										action.filename);
-							}
-							action = ClientStorage.MAIN.actionsToHandle.peek();
+						}
+						if(skip) {
+							LOGGER.info("Skipping {} action of track {} because it was removed or replaced in a "
+									+ "later action", action.actionType, action.filename);
+							ClientStorage.MAIN.actionsToHandle.take();
+						} else {
+							LOGGER.info("(non-blocking) Handling {} action of track {}", action.actionType,
+									action.filename);
+							handleAction(action);
+							ClientStorage.MAIN.actionsToHandle.take();
+							LOGGER.info("(non-blocking) Handled {} action of track {}", action.actionType,
+									action.filename);
 						}
 					}
 
@@ -407,17 +516,27 @@ public class Server {
 							if(clientTrack == null) {
 								boolean toBeDeleted = false;
 								for(Action actionToSend : ClientStorage.MAIN.actionsToSend.viewAll()) {
-									if(actionToSend.actionType == Action.Type.REMOVE && actionToSend.filename.equals(
-											serverTrack.filename)) {
+									if((actionToSend.actionType == Action.Type.REMOVE
+											|| actionToSend.actionType == Action.Type.RENAME)
+											&& actionToSend.filename.equals(serverTrack.filename)) {
 										toBeDeleted = true;
 										break;
 									}
 								}
+								if(!toBeDeleted && findRenamedTrack(serverTrack) != null) {
+									// renamed on the server by the action sending thread
+									LOGGER.info("Client has {} under another filename, not downloading it",
+											serverTrack.filename);
+									toBeDeleted = true;
+								}
 								if(!toBeDeleted) {
 									LOGGER.warn("Client doesn't have {}, downloading", serverTrack.filename);
-									handleAction(new Action(serverTrack.filename, Action.Type.ADD));
+									Action add = new Action(serverTrack.filename, Action.Type.ADD);
+									// known if the whole track list was requested, allowing to fetch it from peers
+									add.contentHash = serverTrack.contentHash;
+									handleAction(add);
 								}
-							} else if(clientTrack.getChecksum() != serverTrack.checksum) {
+							} else if(Library.serverChecksum(clientTrack) != serverTrack.checksum) {
 								LOGGER.warn("Checksum for {} doesn't match, replacing with the server's version",
 										serverTrack.filename);
 								handleAction(new Action(serverTrack.filename, Action.Type.REPLACE));
@@ -451,6 +570,8 @@ public class Server {
 					case ADD -> Library.handleAddAction(action);
 					case REPLACE -> Library.handleReplaceAction(action);
 					case REMOVE -> Library.handleRemoveAction(action);
+					case CHANGE_METADATA -> Library.handleChangeMetadataAction(action);
+					case RENAME -> Library.handleRenameAction(action);
 					default -> LOGGER.warn("Received unhandled {} action, ignoring", action.actionType);
 				}
 			} catch(SocketException e) {
@@ -467,11 +588,15 @@ public class Server {
 	/// The thread responsible for performing outgoing actions.
 	///
 	/// - Sends all incomplete [ClientStorage.Main#actionsToSend];
-	/// - compares the client's and the server's library and uploads any track the server is missing;
+	/// - compares the client's and the server's library and uploads any track the server is missing, or renames the
+	///   server's track if it has the same contents under another filename;
 	/// - stays listening until disconnection for fresh [ClientStorage.Main#actionsToSend].
 	///
 	/// @see ActionThreadDispatcher
 	private static class ActionSendingThread extends Thread {
+		/// Size of the chunks tracks are uploaded in. Only this much data is lost when a connection drops midway.
+		private static final int UPLOAD_CHUNK_SIZE = 8 * 1024 * 1024;
+
 		public ActionSendingThread() {
 			super("Action sending thread");
 		}
@@ -490,6 +615,7 @@ public class Server {
 					}
 				}
 
+				Set<String> renamedServerTracks = new HashSet<>();
 				clientTrackLoop:
 				for(Track clientTrack : ClientStorage.MAIN.tracks.values().toArray(new Track[0])) {
 					String filename = clientTrack.getFile().getName();
@@ -505,6 +631,40 @@ public class Server {
 						}
 					}
 
+					if(clientTrack.isStreamed()) {
+						// it cannot be uploaded, so the server removed it while this client was offline
+						LOGGER.warn("Server doesn't have streamed track {}, removing it", filename);
+						ScopedValue.where(HANDLING_ACTION, true).run(() -> Library.removeTrack(clientTrack));
+						continue;
+					}
+
+					boolean transcoded = ClientStorage.MAIN.transcodedTracks.get(filename) != null;
+					TrackElement renamed = findRenamedServerTrack(clientTrack, renamedServerTracks);
+					if(renamed != null) {
+						LOGGER.warn("Server has {} as {}, renaming it", filename, renamed.filename);
+						renamedServerTracks.add(renamed.filename);
+						Action rename = new Action(renamed.filename, filename);
+						rename.contentHash = renamed.contentHash;
+						if(rename.contentHash == null && !transcoded) {
+							rename.contentHash = ContentHash.of(clientTrack.getFile());
+						}
+						if(sendMetadataOnlyAction(rename)) {
+							continue;
+						}
+					}
+
+					if(transcoded) {
+						// a lower quality copy must never take the place of the server's original
+						LOGGER.warn("Server doesn't have transcoded track {}, removing it", filename);
+						ScopedValue.where(HANDLING_ACTION, true).run(() -> Library.removeTrack(clientTrack));
+						if(renamed != null) {
+							Action add = new Action(renamed.filename, Action.Type.ADD);
+							add.contentHash = renamed.contentHash;
+							ClientStorage.MAIN.actionsToHandle.add(add);
+						}
+						continue;
+					}
+
 					LOGGER.warn("Server doesn't have {}, uploading", filename);
 					sendAction(new Action(filename, Action.Type.ADD));
 				}
@@ -530,6 +690,7 @@ public class Server {
 				switch(action.actionType) {
 					case ADD, REPLACE -> sendAddReplaceAction(action);
 					case REMOVE -> sendRemoveAction(action);
+					case CHANGE_METADATA, RENAME -> sendMetadataOnlyAction(action);
 					default -> LOGGER.warn("Attempted to send unimplemented {} action, ignoring", action.actionType);
 				}
 			} catch(InterruptedIOException e) {
@@ -546,6 +707,16 @@ public class Server {
 				LOGGER.warn("Tried to send {} on null track {}, skipping", action.actionType, action.filename);
 				return;
 			}
+			if(ClientStorage.MAIN.transcodedTracks.get(action.filename) != null) {
+				LOGGER.warn("Tried to send {} on transcoded track {}, skipping", action.actionType,
+						action.filename);
+				return;
+			}
+
+			// allows the server to complete the action without the upload if it already has the same file
+			if(serverDeduplicates) {
+				action.contentHash = ContentHash.of(track.getFile());
+			}
 
 			ActionRequest req = new ActionRequest(action);
 			send(req);
@@ -560,37 +731,199 @@ public class Server {
 				LOGGER.warn("Got INVALID action response, skipping this action");
 				return;
 			}
+
 			if(res.type == ActionResponse.Type.COMPLETED) {
-				send(new ErrorMessage("Early completed response, skipping this add/replace action"));
+				LOGGER.info("Server already had the contents of {}, skipped upload", action.filename);
+			} else {
+				assert res.type == ActionResponse.Type.APPROVED;
+
+				// the server has the previous version of replaced tracks, so only what changed may need to be sent
+				boolean uploaded = action.actionType == Action.Type.REPLACE && uploadDelta(action.filename,
+						track.getFile());
+				if(!uploaded && !upload(action.filename, track.getFile(), action.contentHash)) {
+					return;
+				}
+				res = req.takeResponse();
+
+				if(res.type != ActionResponse.Type.COMPLETED) {
+					send(new ErrorMessage("Got 200 OK but response type " + res.type));
+					return;
+				}
+			}
+
+			if(res.actionId == null) {
+				send(new ErrorMessage("COMPLETED response without actionId"));
+				ClientStorage.MAIN.lastReceivedAction.increment();
 				return;
 			}
 
-			assert res.type == ActionResponse.Type.APPROVED;
+			assert res.actionId == ClientStorage.MAIN.lastReceivedAction.get() + 1;
+
+			ClientStorage.MAIN.lastReceivedAction.set(res.actionId);
+		}
 
-			HttpsURLConnection conn = startTransferRequest("PUT", action.filename);
-			Files.copy(track.getFile().toPath(), conn.getOutputStream());
-			conn.getOutputStream().close();
+		/// Uploads the file of an [ActionResponse.Type#APPROVED] action as a [Delta] from the server's current
+		/// version, as long as the delta is smaller than half of the file.
+		///
+		/// @return false if the file still needs to be uploaded, which the server still allows
+		private static boolean uploadDelta(String filename, File file) throws IOException {
+			HttpsURLConnection conn = startTransferRequest("GET", "/signature/" + filename);
 			if(conn.getResponseCode() != 200) {
-				LOGGER.error("Failed to upload {}, unexpected response code {}, skipping", action.filename,
+				LOGGER.info("Server has no signature of {} ({}), uploading whole file", filename,
 						conn.getResponseCode());
-				return;
+				return false;
+			}
+			Delta.Signature signature;
+			try(InputStream is = new BufferedInputStream(conn.getInputStream())) {
+				signature = Delta.Signature.read(is);
+			} catch(IllegalArgumentException e) {
+				LOGGER.warn("Server sent an invalid signature of {}, uploading whole file", filename, e);
+				return false;
+			}
+
+			File delta = File.createTempFile("pmp-delta", null);
+			try {
+				try(OutputStream os = new BufferedOutputStream(new FileOutputStream(delta))) {
+					Delta.diff(signature, file, os);
+				}
+				if(delta.length() > file.length() / 2) {
+					LOGGER.info("Delta of {} is {} bytes, uploading whole file instead", filename, delta.length());
+					return false;
+				}
+
+				conn = startTransferRequest("PUT", filename);
+				conn.setInstanceFollowRedirects(false);
+				conn.setRequestProperty("Content-Encoding", "pmp-delta");
+				conn.setFixedLengthStreamingMode(delta.length());
+				try(OutputStream os = conn.getOutputStream()) {
+					Files.copy(delta.toPath(), os);
+				}
+				int code = conn.getResponseCode();
+				if(code != 200) {
+					LOGGER.warn("Server did not accept delta of {} ({}), uploading whole file", filename, code);
+					return false;
+				}
+				LOGGER.info("Uploaded {} as a delta of {} bytes", filename, delta.length());
+				return true;
+			} finally {
+				var _ = delta.delete();
+			}
+		}
+
+		/// Uploads the file of an [ActionResponse.Type#APPROVED] action in chunks of {@value #UPLOAD_CHUNK_SIZE}
+		/// bytes, first asking the server how much of it was already received in previous attempts.
+		///
+		/// Every chunk carries the file's [ContentHash], so that the server only resumes uploads of the same
+		/// contents and can verify the file once complete.
+		///
+		/// @param contentHash the content hash of the file, or null to calculate it
+		/// @return false if the server rejected the upload
+		private static boolean upload(String filename, File file, String contentHash) throws IOException {
+			if(contentHash == null) {
+				contentHash = ContentHash.of(file);
+			}
+			long total = file.length();
+			HttpsURLConnection conn = sendChunk(filename, file, contentHash, "bytes */" + total, 0, 0);
+			long offset = 0;
+			while(true) {
+				int code = conn.getResponseCode();
+				if(code == 200) {
+					return true;
+				}
+				if(code != 308) {
+					LOGGER.error("Failed to upload {}, unexpected response code {}, skipping", filename, code);
+					return false;
+				}
+
+				long received = parseReceivedBytes(conn.getHeaderField("Range"));
+				if(received < offset) {
+					LOGGER.error("Failed to upload {}, server lost received data, skipping", filename);
+					return false;
+				}
+				if(offset == 0 && received > 0) {
+					LOGGER.info("Resuming upload of {} at {}/{} bytes", filename, received, total);
+				}
+				if(received >= total) {
+					LOGGER.error("Failed to upload {}, server received the whole file but did not accept it",
+							filename);
+					return false;
+				}
+				offset = received;
+
+				long length = Math.min(UPLOAD_CHUNK_SIZE, total - offset);
+				conn = sendChunk(filename, file, contentHash,
+						"bytes " + offset + "-" + (offset + length - 1) + "/" + total, offset, length);
+			}
+		}
+
+		/// Sends a PUT request to the server with the given `Content-Range` and the bytes from `offset` to
+		/// `offset + length` of the file as body.
+		private static HttpsURLConnection sendChunk(String filename, File file, String contentHash,
+				String contentRange, long offset, long length) throws IOException {
+			HttpsURLConnection conn = startTransferRequest("PUT", filename);
+			conn.setInstanceFollowRedirects(false);
+			conn.setRequestProperty("Content-Range", contentRange);
+			conn.setRequestProperty("content-hash", contentHash);
+			conn.setFixedLengthStreamingMode(length);
+			try(RandomAccessFile raf = new RandomAccessFile(file, "r"); OutputStream os = conn.getOutputStream()) {
+				raf.seek(offset);
+				// 0.125 MiB
+				byte[] buf = new byte[0x20_000];
+				long remaining = length;
+				while(remaining > 0) {
+					int read = raf.read(buf, 0, (int) Math.min(buf.length, remaining));
+					if(read == -1) {
+						throw new IOException("File " + filename + " shrank while uploading");
+					}
+					os.write(buf, 0, read);
+					remaining -= read;
+				}
+			}
+			return conn;
+		}
+
+		/// Parses a `Range` header in the form `bytes=0-<last>`.
+		///
+		/// @return the amount of bytes in the range, 0 if there is no range
+		private static long parseReceivedBytes(String range) throws IOException {
+			if(range == null) {
+				return 0;
+			}
+			if(!range.startsWith("bytes=0-")) {
+				throw new IOException("Unexpected Range header " + range);
+			}
+			try {
+				return Long.parseLong(range.substring("bytes=0-".length())) + 1;
+			} catch(NumberFormatException e) {
+				throw new IOException("Unexpected Range header " + range, e);
+			}
+		}
+
+		/// Sends an action the server completes by itself, without any transfer.
+		/// @return whether the server completed the action
+		private static boolean sendMetadataOnlyAction(Action action) throws SocketException, InterruptedException {
+			assert action.actionType == Action.Type.CHANGE_METADATA || action.actionType == Action.Type.RENAME;
+			ActionRequest req = new ActionRequest(action);
+			send(req);
+			ActionResponse res = req.takeResponse();
+			while(res.type == ActionResponse.Type.QUEUED) {
+				res = req.takeResponse();
 			}
-			res = req.takeResponse();
 
 			if(res.type != ActionResponse.Type.COMPLETED) {
-				send(new ErrorMessage("Got 200 OK but response type " + res.type));
-				return;
+				// the libraries will be brought back in sync when comparing them
+				LOGGER.warn("Got {} action response, skipping this {} action", res.type, action.actionType);
+				return false;
 			}
 
 			if(res.actionId == null) {
 				send(new ErrorMessage("COMPLETED response without actionId"));
 				ClientStorage.MAIN.lastReceivedAction.increment();
-				return;
+				return true;
 			}
 
-			assert res.actionId == ClientStorage.MAIN.lastReceivedAction.get() + 1;
-
 			ClientStorage.MAIN.lastReceivedAction.set(res.actionId);
+			return true;
 		}
 
 		private static void sendRemoveAction(Action action) throws SocketException, InterruptedException {
@@ -631,9 +964,12 @@ public class Server {
 	/// Thread responsible for correctly starting [ActionHandlingThread] and [ActionSendingThread].
 	///
 	/// - Waits for library to be loaded;
-	/// - performs a [GetActionsRequest] if needed and handles its response;
-	/// - requests the server's entire library and stores it;
-	/// - starts the two threads allowing them to compare the server and client libraries.
+	/// - starts [ActionHandlingThread];
+	/// - performs a [GetActionsRequest] if needed, queueing each page of its response as soon as it arrives;
+	/// - updates [ClientStorage.Main#serverCatalog], requesting the server's entire library only if it cannot be
+	///   updated from the changes since [ClientStorage.Main#serverCatalogActionId];
+	/// - releases [#serverTracksReady] and starts [ActionSendingThread], allowing both threads to compare the server
+	///   and client libraries.
 	private static class ActionThreadDispatcher extends Thread {
 		@Override
 		public void run() {
@@ -642,31 +978,54 @@ public class Server {
 
 				int lra = ClientStorage.MAIN.lastReceivedAction.get();
 
+				serverTracksReady = new CountDownLatch(1);
+				actionHandlingThread = new ActionHandlingThread();
+				actionHandlingThread.start();
+
 				// lastActionId is set while handling LoginSuccessResponse, which happens right before this thread
 				// starts. If the id in storage is -1, the client is connecting for the first time to the server and
 				// should rely on comparing libraries instead of reading the action history
 				if(lra != -1 && lastActionId > lra) {
 					GetActionsRequest req = new GetActionsRequest(lra + 1);
 					send(req);
-					GetActionsResponse res = req.takeResponse();
-
-					for(Action action : res.actions) {
-						ClientStorage.MAIN.actionsToHandle.add(action);
-					}
+					GetActionsResponse res;
+					do {
+						res = req.takeResponse();
+
+						if(res.resync) {
+							// the libraries will be compared using the server's entire track list instead
+							LOGGER.info("Server no longer has actions since {}, resyncing", lra);
+							ClientStorage.MAIN.serverCatalogActionId.set(-1);
+						} else {
+							synchronized(actionPagesLock) {
+								for(Action action : res.actions) {
+									ClientStorage.MAIN.actionsToHandle.add(action);
+								}
+								actionPagesLock.notifyAll();
+							}
+							// pages already queued must not be requested again if the connection drops
+							if(!res.ids.isEmpty()) {
+								ClientStorage.MAIN.lastReceivedAction.set(res.ids.getLast());
+							}
+						}
+					} while(!res.isLastResponse());
 				}
 				ClientStorage.MAIN.lastReceivedAction.set(lastActionId);
 
-				HttpsURLConnection tracksRequest = startTransferRequest("GET", "/");
-				if(tracksRequest.getResponseCode() != 200) {
-					LOGGER.error("Got unexpected response code {} while getting track list",
-							tracksRequest.getResponseCode());
+				if(!updateServerCatalog()) {
 					return;
 				}
-				ObjectMapper mapper = new ObjectMapper();
-				serverTracks = mapper.readValue(tracksRequest.getInputStream(), new TypeReference<>() {});
 
-				actionHandlingThread = new ActionHandlingThread();
-				actionHandlingThread.start();
+				List<TrackElement> tracks = new ArrayList<>();
+				for(Map.Entry<String, Long> entry : ClientStorage.MAIN.serverCatalog.get().entrySet()) {
+					tracks.add(new TrackElement(entry.getKey(), entry.getValue()));
+				}
+				serverTracks = tracks;
+				synchronized(actionPagesLock) {
+					serverTracksReady.countDown();
+					actionPagesLock.notifyAll();
+				}
+
 				actionSendingThread = new ActionSendingThread();
 				actionSendingThread.start();
 			} catch(IOException e) {
@@ -677,13 +1036,138 @@ public class Server {
 				disconnect("Interrupted when dispatching action threads");
 			}
 		}
+
+		/// Brings [ClientStorage.Main#serverCatalog] up to date, downloading only the changes since
+		/// [ClientStorage.Main#serverCatalogActionId] when possible and the server's entire library otherwise.
+		///
+		/// @return false if the server responded unexpectedly
+		private static boolean updateServerCatalog() throws IOException {
+			ObjectMapper mapper = new ObjectMapper();
+			int since = ClientStorage.MAIN.serverCatalogActionId.get();
+
+			if(since != -1) {
+				HttpsURLConnection deltaRequest = startTransferRequest("GET", "/", "since=" + since);
+				int code = deltaRequest.getResponseCode();
+				if(code == 200) {
+					TrackListDelta delta = mapper.readValue(deltaRequest.getInputStream(), TrackListDelta.class);
+					LOGGER.info("Server library changed since action {}: {} tracks changed, {} removed", since,
+							delta.tracks.size(), delta.removed.size());
+					for(String filename : delta.removed) {
+						ClientStorage.MAIN.serverCatalog.remove(filename);
+					}
+					for(TrackElement track : delta.tracks) {
+						ClientStorage.MAIN.serverCatalog.put(track.filename, track.checksum);
+					}
+					ClientStorage.MAIN.serverCatalogActionId.set(delta.lastActionId);
+					return true;
+				}
+				if(code != 410) {
+					LOGGER.error("Got unexpected response code {} while getting track list changes", code);
+					return false;
+				}
+				LOGGER.info("Server no longer knows action {}, getting the entire track list", since);
+			}
+
+			// Actions performed after lastActionId may already be reflected in the list. That is fine, as they will
+			// simply be included again in the next update.
+			int catalogActionId = lastActionId;
+			HttpsURLConnection tracksRequest = startTransferRequest("GET", "/");
+			if(tracksRequest.getResponseCode() != 200) {
+				LOGGER.error("Got unexpected response code {} while getting track list",
+						tracksRequest.getResponseCode());
+				return false;
+			}
+			List<TrackElement> tracks = mapper.readValue(tracksRequest.getInputStream(), new TypeReference<>() {});
+			Map<String, Long> catalog = new HashMap<>();
+			for(TrackElement track : tracks) {
+				catalog.put(track.filename, track.checksum);
+			}
+			ClientStorage.MAIN.serverCatalog.set(catalog);
+			ClientStorage.MAIN.serverCatalogActionId.set(catalogActionId);
+			return true;
+		}
 	}
 
 	/// Used to deserialize the server's library
+	@JsonIgnoreProperties(ignoreUnknown = true)
 	private static class TrackElement {
 		public String filename;
 		public long checksum;
 		public List<Pair<String, String>> metadata;
+		/// The [ContentHash] of the server's file, null if the server did not compute it.
+		public String contentHash;
+
+		public TrackElement() {}
+
+		public TrackElement(String filename, long checksum) {
+			this.filename = filename;
+			this.checksum = checksum;
+		}
+	}
+
+	/// Returns the client's track with the same contents as a track the client does not have, if the server does not
+	/// have it. This means the client renamed the track, which the [ActionSendingThread] sends to the server rather
+	/// than uploading it again.
+	///
+	/// @see #findRenamedServerTrack
+	private static Track findRenamedTrack(TrackElement serverTrack) {
+		clientTrackLoop:
+		for(Track clientTrack : ClientStorage.MAIN.tracks.values()) {
+			if(clientTrack.isStreamed() || !sameContents(clientTrack, serverTrack)) {
+				continue;
+			}
+			String filename = clientTrack.getFile().getName();
+			for(TrackElement other : serverTracks) {
+				if(other.filename.equals(filename)) {
+					continue clientTrackLoop;
+				}
+			}
+			return clientTrack;
+		}
+		return null;
+	}
+
+	/// Returns the server's track with the same contents as a track the server does not have, if the client does not
+	/// have it.
+	///
+	/// @param excluded filenames of server tracks which are already being renamed
+	/// @see #findRenamedTrack
+	private static TrackElement findRenamedServerTrack(Track clientTrack, Set<String> excluded) {
+		for(TrackElement serverTrack : serverTracks) {
+			if(!excluded.contains(serverTrack.filename) && ClientStorage.MAIN.tracks.get(serverTrack.filename) == null
+					&& sameContents(clientTrack, serverTrack)) {
+				return serverTrack;
+			}
+		}
+		return null;
+	}
+
+	/// Returns whether a client track has the same contents as a server track. The checksums matching is not enough,
+	/// as CRC32 collisions are likely across big libraries: the [ContentHash] of the local file must match the
+	/// server's too. Tracks downloaded transcoded, or whose server hash is unknown, must have the same metadata
+	/// instead, and the server still checks the content hash sent with a rename against its own.
+	private static boolean sameContents(Track clientTrack, TrackElement serverTrack) {
+		if(Library.serverChecksum(clientTrack) != serverTrack.checksum) {
+			return false;
+		}
+		String filename = clientTrack.getFile().getName();
+		if(serverTrack.contentHash == null || ClientStorage.MAIN.transcodedTracks.get(filename) != null) {
+			return Library.sameMetadata(clientTrack.metadata, serverTrack.metadata);
+		}
+		try {
+			return serverTrack.contentHash.equals(ContentHash.of(clientTrack.getFile()));
+		} catch(IOException e) {
+			LOGGER.warn("Could not hash {}", filename, e);
+			return false;
+		}
+	}
+
+	/// Used to deserialize changes to the server's library
+	@JsonIgnoreProperties(ignoreUnknown = true)
+	private static class TrackListDelta {
+		public int lastActionId;
+		public List<TrackElement> tracks;
+		public List<String> removed;
 	}
 
 	static {
@@ -694,10 +1178,13 @@ public class Server {
 		new PlaybackUpdateMessageHandler().register();
 		new FilterListMessageHandler().register();
 		new ActionMessageHandler().register();
+		new SelectionResponseHandler().register();
+		new SelectionUpdateMessageHandler().register();
 
 		EVENT_LOGGED_IN.register(_ -> {
 			actionThreadDispatcher = new ActionThreadDispatcher();
 			actionThreadDispatcher.start();
+			Library.requestServerSelection();
 		});
 
 		EVENT_DISCONNECTED.register(_ -> {
@@ -710,6 +1197,7 @@ public class Server {
 			if(actionHandlingThread != null) {
 				actionHandlingThread.interrupt();
 			}
+			Library.clearServerSelection();
 		});
 
 		Library.EVENT_TRACK_ADDED.register(track -> {
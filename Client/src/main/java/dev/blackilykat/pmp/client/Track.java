@@ -20,6 +20,8 @@ package dev.blackilykat.pmp.client;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -34,6 +36,8 @@ import org.kc7bfi.jflac.metadata.StreamInfo;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
+import dev.blackilykat.pmp.TranscodeProfile;
+import dev.blackilykat.pmp.util.ContentHash;
 import dev.blackilykat.pmp.util.FLACUtil;
 import dev.blackilykat.pmp.util.Pair;
 
@@ -71,10 +75,19 @@ public class Track {
 	/// CRC32 checksum of the entire contents of this track. 
 	private long checksum;
 
+	/// [ContentHash] of the entire contents of this track. Null for streamed tracks and for tracks cached before it
+	/// was stored.
+	private String contentHash;
+
 	/// Duration of this track in seconds.
 	private double durationSeconds;
 
-	/// Creates a track based on a file. Reads the entirety of the file to derive its checksum and metadata.
+	/// Whether this track is not stored locally and is played from the server instead. If so, [#file] does not exist
+	/// and [#checksum] is the checksum of the track in the server's library.
+	private boolean streamed = false;
+
+	/// Creates a track based on a file. Reads the entirety of the file to derive its checksum, content hash and
+	/// metadata.
 	///
 	/// @throws IOException if there is an IO exception when reading the file
 	/// @throws IllegalArgumentException if file doesn't exist or is a directory
@@ -90,27 +103,18 @@ public class Track {
 		lastModified = file.lastModified();
 
 		Checksum sum = new CRC32();
-		try(CheckedInputStream is = new CheckedInputStream(new FileInputStream(file), sum)) {
+		MessageDigest digest = ContentHash.newDigest();
+		try(CheckedInputStream is = new CheckedInputStream(new DigestInputStream(new FileInputStream(file), digest),
+				sum)) {
 			FLACDecoder decoder = new FLACDecoder(is);
-			Metadata[] metadata = decoder.readMetadata();
-
-			for(Metadata metadatum : metadata) {
-				if(metadatum instanceof StreamInfo streamInfo) {
-					this.playbackInfo = new PlaybackInfo(streamInfo);
-					durationSeconds = streamInfo.getTotalSamples() / (double) streamInfo.getSampleRate();
-					break;
-				}
-			}
-
-			this.metadata = FLACUtil.extractMetadata(metadata);
-
-			updateMetadataRedundancies();
+			readMetadata(decoder.readMetadata());
 
 			while(is.available() > 0) {
 				//noinspection ResultOfMethodCallIgnored
 				is.read(checksumBuffer);
 			}
 			checksum = sum.getValue();
+			contentHash = ContentHash.toString(digest);
 		}
 	}
 
@@ -118,6 +122,43 @@ public class Track {
 	private Track() {
 	}
 
+	/// Creates a track which is not stored locally and is instead played from the server, reading its metadata from
+	/// the start of the stream.
+	///
+	/// @param file where the track would be in the library, used to identify it
+	/// @param stream a stream of the original track
+	/// @param profile the [TranscodeProfile] the track is expected to be played in, or null if it is played as it is.
+	/// The server may still send the original, so the audio format is only a guess until the track is decoded (see
+	/// [#setStreamedPlaybackInfo])
+	/// @throws IOException if there is an IO exception when reading the stream
+	/// @see TrackStream
+	public static Track streamed(File file, TrackStream stream, TranscodeProfile profile) throws IOException {
+		Track track = new Track();
+		track.file = file;
+		track.streamed = true;
+		track.checksum = stream.getChecksum();
+		track.readMetadata(new FLACDecoder(stream).readMetadata());
+		if(profile != null && track.playbackInfo != null) {
+			track.playbackInfo = track.playbackInfo.transcoded(profile);
+		}
+		return track;
+	}
+
+	/// Reads [#playbackInfo], [#durationSeconds] and [#metadata] from the FLAC metadata blocks of the track.
+	private void readMetadata(Metadata[] metadata) {
+		for(Metadata metadatum : metadata) {
+			if(metadatum instanceof StreamInfo streamInfo) {
+				this.playbackInfo = new PlaybackInfo(streamInfo);
+				durationSeconds = streamInfo.getTotalSamples() / (double) streamInfo.getSampleRate();
+				break;
+			}
+		}
+
+		this.metadata = FLACUtil.extractMetadata(metadata);
+
+		updateMetadataRedundancies();
+	}
+
 	/// Update [#artists], [#album] and [#title] for improved performance in UI.
 	private void updateMetadataRedundancies() {
 		this.artists = this.metadata.stream()
@@ -154,10 +195,24 @@ public class Track {
 		}
 	}
 
+	/// Points the track to the new location of its file after it was renamed, keeping everything read from it.
+	void moveTo(File file) {
+		setFile(file);
+		lastModified = file.lastModified();
+	}
+
 	public long getChecksum() {
 		return checksum;
 	}
 
+	public String getContentHash() {
+		return contentHash;
+	}
+
+	public boolean isStreamed() {
+		return streamed;
+	}
+
 	public long getLastModified() {
 		return lastModified;
 	}
@@ -185,6 +240,15 @@ public class Track {
 		return playbackInfo;
 	}
 
+	/// Replaces the audio format of a streamed track with the one of the stream actually being decoded, which differs
+	/// from the one guessed in [#streamed] if the server could not transcode it in time and sent the original.
+	public void setStreamedPlaybackInfo(PlaybackInfo playbackInfo) {
+		if(!streamed) {
+			throw new IllegalStateException("Track is not streamed");
+		}
+		this.playbackInfo = playbackInfo;
+	}
+
 	public boolean matches(FilterOption option) {
 		String key = option.getParent().key;
 		String value = option.value;
@@ -307,6 +371,17 @@ public class Track {
 			return totalSamples;
 		}
 
+		/// Returns the audio format of the track once the server transcodes it with the given profile. Block and
+		/// frame sizes are not known before encoding, so they are left as 0.
+		public PlaybackInfo transcoded(TranscodeProfile profile) {
+			if(!profile.reduces(sampleRate, bitsPerSample)) {
+				return this;
+			}
+			int factor = profile.decimationFactor(sampleRate);
+			return new PlaybackInfo(0, 0, 0, 0, sampleRate / factor, channels,
+					profile.storedBitsPerSample(bitsPerSample), (totalSamples + factor - 1) / factor);
+		}
+
 		public int msToBytes(long ms) {
 			int val = (int) ((sampleRate * bitsPerSample * channels * ms) / 8000);
 			val -= val % (bitsPerSample * channels / 8);
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.pmp.client;
+
+import dev.blackilykat.pmp.TranscodeProfile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+/// A track in the server's library read as it is downloaded, used to play tracks which are not stored locally.
+///
+/// If the connection drops midway, the download is resumed from where it stopped through a `Range` request, up to
+/// {@value #MAX_RESUMES} times.
+///
+/// A stream can also request the track in ranges of a given size as it is read, so that only the part which is
+/// actually read is downloaded, for example to read only the metadata.
+///
+/// @see Track#isStreamed
+public class TrackStream extends InputStream {
+	private static final Logger LOGGER = LogManager.getLogger(TrackStream.class);
+	private static final int MAX_RESUMES = 3;
+
+	private final String filename;
+	/// The [TranscodeProfile] to request the track in, if any. Cleared once the server sends the original, so that
+	/// the rest of the track is requested the same way.
+	private TranscodeProfile profile;
+	/// The size of the ranges the track is requested in, or 0 to request all of it at once.
+	private final int chunkSize;
+	/// The length of the whole track, only known if [#chunkSize] is set.
+	private long length = -1;
+	/// The checksum of the track in the server's library.
+	private long checksum;
+	/// The checksum of the original track if the server is sending it transcoded, null otherwise. Used to make sure
+	/// a resumed download continues the same file.
+	private String originalChecksum;
+	private InputStream current;
+	/// The amount of bytes read so far.
+	private long position = 0;
+	private int resumes = 0;
+
+	/// Starts downloading a track.
+	///
+	/// @param profile the [TranscodeProfile] to stream the track in, or null to stream it as it is
+	/// @throws IOException if the server does not respond with the track
+	public TrackStream(String filename, TranscodeProfile profile) throws IOException {
+		this(filename, profile, 0);
+	}
+
+	/// Starts downloading a track in ranges of `chunkSize` bytes, requesting each one only once the previous one was
+	/// read.
+	///
+	/// @param profile the [TranscodeProfile] to stream the track in, or null to stream it as it is
+	/// @param chunkSize the size of each range, or 0 to request the whole track at once
+	/// @throws IOException if the server does not respond with the track
+	public TrackStream(String filename, TranscodeProfile profile, int chunkSize) throws IOException {
+		this.filename = filename;
+		this.profile = profile;
+		this.chunkSize = chunkSize;
+		open();
+	}
+
+	/// Returns the checksum of the track in the server's library, which is not the checksum of the streamed file if
+	/// it is transcoded.
+	public long getChecksum() {
+		return checksum;
+	}
+
+	/// Opens a request for the rest of the track, or for the next [#chunkSize] bytes of it, starting at [#position].
+	private void open() throws IOException {
+		HttpsURLConnection conn = Server.startTrackRequest(filename, profile, c -> {
+			if(chunkSize > 0) {
+				c.setRequestProperty("Range", "bytes=" + position + "-" + (position + chunkSize - 1));
+			} else if(position > 0) {
+				c.setRequestProperty("Range", "bytes=" + position + "-");
+			}
+		});
+		int code = conn.getResponseCode();
+		if(code != (chunkSize > 0 || position > 0 ? 206 : 200)) {
+			throw new IOException(code + " response from server while streaming " + filename);
+		}
+		if(chunkSize > 0) {
+			String contentRange = conn.getHeaderField("Content-Range");
+			try {
+				length = Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1));
+			} catch(NullPointerException | NumberFormatException e) {
+				throw new IOException("Server sent invalid Content-Range " + contentRange, e);
+			}
+		}
+
+		String checksumHeader = conn.getHeaderField("checksum");
+		if(checksumHeader == null) {
+			throw new IOException("Server did not send the checksum of " + filename);
+		}
+		long newChecksum;
+		try {
+			newChecksum = Long.parseLong(checksumHeader);
+		} catch(NumberFormatException e) {
+			throw new IOException("Server sent invalid checksum " + checksumHeader, e);
+		}
+		String newOriginalChecksum = conn.getHeaderField("original-checksum");
+		if(position > 0 && (newChecksum != checksum || !Objects.equals(newOriginalChecksum, originalChecksum))) {
+			conn.getInputStream().close();
+			throw new IOException("Track " + filename + " changed on the server while streaming it");
+		}
+		checksum = newChecksum;
+		originalChecksum = newOriginalChecksum;
+		if(originalChecksum == null) {
+			profile = null;
+		}
+		current = conn.getInputStream();
+	}
+
+	/// Resumes the download after it failed with `cause`, or rethrows it if it already failed too many times.
+	private void resume(IOException cause) throws IOException {
+		if(++resumes > MAX_RESUMES || Thread.currentThread().isInterrupted()) {
+			throw cause;
+		}
+		LOGGER.warn("Streaming {} failed at byte {}, resuming", filename, position, cause);
+		try {
+			current.close();
+		} catch(IOException _) {
+		}
+		open();
+	}
+
+	@Override
+	public int read() throws IOException {
+		while(true) {
+			try {
+				int read = current.read();
+				if(read == -1 && chunkSize > 0 && position < length) {
+					current.close();
+					open();
+					continue;
+				}
+				if(read != -1) {
+					position++;
+				}
+				return read;
+			} catch(IOException e) {
+				resume(e);
+			}
+		}
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		while(true) {
+			try {
+				int read = current.read(b, off, len);
+				if(read == -1 && chunkSize > 0 && position < length) {
+					current.close();
+					open();
+					continue;
+				}
+				if(read != -1) {
+					position += read;
+				}
+				return read;
+			} catch(IOException e) {
+				resume(e);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		current.close();
+	}
+}
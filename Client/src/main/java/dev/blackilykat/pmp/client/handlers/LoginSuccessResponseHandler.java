@@ -89,6 +89,7 @@ public class LoginSuccessResponseHandler extends MessageHandler<LoginSuccessResp
 		}
 
 		Server.lastActionId = message.lastActionId;
+		Server.serverDeduplicates = message.deduplicates;
 
 		Server.EVENT_LOGGED_IN.call(null);
 	}
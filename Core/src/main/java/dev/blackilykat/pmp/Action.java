@@ -19,6 +19,7 @@ package dev.blackilykat.pmp;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonInclude;
+import dev.blackilykat.pmp.util.ContentHash;
 import dev.blackilykat.pmp.util.Pair;
 
 import java.io.Serializable;
@@ -38,10 +39,25 @@ public class Action implements Serializable {
 	/// Only present when [#actionType] == [Type#CHANGE_METADATA]. Contains the full updated metadata of the track.
 	public List<Pair<String, String>> newMetadata = null;
 
-	/// Constructor used when actionType != [Type#CHANGE_METADATA].
+	/// Only present when [#actionType] == [Type#RENAME]. The filename the track is moved to.
+	public String newFilename = null;
+
+	/// Optional, only used when [#actionType] == [Type#ADD] or [Type#REPLACE]. The [ContentHash] of the track's file,
+	/// allowing the server to complete the action without receiving the file if it already has one with the same
+	/// contents. The server sets it to the hash of the file it stored before sending the action to devices, which
+	/// check tracks fetched from peers against it.
+	///
+	/// When [#actionType] == [Type#CHANGE_METADATA], set by the server to the [ContentHash] of the track's file after
+	/// the change, allowing devices to check they made the same change.
+	///
+	/// Required when [#actionType] == [Type#RENAME]. The [ContentHash] of the track's file, which the server checks
+	/// before renaming so that a track is never renamed over another one which only has the same checksum.
+	public String contentHash = null;
+
+	/// Constructor used when actionType != [Type#CHANGE_METADATA] and != [Type#RENAME].
 	public Action(String filename, Type actionType) {
-		if(actionType == Type.CHANGE_METADATA) {
-			throw new IllegalArgumentException("Wrong initializer for action type CHANGE_METADATA!");
+		if(actionType == Type.CHANGE_METADATA || actionType == Type.RENAME) {
+			throw new IllegalArgumentException("Wrong initializer for action type " + actionType + "!");
 		}
 		this.filename = filename;
 		this.actionType = actionType;
@@ -54,6 +70,13 @@ public class Action implements Serializable {
 		this.newMetadata = newMetadata;
 	}
 
+	/// Constructor used when actionType == [Type#RENAME].
+	public Action(String filename, String newFilename) {
+		this.filename = filename;
+		this.actionType = Type.RENAME;
+		this.newFilename = newFilename;
+	}
+
 	/// Constructor used when deserializing actions from JSON.
 	@JsonCreator
 	private Action() {
@@ -63,7 +86,7 @@ public class Action implements Serializable {
 	@Override
 	public String toString() {
 		return "Action{" + "actionType=" + actionType + ", filename='" + filename + '\'' + ", newMetadata="
-				+ newMetadata + '}';
+				+ newMetadata + ", newFilename='" + newFilename + '\'' + ", contentHash=" + contentHash + '}';
 	}
 
 	/// What kind of modification an action performs on the library
@@ -76,6 +99,8 @@ public class Action implements Serializable {
 		/// someone changes the source, say, to get a higher quality version)
 		REPLACE,
 		/// Change the metadata of a track while keeping the audio data untouched
-		CHANGE_METADATA
+		CHANGE_METADATA,
+		/// Move a track to another filename while keeping its file untouched, so that no device has to transfer it
+		RENAME
 	}
 }
@@ -24,4 +24,10 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 /// Serializable class for communicating filters.
 ///
 /// Does not contain filter options: they are sent separately using the filter's id.
-public record FilterInfo(@JsonProperty("id") int id, @JsonProperty("key") String key) {}
+public record FilterInfo(@JsonProperty("id") int id, @JsonProperty("key") String key) {
+	/// String used in filter options to represent matching every track for the filter.
+	public static final String OPTION_EVERYTHING = "__PMP_OPTION_EVERYTHING__";
+	/// String used in filter options to represent matching tracks which do not have the metadata
+	/// described by the filter.
+	public static final String OPTION_UNKNOWN = "__PMP_OPTION_UNKNOWN__";
+}
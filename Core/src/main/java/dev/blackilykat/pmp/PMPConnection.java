@@ -73,6 +73,10 @@ public class PMPConnection {
 	public static final EventSource<ReceivingMessageEvent> EVENT_RECEIVING_MESSAGE = new EventSource<>();
 	/// Event emitted when any connection has disconnected. Contains the terminated connection as its data.
 	public static final EventSource<PMPConnection> EVENT_DISCONNECTED = new EventSource<>();
+	/// Emitted after a message has been written to any connection.
+	public static final EventSource<MessageSentEvent> EVENT_MESSAGE_SENT = new EventSource<>();
+	/// Emitted after any received message has gone through its listeners and handlers, even if it was cancelled.
+	public static final EventSource<MessageReceivedEvent> EVENT_MESSAGE_RECEIVED = new EventSource<>();
 
 	/// The default port used for transferring messages.
 	public static final int DEFAULT_MESSAGE_PORT = 6803;
@@ -80,6 +84,10 @@ public class PMPConnection {
 	///
 	/// @see dev.blackilykat.pmp.server.TransferHandler
 	public static final int DEFAULT_FILE_PORT = 6804;
+	/// The default port clients share their tracks with each other on through HTTP.
+	///
+	/// @see dev.blackilykat.pmp.messages.PeerAnnounceMessage
+	public static final int DEFAULT_PEER_PORT = 6805;
 
 	/// The amount of milliseconds between sending keepalives.
 	private static final int KEEPALIVE_MS = 10_000;
@@ -113,9 +121,10 @@ public class PMPConnection {
 	private final OutputStream outputStream;
 	/// The object used to keep exclusive access to [#outputStream].
 	private final Object outputStreamLock = new Object();
-	/// The queue of non-serialized messages to be sent.
-	/// Unless the message is urgent, it will be placed here for [#messageSendingThread] to take, serialize and send over the network.
-	private final BlockingQueue<Message> messageQueue = new LinkedBlockingQueue<>();
+	/// The queue of messages to be sent.
+	/// Unless the message is urgent, it will be placed here for [#messageSendingThread] to take, serialize if it was
+	/// not already and send over the network.
+	private final BlockingQueue<EncodedMessage> messageQueue = new LinkedBlockingQueue<>();
 	/// The timer used to send keepalive messages.
 	private final Timer keepaliveTimer;
 	/// All listeners registered for this connection.
@@ -177,17 +186,40 @@ public class PMPConnection {
 		if(message instanceof Request request) {
 			request.setConnection(PMPConnection.this);
 		}
+		messageQueue.add(new EncodedMessage(message, null));
+	}
+
+	/// Adds an already serialized message to the message queue. Useful to send the same message to many connections
+	/// while only serializing it once.
+	///
+	/// @throws IllegalArgumentException if the message is a [Request], as requests are assigned an id by each
+	/// connection
+	public void send(EncodedMessage message) {
+		if(message.message instanceof Request) {
+			throw new IllegalArgumentException("Requests cannot be sent pre-encoded");
+		}
 		messageQueue.add(message);
 	}
 
 	/// Sends a message ignoring the message queue and writing to the socket on this thread.
 	/// Does not assign a request ID.
 	private void sendNow(Message message) throws IOException {
+		sendNow(EncodedMessage.encode(message));
+	}
+
+	/// Sends an already serialized message ignoring the message queue and writing to the socket on this thread.
+	private void sendNow(EncodedMessage message) throws IOException {
 		synchronized(outputStreamLock) {
-			LOGGER.info("Sending message to {}: {}", name, mapper.writeValueAsString(message.withRedactedInfo()));
+			LOGGER.info("Sending message to {}: {}", name, message.toLoggedString());
 
-			outputStream.write((mapper.writeValueAsString(message) + '\n').getBytes(StandardCharsets.UTF_8));
+			outputStream.write(message.frame);
 		}
+		EVENT_MESSAGE_SENT.call(new MessageSentEvent(this, message.message, message.frame.length));
+	}
+
+	/// @return the amount of messages waiting to be sent
+	public int getQueuedMessages() {
+		return messageQueue.size();
 	}
 
 	/// Sends a keepalive on this thread.
@@ -276,7 +308,8 @@ public class PMPConnection {
 		public void run() {
 			try {
 				while(!Thread.interrupted()) {
-					Message message = messageQueue.take();
+					EncodedMessage encoded = messageQueue.take();
+					Message message = encoded.message;
 
 					if(message instanceof DisconnectMessage) {
 						_disconnect();
@@ -292,7 +325,8 @@ public class PMPConnection {
 						pendingRequests.put(request.requestId, request);
 					}
 
-					sendNow(message);
+					// requests are only serialized once their id is assigned
+					sendNow(encoded.frame != null ? encoded : EncodedMessage.encode(message));
 				}
 			} catch(IOException e) {
 				if(!connected) {
@@ -360,63 +394,13 @@ public class PMPConnection {
 										mapper.writeValueAsString(printedMessage));
 							}
 
-							ReceivingMessageEvent evt = new ReceivingMessageEvent(message, PMPConnection.this);
-							EVENT_RECEIVING_MESSAGE.call(evt);
-							if(evt.isCancelled()) {
-								continue;
-							}
-
-							if(message instanceof Response response) {
-								Request request = pendingRequests.get(response.requestId);
-								if(request != null) {
-									request.addResponse(response);
-
-									if(response.isLastResponse()) {
-										pendingRequests.remove(response.requestId);
-									}
-								}
-							}
-
-							AtomicBoolean cancelled = new AtomicBoolean(false);
-
-							for(MessageListener<?> listener : listeners) {
-								if(!listener.type.isInstance(message)) {
-									continue;
-								}
-								LOGGER.debug("Found listener for {}", listener.type.getSimpleName());
-								try {
-									listener.runCasting(message, cancelled);
-								} catch(Exception e) {
-									LOGGER.error("Exception in message listener", e);
-								}
-							}
-
-							if(cancelled.get()) {
-								LOGGER.info("A {} message was cancelled", message.getClass().getSimpleName());
-								continue;
-							}
-
-							boolean foundHandler = false;
-
-							for(MessageHandler<?> handler : MessageHandler.registeredHandlers) {
-								if(!handler.type.isInstance(message)) {
-									continue;
-								}
-								if(foundHandler) {
-									LOGGER.warn("Multiple handlers for message type {}",
-											message.getClass().getSimpleName());
-								}
-								foundHandler = true;
-								try {
-									handler.runCasting(PMPConnection.this, message);
-								} catch(Exception e) {
-									LOGGER.error("Exception in message listener", e);
-								}
-							}
-
-							// responses can have no handler but be handled through Request#takeResponse
-							if(!foundHandler && !(message instanceof Response)) {
-								LOGGER.warn("Unhandled message type {}", message.getClass().getSimpleName());
+							long handlingStart = System.nanoTime();
+							try {
+								handle(message);
+							} finally {
+								EVENT_MESSAGE_RECEIVED.call(
+										new MessageReceivedEvent(PMPConnection.this, message, msg.length + 1,
+												System.nanoTime() - handlingStart));
 							}
 						} catch(JsonProcessingException e) {
 							LOGGER.error("Invalid message format: {} (original message: '{}')", e.getMessage(),
@@ -437,6 +421,114 @@ public class PMPConnection {
 				}
 			}
 		}
+
+		/// Passes a received message to [#EVENT_RECEIVING_MESSAGE], the request it responds to, its listeners and
+		/// its handlers.
+		private void handle(Message message) {
+			ReceivingMessageEvent evt = new ReceivingMessageEvent(message, PMPConnection.this);
+			EVENT_RECEIVING_MESSAGE.call(evt);
+			if(evt.isCancelled()) {
+				return;
+			}
+
+			if(message instanceof Response response) {
+				Request request = pendingRequests.get(response.requestId);
+				if(request != null) {
+					request.addResponse(response);
+
+					if(response.isLastResponse()) {
+						pendingRequests.remove(response.requestId);
+					}
+				}
+			}
+
+			AtomicBoolean cancelled = new AtomicBoolean(false);
+
+			for(MessageListener<?> listener : listeners) {
+				if(!listener.type.isInstance(message)) {
+					continue;
+				}
+				LOGGER.debug("Found listener for {}", listener.type.getSimpleName());
+				try {
+					listener.runCasting(message, cancelled);
+				} catch(Exception e) {
+					LOGGER.error("Exception in message listener", e);
+				}
+			}
+
+			if(cancelled.get()) {
+				LOGGER.info("A {} message was cancelled", message.getClass().getSimpleName());
+				return;
+			}
+
+			boolean foundHandler = false;
+
+			for(MessageHandler<?> handler : MessageHandler.registeredHandlers) {
+				if(!handler.type.isInstance(message)) {
+					continue;
+				}
+				if(foundHandler) {
+					LOGGER.warn("Multiple handlers for message type {}", message.getClass().getSimpleName());
+				}
+				foundHandler = true;
+				try {
+					handler.runCasting(PMPConnection.this, message);
+				} catch(Exception e) {
+					LOGGER.error("Exception in message listener", e);
+				}
+			}
+
+			// responses can have no handler but be handled through Request#takeResponse
+			if(!foundHandler && !(message instanceof Response)) {
+				LOGGER.warn("Unhandled message type {}", message.getClass().getSimpleName());
+			}
+		}
+	}
+
+	/// A message along with its serialized form, ready to be written to any connection.
+	///
+	/// The serialized form is never modified after creation, so the same instance can be queued in any number of
+	/// connections.
+	///
+	/// @see #send(EncodedMessage)
+	public static final class EncodedMessage {
+		public final Message message;
+		/// The serialized message including its trailing newline, or null if it still has to be serialized.
+		private final byte[] frame;
+
+		private EncodedMessage(Message message, byte[] frame) {
+			this.message = message;
+			this.frame = frame;
+		}
+
+		/// Serializes a message so that it can be sent to multiple connections. Any later change to the message
+		/// will not be reflected in what gets sent.
+		public static EncodedMessage encode(Message message) throws JsonProcessingException {
+			return new EncodedMessage(message,
+					(mapper.writeValueAsString(message) + '\n').getBytes(StandardCharsets.UTF_8));
+		}
+
+		/// @return the serialized message as it should be logged, hiding sensitive values
+		private String toLoggedString() throws JsonProcessingException {
+			Message printedMessage = message.withRedactedInfo();
+			if(printedMessage != message) {
+				return mapper.writeValueAsString(printedMessage);
+			}
+			return new String(frame, 0, frame.length - 1, StandardCharsets.UTF_8);
+		}
+	}
+
+	/// Data for [PMPConnection#EVENT_MESSAGE_SENT]
+	///
+	/// @param bytes the size of the serialized message, including its separator
+	public record MessageSentEvent(PMPConnection connection, Message message, int bytes) {
+	}
+
+	/// Data for [PMPConnection#EVENT_MESSAGE_RECEIVED]
+	///
+	/// @param bytes the size of the serialized message, including its separator
+	/// @param handlingNanos how long it took to run the message's listeners and handlers, in nanoseconds
+	public record MessageReceivedEvent(PMPConnection connection, Message message, int bytes, long handlingNanos) {
 	}
 
 	/// Data for [PMPConnection#EVENT_RECEIVING_MESSAGE]
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.pmp;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/// Serializable class for communicating where a device shares its tracks with other devices.
+///
+/// @param deviceId the id of the device
+/// @param address the address the device can be reached at, usually on the local network
+/// @param port the port of the device's peer transfer endpoint
+/// @param secret the value the `secret` header of requests to the endpoint must have
+public record PeerInfo(@JsonProperty("deviceId") int deviceId, @JsonProperty("address") String address,
+		@JsonProperty("port") int port, @JsonProperty("secret") String secret) {}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.pmp;
+
+/// Smaller versions of tracks a device can ask the server for when downloading them, trading quality for
+/// bandwidth. Transcoded tracks are still FLAC files, with a lower sample rate or bit depth than the original.
+///
+/// Sample rates are only ever divided by a whole number, so that tracks at 44.1 kHz stay multiples of it and tracks
+/// at 48 kHz stay multiples of that.
+///
+/// Bit depths which are not a multiple of 8 are stored with the lowest bits of every sample set to zero, which FLAC
+/// leaves out of the file, so that decoders only supporting 8, 16 and 24 bit audio can still play them.
+public enum TranscodeProfile {
+	/// At most 48 kHz and 16 bits, indistinguishable from the original for most listeners. Only makes high resolution
+	/// tracks smaller.
+	HIGH(48_000, 16),
+
+	/// At most 24 kHz and 16 bits, keeping frequencies up to around 11 kHz. Fine for earbuds and noisy places.
+	MEDIUM(24_000, 16),
+
+	/// At most 24 kHz and 12 bits, audibly worse but around a third of the size of CD quality tracks.
+	LOW(24_000, 12);
+
+	/// The highest sample rate, in Hz, of tracks transcoded with this profile.
+	public final int maxSampleRate;
+	/// The highest amount of significant bits in each sample of tracks transcoded with this profile.
+	public final int maxBitsPerSample;
+
+	TranscodeProfile(int maxSampleRate, int maxBitsPerSample) {
+		this.maxSampleRate = maxSampleRate;
+		this.maxBitsPerSample = maxBitsPerSample;
+	}
+
+	/// @return the number the sample rate of a track is divided by in this profile
+	public int decimationFactor(int sampleRate) {
+		return Math.max(1, (sampleRate + maxSampleRate - 1) / maxSampleRate);
+	}
+
+	/// @return the amount of significant bits in each sample of a track in this profile
+	public int bitsPerSample(int bitsPerSample) {
+		return Math.min(bitsPerSample, maxBitsPerSample);
+	}
+
+	/// @return the bit depth a track is stored with in this profile, the smallest multiple of 8 fitting
+	/// [#bitsPerSample]
+	public int storedBitsPerSample(int bitsPerSample) {
+		return Math.min(bitsPerSample, (bitsPerSample(bitsPerSample) + 7) / 8 * 8);
+	}
+
+	/// @return whether transcoding a track with this profile would change it
+	public boolean reduces(int sampleRate, int bitsPerSample) {
+		return decimationFactor(sampleRate) > 1 || bitsPerSample(bitsPerSample) < bitsPerSample;
+	}
+}
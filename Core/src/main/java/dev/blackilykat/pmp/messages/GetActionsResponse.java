@@ -17,21 +17,47 @@
 
 package dev.blackilykat.pmp.messages;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import dev.blackilykat.pmp.Action;
 
 import java.util.List;
 
-/// Response to a [GetActionsRequest]. Contains the list of requested actions.
+/// Response to a [GetActionsRequest]. Contains the list of requested actions, or tells the client to resync if
+/// they are no longer available.
+///
+/// Long lists of actions are split across multiple responses, each containing the actions following the previous
+/// one's, until one with [#last] set to true.
 ///
 /// Direction: S2C
 public class GetActionsResponse extends Response {
 	public static final String MESSAGE_TYPE = "GetActionsResponse";
 
-	/// The list of requested actions.
+	/// The list of requested actions. Empty if [#resync] is true.
 	public List<Action> actions;
 
-	public GetActionsResponse(List<Action> actions, Integer requestId) {
+	/// The ids of [#actions], in the same order. Ids are not necessarily consecutive, as the server may have
+	/// compacted away some of the actions in between.
+	public List<Integer> ids;
+
+	/// If true, the server no longer has all requested actions, for example because they were compacted away. The
+	/// client must instead compare its library with the server's entire track list.
+	public boolean resync;
+
+	/// Whether this is the last page of actions, or if more responses will follow.
+	public boolean last;
+
+	public GetActionsResponse(List<Action> actions, List<Integer> ids, boolean resync, boolean last,
+			Integer requestId) {
 		this.actions = actions;
+		this.ids = ids;
+		this.resync = resync;
+		this.last = last;
 		super(requestId);
 	}
+
+	@Override
+	@JsonIgnore
+	public boolean isLastResponse() {
+		return last;
+	}
 }
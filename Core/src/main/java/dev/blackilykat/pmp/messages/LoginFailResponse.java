@@ -46,7 +46,8 @@ public class LoginFailResponse extends Response {
 		/// and saving storage.
 		NO_SUCH_DEVICE,
 
-		/// The client sent an invalid request. This should never happen with an official client.
+		/// The client sent an invalid request, or another login request while one it sent before is still postponed
+		/// because of failed logins. This should never happen with an official client.
 		BAD_REQUEST,
 
 		/// The device is already connected.
@@ -78,6 +78,11 @@ public class LoginSuccessResponse extends Response {
 	/// @see GetActionsRequest
 	public int lastActionId = -1;
 
+	/// Whether the server can complete an [dev.blackilykat.pmp.Action.Type#ADD] or
+	/// [dev.blackilykat.pmp.Action.Type#REPLACE] without an upload if it already has a file with the same
+	/// [dev.blackilykat.pmp.Action#contentHash]. If false, clients do not need to calculate it.
+	public boolean deduplicates = false;
+
 	public LoginSuccessResponse(Integer requestId, Integer deviceId, String token, int lastActionId) {
 		super(requestId);
 		this.token = token;
@@ -55,6 +55,14 @@ import com.fasterxml.jackson.annotation.JsonTypeInfo;
 		@Type(value = ActionResponse.class, name = ActionResponse.MESSAGE_TYPE),
 		@Type(value = GetActionsRequest.class, name = GetActionsRequest.MESSAGE_TYPE),
 		@Type(value = GetActionsResponse.class, name = GetActionsResponse.MESSAGE_TYPE),
+		@Type(value = SearchRequest.class, name = SearchRequest.MESSAGE_TYPE),
+		@Type(value = SearchResponse.class, name = SearchResponse.MESSAGE_TYPE),
+		@Type(value = PeerAnnounceMessage.class, name = PeerAnnounceMessage.MESSAGE_TYPE),
+		@Type(value = PeersRequest.class, name = PeersRequest.MESSAGE_TYPE),
+		@Type(value = PeersResponse.class, name = PeersResponse.MESSAGE_TYPE),
+		@Type(value = SelectionRequest.class, name = SelectionRequest.MESSAGE_TYPE),
+		@Type(value = SelectionResponse.class, name = SelectionResponse.MESSAGE_TYPE),
+		@Type(value = SelectionUpdateMessage.class, name = SelectionUpdateMessage.MESSAGE_TYPE),
 		@Type(value = DisconnectMessage.class, name = DisconnectMessage.MESSAGE_TYPE),})
 @JsonInclude(JsonInclude.Include.NON_NULL)
 public abstract class Message implements Cloneable {
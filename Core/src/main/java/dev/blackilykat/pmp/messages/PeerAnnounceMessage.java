@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.pmp.messages;
+
+import java.util.List;
+
+/// Tells the server that this device shares its tracks with other devices, and which tracks it has, so that the
+/// server can tell downloading devices which peers to fetch a track from.
+///
+/// The first announcement after logging in must have [#full] set. Later ones may only list newly added tracks.
+/// Removed tracks do not need to be announced: peers respond 404 to requests for tracks they no longer have.
+///
+/// Direction: C2S
+///
+/// @see PeersRequest
+public class PeerAnnounceMessage extends Message {
+	public static final String MESSAGE_TYPE = "PeerAnnounce";
+
+	/// The address this device can be reached at. If null, the server uses the one the device is connected from.
+	public String address;
+
+	/// The port of this device's peer transfer endpoint.
+	public int port;
+
+	/// The value the `secret` header of requests to the endpoint must have. Only given to logged in devices.
+	public String secret;
+
+	/// The [dev.blackilykat.pmp.util.ContentHash]es of tracks this device has.
+	public List<String> contentHashes;
+
+	/// If true, [#contentHashes] contains all tracks this device has, replacing any previous announcement.
+	/// Otherwise, it contains tracks to add to the previous one.
+	public boolean full;
+
+	public PeerAnnounceMessage(String address, int port, String secret, List<String> contentHashes, boolean full) {
+		this.address = address;
+		this.port = port;
+		this.secret = secret;
+		this.contentHashes = contentHashes;
+		this.full = full;
+	}
+
+	@Override
+	public Message withRedactedInfo() {
+		PeerAnnounceMessage clone = (PeerAnnounceMessage) clone();
+		if(clone.secret != null) {
+			clone.secret = "REDACTED";
+		}
+		return clone;
+	}
+}
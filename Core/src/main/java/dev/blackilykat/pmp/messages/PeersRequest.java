@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.pmp.messages;
+
+/// Request to get the online devices which have announced a track with the given content hash, to fetch it from
+/// them rather than from the server.
+///
+/// Direction: C2S
+///
+/// @see PeerAnnounceMessage
+/// @see PeersResponse
+public class PeersRequest extends Request {
+	public static final String MESSAGE_TYPE = "PeersRequest";
+
+	/// The [dev.blackilykat.pmp.util.ContentHash] of the wanted track.
+	public String contentHash;
+
+	public PeersRequest(String contentHash) {
+		this.contentHash = contentHash;
+	}
+}
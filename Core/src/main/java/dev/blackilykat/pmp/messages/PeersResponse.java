@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.pmp.messages;
+
+import dev.blackilykat.pmp.PeerInfo;
+
+import java.util.List;
+
+/// Response to a [PeersRequest] with the online devices which have announced the requested track, not including
+/// the requesting device.
+///
+/// Direction: S2C
+public class PeersResponse extends Response {
+	public static final String MESSAGE_TYPE = "PeersResponse";
+
+	/// The devices which have the track. May be empty.
+	public List<PeerInfo> peers;
+
+	public PeersResponse(Integer requestId, List<PeerInfo> peers) {
+		super(requestId);
+		this.peers = peers;
+	}
+
+	@Override
+	public Message withRedactedInfo() {
+		PeersResponse clone = (PeersResponse) clone();
+		clone.peers = peers.stream()
+				.map(peer -> new PeerInfo(peer.deviceId(), peer.address(), peer.port(), "REDACTED"))
+				.toList();
+		return clone;
+	}
+}
@@ -54,6 +54,13 @@ public class PlaybackUpdateMessage extends Message {
 	/// The list contains a pair of filter ids and option names.
 	public List<Pair<Integer, String>> negativeOptions = null;
 
+	/// Used to discard updates arriving late or out of order. May be null.
+	///
+	/// When sent by the playback owner, a number which must increase with every update it sends; updates which do
+	/// not have a greater version than the last one accepted from the same owner are ignored. When sent by the
+	/// server, the version of the playback state after applying this update.
+	public Long version = null;
+
 	public PlaybackUpdateMessage() {
 	}
 }
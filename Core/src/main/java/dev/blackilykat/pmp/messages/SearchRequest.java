@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package dev.blackilykat.pmp.messages;
+
+/// Request from a client to search the server's library by metadata, without needing the whole library locally.
+///
+/// The query is made of whitespace separated terms, all of which must match a track for it to be included. A term
+/// matches any word in the track's filename or metadata that starts with it, case-insensitively. A term in the form
+/// `field:word` only matches words in the metadata field with that name, i.e. `artist:beat`.
+///
+/// Direction: C2S
+///
+/// @see SearchResponse
+public class SearchRequest extends Request {
+	public static final String MESSAGE_TYPE = "SearchRequest";
+
+	/// The query to run.
+	public String query;
+
+	/// How many matching tracks to skip, used to get pages after the first.
+	public int offset;
+
+	/// The maximum amount of filenames to send. The server may send fewer.
+	public int limit;
+
+	public SearchRequest(String query, int offset, int limit) {
+		this.query = query;
+		this.offset = offset;
+		this.limit = limit;
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package dev.blackilykat.pmp.messages;
+
+import java.util.List;
+
+/// Response to a [SearchRequest] with a page of the tracks matching its query.
+///
+/// Direction: S2C
+public class SearchResponse extends Response {
+	public static final String MESSAGE_TYPE = "SearchResponse";
+
+	/// The filenames of the matching tracks in this page, sorted by filename.
+	public List<String> filenames;
+
+	/// The amount of matching tracks across all pages.
+	public int total;
+
+	public SearchResponse(Integer requestId, List<String> filenames, int total) {
+		super(requestId);
+		this.filenames = filenames;
+		this.total = total;
+	}
+}
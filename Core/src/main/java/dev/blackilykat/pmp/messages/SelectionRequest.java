@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.pmp.messages;
+
+/// Request from a client to get the tracks matching the shared filter state, as evaluated by the server, so that it
+/// does not need to go through its whole library itself.
+///
+/// The server evaluates the filters and the selected filter options of the playback state the same way clients
+/// would, keeping an index of the metadata of its library so that this does not need to go through every track.
+///
+/// Direction: C2S
+///
+/// @see SelectionResponse
+public class SelectionRequest extends Request {
+	public static final String MESSAGE_TYPE = "SelectionRequest";
+
+	/// Whether to keep receiving [SelectionUpdateMessage]s whenever the selection changes, until the connection is
+	/// closed.
+	public boolean subscribe;
+
+	public SelectionRequest(boolean subscribe) {
+		this.subscribe = subscribe;
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.pmp.messages;
+
+import java.util.List;
+import java.util.Map;
+
+/// Response to a [SelectionRequest] with the tracks matching the shared filter state.
+///
+/// Direction: S2C
+public class SelectionResponse extends Response {
+	public static final String MESSAGE_TYPE = "SelectionResponse";
+
+	/// Incremented by the server every time the selection changes. [SelectionUpdateMessage]s following this response
+	/// start from this version.
+	public long version;
+
+	/// The filenames of the matching tracks, sorted by filename.
+	public List<String> filenames;
+
+	/// The values of the options each filter has, by filter id. These are only the values found in the tracks left by
+	/// the filters before it, like clients would find them.
+	public Map<Integer, List<String>> optionValues;
+
+	public SelectionResponse(Integer requestId, long version, List<String> filenames,
+			Map<Integer, List<String>> optionValues) {
+		super(requestId);
+		this.version = version;
+		this.filenames = filenames;
+		this.optionValues = optionValues;
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.pmp.messages;
+
+import java.util.List;
+import java.util.Map;
+
+/// Sent to clients which subscribed through a [SelectionRequest] whenever the tracks matching the shared filter state
+/// change, because of the filters, the selected options or the library changing.
+///
+/// Only contains what changed since the previous version. A client which missed a version should send a new
+/// [SelectionRequest] to get the whole selection again.
+///
+/// Direction: S2C
+public class SelectionUpdateMessage extends Message {
+	public static final String MESSAGE_TYPE = "SelectionUpdate";
+
+	/// The version of the selection after this update, always one more than the previous one.
+	public long version;
+
+	/// The filenames of the tracks which now match.
+	public List<String> added;
+
+	/// The filenames of the tracks which no longer match.
+	public List<String> removed;
+
+	/// The values of the options of the filters whose values changed, by filter id. Filters which were removed are
+	/// not included.
+	///
+	/// @see SelectionResponse#optionValues
+	public Map<Integer, List<String>> optionValues;
+
+	public SelectionUpdateMessage(long version, List<String> added, List<String> removed,
+			Map<Integer, List<String>> optionValues) {
+		this.version = version;
+		this.added = added;
+		this.removed = removed;
+		this.optionValues = optionValues;
+	}
+}
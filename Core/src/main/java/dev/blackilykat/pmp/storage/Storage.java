@@ -84,6 +84,9 @@ public abstract class Storage {
 	/// Use this to write state stored separately to storage.
 	public final EventSource<Storage> eventSaving = new EventSource<>();
 
+	/// Emitted after writing a storage to disk. Contains how long saving took, in nanoseconds.
+	public final EventSource<Long> eventSaved = new EventSource<>();
+
 	/// Emitted before discarding a storage as non-dirty to check if separately
 	/// stored state has changed.
 	///
@@ -138,6 +141,7 @@ public abstract class Storage {
 	/// @throws IOException if there is an error writing to storage
 	protected synchronized void save() throws IOException {
 		LOGGER.info("Saving {} storage", this.getClass().getName());
+		long start = System.nanoTime();
 
 		File file = new File(Globals.dataRoot, name + ".json");
 
@@ -167,6 +171,7 @@ public abstract class Storage {
 		}
 
 		dirty = false;
+		eventSaved.call(System.nanoTime() - start);
 	}
 
 	/// Marks this storage as dirty, to be saved periodically or during shutdown.
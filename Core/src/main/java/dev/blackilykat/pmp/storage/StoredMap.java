@@ -20,9 +20,11 @@ package dev.blackilykat.pmp.storage;
 import dev.blackilykat.pmp.util.ParType;
 
 import java.lang.reflect.Type;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /// Generic stored map for ease of use.
@@ -87,4 +89,11 @@ public class StoredMap<K, V> extends Stored<Map<K, V>> {
 			return value.values();
 		}
 	}
+
+	/// Get a safely iterable copy of all values in the map.
+	public List<V> viewValues() {
+		synchronized(storage) {
+			return new ArrayList<>(value.values());
+		}
+	}
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.pmp.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/// Utility class for content hashes, which identify a file by its contents rather than by its name.
+///
+/// A content hash is the {@value #ALGORITHM} digest of the whole file as a lowercase hexadecimal string.
+public class ContentHash {
+	/// The digest algorithm used for content hashes.
+	public static final String ALGORITHM = "SHA-256";
+
+	/// Create a new digest to calculate a content hash, for example through a [DigestInputStream].
+	///
+	/// @see #toString(MessageDigest)
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch(NoSuchAlgorithmException e) {
+			// every java implementation is required to support SHA-256
+			throw new IllegalStateException("ContentHash#newDigest: this should be unreachable", e);
+		}
+	}
+
+	/// Finish calculating the content hash in the given digest.
+	public static String toString(MessageDigest digest) {
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	/// Calculate the content hash of the given file.
+	public static String of(File file) throws IOException {
+		MessageDigest digest = newDigest();
+		try(InputStream is = new DigestInputStream(new FileInputStream(file), digest)) {
+			is.transferTo(OutputStream.nullOutputStream());
+		}
+		return toString(digest);
+	}
+
+	/// Returns whether the given string is a well-formed content hash. Content hashes received from other devices
+	/// must be checked with this before being used, for example, as file names.
+	public static boolean isValid(String hash) {
+		if(hash == null || hash.length() != 64) {
+			return false;
+		}
+		for(int i = 0; i < hash.length(); i++) {
+			char c = hash.charAt(i);
+			if((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package dev.blackilykat.pmp.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/// Utility class to transfer a new version of a file as the difference from an old version the receiver already
+/// has, in the style of rsync.
+///
+/// 1. The receiver describes its old version with a [Signature]: a weak rolling checksum and a strong hash of each
+///    block of {@value #BLOCK_SIZE} bytes.
+/// 2. The sender looks for those blocks at any offset of the new version through [#diff], and writes a delta made of
+///    references to the receiver's blocks and of the bytes which are not in any of them.
+/// 3. The receiver rebuilds the new version through [#patch], which checks that the result has the [ContentHash]
+///    the sender included in the delta.
+///
+/// # Delta format
+///
+/// A delta is the block size of the signature it was made from as a big endian int, followed by a sequence of big
+/// endian instructions, each starting with a byte:
+/// - `0` followed by two ints `first` and `count`: copy `count` blocks of the old version starting from `first`;
+/// - `1` followed by an int `length` and `length` bytes: write the bytes;
+/// - `2` followed by the 64 ASCII characters of the new version's [ContentHash]: the end of the delta.
+public class Delta {
+	/// The size of the blocks in signatures created by this device.
+	public static final int BLOCK_SIZE = 16 * 1024;
+	private static final int MIN_BLOCK_SIZE = 512;
+	private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+	/// The maximum amount of blocks in a signature, limiting the memory used to read one.
+	private static final int MAX_BLOCKS = 1 << 20;
+	private static final int STRONG_HASH_LENGTH = 16;
+	/// The maximum amount of bytes in a single literal instruction.
+	private static final int MAX_LITERAL_LENGTH = 1024 * 1024;
+	private static final byte COPY = 0;
+	private static final byte LITERAL = 1;
+	private static final byte END = 2;
+
+	/// Writes the instructions to turn the old version of a file described by `signature` into `file`.
+	public static void diff(Signature signature, File file, OutputStream delta) throws IOException {
+		Map<Integer, List<Integer>> blocksByWeak = new HashMap<>();
+		for(int i = 0; i < signature.weak.length; i++) {
+			blocksByWeak.computeIfAbsent(signature.weak[i], _ -> new ArrayList<>(1)).add(i);
+		}
+		int blockSize = signature.blockSize;
+		MessageDigest contentDigest = ContentHash.newDigest();
+		DataOutputStream out = new DataOutputStream(delta);
+		out.writeInt(blockSize);
+
+		try(FileChannel channel = FileChannel.open(file.toPath())) {
+			long size = channel.size();
+			Window data = new Window(channel, size, 2 * (MAX_LITERAL_LENGTH + blockSize), contentDigest);
+
+			long literalStart = 0;
+			int copyFirst = -1;
+			int copyCount = 0;
+			long position = 0;
+			Rolling rolling = null;
+			while(position + blockSize <= size) {
+				// the pending literal, the block at position and the byte after it
+				data.load(literalStart, Math.min(size, position + blockSize + 1));
+				if(rolling == null) {
+					rolling = new Rolling(data.buffer, data.index(position), blockSize);
+				}
+
+				int match = -1;
+				List<Integer> candidates = blocksByWeak.get(rolling.value());
+				if(candidates != null) {
+					byte[] strong = strongHash(data.buffer, data.index(position), blockSize);
+					for(int candidate : candidates) {
+						if(Arrays.equals(strong, 0, STRONG_HASH_LENGTH, signature.strong,
+								candidate * STRONG_HASH_LENGTH, (candidate + 1) * STRONG_HASH_LENGTH)) {
+							match = candidate;
+							break;
+						}
+					}
+				}
+
+				if(match == -1) {
+					if(position + blockSize < size) {
+						rolling.roll(data.get(position), data.get(position + blockSize));
+					}
+					position++;
+					if(position - literalStart == MAX_LITERAL_LENGTH) {
+						// written as soon as it is complete, so that no more than this is kept in memory
+						writeCopy(out, copyFirst, copyCount);
+						copyCount = 0;
+						writeLiteral(out, data, literalStart, position);
+						literalStart = position;
+					}
+					continue;
+				}
+
+				if(literalStart < position) {
+					writeCopy(out, copyFirst, copyCount);
+					copyCount = 0;
+					writeLiteral(out, data, literalStart, position);
+				}
+				if(copyCount > 0 && match == copyFirst + copyCount) {
+					copyCount++;
+				} else {
+					writeCopy(out, copyFirst, copyCount);
+					copyFirst = match;
+					copyCount = 1;
+				}
+				position += blockSize;
+				literalStart = position;
+				rolling = null;
+			}
+
+			writeCopy(out, copyFirst, copyCount);
+			data.load(literalStart, size);
+			writeLiteral(out, data, literalStart, size);
+		}
+
+		out.writeByte(END);
+		out.write(ContentHash.toString(contentDigest).getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+	}
+
+	/// Rebuilds a new version of a file from the old version the delta's signature was made from.
+	///
+	/// @return the [ContentHash] of the new version
+	/// @throws IllegalArgumentException if the delta is malformed, refers to blocks `old` does not have, or the result
+	/// does not have the expected [ContentHash]
+	public static String patch(File old, InputStream delta, OutputStream target) throws IOException {
+		MessageDigest digest = ContentHash.newDigest();
+		OutputStream out = new DigestOutputStream(target, digest);
+		DataInputStream in = new DataInputStream(delta);
+		byte[] buf = new byte[0x20_000];
+
+		try(RandomAccessFile raf = new RandomAccessFile(old, "r")) {
+			int blockSize = in.readInt();
+			if(blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) {
+				throw new IllegalArgumentException("Invalid block size");
+			}
+			while(true) {
+				byte instruction = in.readByte();
+				switch(instruction) {
+					case COPY -> {
+						int first = in.readInt();
+						int count = in.readInt();
+						long start = (long) first * blockSize;
+						long length = (long) count * blockSize;
+						if(first < 0 || count <= 0 || start + length > raf.length()) {
+							throw new IllegalArgumentException("Invalid copy instruction");
+						}
+						raf.seek(start);
+						while(length > 0) {
+							int read = raf.read(buf, 0, (int) Math.min(buf.length, length));
+							if(read == -1) {
+								throw new IllegalArgumentException("Old version shrank while patching");
+							}
+							out.write(buf, 0, read);
+							length -= read;
+						}
+					}
+					case LITERAL -> {
+						int length = in.readInt();
+						if(length <= 0 || length > MAX_LITERAL_LENGTH) {
+							throw new IllegalArgumentException("Invalid literal instruction");
+						}
+						while(length > 0) {
+							int read = in.read(buf, 0, Math.min(buf.length, length));
+							if(read == -1) {
+								throw new EOFException();
+							}
+							out.write(buf, 0, read);
+							length -= read;
+						}
+					}
+					case END -> {
+						byte[] expected = new byte[64];
+						in.readFully(expected);
+						out.flush();
+						String actual = ContentHash.toString(digest);
+						if(!actual.equals(new String(expected, StandardCharsets.US_ASCII))) {
+							throw new IllegalArgumentException("Patched file does not match the expected hash");
+						}
+						return actual;
+					}
+					default -> throw new IllegalArgumentException("Unknown delta instruction " + instruction);
+				}
+			}
+		} catch(EOFException e) {
+			throw new IllegalArgumentException("Truncated delta", e);
+		}
+	}
+
+	private static void writeCopy(DataOutputStream out, int first, int count) throws IOException {
+		if(count == 0) {
+			return;
+		}
+		out.writeByte(COPY);
+		out.writeInt(first);
+		out.writeInt(count);
+	}
+
+	/// Writes the bytes of the file from `start` to `end`, which must be loaded in `data`.
+	private static void writeLiteral(DataOutputStream out, Window data, long start, long end) throws IOException {
+		for(long offset = start; offset < end; offset += MAX_LITERAL_LENGTH) {
+			int length = (int) Math.min(MAX_LITERAL_LENGTH, end - offset);
+			out.writeByte(LITERAL);
+			out.writeInt(length);
+			out.write(data.buffer, data.index(offset), length);
+		}
+	}
+
+	private static byte[] strongHash(byte[] data, int offset, int length) {
+		MessageDigest digest = ContentHash.newDigest();
+		digest.update(data, offset, length);
+		return Arrays.copyOf(digest.digest(), STRONG_HASH_LENGTH);
+	}
+
+	/// The part of a file [#diff] is working on, read through a [FileChannel] rather than mapped so that the file is
+	/// not held open by a mapping after the channel is closed.
+	///
+	/// Each byte is read only once and in order, so the content hash of the file is calculated while loading it.
+	private static class Window {
+		private final FileChannel channel;
+		private final long size;
+		private final MessageDigest digest;
+		private final byte[] buffer;
+		/// The position in the file of the first byte in [#buffer].
+		private long start = 0;
+		/// The amount of bytes in [#buffer].
+		private int filled = 0;
+
+		private Window(FileChannel channel, long size, int capacity, MessageDigest digest) {
+			this.channel = channel;
+			this.size = size;
+			this.digest = digest;
+			this.buffer = new byte[capacity];
+		}
+
+		/// Makes sure the bytes of the file before `end` are in [#buffer], discarding those before `keep` if there
+		/// is no room for them.
+		private void load(long keep, long end) throws IOException {
+			if(end <= start + filled) {
+				return;
+			}
+			if(end > start + buffer.length) {
+				int discarded = (int) (keep - start);
+				System.arraycopy(buffer, discarded, buffer, 0, filled - discarded);
+				start = keep;
+				filled -= discarded;
+			}
+			while(start + filled < end) {
+				// as much as fits, so that the buffer rarely needs to be moved
+				int length = (int) Math.min(buffer.length - filled, size - start - filled);
+				int read = channel.read(ByteBuffer.wrap(buffer, filled, length), start + filled);
+				if(read == -1) {
+					throw new EOFException("File shrank while reading it");
+				}
+				digest.update(buffer, filled, read);
+				filled += read;
+			}
+		}
+
+		/// Returns the index in [#buffer] of the byte at the given position in the file.
+		private int index(long position) {
+			return (int) (position - start);
+		}
+
+		private byte get(long position) {
+			return buffer[index(position)];
+		}
+	}
+
+	/// Description of the blocks of a file, telling the sender of a [Delta] which data the receiver already has.
+	///
+	/// Serialized as big endian ints: the block size, the amount of blocks, then each block's weak checksum followed
+	/// by its strong hash. Only whole blocks are included.
+	public static class Signature {
+		public final int blockSize;
+		private final int[] weak;
+		private final byte[] strong;
+
+		private Signature(int blockSize, int[] weak, byte[] strong) {
+			this.blockSize = blockSize;
+			this.weak = weak;
+			this.strong = strong;
+		}
+
+		/// Describes the blocks of a file with [#BLOCK_SIZE] bytes each.
+		public static Signature of(File file) throws IOException {
+			long blocks = file.length() / BLOCK_SIZE;
+			if(blocks > MAX_BLOCKS) {
+				throw new IOException("File is too big");
+			}
+			int[] weak = new int[(int) blocks];
+			byte[] strong = new byte[(int) blocks * STRONG_HASH_LENGTH];
+			byte[] block = new byte[BLOCK_SIZE];
+			try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				for(int i = 0; i < blocks; i++) {
+					in.readFully(block);
+					weak[i] = new Rolling(block, 0, BLOCK_SIZE).value();
+					System.arraycopy(strongHash(block, 0, BLOCK_SIZE), 0, strong, i * STRONG_HASH_LENGTH,
+							STRONG_HASH_LENGTH);
+				}
+			}
+			return new Signature(BLOCK_SIZE, weak, strong);
+		}
+
+		/// @throws IllegalArgumentException if the signature is malformed
+		public static Signature read(InputStream is) throws IOException {
+			DataInputStream in = new DataInputStream(is);
+			try {
+				int blockSize = in.readInt();
+				int blocks = in.readInt();
+				if(blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || blocks < 0 || blocks > MAX_BLOCKS) {
+					throw new IllegalArgumentException("Invalid signature header");
+				}
+				int[] weak = new int[blocks];
+				byte[] strong = new byte[blocks * STRONG_HASH_LENGTH];
+				for(int i = 0; i < blocks; i++) {
+					weak[i] = in.readInt();
+					in.readFully(strong, i * STRONG_HASH_LENGTH, STRONG_HASH_LENGTH);
+				}
+				return new Signature(blockSize, weak, strong);
+			} catch(EOFException e) {
+				throw new IllegalArgumentException("Truncated signature", e);
+			}
+		}
+
+		public void write(OutputStream os) throws IOException {
+			DataOutputStream out = new DataOutputStream(os);
+			out.writeInt(blockSize);
+			out.writeInt(weak.length);
+			for(int i = 0; i < weak.length; i++) {
+				out.writeInt(weak[i]);
+				out.write(strong, i * STRONG_HASH_LENGTH, STRONG_HASH_LENGTH);
+			}
+			out.flush();
+		}
+	}
+
+	/// The rsync rolling checksum of a window of bytes, which can be moved forward by one byte in constant time.
+	private static class Rolling {
+		private final int length;
+		private int a = 0;
+		private int b = 0;
+
+		private Rolling(byte[] data, int offset, int length) {
+			this.length = length;
+			for(int i = 0; i < length; i++) {
+				int value = data[offset + i] & 0xFF;
+				a += value;
+				b += (length - i) * value;
+			}
+		}
+
+		/// Moves the window forward, removing `out` from its start and adding `in` to its end.
+		private void roll(byte out, byte in) {
+			a += (in & 0xFF) - (out & 0xFF);
+			b += a - length * (out & 0xFF);
+		}
+
+		private int value() {
+			return (a & 0xFFFF) | (b << 16);
+		}
+	}
+}
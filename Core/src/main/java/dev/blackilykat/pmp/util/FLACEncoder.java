@@ -0,0 +1,591 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.pmp.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/// Encodes audio to FLAC files, used to produce smaller versions of tracks.
+///
+/// Each channel of a frame is encoded as the smallest of a constant, verbatim or fixed prediction subframe, with
+/// the residual rice coded in partitions. Stereo frames are also tried as left/side, right/side and mid/side. This
+/// compresses somewhat less than the reference encoder, which also tries linear prediction, but is much simpler and
+/// faster.
+///
+/// Samples are given through [#write] and each frame is written as soon as it is full. The STREAMINFO block is
+/// completed with the length, frame sizes and MD5 of the audio once the encoder is [#close]d.
+public class FLACEncoder implements Closeable {
+	/// The amount of samples per channel in each frame, except the last one.
+	public static final int BLOCK_SIZE = 4096;
+	private static final int BLOCK_TYPE_STREAMINFO = 0;
+	private static final int STREAMINFO_LENGTH = 34;
+	private static final int MAX_FIXED_ORDER = 4;
+	private static final int MAX_PARTITION_ORDER = 8;
+	/// Rice parameters above this need the 5 bit parameter coding method.
+	private static final int MAX_SHORT_RICE_PARAMETER = 14;
+	private static final int MAX_RICE_PARAMETER = 30;
+	private static final int[] CRC8_TABLE = crcTable(0x07, 8);
+	private static final int[] CRC16_TABLE = crcTable(0x8005, 16);
+
+	private final RandomAccessFile file;
+	private final int sampleRate;
+	private final int channels;
+	private final int bitsPerSample;
+	private final MessageDigest md5;
+	private final int[][] buffer;
+	private final int[] mid = new int[BLOCK_SIZE];
+	private final int[] side = new int[BLOCK_SIZE];
+	private final int[] residual = new int[BLOCK_SIZE];
+	private final BitWriter writer = new BitWriter();
+	private int buffered = 0;
+	private long totalSamples = 0;
+	private long frameNumber = 0;
+	private int minFrameSize = Integer.MAX_VALUE;
+	private int maxFrameSize = 0;
+
+	/// Starts writing a FLAC file, replacing `target` if it exists.
+	///
+	/// @param metadata the vorbis comments of the file, or null to leave them out
+	/// @throws IllegalArgumentException if the format cannot be encoded
+	public FLACEncoder(File target, int sampleRate, int channels, int bitsPerSample,
+			List<Pair<String, String>> metadata) throws IOException {
+		if(sampleRate < 1 || sampleRate >= 1 << 20) {
+			throw new IllegalArgumentException("Unsupported sample rate " + sampleRate);
+		}
+		if(channels < 1 || channels > 8) {
+			throw new IllegalArgumentException("Unsupported channel count " + channels);
+		}
+		// the side channel and predictions of 24 bit audio still fit in an int
+		if(bitsPerSample < 4 || bitsPerSample > 24) {
+			throw new IllegalArgumentException("Unsupported bit depth " + bitsPerSample);
+		}
+		this.sampleRate = sampleRate;
+		this.channels = channels;
+		this.bitsPerSample = bitsPerSample;
+		this.buffer = new int[channels][BLOCK_SIZE];
+		try {
+			this.md5 = MessageDigest.getInstance("MD5");
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available", e);
+		}
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		header.write(FLACUtil.SIGNATURE);
+		// filled in once the encoder is closed
+		FLACUtil.writeBlock(header, BLOCK_TYPE_STREAMINFO, new byte[STREAMINFO_LENGTH], metadata == null);
+		if(metadata != null) {
+			FLACUtil.writeBlock(header, FLACUtil.BLOCK_TYPE_VORBIS_COMMENT, FLACUtil.encodeComments("PMP", metadata),
+					true);
+		}
+
+		this.file = new RandomAccessFile(target, "rw");
+		file.setLength(0);
+		file.write(header.toByteArray());
+	}
+
+	/// Adds samples to the end of the audio.
+	///
+	/// @param samples the samples of each channel, from index 0
+	/// @param count how many samples of each channel to add
+	public void write(int[][] samples, int count) throws IOException {
+		int offset = 0;
+		while(offset < count) {
+			int length = Math.min(count - offset, BLOCK_SIZE - buffered);
+			for(int channel = 0; channel < channels; channel++) {
+				System.arraycopy(samples[channel], offset, buffer[channel], buffered, length);
+			}
+			buffered += length;
+			offset += length;
+			if(buffered == BLOCK_SIZE) {
+				writeFrame();
+			}
+		}
+	}
+
+	/// Writes the last frame and completes the STREAMINFO block.
+	@Override
+	public void close() throws IOException {
+		try {
+			if(buffered > 0) {
+				writeFrame();
+			}
+
+			writer.reset();
+			writer.write(BLOCK_SIZE, 16);
+			writer.write(BLOCK_SIZE, 16);
+			writer.write(minFrameSize == Integer.MAX_VALUE ? 0 : minFrameSize, 24);
+			writer.write(maxFrameSize, 24);
+			writer.write(sampleRate, 20);
+			writer.write(channels - 1, 3);
+			writer.write(bitsPerSample - 1, 5);
+			writer.write(totalSamples >>> 32, 4);
+			writer.write(totalSamples, 32);
+			for(byte b : md5.digest()) {
+				writer.write(b, 8);
+			}
+			file.seek(FLACUtil.SIGNATURE.length + 4);
+			file.write(writer.bytes(), 0, writer.length());
+		} finally {
+			file.close();
+		}
+	}
+
+	private void writeFrame() throws IOException {
+		int n = buffered;
+		updateMd5(n);
+
+		Plan[] plans = new Plan[channels];
+		int[] depths = new int[channels];
+		int assignment = channels - 1;
+		for(int channel = 0; channel < channels; channel++) {
+			depths[channel] = bitsPerSample;
+			plans[channel] = plan(buffer[channel], n, bitsPerSample);
+		}
+		if(channels == 2) {
+			int[] left = buffer[0];
+			int[] right = buffer[1];
+			for(int i = 0; i < n; i++) {
+				mid[i] = (left[i] + right[i]) >> 1;
+				side[i] = left[i] - right[i];
+			}
+			Plan midPlan = plan(mid, n, bitsPerSample);
+			Plan sidePlan = plan(side, n, bitsPerSample + 1);
+
+			long independent = plans[0].bits + plans[1].bits;
+			long leftSide = plans[0].bits + sidePlan.bits;
+			long sideRight = sidePlan.bits + plans[1].bits;
+			long midSide = midPlan.bits + sidePlan.bits;
+			long best = Math.min(Math.min(independent, leftSide), Math.min(sideRight, midSide));
+			if(best == midSide) {
+				assignment = 10;
+				plans = new Plan[] {midPlan, sidePlan};
+				depths = new int[] {bitsPerSample, bitsPerSample + 1};
+			} else if(best == leftSide) {
+				assignment = 8;
+				plans[1] = sidePlan;
+				depths[1] = bitsPerSample + 1;
+			} else if(best == sideRight) {
+				assignment = 9;
+				plans[0] = sidePlan;
+				depths[0] = bitsPerSample + 1;
+			}
+		}
+
+		writer.reset();
+		writeFrameHeader(n, assignment);
+		for(int channel = 0; channel < channels; channel++) {
+			writeSubframe(plans[channel], n, depths[channel]);
+		}
+		writer.alignToByte();
+		writer.write(crc(CRC16_TABLE, 16, writer.bytes(), writer.length()), 16);
+
+		file.write(writer.bytes(), 0, writer.length());
+		minFrameSize = Math.min(minFrameSize, writer.length());
+		maxFrameSize = Math.max(maxFrameSize, writer.length());
+		frameNumber++;
+		totalSamples += n;
+		buffered = 0;
+	}
+
+	/// Adds the buffered samples to the MD5 of the audio, which is calculated on the interleaved little endian
+	/// samples.
+	private void updateMd5(int n) {
+		int bytesPerSample = (bitsPerSample + 7) / 8;
+		byte[] bytes = new byte[n * channels * bytesPerSample];
+		int position = 0;
+		for(int i = 0; i < n; i++) {
+			for(int channel = 0; channel < channels; channel++) {
+				int sample = buffer[channel][i];
+				for(int b = 0; b < bytesPerSample; b++) {
+					bytes[position++] = (byte) (sample >> (b * 8));
+				}
+			}
+		}
+		md5.update(bytes);
+	}
+
+	private void writeFrameHeader(int n, int assignment) {
+		int blockSizeCode = n == BLOCK_SIZE ? 12 : 7;
+		int sampleRateCode = switch(sampleRate) {
+			case 88_200 -> 1;
+			case 176_400 -> 2;
+			case 192_000 -> 3;
+			case 8_000 -> 4;
+			case 16_000 -> 5;
+			case 22_050 -> 6;
+			case 24_000 -> 7;
+			case 32_000 -> 8;
+			case 44_100 -> 9;
+			case 48_000 -> 10;
+			case 96_000 -> 11;
+			default -> {
+				if(sampleRate % 1000 == 0 && sampleRate / 1000 < 256) {
+					yield 12;
+				} else if(sampleRate < 1 << 16) {
+					yield 13;
+				} else if(sampleRate % 10 == 0 && sampleRate / 10 < 1 << 16) {
+					yield 14;
+				}
+				// read from STREAMINFO
+				yield 0;
+			}
+		};
+		int sampleSizeCode = switch(bitsPerSample) {
+			case 8 -> 1;
+			case 12 -> 2;
+			case 16 -> 4;
+			case 20 -> 5;
+			case 24 -> 6;
+			// read from STREAMINFO
+			default -> 0;
+		};
+
+		// sync code, reserved bit and fixed block size
+		writer.write(0b11111111111110_0_0, 16);
+		writer.write(blockSizeCode, 4);
+		writer.write(sampleRateCode, 4);
+		writer.write(assignment, 4);
+		writer.write(sampleSizeCode, 3);
+		writer.write(0, 1);
+		writeUtf8(frameNumber);
+		if(blockSizeCode == 7) {
+			writer.write(n - 1, 16);
+		}
+		switch(sampleRateCode) {
+			case 12 -> writer.write(sampleRate / 1000, 8);
+			case 13 -> writer.write(sampleRate, 16);
+			case 14 -> writer.write(sampleRate / 10, 16);
+			default -> {}
+		}
+		writer.write(crc(CRC8_TABLE, 8, writer.bytes(), writer.length()), 8);
+	}
+
+	/// Writes a number the way UTF-8 writes code points, as FLAC frame headers do with frame numbers.
+	private void writeUtf8(long value) {
+		if(value < 0x80) {
+			writer.write(value, 8);
+			return;
+		}
+		// each continuation byte holds 6 bits, and takes one from the first byte
+		int continuationBytes = 1;
+		while(value >= 1L << (5 * continuationBytes + 6)) {
+			continuationBytes++;
+		}
+		int firstBits = 6 - continuationBytes;
+		int prefix = (0xFF << (7 - continuationBytes)) & 0xFF;
+		writer.write(prefix | (value >>> (6 * continuationBytes)) & ((1 << firstBits) - 1), 8);
+		for(int i = continuationBytes - 1; i >= 0; i--) {
+			writer.write(0x80 | (value >>> (6 * i)) & 0x3F, 8);
+		}
+	}
+
+	/// Finds the smallest way to encode a subframe.
+	///
+	/// Low bits which are zero in all samples, such as in audio reduced to fewer significant bits than its bit
+	/// depth, are left out as wasted bits.
+	///
+	/// @param bits the bit depth of the signal, one more than the audio's for side channels
+	private Plan plan(int[] signal, int n, int bits) {
+		boolean constant = true;
+		int or = signal[0];
+		for(int i = 1; i < n; i++) {
+			if(signal[i] != signal[0]) {
+				constant = false;
+			}
+			or |= signal[i];
+		}
+		if(constant) {
+			return new Plan(Plan.CONSTANT, 0, 8 + bits, 0, null, 0, signal);
+		}
+
+		int wasted = Integer.numberOfTrailingZeros(or);
+		if(wasted > 0) {
+			int[] shifted = new int[n];
+			for(int i = 0; i < n; i++) {
+				shifted[i] = signal[i] >> wasted;
+			}
+			signal = shifted;
+			bits -= wasted;
+		}
+
+		Plan best = new Plan(Plan.VERBATIM, 0, 8 + wasted + (long) n * bits, 0, null, wasted, signal);
+		for(int order = 0; order <= MAX_FIXED_ORDER && order < n; order++) {
+			computeResidual(signal, n, order);
+			Plan plan = planResidual(n, order, 8 + wasted + (long) order * bits, wasted, signal);
+			if(plan.bits < best.bits) {
+				best = plan;
+			}
+		}
+		return best;
+	}
+
+	/// Computes the residual of a fixed predictor of the given order into [#residual], from index `order`.
+	private void computeResidual(int[] x, int n, int order) {
+		switch(order) {
+			case 0 -> System.arraycopy(x, 0, residual, 0, n);
+			case 1 -> {
+				for(int i = 1; i < n; i++) {
+					residual[i] = x[i] - x[i - 1];
+				}
+			}
+			case 2 -> {
+				for(int i = 2; i < n; i++) {
+					residual[i] = x[i] - 2 * x[i - 1] + x[i - 2];
+				}
+			}
+			case 3 -> {
+				for(int i = 3; i < n; i++) {
+					residual[i] = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+				}
+			}
+			case 4 -> {
+				for(int i = 4; i < n; i++) {
+					residual[i] = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+				}
+			}
+			default -> throw new IllegalArgumentException("Unsupported order " + order);
+		}
+	}
+
+	/// Chooses the partition order and rice parameters for the residual in [#residual], estimating its size from the
+	/// sum of each partition.
+	///
+	/// @param headerBits the size of the subframe before the residual
+	private Plan planResidual(int n, int order, long headerBits, int wasted, int[] signal) {
+		int maxPartitionOrder = 0;
+		while(maxPartitionOrder < MAX_PARTITION_ORDER && n % (2 << maxPartitionOrder) == 0
+				&& (n >> (maxPartitionOrder + 1)) > order) {
+			maxPartitionOrder++;
+		}
+
+		int partitions = 1 << maxPartitionOrder;
+		int partitionLength = n >> maxPartitionOrder;
+		long[] sums = new long[partitions];
+		int[] counts = new int[partitions];
+		for(int partition = 0; partition < partitions; partition++) {
+			int start = partition == 0 ? order : partition * partitionLength;
+			int end = (partition + 1) * partitionLength;
+			long sum = 0;
+			for(int i = start; i < end; i++) {
+				int r = residual[i];
+				sum += (r << 1) ^ (r >> 31);
+			}
+			sums[partition] = sum;
+			counts[partition] = end - start;
+		}
+
+		Plan best = null;
+		for(int partitionOrder = maxPartitionOrder; partitionOrder >= 0; partitionOrder--) {
+			int[] parameters = new int[partitions];
+			long bits = headerBits + 2 + 4;
+			boolean longParameters = false;
+			for(int partition = 0; partition < partitions; partition++) {
+				parameters[partition] = riceParameter(sums[partition], counts[partition]);
+				bits += riceBits(sums[partition], counts[partition], parameters[partition]);
+				longParameters |= parameters[partition] > MAX_SHORT_RICE_PARAMETER;
+			}
+			bits += (long) partitions * (longParameters ? 5 : 4);
+			if(best == null || bits < best.bits) {
+				best = new Plan(Plan.FIXED, order, bits, partitionOrder, parameters, wasted, signal);
+			}
+
+			if(partitionOrder > 0) {
+				partitions /= 2;
+				for(int partition = 0; partition < partitions; partition++) {
+					sums[partition] = sums[partition * 2] + sums[partition * 2 + 1];
+					counts[partition] = counts[partition * 2] + counts[partition * 2 + 1];
+				}
+			}
+		}
+		return best;
+	}
+
+	/// @return the rice parameter closest to optimal for a partition
+	private static int riceParameter(long sum, int count) {
+		if(count == 0 || sum < count) {
+			return 0;
+		}
+		int parameter = 63 - Long.numberOfLeadingZeros(sum / count);
+		if(parameter > 0 && riceBits(sum, count, parameter - 1) <= riceBits(sum, count, parameter)) {
+			parameter--;
+		}
+		return Math.min(parameter, MAX_RICE_PARAMETER);
+	}
+
+	/// @return the estimated size of a partition with the given rice parameter
+	private static long riceBits(long sum, int count, int parameter) {
+		return (long) count * (parameter + 1) + (sum >> parameter);
+	}
+
+	private void writeSubframe(Plan plan, int n, int bits) {
+		int[] signal = plan.signal;
+		writer.write(0, 1);
+		writer.write(switch(plan.type) {
+			case Plan.CONSTANT -> 0b000000;
+			case Plan.VERBATIM -> 0b000001;
+			case Plan.FIXED -> 0b001000 | plan.order;
+			default -> throw new IllegalStateException("Unknown subframe type " + plan.type);
+		}, 6);
+		if(plan.wasted > 0) {
+			writer.write(1, 1);
+			writer.write(1, plan.wasted);
+			bits -= plan.wasted;
+		} else {
+			writer.write(0, 1);
+		}
+
+		switch(plan.type) {
+			case Plan.CONSTANT -> writer.write(signal[0], bits);
+			case Plan.VERBATIM -> {
+				for(int i = 0; i < n; i++) {
+					writer.write(signal[i], bits);
+				}
+			}
+			case Plan.FIXED -> {
+				for(int i = 0; i < plan.order; i++) {
+					writer.write(signal[i], bits);
+				}
+				computeResidual(signal, n, plan.order);
+				writeResidual(plan, n);
+			}
+			default -> {}
+		}
+	}
+
+	private void writeResidual(Plan plan, int n) {
+		int partitions = 1 << plan.partitionOrder;
+		int parameterBits = 4;
+		for(int parameter : plan.parameters) {
+			if(parameter > MAX_SHORT_RICE_PARAMETER) {
+				parameterBits = 5;
+				break;
+			}
+		}
+		writer.write(parameterBits == 4 ? 0 : 1, 2);
+		writer.write(plan.partitionOrder, 4);
+
+		int partitionLength = n >> plan.partitionOrder;
+		for(int partition = 0; partition < partitions; partition++) {
+			int parameter = plan.parameters[partition];
+			writer.write(parameter, parameterBits);
+			int start = partition == 0 ? plan.order : partition * partitionLength;
+			int end = (partition + 1) * partitionLength;
+			for(int i = start; i < end; i++) {
+				int r = residual[i];
+				writer.writeRice((r << 1) ^ (r >> 31), parameter);
+			}
+		}
+	}
+
+	private static int[] crcTable(int polynomial, int width) {
+		int[] table = new int[256];
+		int topBit = 1 << (width - 1);
+		int mask = (1 << width) - 1;
+		for(int i = 0; i < 256; i++) {
+			int crc = i << (width - 8);
+			for(int bit = 0; bit < 8; bit++) {
+				crc = (crc & topBit) != 0 ? (crc << 1) ^ polynomial : crc << 1;
+			}
+			table[i] = crc & mask;
+		}
+		return table;
+	}
+
+	private static int crc(int[] table, int width, byte[] bytes, int length) {
+		int crc = 0;
+		int mask = (1 << width) - 1;
+		for(int i = 0; i < length; i++) {
+			crc = ((crc << 8) ^ table[((crc >>> (width - 8)) ^ bytes[i]) & 0xFF]) & mask;
+		}
+		return crc;
+	}
+
+	/// How a subframe is encoded, as chosen by [#plan].
+	///
+	/// @param bits the estimated size of the subframe
+	/// @param parameters the rice parameter of each partition, only for [#FIXED] subframes
+	/// @param wasted how many low bits are zero in all samples
+	/// @param signal the samples to encode, shifted right by the wasted bits
+	private record Plan(int type, int order, long bits, int partitionOrder, int[] parameters, int wasted,
+			int[] signal) {
+		static final int CONSTANT = 0;
+		static final int VERBATIM = 1;
+		static final int FIXED = 2;
+	}
+
+	/// Writes values of any amount of bits, most significant bit first.
+	private static class BitWriter {
+		private byte[] bytes = new byte[BLOCK_SIZE * 8];
+		private int length = 0;
+		private long accumulator = 0;
+		private int accumulated = 0;
+
+		void reset() {
+			length = 0;
+			accumulator = 0;
+			accumulated = 0;
+		}
+
+		/// Writes the lowest `bits` bits of `value`, at most 32.
+		void write(long value, int bits) {
+			accumulator = (accumulator << bits) | (value & ((1L << bits) - 1));
+			accumulated += bits;
+			while(accumulated >= 8) {
+				accumulated -= 8;
+				if(length == bytes.length) {
+					bytes = Arrays.copyOf(bytes, bytes.length * 2);
+				}
+				bytes[length++] = (byte) (accumulator >>> accumulated);
+			}
+			accumulator &= (1L << accumulated) - 1;
+		}
+
+		/// Writes a folded residual as a unary quotient followed by the lowest `parameter` bits.
+		void writeRice(int folded, int parameter) {
+			int quotient = folded >>> parameter;
+			while(quotient >= 32) {
+				write(0, 32);
+				quotient -= 32;
+			}
+			write(1, quotient + 1);
+			write(folded, parameter);
+		}
+
+		void alignToByte() {
+			if(accumulated > 0) {
+				write(0, 8 - accumulated);
+			}
+		}
+
+		/// @return the written bytes, valid up to [#length]. Only complete bytes are included.
+		byte[] bytes() {
+			return bytes;
+		}
+
+		int length() {
+			return length;
+		}
+	}
+}
@@ -24,20 +24,54 @@ import org.kc7bfi.jflac.metadata.Metadata;
 import org.kc7bfi.jflac.metadata.VorbisComment;
 import org.kc7bfi.jflac.metadata.VorbisString;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.stream.Collectors;
 
-/// Utility class for reading metadata of FLAC files.
+/// Utility class for reading and writing metadata of FLAC files.
 public class FLACUtil {
+	/// The first four bytes of every FLAC file.
+	public static final byte[] SIGNATURE = {'f', 'L', 'a', 'C'};
+	/// How many bytes of padding are left after the metadata when it has to be moved, so that later changes can be
+	/// written in place.
+	public static final int DEFAULT_PADDING = 8192;
+	private static final int BLOCK_TYPE_PADDING = 1;
+	static final int BLOCK_TYPE_VORBIS_COMMENT = 4;
+	private static final int MAX_BLOCK_LENGTH = (1 << 24) - 1;
 	private static final Logger LOGGER = LogManager.getLogger(FLACUtil.class);
 
+	/// Checks whether the stream starts with the FLAC [#SIGNATURE] without consuming it.
+	///
+	/// @param is a stream which [InputStream#markSupported]
+	/// @return false if the stream does not start with the FLAC signature, including if it is shorter than it
+	public static boolean hasSignature(InputStream is) throws IOException {
+		if(!is.markSupported()) {
+			throw new IllegalArgumentException("Stream does not support mark");
+		}
+		is.mark(SIGNATURE.length);
+		byte[] start = is.readNBytes(SIGNATURE.length);
+		is.reset();
+		return Arrays.equals(start, SIGNATURE);
+	}
+
 	/// Extracts FLAC vorbis metadata from the given file
 	///
 	/// @return the metadata, or null if the file is not a valid FLAC file
@@ -94,4 +128,172 @@ public class FLACUtil {
 
 		return list;
 	}
+
+	/// Replaces the vorbis comments of a FLAC file with the given metadata without moving the audio frames, by
+	/// taking space from the PADDING block or giving space to it.
+	///
+	/// The resulting file is identical to the one written by [#writeMetadata] with the same arguments.
+	///
+	/// @return false, leaving the file untouched, if the new metadata does not fit in the space of the old one and
+	/// the padding
+	/// @throws IllegalArgumentException if the file is not a valid FLAC file
+	public static boolean writeMetadataInPlace(File file, List<Pair<String, String>> metadata) throws IOException {
+		MetadataLayout layout = layoutMetadata(file, metadata);
+		if(layout.blocks.length != layout.audioOffset - SIGNATURE.length) {
+			return false;
+		}
+		try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(SIGNATURE.length);
+			raf.write(layout.blocks);
+			raf.getChannel().force(false);
+		}
+		return true;
+	}
+
+	/// Writes a copy of a FLAC file to `target` with its vorbis comments replaced by the given metadata.
+	///
+	/// If the new metadata does not fit in the space of the old one and the padding, the audio frames are moved and
+	/// the padding becomes {@value #DEFAULT_PADDING} bytes long.
+	///
+	/// @throws IllegalArgumentException if the file is not a valid FLAC file
+	public static void writeMetadata(File file, List<Pair<String, String>> metadata, File target)
+			throws IOException {
+		MetadataLayout layout = layoutMetadata(file, metadata);
+		try(FileChannel in = FileChannel.open(file.toPath());
+				FileOutputStream os = new FileOutputStream(target)) {
+			os.write(SIGNATURE);
+			os.write(layout.blocks);
+			FileChannel out = os.getChannel();
+			long position = layout.audioOffset;
+			long size = in.size();
+			while(position < size) {
+				position += in.transferTo(position, size - position, out);
+			}
+			out.force(false);
+		}
+	}
+
+	/// Reads the metadata blocks of a file and lays them out again with the vorbis comments replaced, keeping the
+	/// same total length if possible.
+	private static MetadataLayout layoutMetadata(File file, List<Pair<String, String>> metadata) throws IOException {
+		List<byte[]> blocks = new ArrayList<>();
+		List<Integer> types = new ArrayList<>();
+		int commentIndex = -1;
+		String vendor = "PMP";
+		long audioOffset;
+		try(DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			byte[] signature = new byte[SIGNATURE.length];
+			is.readFully(signature);
+			if(!Arrays.equals(signature, SIGNATURE)) {
+				throw new IllegalArgumentException("Not a FLAC file");
+			}
+			audioOffset = SIGNATURE.length;
+			boolean last = false;
+			while(!last) {
+				int header = is.readInt();
+				last = (header & 0x8000_0000) != 0;
+				int type = (header >>> 24) & 0x7F;
+				int length = header & MAX_BLOCK_LENGTH;
+				if(type == 127) {
+					throw new IllegalArgumentException("Invalid metadata block type");
+				}
+				byte[] data = new byte[length];
+				is.readFully(data);
+				audioOffset += 4 + length;
+
+				if(type == BLOCK_TYPE_VORBIS_COMMENT) {
+					commentIndex = blocks.size();
+					vendor = readVendor(data, vendor);
+				} else if(type != BLOCK_TYPE_PADDING) {
+					blocks.add(data);
+					types.add(type);
+				}
+			}
+		} catch(EOFException e) {
+			throw new IllegalArgumentException("Truncated FLAC metadata", e);
+		}
+		if(blocks.isEmpty()) {
+			throw new IllegalArgumentException("Missing STREAMINFO block");
+		}
+		if(commentIndex == -1) {
+			// right after STREAMINFO
+			commentIndex = 1;
+		}
+		blocks.add(commentIndex, encodeComments(vendor, metadata));
+		types.add(commentIndex, BLOCK_TYPE_VORBIS_COMMENT);
+
+		long available = audioOffset - SIGNATURE.length;
+		long needed = 0;
+		for(byte[] block : blocks) {
+			needed += 4 + block.length;
+		}
+		int padding;
+		if(needed == available) {
+			padding = -1;
+		} else if(available - needed >= 4 && available - needed - 4 <= MAX_BLOCK_LENGTH) {
+			padding = (int) (available - needed - 4);
+		} else {
+			padding = DEFAULT_PADDING;
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(available, needed));
+		for(int i = 0; i < blocks.size(); i++) {
+			writeBlock(out, types.get(i), blocks.get(i), padding == -1 && i == blocks.size() - 1);
+		}
+		if(padding != -1) {
+			writeBlock(out, BLOCK_TYPE_PADDING, new byte[padding], true);
+		}
+		return new MetadataLayout(out.toByteArray(), audioOffset);
+	}
+
+	/// @return the vendor string of a VORBIS_COMMENT block, or `fallback` if it is malformed
+	private static String readVendor(byte[] comment, String fallback) {
+		if(comment.length < 4) {
+			return fallback;
+		}
+		int length = ByteBuffer.wrap(comment, 0, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+		if(length < 0 || length > comment.length - 4) {
+			return fallback;
+		}
+		return new String(comment, 4, length, StandardCharsets.UTF_8);
+	}
+
+	static byte[] encodeComments(String vendor, List<Pair<String, String>> metadata) {
+		List<byte[]> strings = new ArrayList<>(metadata.size() + 1);
+		strings.add(vendor.getBytes(StandardCharsets.UTF_8));
+		// comment count, then each string with its length
+		int length = 4;
+		for(Pair<String, String> entry : metadata) {
+			if(entry.key == null || entry.key.isEmpty() || entry.key.contains("=")) {
+				throw new IllegalArgumentException("Invalid metadata key " + entry.key);
+			}
+			strings.add((entry.key + "=" + (entry.value == null ? "" : entry.value)).getBytes(StandardCharsets.UTF_8));
+		}
+		for(byte[] string : strings) {
+			length += 4 + string.length;
+		}
+		if(length > MAX_BLOCK_LENGTH) {
+			throw new IllegalArgumentException("Metadata is too long");
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(strings.getFirst().length).put(strings.getFirst());
+		buffer.putInt(strings.size() - 1);
+		for(byte[] string : strings.subList(1, strings.size())) {
+			buffer.putInt(string.length).put(string);
+		}
+		return buffer.array();
+	}
+
+	static void writeBlock(OutputStream out, int type, byte[] data, boolean last) throws IOException {
+		int header = (last ? 0x8000_0000 : 0) | (type << 24) | data.length;
+		out.write(ByteBuffer.allocate(4).putInt(header).array());
+		out.write(data);
+	}
+
+	/// Metadata blocks laid out by [#layoutMetadata].
+	///
+	/// @param blocks the encoded blocks, from right after the signature to the first audio frame
+	/// @param audioOffset where the first audio frame is in the original file
+	private record MetadataLayout(byte[] blocks, long audioOffset) {}
 }
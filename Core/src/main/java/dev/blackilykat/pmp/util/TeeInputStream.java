@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.pmp.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/// An InputStream which writes all bytes read from the underlying stream to an OutputStream, allowing data to be
+/// saved while it is being parsed.
+///
+/// Skipped bytes are read and written too. Closing this stream closes both streams.
+public class TeeInputStream extends FilterInputStream {
+	protected OutputStream out;
+
+	/// Construct this TeeInputStream reading from `in` and copying to `out`.
+	public TeeInputStream(InputStream in, OutputStream out) {
+		super(in);
+		this.out = out;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int res = in.read();
+		if(res != -1) {
+			out.write(res);
+		}
+		return res;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int res = in.read(b, off, len);
+		if(res > 0) {
+			out.write(b, off, res);
+		}
+		return res;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		byte[] buf = new byte[(int) Math.min(n, 8192)];
+		long skipped = 0;
+		while(skipped < n) {
+			int res = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+			if(res == -1) {
+				break;
+			}
+			skipped += res;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			in.close();
+		} finally {
+			out.close();
+		}
+	}
+}
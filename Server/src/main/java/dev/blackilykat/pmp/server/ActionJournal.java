@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.pmp.server;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
+import dev.blackilykat.pmp.Action;
+import dev.blackilykat.pmp.Globals;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/// The history of all actions performed on the library, replacing [ServerStorage.Main#actions].
+///
+/// # Segments
+///
+/// Actions are appended as JSON lines to segment files in [#DIRECTORY], each named after the id of its first action
+/// and containing up to {@value #SEGMENT_SIZE} actions. Appending never rewrites existing data. All actions in
+/// segments are also kept in memory by id, so reading any range of them takes constant time to reach its start.
+///
+/// An action which cannot be written is retried once after removing whatever part of it reached the segment. If
+/// that also fails, the server stops: an action only kept in memory would be lost on restart, along with its id,
+/// and devices which received it would never be told about the actions later given the same id.
+///
+/// # Compaction
+///
+/// Once more than {@value #MAX_ACTIONS} actions are in segments, the oldest segments are compacted into the
+/// snapshot, so that at least {@value #RETAINED_ACTIONS} remain. In the snapshot, only the last action affecting
+/// each track is kept, and it is turned into a [Action.Type#REPLACE] if earlier ones existed since devices may have
+/// any previous version of the track, or into an [Action.Type#ADD] if the track was removed before it. A
+/// [Action.Type#RENAME] is kept as the removal of the old filename and the addition of the new one. Actions keep their
+/// id, so the snapshot has gaps.
+///
+/// Removals are dropped from the snapshot entirely. Devices which have not received a dropped removal cannot catch
+/// up through the history, and are told to compare their library with the server's catalog instead (see
+/// [#getFrom]).
+public class ActionJournal {
+	/// The directory containing the segments and the snapshot.
+	public static final File DIRECTORY = new File(Globals.dataRoot, "actions");
+	private static final File SNAPSHOT = new File(DIRECTORY, "snapshot.json");
+	private static final Logger LOGGER = LogManager.getLogger(ActionJournal.class);
+	private static final int SEGMENT_SIZE = 10_000;
+	private static final int MAX_ACTIONS = 100_000;
+	private static final int RETAINED_ACTIONS = 50_000;
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	/// Compacted actions, sorted by id.
+	private static List<Entry> snapshot = new ArrayList<>();
+	/// Devices which have not received the action with this id need to resync. -1 if no action was dropped.
+	private static int resyncBefore = -1;
+	/// The id of the first action in segments, which is also the first id after the snapshot.
+	private static int base = 0;
+	/// All actions in segments, where the index is the id minus [#base].
+	private static ArrayList<Action> actions = new ArrayList<>();
+	/// The id of the first action of each segment.
+	private static final TreeSet<Integer> segments = new TreeSet<>();
+	/// The last segment, open for appending actions.
+	private static FileChannel channel = null;
+	/// The length of the last segment after the last action successfully written to it.
+	private static long segmentLength = 0;
+	/// Whether the next action must start a new segment even if the last one is not full, as the end of the last
+	/// segment was corrupted.
+	private static boolean needsNewSegment = false;
+
+	/// Loads the snapshot and all segments, then moves any action still in [ServerStorage.Main#actions] to the
+	/// journal.
+	public static synchronized void init() {
+		try {
+			Files.createDirectories(DIRECTORY.toPath());
+
+			if(SNAPSHOT.exists()) {
+				Snapshot loaded = MAPPER.readValue(SNAPSHOT, Snapshot.class);
+				snapshot = new ArrayList<>(loaded.entries());
+				resyncBefore = loaded.resyncBefore();
+				base = loaded.base();
+			}
+
+			File[] files = DIRECTORY.listFiles((_, name) -> name.endsWith(".jsonl"));
+			assert files != null;
+			for(File file : files) {
+				int first;
+				try {
+					first = Integer.parseInt(file.getName().substring(0, file.getName().length() - ".jsonl".length()));
+				} catch(NumberFormatException _) {
+					LOGGER.warn("Ignoring unknown file {} in action journal", file.getName());
+					continue;
+				}
+				if(first < base) {
+					// left over from a compaction which was interrupted after writing the snapshot
+					Files.delete(file.toPath());
+					continue;
+				}
+				segments.add(first);
+			}
+
+			for(int first : segments) {
+				needsNewSegment = !loadSegment(first);
+			}
+
+			if(!ServerStorage.MAIN.actions.empty()) {
+				if(base != 0 || !actions.isEmpty()) {
+					LOGGER.error("Both the journal and storage contain actions, discarding the ones in storage");
+				} else {
+					LOGGER.info("Moving {} actions from storage to the action journal",
+							ServerStorage.MAIN.actions.size());
+					for(Action action : ServerStorage.MAIN.actions.get()) {
+						append(action);
+					}
+				}
+				ServerStorage.MAIN.actions.set(List.of());
+			}
+
+			LOGGER.info("Loaded action journal: {} actions in snapshot, {} in {} segments, last id {}",
+					snapshot.size(), actions.size(), segments.size(), lastId());
+			compactIfNeeded();
+		} catch(IOException e) {
+			LOGGER.fatal("Failed to load action journal", e);
+			System.exit(1);
+		}
+	}
+
+	/// Appends an action to the journal.
+	///
+	/// @return the id of the action
+	public static synchronized int append(Action action) {
+		int id = base + actions.size();
+		try {
+			write(id, action);
+		} catch(IOException e) {
+			LOGGER.error("Failed to write action {} to the journal, retrying", id, e);
+			try {
+				discardFailedWrite();
+				write(id, action);
+			} catch(IOException e2) {
+				LOGGER.fatal("Failed to write action {} to the journal again, stopping", id, e2);
+				System.exit(1);
+			}
+		}
+		actions.add(action);
+		return id;
+	}
+
+	/// Appends an action to the last segment, starting a new one if needed, and forces it to the storage device
+	/// before returning, so that no acknowledged action is lost if the system crashes.
+	private static void write(int id, Action action) throws IOException {
+		if(channel == null || id - segments.last() >= SEGMENT_SIZE) {
+			if(channel != null) {
+				channel.close();
+				channel = null;
+			}
+			if(segments.isEmpty() || id - segments.last() >= SEGMENT_SIZE || needsNewSegment) {
+				segments.add(id);
+				needsNewSegment = false;
+				compactIfNeeded();
+			}
+			File segment = segmentFile(segments.last());
+			channel = FileChannel.open(segment.toPath(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			segmentLength = channel.size();
+		}
+		ByteBuffer line = ByteBuffer.wrap(
+				(MAPPER.writeValueAsString(new Entry(id, action)) + System.lineSeparator()).getBytes(
+						StandardCharsets.UTF_8));
+		while(line.hasRemaining()) {
+			var _ = channel.write(line);
+		}
+		channel.force(false);
+		segmentLength = channel.size();
+	}
+
+	/// Closes the channel after a failed [#write] and truncates the last segment to [#segmentLength], so that a
+	/// partially written action is not followed by the retried one.
+	private static void discardFailedWrite() throws IOException {
+		if(channel != null) {
+			try {
+				channel.close();
+			} catch(IOException _) {
+				// whatever was written is truncated below
+			}
+			channel = null;
+		}
+		if(segments.isEmpty()) {
+			return;
+		}
+		File segment = segmentFile(segments.last());
+		if(segment.length() > segmentLength) {
+			try(FileChannel segmentChannel = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE)) {
+				segmentChannel.truncate(segmentLength);
+				segmentChannel.force(false);
+			}
+		}
+	}
+
+	/// Returns the id of the last action, or -1 if there are no actions.
+	public static synchronized int lastId() {
+		return base + actions.size() - 1;
+	}
+
+	/// Returns all actions with an id greater than or equal to `from` in order, along with their ids. These are not
+	/// consecutive if some actions were dropped by compaction.
+	///
+	/// @return the actions, or null if they are not all available: either a removal after `from` was dropped by
+	/// compaction, or `from` is after the next action id.
+	public static synchronized List<Entry> getFrom(int from) {
+		if(from < 0 || from <= resyncBefore || from > base + actions.size()) {
+			return null;
+		}
+
+		List<Entry> result = new ArrayList<>();
+		if(from < base) {
+			int low = 0;
+			int high = snapshot.size();
+			while(low < high) {
+				int middle = (low + high) >>> 1;
+				if(snapshot.get(middle).id() < from) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			result.addAll(snapshot.subList(low, snapshot.size()));
+		}
+		for(int id = Math.max(base, from); id < base + actions.size(); id++) {
+			result.add(new Entry(id, actions.get(id - base)));
+		}
+		return result;
+	}
+
+	/// Compacts the oldest segments if there are more than [#MAX_ACTIONS] actions in them.
+	private static void compactIfNeeded() throws IOException {
+		if(actions.size() <= MAX_ACTIONS) {
+			return;
+		}
+
+		int end = lastId() + 1;
+		int cut = base;
+		for(int first : segments) {
+			if(end - first < RETAINED_ACTIONS) {
+				break;
+			}
+			cut = first;
+		}
+		if(cut == base) {
+			return;
+		}
+
+		LOGGER.info("Compacting actions {} to {}", base, cut - 1);
+		List<Entry> entries = new ArrayList<>(snapshot);
+		for(int id = base; id < cut; id++) {
+			entries.add(new Entry(id, actions.get(id - base)));
+		}
+
+		Map<String, Entry> latest = new HashMap<>();
+		for(Entry entry : entries) {
+			Action action = entry.action();
+			if(action.actionType == Action.Type.RENAME) {
+				// only the outcome is kept: the old filename is gone and the new one has the track's contents
+				latest.put(action.filename, new Entry(entry.id(), new Action(action.filename, Action.Type.REMOVE)));
+				Action add = new Action(action.newFilename, Action.Type.ADD);
+				add.contentHash = action.contentHash;
+				action = add;
+			}
+			// whatever happened to a filename is merged into a whole new track, which is only a replacement if the
+			// filename still had a track rather than being removed
+			Entry previous = latest.get(action.filename);
+			if(previous != null && action.actionType != Action.Type.REMOVE) {
+				Action merged = new Action(action.filename,
+						previous.action().actionType == Action.Type.REMOVE ? Action.Type.ADD : Action.Type.REPLACE);
+				merged.contentHash = action.contentHash;
+				action = merged;
+			}
+			latest.put(action.filename, new Entry(entry.id(), action));
+		}
+
+		int newResyncBefore = resyncBefore;
+		List<Entry> newSnapshot = new ArrayList<>();
+		for(Entry entry : latest.values()) {
+			if(entry.action().actionType == Action.Type.REMOVE) {
+				newResyncBefore = Math.max(newResyncBefore, entry.id());
+			} else {
+				newSnapshot.add(entry);
+			}
+		}
+		newSnapshot.sort(Comparator.comparingInt(Entry::id));
+
+		File tmp = new File(DIRECTORY, "snapshot.json.tmp");
+		MAPPER.writeValue(tmp, new Snapshot(cut, newResyncBefore, newSnapshot));
+		try {
+			Files.move(tmp.toPath(), SNAPSHOT.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch(AtomicMoveNotSupportedException _) {
+			Files.move(tmp.toPath(), SNAPSHOT.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		while(segments.first() < cut) {
+			Files.deleteIfExists(segmentFile(segments.pollFirst()).toPath());
+		}
+
+		snapshot = newSnapshot;
+		resyncBefore = newResyncBefore;
+		actions = new ArrayList<>(actions.subList(cut - base, actions.size()));
+		base = cut;
+		LOGGER.info("Compacted action journal: {} actions in snapshot, devices before action {} need to resync",
+				snapshot.size(), resyncBefore);
+	}
+
+	/// Loads the actions in a segment.
+	///
+	/// @return false if the end of the segment was corrupted and ignored
+	private static boolean loadSegment(int first) throws IOException {
+		File file = segmentFile(first);
+		int expected = base + actions.size();
+		if(first != expected) {
+			throw new IOException("Segment " + file.getName() + " does not start at expected action " + expected);
+		}
+
+		try(BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.isBlank()) {
+					continue;
+				}
+				Entry entry;
+				try {
+					entry = MAPPER.readValue(line, Entry.class);
+				} catch(JsonProcessingException e) {
+					LOGGER.error("Ignoring corrupted action in segment {} after action {}", file.getName(),
+							lastId(), e);
+					return false;
+				}
+				if(entry.id() != base + actions.size()) {
+					throw new IOException("Unexpected action id " + entry.id() + " in segment " + file.getName());
+				}
+				actions.add(entry.action());
+			}
+		}
+		return true;
+	}
+
+	private static File segmentFile(int first) {
+		return new File(DIRECTORY, first + ".jsonl");
+	}
+
+	/// An action along with its id, as stored in segments and in the snapshot.
+	public record Entry(int id, Action action) {}
+
+	/// Contents of the snapshot file.
+	///
+	/// @param base the id of the first action after the snapshot
+	private record Snapshot(int base, int resyncBefore, List<Entry> entries) {}
+
+	static {
+		MAPPER.registerModule(new ParameterNamesModule(JsonCreator.Mode.PROPERTIES));
+	}
+}
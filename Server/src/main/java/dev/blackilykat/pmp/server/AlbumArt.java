@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package dev.blackilykat.pmp.server;
+
+import dev.blackilykat.pmp.Globals;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.kc7bfi.jflac.FLACDecoder;
+import org.kc7bfi.jflac.metadata.Metadata;
+import org.kc7bfi.jflac.metadata.Picture;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/// Cache of album art thumbnails, extracted from the tracks' cover art once when they are added to the library so
+/// that clients can show it without downloading or decoding the tracks.
+///
+/// Thumbnails are JPEG files in [#DIRECTORY], named after the [Track#contentKey] of the track they were extracted
+/// from and their size. Tracks without usable art get an empty `.none` file instead, so they are not read
+/// again. Files no longer used by any track are deleted once the library scan is over.
+public class AlbumArt {
+	/// The directory containing the thumbnails.
+	public static final File DIRECTORY = new File(Globals.dataRoot, "art");
+	/// The sizes, in pixels, of the longest side of the thumbnails. Art smaller than a size is not scaled up.
+	public static final int[] SIZES = {64, 256, 512};
+	private static final Logger LOGGER = LogManager.getLogger(AlbumArt.class);
+	private static final ExecutorService EXTRACTOR = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "Album art extraction thread");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		return thread;
+	});
+
+	/// Creates [#DIRECTORY] and, once the library scan is over, extracts art for tracks which do not have it yet
+	/// and deletes thumbnails no track uses anymore.
+	public static void init() {
+		if(!DIRECTORY.isDirectory() && !DIRECTORY.mkdirs()) {
+			LOGGER.error("Failed to create album art directory, art will not be available");
+			return;
+		}
+		Library.EVENT_SCAN_FINISHED.register(_ -> EXTRACTOR.execute(() -> {
+			Set<String> keys = new HashSet<>();
+			for(Track track : ServerStorage.MAIN.tracks.get().values().toArray(new Track[0])) {
+				keys.add(track.contentKey());
+				extract(track);
+			}
+			collectGarbage(keys);
+		}));
+	}
+
+	/// Extracts the art of a track in the background, if it was not extracted already.
+	public static void queue(Track track) {
+		EXTRACTOR.execute(() -> extract(track));
+	}
+
+	/// Returns the thumbnail of the given size for a track, extracting it first if it was not yet.
+	///
+	/// @param size one of [#SIZES]
+	/// @return the thumbnail, or null if the track has no usable art
+	public static File get(Track track, int size) {
+		File thumbnail = fileFor(track.contentKey(), size);
+		if(thumbnail.isFile()) {
+			return thumbnail;
+		}
+		extract(track);
+		return thumbnail.isFile() ? thumbnail : null;
+	}
+
+	/// @return the smallest of the [#SIZES] at least as big as `size`, or the biggest one if there is none
+	public static int closestSize(int size) {
+		for(int available : SIZES) {
+			if(available >= size) {
+				return available;
+			}
+		}
+		return SIZES[SIZES.length - 1];
+	}
+
+	private static File fileFor(String key, int size) {
+		return new File(DIRECTORY, key + "-" + size + ".jpg");
+	}
+
+	private static File noneFileFor(String key) {
+		return new File(DIRECTORY, key + ".none");
+	}
+
+	private static synchronized void extract(Track track) {
+		String key = track.contentKey();
+		if(fileFor(key, SIZES[SIZES.length - 1]).isFile() || noneFileFor(key).isFile()) {
+			return;
+		}
+
+		try {
+			BufferedImage image = readArt(track.file);
+			if(image == null) {
+				var _ = noneFileFor(key).createNewFile();
+				return;
+			}
+			for(int size : SIZES) {
+				write(scale(image, size), fileFor(key, size));
+			}
+			LOGGER.debug("Extracted album art of {}", track.filename);
+		} catch(IOException e) {
+			// the file may have changed or been removed while reading it, in which case it is extracted again
+			LOGGER.warn("Failed to extract album art of {}", track.filename, e);
+		}
+	}
+
+	/// @return the front cover of the track, or its first picture if it has none, or null if there are no pictures
+	/// or they cannot be decoded
+	private static BufferedImage readArt(File file) throws IOException {
+		Picture art = null;
+		try(InputStream is = new FileInputStream(file)) {
+			for(Metadata metadatum : new FLACDecoder(is).readMetadata()) {
+				if(!(metadatum instanceof Picture picture)) {
+					continue;
+				}
+				if(picture.getPictureType() == Picture.PictureType.Cover_front) {
+					art = picture;
+					break;
+				}
+				if(art == null) {
+					art = picture;
+				}
+			}
+		}
+		if(art == null) {
+			return null;
+		}
+		return ImageIO.read(new ByteArrayInputStream(art.getImage()));
+	}
+
+	/// Scales the image so that its longest side is at most `size`, converting it to RGB as JPEG has no alpha.
+	private static BufferedImage scale(BufferedImage image, int size) {
+		double factor = Math.min(1, (double) size / Math.max(image.getWidth(), image.getHeight()));
+		int width = Math.max(1, (int) Math.round(image.getWidth() * factor));
+		int height = Math.max(1, (int) Math.round(image.getHeight() * factor));
+
+		BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = scaled.createGraphics();
+		try {
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+			graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			graphics.drawImage(image, 0, 0, width, height, null);
+		} finally {
+			graphics.dispose();
+		}
+		return scaled;
+	}
+
+	private static void write(BufferedImage image, File target) throws IOException {
+		File tmp = new File(DIRECTORY, target.getName() + ".tmp");
+		if(!ImageIO.write(image, "jpg", tmp)) {
+			throw new IOException("No JPEG writer available");
+		}
+		try {
+			Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch(AtomicMoveNotSupportedException _) {
+			Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/// Deletes all files in [#DIRECTORY] which do not belong to any of the given keys.
+	private static synchronized void collectGarbage(Set<String> keys) {
+		File[] files = DIRECTORY.listFiles();
+		if(files == null) {
+			return;
+		}
+		int deleted = 0;
+		for(File file : files) {
+			String name = file.getName();
+			int end = name.endsWith(".none") ? name.length() - ".none".length() : name.lastIndexOf('-');
+			if(end > 0 && keys.contains(name.substring(0, end))) {
+				continue;
+			}
+			if(file.delete()) {
+				deleted++;
+			}
+		}
+		if(deleted > 0) {
+			LOGGER.info("Deleted {} unused album art files", deleted);
+		}
+	}
+}
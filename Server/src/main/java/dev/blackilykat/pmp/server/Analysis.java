@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package dev.blackilykat.pmp.server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.kc7bfi.jflac.FLACDecoder;
+import org.kc7bfi.jflac.PCMProcessor;
+import org.kc7bfi.jflac.metadata.StreamInfo;
+import org.kc7bfi.jflac.util.ByteData;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/// Background analysis of the audio in the library, computing each track's loudness and a summary of its waveform
+/// so that clients can normalize volume and preview tracks without decoding them.
+///
+/// Tracks are decoded once by a pool of [ServerStorage.Main#analysisThreads] low priority threads. Results are kept
+/// in [ServerStorage.Main#analyses] by [Track#contentKey], so tracks analyzed before a restart are not analyzed
+/// again, while those which were not are queued again once the library scan is over.
+///
+/// Loudness is measured as specified in ITU-R BS.1770-4, with gating as in EBU R128.
+public class Analysis {
+	/// The amount of bytes in [Result#waveform].
+	public static final int WAVEFORM_LENGTH = 256;
+	/// The loudness, in LUFS, tracks are normalized to by [Result#replayGain], as in ReplayGain 2.0.
+	public static final double REFERENCE_LOUDNESS = -18;
+	private static final Logger LOGGER = LogManager.getLogger(Analysis.class);
+	private static final double ABSOLUTE_GATE = -70;
+	private static final double RELATIVE_GATE = -10;
+	/// Keys of the tracks queued for analysis, so that they are not queued twice.
+	private static final Set<String> QUEUED = ConcurrentHashMap.newKeySet();
+	private static ExecutorService pool = null;
+
+	/// Starts the analysis pool and, once the library scan is over, queues all tracks which were not analyzed and
+	/// forgets results no track uses anymore.
+	public static void init() {
+		int threads = Math.max(1, ServerStorage.MAIN.analysisThreads.get());
+		AtomicInteger count = new AtomicInteger();
+		pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "Analysis thread " + count.incrementAndGet());
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+
+		Library.EVENT_SCAN_FINISHED.register(_ -> {
+			Set<String> keys = new HashSet<>();
+			for(Track track : ServerStorage.MAIN.tracks.get().values().toArray(new Track[0])) {
+				keys.add(track.contentKey());
+				queue(track);
+			}
+			for(String key : ServerStorage.MAIN.analyses.get().keySet().toArray(new String[0])) {
+				if(!keys.contains(key)) {
+					ServerStorage.MAIN.analyses.remove(key);
+				}
+			}
+			LOGGER.info("{} tracks queued for analysis", QUEUED.size());
+		});
+	}
+
+	/// Queues a track for analysis, unless it was already analyzed or queued.
+	public static void queue(Track track) {
+		String key = track.contentKey();
+		if(pool == null || ServerStorage.MAIN.analyses.containsKey(key) || !QUEUED.add(key)) {
+			return;
+		}
+		pool.execute(() -> {
+			try {
+				if(!ServerStorage.MAIN.analyses.containsKey(key)) {
+					ServerStorage.MAIN.analyses.put(key, analyze(track));
+					LOGGER.debug("Analyzed {}", track.filename);
+				}
+			} catch(IOException | RuntimeException e) {
+				// the file may have changed or been removed while reading it, in which case it is queued again
+				LOGGER.warn("Failed to analyze {}", track.filename, e);
+			} finally {
+				QUEUED.remove(key);
+			}
+		});
+	}
+
+	/// @return the analysis of the track, or null if it was not analyzed yet
+	public static Result get(Track track) {
+		return ServerStorage.MAIN.analyses.get(track.contentKey());
+	}
+
+	private static Result analyze(Track track) throws IOException {
+		try(InputStream is = new BufferedInputStream(new FileInputStream(track.file))) {
+			FLACDecoder decoder = new FLACDecoder(is);
+			Analyzer analyzer = new Analyzer();
+			decoder.addPCMProcessor(analyzer);
+			decoder.decode();
+			return analyzer.result();
+		}
+	}
+
+	/// The result of analyzing a track.
+	///
+	/// @param loudness the integrated loudness in LUFS, or null if the track is silent
+	/// @param replayGain the gain in dB bringing the track to [#REFERENCE_LOUDNESS], or null if the track is silent
+	/// @param peak the highest absolute sample value, from 0 to 1
+	/// @param waveform the highest absolute sample value, from 0 to 255, in each of [#WAVEFORM_LENGTH] equally long
+	///                 parts of the track. Shorter for tracks shorter than [#WAVEFORM_LENGTH] tenths of a second.
+	public record Result(Double loudness, Double replayGain, double peak, byte[] waveform) {}
+
+	/// Computes a [Result] from the decoded audio, one 100 ms block at a time.
+	private static class Analyzer implements PCMProcessor {
+		private int channels;
+		private int bytesPerSample;
+		private double scale;
+		private double[] weights;
+		private Filter[] shelves;
+		private Filter[] highPasses;
+		private int blockLength;
+
+		private int blockPosition = 0;
+		private double blockSum = 0;
+		private double blockPeak = 0;
+		private double peak = 0;
+		/// Mean square of each finished block, weighted by channel.
+		private double[] blockPowers = new double[1024];
+		/// Peak of each finished block.
+		private double[] blockPeaks = new double[1024];
+		private int blocks = 0;
+
+		@Override
+		public void processStreamInfo(StreamInfo streamInfo) {
+			int sampleRate = streamInfo.getSampleRate();
+			channels = streamInfo.getChannels();
+			bytesPerSample = (streamInfo.getBitsPerSample() + 7) / 8;
+			scale = 1.0 / (1L << (streamInfo.getBitsPerSample() - 1));
+			blockLength = Math.max(1, sampleRate / 10);
+
+			weights = new double[channels];
+			for(int i = 0; i < channels; i++) {
+				// FLAC's channel order is L R C LFE Ls Rs: surround channels weigh more and LFE is left out
+				weights[i] = switch(channels) {
+					case 5 -> i >= 3 ? 1.41 : 1;
+					case 6 -> i == 3 ? 0 : i >= 4 ? 1.41 : 1;
+					default -> 1;
+				};
+			}
+
+			// K-weighting, as a high shelf followed by a high pass, with coefficients for any sample rate
+			shelves = new Filter[channels];
+			highPasses = new Filter[channels];
+			for(int i = 0; i < channels; i++) {
+				double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+				double q = 0.7071752369554196;
+				double vh = Math.pow(10, 3.999843853973347 / 20);
+				double vb = Math.pow(vh, 0.4996667741545416);
+				double a0 = 1 + k / q + k * k;
+				shelves[i] = new Filter((vh + vb * k / q + k * k) / a0, 2 * (k * k - vh) / a0,
+						(vh - vb * k / q + k * k) / a0, 2 * (k * k - 1) / a0, (1 - k / q + k * k) / a0);
+
+				k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+				q = 0.5003270373238773;
+				a0 = 1 + k / q + k * k;
+				highPasses[i] = new Filter(1, -2, 1, 2 * (k * k - 1) / a0, (1 - k / q + k * k) / a0);
+			}
+		}
+
+		@Override
+		public void processPCM(ByteData pcm) {
+			byte[] data = pcm.getData();
+			int frameBytes = bytesPerSample * channels;
+			for(int offset = 0; offset + frameBytes <= pcm.getLen(); offset += frameBytes) {
+				for(int channel = 0; channel < channels; channel++) {
+					double sample = sample(data, offset + channel * bytesPerSample) * scale;
+					blockPeak = Math.max(blockPeak, Math.abs(sample));
+					if(weights[channel] != 0) {
+						double filtered = highPasses[channel].apply(shelves[channel].apply(sample));
+						blockSum += weights[channel] * filtered * filtered;
+					}
+				}
+				if(++blockPosition == blockLength) {
+					finishBlock();
+				}
+			}
+		}
+
+		/// Reads a sample as written by [FLACDecoder]: unsigned if 8 bit, signed little endian otherwise.
+		private int sample(byte[] data, int offset) {
+			if(bytesPerSample == 1) {
+				return (data[offset] & 0xFF) - 128;
+			}
+			int value = data[offset + bytesPerSample - 1];
+			for(int i = bytesPerSample - 2; i >= 0; i--) {
+				value = (value << 8) | (data[offset + i] & 0xFF);
+			}
+			return value;
+		}
+
+		private void finishBlock() {
+			if(blocks == blockPowers.length) {
+				blockPowers = Arrays.copyOf(blockPowers, blocks * 2);
+				blockPeaks = Arrays.copyOf(blockPeaks, blocks * 2);
+			}
+			blockPowers[blocks] = blockSum / blockPosition;
+			blockPeaks[blocks] = blockPeak;
+			blocks++;
+			peak = Math.max(peak, blockPeak);
+			blockPosition = 0;
+			blockSum = 0;
+			blockPeak = 0;
+		}
+
+		private Result result() {
+			if(blockPosition > 0) {
+				finishBlock();
+			}
+
+			// gating blocks are 400 ms long and overlap by 75%, so each is made of 4 consecutive 100 ms blocks
+			int gatingBlocks = Math.max(0, blocks - 3);
+			double[] powers = new double[gatingBlocks];
+			double absoluteSum = 0;
+			int absoluteCount = 0;
+			for(int i = 0; i < gatingBlocks; i++) {
+				powers[i] = (blockPowers[i] + blockPowers[i + 1] + blockPowers[i + 2] + blockPowers[i + 3]) / 4;
+				if(loudness(powers[i]) > ABSOLUTE_GATE) {
+					absoluteSum += powers[i];
+					absoluteCount++;
+				}
+			}
+
+			Double loudness = null;
+			Double replayGain = null;
+			if(absoluteCount > 0) {
+				double relativeGate = loudness(absoluteSum / absoluteCount) + RELATIVE_GATE;
+				double sum = 0;
+				int count = 0;
+				for(double power : powers) {
+					if(loudness(power) > ABSOLUTE_GATE && loudness(power) > relativeGate) {
+						sum += power;
+						count++;
+					}
+				}
+				loudness = loudness(sum / count);
+				replayGain = REFERENCE_LOUDNESS - loudness;
+			}
+
+			int length = Math.min(WAVEFORM_LENGTH, blocks);
+			byte[] waveform = new byte[length];
+			for(int i = 0; i < length; i++) {
+				double max = 0;
+				for(int j = i * blocks / length; j < (i + 1) * blocks / length; j++) {
+					max = Math.max(max, blockPeaks[j]);
+				}
+				waveform[i] = (byte) Math.round(Math.min(1, max) * 255);
+			}
+
+			return new Result(loudness, replayGain, Math.min(1, peak), waveform);
+		}
+
+		private static double loudness(double power) {
+			return -0.691 + 10 * Math.log10(power);
+		}
+	}
+
+	/// A biquad filter in direct form I.
+	private static class Filter {
+		private final double b0, b1, b2, a1, a2;
+		private double x1 = 0, x2 = 0, y1 = 0, y2 = 0;
+
+		private Filter(double b0, double b1, double b2, double a1, double a2) {
+			this.b0 = b0;
+			this.b1 = b1;
+			this.b2 = b2;
+			this.a1 = a1;
+			this.a2 = a2;
+		}
+
+		private double apply(double x) {
+			double y = b0 * x + b1 * x1 + b2 * x2 - a1 * y1 - a2 * y2;
+			x2 = x1;
+			x1 = x;
+			y2 = y1;
+			y1 = y;
+			return y;
+		}
+	}
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.pmp.server;
+
+import dev.blackilykat.pmp.util.ContentHash;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+/// Content-addressed storage of track files in [#BLOBS], enabled through
+/// [ServerStorage.Main#contentAddressedStorage].
+///
+/// Each distinct file content is stored once, named after its [ContentHash]. Tracks in [Library#LIBRARY] are hard
+/// links to their blob, so the same contents under different filenames take space once, and a track which was
+/// removed can be added back without transferring it again as long as its blob has not been garbage collected.
+///
+/// Blobs not used by any track are deleted by [#collectGarbage] once they have stayed unused for at least
+/// {@value #GC_INTERVAL_MS} milliseconds.
+///
+/// Since a blob and the tracks linked to it share the same inode, neither may ever be written in place: any change
+/// must be written to a new file which is then moved over the old one, otherwise it would silently change every
+/// other track with the same contents and invalidate the blob's hash.
+public class BlobStore {
+	/// The directory containing the blobs, in subdirectories named after the first two characters of the hash.
+	public static final File BLOBS = new File(Library.LIBRARY, ".blobs");
+	private static final Logger LOGGER = LogManager.getLogger(BlobStore.class);
+	private static final long GC_INTERVAL_MS = 24 * 60 * 60 * 1000;
+	private static final Timer GC_TIMER = new Timer("Blob store garbage collection timer", true);
+
+	/// Filenames of the cached tracks with each content hash, kept up to date through [#index].
+	private static final Map<String, Set<String>> TRACKS_BY_HASH = new ConcurrentHashMap<>();
+	/// Blobs whose contents were read and matched their hash, along with what was read. A blob is trusted to still
+	/// match as long as its size and modification time are the same.
+	private static final Map<String, Verified> VERIFIED = new ConcurrentHashMap<>();
+
+	/// Blobs which were unused in the last [#collectGarbage] call.
+	private static Set<String> unusedBlobs = new HashSet<>();
+
+	/// Indexes the cached tracks by content hash, then schedules [#collectGarbage] to run periodically once the
+	/// library scan is over, so that all tracks in use are known. Garbage is not collected if the store is not
+	/// enabled.
+	public static void init() {
+		for(Track track : ServerStorage.MAIN.tracks.get().values().toArray(new Track[0])) {
+			index(track.filename, null, track);
+		}
+		if(!isEnabled()) {
+			return;
+		}
+		LOGGER.info("Content-addressed storage enabled");
+		Library.EVENT_SCAN_FINISHED.register(_ -> {
+			GC_TIMER.scheduleAtFixedRate(new TimerTask() {
+				@Override
+				public void run() {
+					collectGarbage();
+				}
+			}, 0, GC_INTERVAL_MS);
+		});
+	}
+
+	/// @see ServerStorage.Main#contentAddressedStorage
+	public static boolean isEnabled() {
+		return ServerStorage.MAIN.contentAddressedStorage.get();
+	}
+
+	/// Returns the location of the blob with the given hash, whether or not it exists.
+	///
+	/// @throws IllegalArgumentException if the hash is not [ContentHash#isValid]
+	public static Path pathFor(String hash) {
+		if(!ContentHash.isValid(hash)) {
+			throw new IllegalArgumentException("Invalid content hash");
+		}
+		return BLOBS.toPath().resolve(hash.substring(0, 2)).resolve(hash);
+	}
+
+	/// Updates which tracks have which content hash after the track cached for `filename` changed. Called whenever
+	/// [ServerStorage.Main#tracks] is modified.
+	///
+	/// @param previous the track previously cached for the filename, or null
+	/// @param track the track now cached for the filename, or null if it was removed
+	public static void index(String filename, Track previous, Track track) {
+		if(previous != null && previous.contentHash != null) {
+			TRACKS_BY_HASH.computeIfPresent(previous.contentHash, (_, filenames) -> {
+				filenames.remove(filename);
+				return filenames.isEmpty() ? null : filenames;
+			});
+		}
+		if(track != null && track.contentHash != null) {
+			TRACKS_BY_HASH.compute(track.contentHash, (_, filenames) -> {
+				if(filenames == null) {
+					filenames = ConcurrentHashMap.newKeySet();
+				}
+				filenames.add(filename);
+				return filenames;
+			});
+		}
+	}
+
+	/// Moves `file` into the store, or deletes it if an identical blob already exists, then makes `target` a link
+	/// to the blob, replacing it if it exists.
+	///
+	/// `target` ends up sharing its inode with the blob, so it must never be written in place afterward (see
+	/// [BlobStore]).
+	///
+	/// @param hash the [ContentHash] of `file`, which is trusted
+	public static void store(Path file, String hash, Path target) throws IOException {
+		Path blob = pathFor(hash);
+		synchronized(BlobStore.class) {
+			if(Files.exists(blob)) {
+				Files.delete(file);
+			} else {
+				Files.createDirectories(blob.getParent());
+				move(file, blob);
+			}
+			unusedBlobs.remove(hash);
+		}
+		link(blob, target);
+	}
+
+	/// Makes `target` a link to the blob with the given hash, replacing it if it exists.
+	///
+	/// If there is no such blob, a track with the same hash is looked up in the library (for example, one received
+	/// before the store was enabled) and added to the store.
+	///
+	/// The contents of the blob are read to make sure they still match the hash the first time it is linked, and
+	/// again whenever its size or modification time changed since, as blobs share their contents with the tracks
+	/// linked to them.
+	///
+	/// @return a track read from the blob's contents, or null if there is no valid blob with the given hash
+	public static Track linkExisting(String hash, Path target) throws IOException {
+		Path blob = pathFor(hash);
+		Track read;
+		synchronized(BlobStore.class) {
+			if(!Files.exists(blob)) {
+				File source = findTrackFile(hash);
+				if(source == null) {
+					return null;
+				}
+				Files.createDirectories(blob.getParent());
+				try {
+					Files.createLink(blob, source.toPath());
+				} catch(UnsupportedOperationException | FileSystemException e) {
+					LOGGER.warn("Could not link {} into the blob store, copying it", source.getName(), e);
+					Files.copy(source.toPath(), blob);
+				}
+			}
+
+			read = verify(hash, blob);
+			if(read == null) {
+				return null;
+			}
+			unusedBlobs.remove(hash);
+		}
+
+		link(blob, target);
+		return read;
+	}
+
+	/// Deletes blobs which are not used by any track and were also unused in the previous call.
+	public static void collectGarbage() {
+		Set<String> used = new HashSet<>(TRACKS_BY_HASH.keySet());
+
+		synchronized(BlobStore.class) {
+			Set<String> unused = new HashSet<>();
+			int deleted = 0;
+			try(DirectoryStream<Path> prefixes = Files.newDirectoryStream(BLOBS.toPath())) {
+				for(Path prefix : prefixes) {
+					if(!Files.isDirectory(prefix)) {
+						continue;
+					}
+					try(DirectoryStream<Path> blobs = Files.newDirectoryStream(prefix)) {
+						for(Path blob : blobs) {
+							String hash = blob.getFileName().toString();
+							if(used.contains(hash)) {
+								continue;
+							}
+							if(!unusedBlobs.contains(hash)) {
+								unused.add(hash);
+								continue;
+							}
+							try {
+								Files.delete(blob);
+								VERIFIED.remove(hash);
+								deleted++;
+							} catch(IOException e) {
+								LOGGER.error("Failed to delete unused blob {}", hash, e);
+							}
+						}
+					}
+				}
+			} catch(IOException e) {
+				if(BLOBS.exists()) {
+					LOGGER.error("Failed to collect blob store garbage", e);
+				}
+				return;
+			}
+			unusedBlobs = unused;
+			LOGGER.info("Blob store garbage collection: deleted {} blobs, {} more are unused", deleted,
+					unused.size());
+		}
+	}
+
+	/// Returns an existing library file with the given content hash, or null if there is none.
+	private static File findTrackFile(String hash) {
+		Set<String> filenames = TRACKS_BY_HASH.get(hash);
+		if(filenames == null) {
+			return null;
+		}
+		for(String filename : filenames) {
+			File file = LibraryLayout.fileFor(filename);
+			if(file.isFile()) {
+				return file;
+			}
+		}
+		return null;
+	}
+
+	/// Returns the track read from `blob` if it matches its hash, reading it again only if it changed since it was
+	/// last verified. Deletes the blob and returns null if it does not match.
+	private static Track verify(String hash, Path blob) throws IOException {
+		long size = Files.size(blob);
+		long lastModified = Files.getLastModifiedTime(blob).toMillis();
+		Verified verified = VERIFIED.get(hash);
+		if(verified != null && verified.size == size && verified.lastModified == lastModified) {
+			return verified.track;
+		}
+		VERIFIED.remove(hash);
+
+		Track read;
+		try {
+			read = new Track(blob.toFile());
+		} catch(IOException | IllegalStateException e) {
+			LOGGER.error("Blob {} is no longer a valid track, deleting it", hash, e);
+			Files.deleteIfExists(blob);
+			return null;
+		}
+		if(!hash.equals(read.contentHash)) {
+			LOGGER.error("Blob {} was modified, deleting it", hash);
+			Files.delete(blob);
+			return null;
+		}
+		VERIFIED.put(hash, new Verified(size, lastModified, read));
+		return read;
+	}
+
+	/// Makes `target` a hard link to `blob` through a temporary file, so that the target is replaced atomically.
+	/// Falls back to copying the blob if the filesystem does not support hard links.
+	private static void link(Path blob, Path target) throws IOException {
+		Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+		Files.deleteIfExists(tmp);
+		try {
+			Files.createLink(tmp, blob);
+		} catch(FileAlreadyExistsException e) {
+			throw e;
+		} catch(UnsupportedOperationException | FileSystemException e) {
+			LOGGER.warn("Could not create hard link to blob, copying it", e);
+			Files.copy(blob, tmp);
+		}
+		move(tmp, target);
+	}
+
+	private static void move(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch(AtomicMoveNotSupportedException _) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private record Verified(long size, long lastModified, Track track) {}
+}
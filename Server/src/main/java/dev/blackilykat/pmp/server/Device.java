@@ -19,10 +19,14 @@ package dev.blackilykat.pmp.server;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import dev.blackilykat.pmp.PMPConnection;
 import dev.blackilykat.pmp.messages.Message;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 
@@ -55,6 +59,10 @@ public class Device {
 
 	private static final Logger LOGGER = LogManager.getLogger(Device.class);
 
+	/// Generates tokens. A DRBG is seeded once and then never blocks waiting for entropy, so that many devices
+	/// logging in at once do not have to wait for each other.
+	private static final SecureRandom TOKEN_RANDOM = newTokenRandom();
+
 	/// Numerical unique identifier used in the protocol to refer to a device.
 	public final int id;
 
@@ -85,34 +93,52 @@ public class Device {
 		return token;
 	}
 
+	/// Checks whether the given token is this device's in constant time, so that the time taken does not reveal how
+	/// much of the token is correct.
+	public boolean hasToken(String token) {
+		if(this.token == null || token == null) {
+			return false;
+		}
+		return MessageDigest.isEqual(this.token.getBytes(StandardCharsets.UTF_8),
+				token.getBytes(StandardCharsets.UTF_8));
+	}
+
 	public ClientConnection getClientConnection() {
 		return clientConnection;
 	}
 
-	/// Set [#clientConnection] and register a listener to set it back to null when disconnected.
+	/// Set [#clientConnection] and register a listener to set it back to null when disconnected. The device is
+	/// considered online by [DeviceRegistry] until then.
 	public void setClientConnection(ClientConnection clientConnection) {
 		this.clientConnection = clientConnection;
+		DeviceRegistry.setOnline(this, true);
 		clientConnection.eventDisconnected.register(_ -> {
 			this.clientConnection = null;
+			DeviceRegistry.setOnline(this, false);
 		});
 	}
 
 	/// Randomly generate and set a new token for this device.
 	public void rerollToken() {
+		char[] token = new char[TOKEN_LENGTH];
+		for(int i = 0; i < TOKEN_LENGTH; i++) {
+			token[i] = TOKEN_CHARSET.charAt(TOKEN_RANDOM.nextInt(TOKEN_CHARSET.length()));
+		}
+		this.token = new String(token);
+		ServerStorage.SENSITIVE.markDirty();
+	}
+
+	private static SecureRandom newTokenRandom() {
+		SecureRandom random;
 		try {
-			SecureRandom random = SecureRandom.getInstanceStrong();
-			char[] token = new char[TOKEN_LENGTH];
-			for(int i = 0; i < TOKEN_LENGTH; i++) {
-				token[i] = TOKEN_CHARSET.charAt(random.nextInt(TOKEN_CHARSET.length()));
-			}
-			this.token = new String(token);
-			ServerStorage.SENSITIVE.markDirty();
+			random = SecureRandom.getInstance("DRBG");
 		} catch(NoSuchAlgorithmException e) {
-			String msg = "There are no SecureRandom algorithms supported by the JVM. This should never happen. Please "
-					+ "send this log to the developer.";
-			LOGGER.fatal(msg, e);
-			System.exit(1);
+			LOGGER.warn("DRBG is not available, using the default SecureRandom for tokens", e);
+			random = new SecureRandom();
 		}
+		// seed now rather than during the first login
+		random.nextInt();
+		return random;
 	}
 
 	/// Send a message to all connections which have logged in.
@@ -121,8 +147,19 @@ public class Device {
 	}
 
 	/// Send a message to all connections which have logged in, except the one logged in as `ignoredDevice`.
+	///
+	/// The message is serialized once on the calling thread and the same serialized form is sent to every
+	/// connection.
 	public static void broadcastExcept(Message message, Device ignoredDevice) {
-		for(Device device : ServerStorage.SENSITIVE.devices.get()) {
+		PMPConnection.EncodedMessage encoded;
+		try {
+			encoded = PMPConnection.EncodedMessage.encode(message);
+		} catch(JsonProcessingException e) {
+			LOGGER.error("Failed to serialize {} for broadcast", message.getClass().getSimpleName(), e);
+			return;
+		}
+
+		for(Device device : DeviceRegistry.online()) {
 			if(device == ignoredDevice) {
 				continue;
 			}
@@ -131,7 +168,7 @@ public class Device {
 				continue;
 			}
 
-			connection.send(message);
+			connection.send(encoded);
 		}
 	}
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package dev.blackilykat.pmp.server;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/// In-memory index of [ServerStorage.Sensitive#devices], allowing devices to be looked up by id and only the
+/// currently connected ones to be iterated, without scanning every device that ever logged in.
+///
+/// All devices must be added through [#register] so that the index stays consistent with the storage.
+public class DeviceRegistry {
+	/// All known devices by their [Device#id].
+	private static final Map<Integer, Device> DEVICES = new ConcurrentHashMap<>();
+	/// Devices which currently have a [Device#getClientConnection].
+	private static final Set<Device> ONLINE = ConcurrentHashMap.newKeySet();
+
+	/// Indexes the devices loaded from storage. Must be called after [ServerStorage#load].
+	public static void init() {
+		for(Device device : ServerStorage.SENSITIVE.devices.get()) {
+			DEVICES.put(device.id, device);
+		}
+	}
+
+	/// Saves a new device to storage and indexes it.
+	public static void register(Device device) {
+		ServerStorage.SENSITIVE.devices.add(device);
+		DEVICES.put(device.id, device);
+	}
+
+	/// @return the device with the given id, or null if there is none
+	public static Device get(int id) {
+		return DEVICES.get(id);
+	}
+
+	/// @return an unmodifiable live view of the devices which are currently connected
+	public static Set<Device> online() {
+		return Collections.unmodifiableSet(ONLINE);
+	}
+
+	static void setOnline(Device device, boolean online) {
+		if(online) {
+			ONLINE.add(device);
+		} else {
+			ONLINE.remove(device);
+		}
+	}
+}
@@ -19,34 +19,81 @@ package dev.blackilykat.pmp.server;
 
 import dev.blackilykat.pmp.Action;
 import dev.blackilykat.pmp.event.EventSource;
+import dev.blackilykat.pmp.event.RetroactiveEventSource;
+import dev.blackilykat.pmp.messages.ActionMessage;
 import dev.blackilykat.pmp.messages.ActionResponse;
+import dev.blackilykat.pmp.util.ContentHash;
+import dev.blackilykat.pmp.util.FLACUtil;
+import dev.blackilykat.pmp.util.Pair;
+import dev.blackilykat.pmp.util.TeeInputStream;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.kc7bfi.jflac.FLACDecoder;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Checksum;
 
 /// Server-side library management.
 public class Library {
 	/// Emitted when an action has been completed successfully.
 	public static final EventSource<Void> EVENT_SUCCESSFUL_ACTION = new EventSource<>();
+	/// Emitted once the initial scan of the library started in [#init] is over, with the amount of tracks in the
+	/// library.
+	public static final RetroactiveEventSource<Integer> EVENT_SCAN_FINISHED = new RetroactiveEventSource<>();
 	/// The directory containing the tracks.
 	public static final File LIBRARY = new File("library");
 	private static final Logger LOGGER = LogManager.getLogger(Library.class);
 	/// The library action which has been [ActionResponse.Type#APPROVED] but which the server is still
 	/// waiting for the client to [ActionResponse.Type#COMPLETED].
 	private static final AtomicReference<PendingAction> PENDING_ACTION = new AtomicReference<>(null);
+	/// How often, in milliseconds, [#reconcileAll] logs its progress.
+	private static final long SCAN_PROGRESS_INTERVAL_MS = 5_000;
+	/// Held while a track's file and its cache entry are updated together, so that [#reconcile] never sees one
+	/// without the other.
+	private static final Object FILES_LOCK = new Object();
 
 	/// Initializes the library:
 	/// - Creates the [#LIBRARY] directory if it does not exist;
-	/// - Checks that cache matches the files in the library and, if not, updates it.
+	/// - Creates any missing [LibraryLayout] shard directory;
+	/// - Starts watching the directory for external changes (see [LibraryWatcher]);
+	/// - Initializes the [BlobStore] and [ResumableUploads];
+	/// - Starts a background thread checking that cache matches the files in the library and, if not, updating it
+	///   (see [#reconcileAll]).
+	///
+	/// Does not wait for the scan to finish: tracks which are already cached are available immediately.
+	///
+	/// @see #EVENT_SCAN_FINISHED
 	public static void init() {
 		LOGGER.info("Initializing library...");
 		if(LIBRARY.exists() && !LIBRARY.isDirectory()) {
@@ -56,61 +103,448 @@ public class Library {
 		if(!LIBRARY.exists()) {
 			var _ = LIBRARY.mkdirs();
 		}
+		LibraryLayout.init();
+		SearchIndex.init();
+		SelectionIndex.init();
+		AlbumArt.init();
+		Analysis.init();
+		Transcoder.init();
+
+		// before scanning, so that no change happening during the scan goes unnoticed
+		LibraryWatcher.init();
+		BlobStore.init();
+		ResumableUploads.init();
+
+		Thread scanThread = new Thread(() -> {
+			reconcileAll();
+			EVENT_SCAN_FINISHED.call(ServerStorage.MAIN.tracks.get().size());
+		}, "Library scan thread");
+		scanThread.setDaemon(true);
+		scanThread.start();
+	}
+
+	/// Checks that cache matches all files in the library and, if not, updates it through [#reconcile].
+	///
+	/// The directory is streamed rather than listed all at once, and tracks which need to be read are handed to a
+	/// bounded pool with one worker per core. When the pool is saturated, the calling thread reads tracks itself
+	/// rather than listing further files.
+	///
+	/// Files which are not cached are only read once all files are listed, so that those with the same contents as a
+	/// cached track whose file no longer exists are recognized as renamed (see [#reconcileRenamed]). Once all files
+	/// are checked, cached tracks whose file still does not exist are removed.
+	public static void reconcileAll() {
+		long start = System.currentTimeMillis();
+		int threads = Runtime.getRuntime().availableProcessors();
+		AtomicInteger workerCount = new AtomicInteger(0);
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(threads * 4), r -> {
+			Thread thread = new Thread(r, "Library scan worker " + workerCount.incrementAndGet());
+			thread.setDaemon(true);
+			thread.setPriority(Thread.NORM_PRIORITY - 1);
+			return thread;
+		}, new ThreadPoolExecutor.CallerRunsPolicy());
+
+		Set<String> found = new HashSet<>();
+		List<String> uncached = new ArrayList<>();
+		AtomicInteger toRead = new AtomicInteger(0);
+		AtomicInteger readCount = new AtomicInteger(0);
+		AtomicInteger changedCount = new AtomicInteger(0);
+		AtomicLong lastProgressLog = new AtomicLong(start);
+		Consumer<Callable<Boolean>> read = task -> {
+			toRead.incrementAndGet();
+			executor.execute(() -> {
+				try {
+					if(task.call()) {
+						changedCount.incrementAndGet();
+					}
+				} catch(Exception e) {
+					LOGGER.error("Unexpected error while scanning library", e);
+				}
+
+				int readSoFar = readCount.incrementAndGet();
+				long now = System.currentTimeMillis();
+				long last = lastProgressLog.get();
+				if(now - last >= SCAN_PROGRESS_INTERVAL_MS && lastProgressLog.compareAndSet(last, now)) {
+					LOGGER.info("Library scan: read {}/{} tracks so far ({} found)", readSoFar, toRead.get(),
+							found.size());
+				}
+			});
+		};
+
+		LOGGER.info("Scanning library with {} threads...", threads);
+		for(File directory : LibraryLayout.directories()) {
+			try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath())) {
+				for(Path path : stream) {
+					File file = path.toFile();
+					String filename = file.getName();
+					if(isIgnoredFilename(filename) || file.isDirectory()) {
+						continue;
+					}
+					if(!file.equals(LibraryLayout.fileFor(filename))) {
+						LOGGER.warn("{} is not where the library layout expects it, ignoring it. Start the server "
+								+ "with --shard-library to move it", file);
+						continue;
+					}
+					found.add(filename);
+
+					Track cached = ServerStorage.MAIN.tracks.get(filename);
+					if(cached == null) {
+						// might be a renamed track, which can only be known once all files are listed
+						uncached.add(filename);
+						continue;
+					}
+					// tracks cached before content hashes were introduced are read again to calculate theirs
+					if(cached.lastModified == file.lastModified() && cached.contentHash != null) {
+						continue;
+					}
+
+					read.accept(() -> reconcile(filename));
+				}
+			} catch(IOException e) {
+				LOGGER.error("Failed to read library", e);
+				executor.shutdownNow();
+				return;
+			}
+		}
+
+		// content hash -> filenames of cached tracks whose file no longer exists. Tracks cached without a content
+		// hash are left out, as their contents are gone and a rename could not be told apart from a different file
+		Map<String, Set<String>> vanished = new ConcurrentHashMap<>();
+		for(Track track : ServerStorage.MAIN.tracks.get().values()) {
+			if(!found.contains(track.filename) && track.contentHash != null) {
+				vanished.computeIfAbsent(track.contentHash, _ -> ConcurrentHashMap.newKeySet()).add(track.filename);
+			}
+		}
+		for(String filename : uncached) {
+			read.accept(() -> vanished.isEmpty() ? reconcile(filename) : reconcileRenamed(filename, vanished));
+		}
 
+		executor.shutdown();
 		try {
-			File[] filesInLibraryDir = LIBRARY.listFiles();
-			assert filesInLibraryDir != null;
-			int cachedCount = 0;
-			for(File file : filesInLibraryDir) {
-				if(!ServerStorage.MAIN.tracks.containsKey(file.getName())) {
-					LOGGER.warn("Track {} not cached", file.getName());
-					ServerStorage.MAIN.tracks.put(file.getName(), new Track(file));
-				} else if(ServerStorage.MAIN.tracks.get(file.getName()).lastModified != file.lastModified()) {
-					LOGGER.warn("Track {} had outdated cache", file.getName());
-					ServerStorage.MAIN.tracks.put(file.getName(), new Track(file));
-				} else {
-					cachedCount++;
+			//noinspection ResultOfMethodCallIgnored
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		} catch(InterruptedException e) {
+			LOGGER.error("Interrupted while waiting for library scan to finish", e);
+			executor.shutdownNow();
+			return;
+		}
+
+		for(String filename : ServerStorage.MAIN.tracks.get().keySet().toArray(new String[0])) {
+			if(!found.contains(filename) && reconcile(filename)) {
+				changedCount.incrementAndGet();
+			}
+		}
+
+		LOGGER.info("Library scan finished in {} ms: {} tracks, {} read, {} changed externally",
+				System.currentTimeMillis() - start, found.size(), readCount.get(), changedCount.get());
+	}
+
+	/// Brings the cache of the track with the given filename up to date with its file, [#recordAction]ing an
+	/// [Action.Type#ADD], [Action.Type#REPLACE] or [Action.Type#REMOVE] if they differ. Used to notice changes made
+	/// to the library outside of PMP.
+	///
+	/// Files which cannot be read as FLAC are left out of the cache, and are looked at again the next time they
+	/// change. If the file or the cache change while the track is being read, nothing happens, as the change that
+	/// caused it will lead to another call.
+	///
+	/// @return whether an action was recorded
+	public static boolean reconcile(String filename) {
+		File file = LibraryLayout.fileFor(filename);
+		Track cached = ServerStorage.MAIN.tracks.get(filename);
+
+		if(!file.isFile()) {
+			if(cached == null) {
+				return false;
+			}
+			synchronized(FILES_LOCK) {
+				if(file.isFile() || ServerStorage.MAIN.tracks.get(filename) != cached) {
+					return false;
 				}
+				LOGGER.info("Track {} was removed externally", filename);
+				uncache(filename);
+				recordAction(new Action(filename, Action.Type.REMOVE), null);
+				return true;
 			}
+		}
 
-			LOGGER.info("{} tracks cached", cachedCount);
-		} catch(IOException e) {
-			LOGGER.fatal("Failed to read library", e);
-			System.exit(1);
+		if(cached != null && cached.lastModified == file.lastModified() && cached.contentHash != null) {
+			return false;
+		}
+
+		Track track;
+		try {
+			track = new Track(file);
+		} catch(IOException | IllegalStateException e) {
+			LOGGER.warn("Could not read track {}, ignoring it until it changes", filename, e);
+			return false;
+		}
+
+		synchronized(FILES_LOCK) {
+			if(ServerStorage.MAIN.tracks.get(filename) != cached || file.lastModified() != track.lastModified) {
+				return false;
+			}
+			cache(filename, track);
+
+			if(cached != null && cached.checksum == track.checksum) {
+				// only the modification date changed
+				return false;
+			}
+
+			if(cached == null) {
+				LOGGER.info("Track {} was added externally", filename);
+			} else {
+				LOGGER.info("Track {} was replaced externally", filename);
+			}
+			Action action = new Action(filename, cached == null ? Action.Type.ADD : Action.Type.REPLACE);
+			action.contentHash = track.contentHash;
+			recordAction(action, null);
+			return true;
 		}
 	}
 
+	/// Checks whether an uncached file is a cached track which was moved to another filename outside of PMP, and if
+	/// so moves the cached track and [#recordAction]s an [Action.Type#RENAME], so that devices do not have to
+	/// transfer it again. Otherwise, goes on like [#reconcile].
+	///
+	/// @param vanished content hash -> filenames of the cached tracks whose file no longer exists. The matching
+	/// filename is removed once the file is found to be one of them.
+	/// @return whether an action was recorded
+	private static boolean reconcileRenamed(String filename, Map<String, Set<String>> vanished) {
+		File file = LibraryLayout.fileFor(filename);
+		Track track;
+		try {
+			track = new Track(file);
+		} catch(IOException | IllegalStateException e) {
+			LOGGER.warn("Could not read track {}, ignoring it until it changes", filename, e);
+			return false;
+		}
+
+		Set<String> oldFilenames = vanished.get(track.contentHash);
+		if(oldFilenames == null) {
+			return reconcile(filename);
+		}
+
+		synchronized(FILES_LOCK) {
+			for(String oldFilename : oldFilenames) {
+				Track old = ServerStorage.MAIN.tracks.get(oldFilename);
+				if(old == null || old.file.exists() || !track.contentHash.equals(old.contentHash)
+						|| ServerStorage.MAIN.tracks.get(filename) != null
+						|| file.lastModified() != track.lastModified || !oldFilenames.remove(oldFilename)) {
+					continue;
+				}
+				LOGGER.info("Track {} was renamed externally to {}", oldFilename, filename);
+				uncache(oldFilename);
+				cache(filename, track);
+				Action rename = new Action(oldFilename, filename);
+				rename.contentHash = track.contentHash;
+				recordAction(rename, null);
+				return true;
+			}
+		}
+		return reconcile(filename);
+	}
+
+	/// Stores a completed action in the history and sends it to all logged in devices except the one which
+	/// performed it.
+	///
+	/// @param source the device which performed the action, or null if it was performed by the server itself
+	/// @return the id of the action
+	public static int recordAction(Action action, Device source) {
+		// held while broadcasting so that devices receive actions in order
+		synchronized(ActionJournal.class) {
+			int id = ActionJournal.append(action);
+			Device.broadcastExcept(new ActionMessage(action, id), source);
+			return id;
+		}
+	}
+
+	/// Returns true for files in the [#LIBRARY] directory, or its shard directories, which are not tracks: hidden
+	/// files and `.tmp` files used while receiving tracks.
+	static boolean isIgnoredFilename(String filename) {
+		return filename.startsWith(".") || filename.endsWith(".tmp");
+	}
+
 	/// Adds a track to the library. Overrides any previous track with the same filename.
 	///
+	/// The contents are written to a `.tmp` file while being parsed (see [#ingest]), so the file is written once
+	/// and never read back.
+	///
 	/// @param filename the file name for the new track
 	/// @param is InputStream with the file contents
 	///
 	/// @throws IOException if there is an unexpected I/O error while saving the file
 	/// @throws IllegalArgumentException if the track is not a valid FLAC file
 	public static void add(String filename, InputStream is) throws IOException, IllegalArgumentException {
-		File tmpFile = LIBRARY.toPath().resolve(filename + ".tmp").toFile();
+		File tmpFile = new File(LibraryLayout.fileFor(filename).getParentFile(), filename + ".tmp");
 
-		Files.copy(is, tmpFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		Ingested ingested;
+		try(OutputStream os = Files.newOutputStream(tmpFile.toPath());
+				InputStream tee = new TeeInputStream(is, os)) {
+			ingested = ingest(tee);
+		} catch(IOException | IllegalArgumentException e) {
+			var _ = tmpFile.delete();
+			throw e;
+		}
 
-		try {
-			Track tmpTrack = new Track(tmpFile);
-			// no exception, valid FLAC format
+		commit(tmpFile, filename, ingested);
+	}
 
-			File target = LIBRARY.toPath().resolve(filename).toFile();
-			try {
-				Files.move(tmpFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
-						StandardCopyOption.REPLACE_EXISTING);
-			} catch(AtomicMoveNotSupportedException _) {
-				boolean success = tmpFile.renameTo(target);
-				assert success;
+	/// Adds a track to the library from a complete file elsewhere on the server's disk, which is moved into the
+	/// library. Overrides any previous track with the same filename.
+	///
+	/// @param filename the file name for the new track
+	/// @param file the file with the track's contents, which is deleted if it is not valid
+	/// @param contentHash the expected [ContentHash] of the file, or null to accept any
+	///
+	/// @throws IOException if there is an unexpected I/O error while reading or moving the file
+	/// @throws IllegalArgumentException if the track is not a valid FLAC file or does not match the content hash
+	public static void addFile(String filename, File file, String contentHash)
+			throws IOException, IllegalArgumentException {
+		Ingested ingested;
+		try(InputStream is = new FileInputStream(file)) {
+			ingested = ingest(is);
+			if(contentHash != null && !contentHash.equals(ingested.contentHash)) {
+				throw new IllegalArgumentException("Content hash does not match");
 			}
+		} catch(IOException | IllegalArgumentException e) {
+			var _ = file.delete();
+			throw e;
+		}
 
-			Track track = new Track(filename, target.lastModified(), tmpTrack.checksum, tmpTrack.metadata);
+		commit(file, filename, ingested);
+	}
+
+	/// Reads a track's contents, consuming the whole stream: the FLAC signature is checked as soon as the first
+	/// bytes arrive, the metadata is extracted as soon as it has been received, and the checksum and content hash
+	/// are calculated along the way.
+	///
+	/// @throws IOException if the stream cannot be read
+	/// @throws IllegalArgumentException if the track is not a valid FLAC file
+	private static Ingested ingest(InputStream is) throws IOException, IllegalArgumentException {
+		Checksum checksum = new CRC32();
+		MessageDigest digest = ContentHash.newDigest();
+		List<Pair<String, String>> metadata;
+		// 0.125 MiB
+		InputStream bis = new BufferedInputStream(
+				new CheckedInputStream(new DigestInputStream(is, digest), checksum), 0x20_000);
+		if(!FLACUtil.hasSignature(bis)) {
+			throw new IllegalArgumentException("Not a FLAC file");
+		}
 
-			ServerStorage.MAIN.tracks.put(filename, track);
+		try {
+			metadata = FLACUtil.extractMetadata(new FLACDecoder(bis).readMetadata());
 		} catch(IOException e) {
-			var _ = tmpFile.delete();
-			throw new IllegalArgumentException("Not a valid FLAC file");
+			throw new IllegalArgumentException("Not a valid FLAC file", e);
+		}
+
+		// read the rest of the file, finishing the checksum and content hash
+		bis.transferTo(OutputStream.nullOutputStream());
+
+		return new Ingested(checksum.getValue(), metadata, ContentHash.toString(digest));
+	}
+
+	/// Moves an [#ingest]ed file into the library, or into the [BlobStore] if it [BlobStore#isEnabled], and caches
+	/// it as a track.
+	private static void commit(File file, String filename, Ingested ingested) throws IOException {
+		File target = LibraryLayout.fileFor(filename);
+		synchronized(FILES_LOCK) {
+			if(BlobStore.isEnabled()) {
+				BlobStore.store(file.toPath(), ingested.contentHash, target.toPath());
+			} else {
+				try {
+					Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+							StandardCopyOption.REPLACE_EXISTING);
+				} catch(AtomicMoveNotSupportedException _) {
+					Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+
+			Track track = new Track(filename, target.lastModified(), ingested.checksum, ingested.metadata,
+					ingested.contentHash);
+
+			cache(filename, track);
+		}
+	}
+
+	/// Adds a track to the library using the contents of a file with the given [ContentHash] that the server
+	/// already has, without receiving it. Overrides any previous track with the same filename.
+	///
+	/// Only possible if [BlobStore#isEnabled].
+	///
+	/// @return false if the server has no file with the given content hash
+	/// @throws IOException if there is an unexpected I/O error while saving the file
+	/// @see BlobStore#linkExisting
+	public static boolean addExisting(String filename, String contentHash) throws IOException {
+		if(!BlobStore.isEnabled() || !ContentHash.isValid(contentHash)) {
+			return false;
+		}
+
+		File target = LibraryLayout.fileFor(filename);
+		synchronized(FILES_LOCK) {
+			Track blobTrack = BlobStore.linkExisting(contentHash, target.toPath());
+			if(blobTrack == null) {
+				return false;
+			}
+
+			Track track = new Track(filename, target.lastModified(), blobTrack.checksum, blobTrack.metadata,
+					contentHash);
+
+			cache(filename, track);
+		}
+		return true;
+	}
+
+	/// Replaces the metadata of a track, keeping its audio data.
+	///
+	/// When possible, only the metadata at the start of the file is rewritten (see [FLACUtil#writeMetadataInPlace]).
+	/// Otherwise, including when the file is shared with the [BlobStore] or other hard links, a modified copy is
+	/// written and moved in its place. Either way, the cached track is replaced at once.
+	///
+	/// @return the [ContentHash] of the modified track
+	/// @throws FileNotFoundException if such track does not exist
+	/// @throws IOException if there is an unexpected I/O error while writing the file
+	/// @throws IllegalArgumentException if the track is not a valid FLAC file or the metadata cannot be written
+	public static String changeMetadata(String filename, List<Pair<String, String>> metadata)
+			throws IOException, IllegalArgumentException {
+		File target = LibraryLayout.fileFor(filename);
+		synchronized(FILES_LOCK) {
+			if(ServerStorage.MAIN.tracks.get(filename) == null || !target.isFile()) {
+				throw new FileNotFoundException();
+			}
+
+			if(!BlobStore.isEnabled() && !isHardLinked(target) && FLACUtil.writeMetadataInPlace(target, metadata)) {
+				Ingested ingested;
+				try(InputStream is = new FileInputStream(target)) {
+					ingested = ingest(is);
+				}
+				cache(filename, new Track(filename, target.lastModified(), ingested.checksum, ingested.metadata,
+						ingested.contentHash));
+				return ingested.contentHash;
+			}
+
+			File tmpFile = new File(target.getParentFile(), filename + ".tmp");
+			Ingested ingested;
+			try {
+				FLACUtil.writeMetadata(target, metadata, tmpFile);
+				try(InputStream is = new FileInputStream(tmpFile)) {
+					ingested = ingest(is);
+				}
+			} catch(IOException | IllegalArgumentException e) {
+				var _ = tmpFile.delete();
+				throw e;
+			}
+			commit(tmpFile, filename, ingested);
+			return ingested.contentHash;
+		}
+	}
+
+	/// Returns whether the file has other hard links, such as its blob in the [BlobStore], which must not be
+	/// modified along with it. Assumes it does if it cannot be known.
+	private static boolean isHardLinked(File file) {
+		try {
+			return ((Number) Files.getAttribute(file.toPath(), "unix:nlink")).intValue() > 1;
+		} catch(IOException | UnsupportedOperationException | IllegalArgumentException _) {
+			return true;
 		}
 	}
 
@@ -124,24 +558,92 @@ public class Library {
 		if(target == null) {
 			throw new FileNotFoundException();
 		}
-		if(!target.file.delete()) {
-			throw new IOException("Failed to delete file");
+		synchronized(FILES_LOCK) {
+			if(!target.file.delete()) {
+				throw new IOException("Failed to delete file");
+			}
+
+			uncache(filename);
 		}
+	}
 
+	/// Moves a track to another filename, keeping its file untouched.
+	///
+	/// @param contentHash the [ContentHash] the track's file is expected to have, so that a track is never renamed
+	/// over another one which only has the same checksum
+	/// @throws FileNotFoundException if no track has the old filename
+	/// @throws FileAlreadyExistsException if a file with the new filename already exists
+	/// @throws IllegalArgumentException if the new filename is not valid for a track or the track's contents do not
+	/// match `contentHash`
+	/// @throws IOException if there was an IO error while moving the file
+	public static void rename(String filename, String newFilename, String contentHash)
+			throws IOException, IllegalArgumentException {
+		if(newFilename.isEmpty() || newFilename.contains("/") || isIgnoredFilename(newFilename)) {
+			throw new IllegalArgumentException("Invalid filename " + newFilename);
+		}
+		File target = LibraryLayout.fileFor(newFilename);
+		synchronized(FILES_LOCK) {
+			Track track = ServerStorage.MAIN.tracks.get(filename);
+			if(track == null || !track.file.isFile()) {
+				throw new FileNotFoundException();
+			}
+			if(target.exists() || ServerStorage.MAIN.tracks.get(newFilename) != null) {
+				throw new FileAlreadyExistsException(target.toString());
+			}
+			String actualHash = track.contentHash != null ? track.contentHash : ContentHash.of(track.file);
+			if(!actualHash.equals(contentHash)) {
+				throw new IllegalArgumentException("Contents of " + filename + " do not match " + contentHash);
+			}
+
+			try {
+				Files.move(track.file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch(AtomicMoveNotSupportedException _) {
+				Files.move(track.file.toPath(), target.toPath());
+			}
+
+			uncache(filename);
+			cache(newFilename, new Track(newFilename, target.lastModified(), track.checksum, track.metadata,
+					track.contentHash));
+		}
+	}
+
+	/// Caches a track in [ServerStorage.Main#tracks], keeping [SearchIndex], [SelectionIndex] and the [BlobStore]
+	/// index up to date and queuing it for [AlbumArt] extraction and [Analysis].
+	private static void cache(String filename, Track track) {
+		BlobStore.index(filename, ServerStorage.MAIN.tracks.get(filename), track);
+		ServerStorage.MAIN.tracks.put(filename, track);
+		SearchIndex.update(filename, track);
+		SelectionIndex.update(filename, track);
+		AlbumArt.queue(track);
+		Analysis.queue(track);
+	}
+
+	/// Removes a track from [ServerStorage.Main#tracks], keeping [SearchIndex], [SelectionIndex] and the
+	/// [BlobStore] index up to date.
+	private static void uncache(String filename) {
+		BlobStore.index(filename, ServerStorage.MAIN.tracks.get(filename), null);
 		ServerStorage.MAIN.tracks.remove(filename);
+		SearchIndex.update(filename, null);
+		SelectionIndex.update(filename, null);
 	}
 
 	/// If the pending action can be updated, sets it to the new value
 	///
-	/// @return whether it was possible to update the pending action
-	public static boolean setPendingActionIfPossible(Action action, Device device) {
+	/// @param onSuccess called once the action is completed successfully
+	/// @return the new pending action, or null if it was not possible to update it
+	public static PendingAction setPendingActionIfPossible(Action action, Device device, Runnable onSuccess) {
 		synchronized(PENDING_ACTION) {
-			if(!isPendingActionOverrideable()) {
-				return false;
+			PendingAction current = PENDING_ACTION.get();
+			// a device retrying the same action, for example after reconnecting, replaces its own pending action
+			boolean retry = current != null && current.device == device && !current.started
+					&& current.action.filename.equals(action.filename);
+			if(!retry && !isPendingActionOverrideable()) {
+				return null;
 			}
 
-			PENDING_ACTION.set(new PendingAction(action, device));
-			return true;
+			PendingAction pendingAction = new PendingAction(action, device, onSuccess);
+			PENDING_ACTION.set(pendingAction);
+			return pendingAction;
 		}
 	}
 
@@ -151,46 +653,76 @@ public class Library {
 	private static boolean isPendingActionOverrideable() {
 		PendingAction action = PENDING_ACTION.get();
 		synchronized(PENDING_ACTION) {
-			return action == null || (
-					System.currentTimeMillis() - action.creationTime > PendingAction.CONNECTION_TIMEOUT_SECONDS * 1000
-							&& !action.started);
+			return action == null || (action.isExpired() && !action.started);
 		}
 	}
 
 	/// Checks whether the pending action matches the given details and if it may be started, then marks it as started.
 	///
-	/// @return Whether the action matched and was marked as started.
-	public static boolean startPendingAction(Device device, String filename) {
+	/// @return the pending action if it matched and was marked as started, null otherwise.
+	public static PendingAction startPendingAction(Device device, String filename) {
 		synchronized(PENDING_ACTION) {
 			PendingAction action = PENDING_ACTION.get();
 			if(action == null) {
-				return false;
+				return null;
 			}
 			if(action.device != device) {
-				return false;
+				return null;
 			}
 			if(!action.action.filename.equals(filename)) {
-				return false;
+				return null;
 			}
-			if(System.currentTimeMillis() - action.creationTime > PendingAction.CONNECTION_TIMEOUT_SECONDS * 1000) {
-				return false;
+			if(action.isExpired()) {
+				return null;
 			}
 			if(action.started) {
-				return false;
+				return null;
 			}
 
 			action.started = true;
-			return true;
+			return action;
+		}
+	}
+
+	/// Checks whether the pending action matches the given details without marking it as started, and restarts its
+	/// [PendingAction#CONNECTION_TIMEOUT_SECONDS]. Used for actions completed through multiple HTTP requests, where
+	/// the timeout applies between requests.
+	///
+	/// An expired action can still be continued as long as it has not been replaced.
+	///
+	/// @return the pending action if it matched, null otherwise.
+	public static PendingAction continuePendingAction(Device device, String filename) {
+		synchronized(PENDING_ACTION) {
+			PendingAction action = PENDING_ACTION.get();
+			if(action == null || action.device != device || !action.action.filename.equals(filename)
+					|| action.started) {
+				return null;
+			}
+
+			action.creationTime = System.currentTimeMillis();
+			return action;
 		}
 	}
 
-	/// Marks the pending action as finished, allowing others to take its place.
-	public static void finishPendingAction(boolean successful) {
+	/// Marks the pending action as finished, allowing others to take its place. If successful, calls the action's
+	/// [PendingAction#onSuccess] and [#EVENT_SUCCESSFUL_ACTION].
+	///
+	/// Does nothing if the given action is no longer the pending action, for example because it expired and was
+	/// replaced.
+	public static void finishPendingAction(PendingAction action, boolean successful) {
 		synchronized(PENDING_ACTION) {
+			if(PENDING_ACTION.get() != action) {
+				LOGGER.warn("Tried to finish {} action of {} which is no longer pending", action.action.actionType,
+						action.action.filename);
+				return;
+			}
 			PENDING_ACTION.set(null);
 			PENDING_ACTION.notify();
 		}
 		if(successful) {
+			if(action.onSuccess != null) {
+				action.onSuccess.run();
+			}
 			EVENT_SUCCESSFUL_ACTION.call(null);
 		}
 	}
@@ -206,11 +738,14 @@ public class Library {
 		}
 	}
 
+	/// Details of a track read by [#ingest].
+	private record Ingested(long checksum, List<Pair<String, String>> metadata, String contentHash) {}
+
 	/// A library action which has been [ActionResponse.Type#APPROVED] but which the server is still
 	/// waiting for the client to [ActionResponse.Type#COMPLETED].
 	public static class PendingAction {
 		/// How much time, in seconds, the client has to **start** the HTTP request to complete this
-		/// action
+		/// action, or to start the next request of a chunked upload (see [Library#continuePendingAction])
 		public static final double CONNECTION_TIMEOUT_SECONDS = 30;
 		/// When this action was [ActionResponse.Type#APPROVED], and when the [#CONNECTION_TIMEOUT_SECONDS]
 		/// started
@@ -221,16 +756,25 @@ public class Library {
 		public Action action;
 		/// Whether the HTTP request to complete this action has begun
 		public boolean started;
+		/// Called when this action is completed successfully, before [Library#EVENT_SUCCESSFUL_ACTION]. Kept here
+		/// rather than registered as a listener so that it is dropped if the action never completes.
+		public Runnable onSuccess;
 
 		/// Create a pending action that starts now
-		public PendingAction(Action action, Device device) {
-			this(action, device, System.currentTimeMillis());
+		public PendingAction(Action action, Device device, Runnable onSuccess) {
+			this(action, device, onSuccess, System.currentTimeMillis());
 		}
 
-		public PendingAction(Action action, Device device, long creationTime) {
+		public PendingAction(Action action, Device device, Runnable onSuccess, long creationTime) {
 			this.action = action;
 			this.device = device;
+			this.onSuccess = onSuccess;
 			this.creationTime = creationTime;
 		}
+
+		/// Returns whether more than [#CONNECTION_TIMEOUT_SECONDS] passed since [#creationTime].
+		public boolean isExpired() {
+			return System.currentTimeMillis() - creationTime > CONNECTION_TIMEOUT_SECONDS * 1000;
+		}
 	}
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package dev.blackilykat.pmp.server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/// Decides where in the [Library#LIBRARY] directory the file of each track is stored.
+///
+/// By default, all tracks are stored directly in the library directory. Very large libraries can instead be
+/// sharded, storing each track in one of {@value #SHARD_COUNT} subdirectories picked from a hash of its filename,
+/// which keeps directories small enough for filesystems to list and look up quickly. Either way, a track's location
+/// only depends on its filename, so it is found without searching, and clients only ever see plain filenames.
+///
+/// The library is sharded if it contains a {@value #MARKER_NAME} file. The layout of an existing library is changed
+/// with [#migrate], which is run by starting the server with `--shard-library` or `--unshard-library`.
+public class LibraryLayout {
+	/// The amount of subdirectories tracks are spread across in a sharded library.
+	public static final int SHARD_COUNT = 256;
+	private static final String MARKER_NAME = ".sharded";
+	private static final File MARKER = new File(Library.LIBRARY, MARKER_NAME);
+	private static final Logger LOGGER = LogManager.getLogger(LibraryLayout.class);
+	private static final String[] SHARD_NAMES = new String[SHARD_COUNT];
+
+	static {
+		for(int i = 0; i < SHARD_COUNT; i++) {
+			SHARD_NAMES[i] = String.format("%02x", i);
+		}
+	}
+
+	private static volatile boolean sharded = MARKER.exists();
+
+	/// @return whether tracks are stored in shard subdirectories
+	public static boolean isSharded() {
+		return sharded;
+	}
+
+	/// Creates any missing shard directory. Must be called after the [Library#LIBRARY] directory exists.
+	public static void init() {
+		if(!sharded) {
+			return;
+		}
+		LOGGER.info("Library is sharded across {} directories", SHARD_COUNT);
+		for(int i = 0; i < SHARD_COUNT; i++) {
+			var _ = shardDirectory(i).mkdir();
+		}
+	}
+
+	/// @return the location of the file of the track with the given filename, whether or not it exists
+	public static File fileFor(String filename) {
+		if(!sharded) {
+			return new File(Library.LIBRARY, filename);
+		}
+		return new File(shardDirectory(shardOf(filename)), filename);
+	}
+
+	/// @return all directories track files are stored in
+	public static List<File> directories() {
+		if(!sharded) {
+			return List.of(Library.LIBRARY);
+		}
+		List<File> directories = new ArrayList<>(SHARD_COUNT);
+		for(int i = 0; i < SHARD_COUNT; i++) {
+			directories.add(shardDirectory(i));
+		}
+		return directories;
+	}
+
+	/// Moves the files of all tracks to where they belong in the given layout, then switches to it. Files which are
+	/// already in the right place are left alone, so this can also be used to move files which were copied to the
+	/// wrong directory of a sharded library.
+	///
+	/// Must be run while the library is not in use, as tracks are briefly missing while being moved.
+	///
+	/// @throws IOException if a file cannot be moved. Files moved before the error are left where they are and the
+	/// layout does not change, so the migration can be run again after fixing the problem.
+	public static void migrate(boolean toSharded) throws IOException {
+		LOGGER.info("Migrating library to {} layout", toSharded ? "sharded" : "flat");
+		boolean wasSharded = sharded;
+
+		List<Path> directories = new ArrayList<>();
+		directories.add(Library.LIBRARY.toPath());
+		for(int i = 0; i < SHARD_COUNT; i++) {
+			File directory = shardDirectory(i);
+			if(directory.isDirectory()) {
+				directories.add(directory.toPath());
+			}
+		}
+
+		sharded = toSharded;
+		init();
+
+		int moved = 0;
+		try {
+			for(Path directory : directories) {
+				try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+					for(Path path : stream) {
+						String filename = path.getFileName().toString();
+						if(Library.isIgnoredFilename(filename) || !Files.isRegularFile(path)) {
+							continue;
+						}
+						Path target = fileFor(filename).toPath();
+						if(target.equals(path)) {
+							continue;
+						}
+						Files.move(path, target);
+						moved++;
+					}
+				}
+			}
+		} catch(IOException e) {
+			sharded = wasSharded;
+			throw e;
+		}
+
+		if(toSharded) {
+			var _ = MARKER.createNewFile();
+		} else {
+			Files.deleteIfExists(MARKER.toPath());
+			for(int i = 0; i < SHARD_COUNT; i++) {
+				// only deletes empty directories
+				var _ = shardDirectory(i).delete();
+			}
+		}
+		LOGGER.info("Moved {} tracks", moved);
+	}
+
+	private static int shardOf(String filename) {
+		int hash = filename.hashCode();
+		return (hash ^ (hash >>> 16)) & (SHARD_COUNT - 1);
+	}
+
+	private static File shardDirectory(int shard) {
+		return new File(Library.LIBRARY, SHARD_NAMES[shard]);
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.pmp.server;
+
+import dev.blackilykat.pmp.Action;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/// Watches the [Library#LIBRARY] directory, or its shards (see [LibraryLayout]), for changes made outside of PMP,
+/// such as files being copied in or deleted by hand, and turns them into [Action]s through [Library#reconcile].
+///
+/// Changes to a file are only handled once the file has not changed for {@value #DEBOUNCE_MS} milliseconds, so that
+/// files being copied are not read before they are complete.
+///
+/// As watch services may lose events (for example on some network filesystems, or when too many happen at once),
+/// the whole library is also checked through [Library#reconcileAll] every {@value #RECONCILE_INTERVAL_MS}
+/// milliseconds and whenever events are lost.
+public class LibraryWatcher {
+	private static final Logger LOGGER = LogManager.getLogger(LibraryWatcher.class);
+	/// How long, in milliseconds, a file must stay unchanged before its changes are handled.
+	private static final long DEBOUNCE_MS = 2_000;
+	/// How often, in milliseconds, the whole library is checked regardless of events.
+	private static final long RECONCILE_INTERVAL_MS = 10 * 60 * 1000;
+
+	private static WatchService watchService = null;
+
+	/// Starts watching the library directory. Events are only handled after [Library#EVENT_SCAN_FINISHED], as
+	/// any change happening earlier is also noticed by the initial scan.
+	///
+	/// If the filesystem cannot be watched, external changes will only be noticed when restarting.
+	public static void init() {
+		try {
+			watchService = Library.LIBRARY.toPath().getFileSystem().newWatchService();
+			for(File directory : LibraryLayout.directories()) {
+				directory.toPath()
+						.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+								StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			}
+		} catch(IOException | UnsupportedOperationException e) {
+			LOGGER.error("Failed to watch library, external changes will only be noticed when restarting", e);
+			return;
+		}
+
+		Library.EVENT_SCAN_FINISHED.register(_ -> {
+			Thread thread = new Thread(LibraryWatcher::run, "Library watcher thread");
+			thread.setDaemon(true);
+			thread.start();
+		});
+	}
+
+	private static void run() {
+		LOGGER.info("Watching library for external changes");
+		// filename -> time of the last event regarding it
+		Map<String, Long> pending = new HashMap<>();
+		long nextReconcile = System.currentTimeMillis() + RECONCILE_INTERVAL_MS;
+
+		try {
+			while(!Thread.interrupted()) {
+				long now = System.currentTimeMillis();
+				long timeout = nextReconcile - now;
+				if(!pending.isEmpty()) {
+					timeout = Math.min(timeout, DEBOUNCE_MS);
+				}
+
+				boolean overflow = false;
+				WatchKey key = watchService.poll(Math.max(timeout, 0), TimeUnit.MILLISECONDS);
+				if(key != null) {
+					for(WatchEvent<?> event : key.pollEvents()) {
+						if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							overflow = true;
+							continue;
+						}
+						String filename = ((Path) event.context()).getFileName().toString();
+						if(Library.isIgnoredFilename(filename)) {
+							continue;
+						}
+						pending.put(filename, System.currentTimeMillis());
+					}
+					if(!key.reset()) {
+						LOGGER.error("Library directory can no longer be watched, external changes will only be "
+								+ "noticed when restarting");
+						return;
+					}
+				}
+
+				now = System.currentTimeMillis();
+				if(overflow || now >= nextReconcile) {
+					if(overflow) {
+						LOGGER.warn("Lost library events, checking the whole library");
+					}
+					pending.clear();
+					Library.reconcileAll();
+					nextReconcile = System.currentTimeMillis() + RECONCILE_INTERVAL_MS;
+					continue;
+				}
+
+				Iterator<Map.Entry<String, Long>> iterator = pending.entrySet().iterator();
+				while(iterator.hasNext()) {
+					Map.Entry<String, Long> entry = iterator.next();
+					if(now - entry.getValue() < DEBOUNCE_MS) {
+						continue;
+					}
+					iterator.remove();
+					Library.reconcile(entry.getKey());
+				}
+			}
+		} catch(InterruptedException _) {
+		}
+		LOGGER.info("Library watcher thread interrupted");
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package dev.blackilykat.pmp.server;
+
+import dev.blackilykat.pmp.messages.LoginFailResponse;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+/// Makes brute-forcing logins less viable without blocking any thread.
+///
+/// Each failed login makes both the address it came from and the device it targeted from that address back off for
+/// an exponentially growing amount of time, starting at {@value #BASE_DELAY_MS} milliseconds and capped at
+/// {@value #MAX_DELAY_MS}. Device backoffs are per address so that failures from elsewhere cannot lock a device out.
+/// Failure responses are only sent once the backoff is over, and an attempt made while backing off is postponed until
+/// it is. Each connection can only have one postponed attempt, so that attempts cannot pile up to all run once the
+/// backoff is over. Backoffs are forgotten after {@value #FORGET_AFTER_MS} milliseconds without failures, or after a
+/// successful login.
+public class LoginThrottle {
+	private static final Logger LOGGER = LogManager.getLogger(LoginThrottle.class);
+	private static final long BASE_DELAY_MS = 2_000;
+	private static final long MAX_DELAY_MS = 60_000;
+	private static final long FORGET_AFTER_MS = 15 * 60 * 1000;
+	private static final Timer TIMER = new Timer("Login throttle timer", true);
+	private static final Map<String, Backoff> BACKOFFS = new ConcurrentHashMap<>();
+	/// The connections which have a postponed attempt.
+	private static final Set<ClientConnection> POSTPONED = ConcurrentHashMap.newKeySet();
+
+	static {
+		TIMER.scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				long now = System.currentTimeMillis();
+				BACKOFFS.values().removeIf(backoff -> now - backoff.lastFailure > FORGET_AFTER_MS);
+			}
+		}, FORGET_AFTER_MS, FORGET_AFTER_MS);
+	}
+
+	/// Runs a login attempt as soon as neither the connection's address nor the device are backing off. Attempts
+	/// which do not need to wait run immediately on the calling thread.
+	///
+	/// @param deviceId the device the client is trying to log in as, or null if it is logging in as a new device
+	/// @return false if the attempt was rejected because the connection already has a postponed one
+	public static boolean attempt(ClientConnection connection, Integer deviceId, Runnable attempt) {
+		long delay = delay(connection, deviceId);
+		if(delay <= 0 && !POSTPONED.contains(connection)) {
+			attempt.run();
+			return true;
+		}
+
+		if(!POSTPONED.add(connection)) {
+			LOGGER.info("Rejecting login attempt from {} as one is already postponed", connection.name);
+			return false;
+		}
+		LOGGER.info("Postponing login attempt from {} by {}ms", connection.name, delay);
+		postpone(connection, deviceId, attempt, delay);
+		return true;
+	}
+
+	/// Schedules a postponed attempt, checking the backoff again once it is due as a failure may have extended it.
+	private static void postpone(ClientConnection connection, Integer deviceId, Runnable attempt, long delay) {
+		TIMER.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				long newDelay = delay(connection, deviceId);
+				if(newDelay > 0) {
+					postpone(connection, deviceId, attempt, newDelay);
+					return;
+				}
+				POSTPONED.remove(connection);
+				try {
+					attempt.run();
+				} catch(Exception e) {
+					LOGGER.error("Exception in postponed login attempt", e);
+				}
+			}
+		}, Math.max(delay, 0));
+	}
+
+	/// @return how long the connection's address or the device still have to back off for, 0 or less if neither is
+	private static long delay(ClientConnection connection, Integer deviceId) {
+		long delay = 0;
+		long now = System.currentTimeMillis();
+		for(String key : keys(connection, deviceId)) {
+			Backoff backoff = BACKOFFS.get(key);
+			if(backoff != null) {
+				synchronized(backoff) {
+					delay = Math.max(delay, backoff.until - now);
+				}
+			}
+		}
+		return delay;
+	}
+
+	/// Records a failed login, making the address and the device back off, and sends the response once the backoff
+	/// is over.
+	///
+	/// @param deviceId the device the client tried to log in as, or null if there is none
+	public static void fail(ClientConnection connection, Integer deviceId, LoginFailResponse response) {
+		long now = System.currentTimeMillis();
+		long delay = 0;
+		for(String key : keys(connection, deviceId)) {
+			Backoff backoff = BACKOFFS.computeIfAbsent(key, _ -> new Backoff());
+			synchronized(backoff) {
+				backoff.failures++;
+				backoff.lastFailure = now;
+				long backoffDelay = BASE_DELAY_MS << Math.min(backoff.failures - 1, 30);
+				backoff.until = now + Math.min(backoffDelay, MAX_DELAY_MS);
+				delay = Math.max(delay, backoff.until - now);
+			}
+		}
+
+		LOGGER.info("Failed login from {}, responding in {}ms", connection.name, delay);
+		TIMER.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				connection.send(response);
+			}
+		}, delay);
+	}
+
+	/// Forgets the backoffs of a connection's address and of the device it logged in as.
+	public static void succeed(ClientConnection connection, Integer deviceId) {
+		for(String key : keys(connection, deviceId)) {
+			BACKOFFS.remove(key);
+		}
+	}
+
+	private static List<String> keys(ClientConnection connection, Integer deviceId) {
+		List<String> keys = new ArrayList<>(2);
+		String address = connection.socket.getInetAddress().getHostAddress();
+		keys.add("address " + address);
+		if(deviceId != null) {
+			keys.add("device " + deviceId + " from " + address);
+		}
+		return keys;
+	}
+
+	private static class Backoff {
+		/// The amount of consecutive failed logins.
+		int failures = 0;
+		/// Unix timestamp until which logins are postponed.
+		long until = 0;
+		/// Unix timestamp of the last failed login.
+		long lastFailure = 0;
+	}
+}
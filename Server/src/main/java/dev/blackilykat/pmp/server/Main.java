@@ -28,9 +28,13 @@ import dev.blackilykat.pmp.server.handlers.FilterListMessageHandler;
 import dev.blackilykat.pmp.server.handlers.GetActionsRequestHandler;
 import dev.blackilykat.pmp.server.handlers.LoginAsExistingDeviceRequestHandler;
 import dev.blackilykat.pmp.server.handlers.LoginAsNewDeviceRequestHandler;
+import dev.blackilykat.pmp.server.handlers.PeerAnnounceMessageHandler;
+import dev.blackilykat.pmp.server.handlers.PeersRequestHandler;
 import dev.blackilykat.pmp.server.handlers.PlaybackControlMessageHandler;
 import dev.blackilykat.pmp.server.handlers.PlaybackOwnershipMessageHandler;
 import dev.blackilykat.pmp.server.handlers.PlaybackUpdateMessageHandler;
+import dev.blackilykat.pmp.server.handlers.SearchRequestHandler;
+import dev.blackilykat.pmp.server.handlers.SelectionRequestHandler;
 import dev.blackilykat.pmp.util.LoggingProxy;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -90,6 +94,54 @@ public class Main {
 			}
 		}
 
+		{
+			List<String> argList = Arrays.asList(args);
+			boolean shard = argList.contains("--shard-library");
+			if(shard || argList.contains("--unshard-library")) {
+				try {
+					var _ = Library.LIBRARY.mkdirs();
+					LibraryLayout.migrate(shard);
+				} catch(IOException e) {
+					LOGGER.fatal("Failed to migrate library layout", e);
+					System.exit(1);
+				}
+				LOGGER.info("Migrated library layout, exiting");
+				System.exit(0);
+			}
+
+			int replicaIndex = argList.indexOf("--replica-of");
+			if(replicaIndex != -1) {
+				if(replicaIndex + 1 >= argList.size()) {
+					LOGGER.fatal("Expected the primary's address after --replica-of");
+					System.exit(1);
+				}
+				try {
+					Replica.setPrimary(argList.get(replicaIndex + 1));
+				} catch(IllegalArgumentException e) {
+					LOGGER.fatal("Invalid primary address", e);
+					System.exit(1);
+				}
+
+				Console console = System.console();
+				if(console == null) {
+					LOGGER.fatal("Need a real terminal to ask the primary's password");
+					System.exit(1);
+				}
+				System.out.print("Enter the primary's password: ");
+				ServerStorage.SENSITIVE.primaryPassword.set(console.readLine());
+				LOGGER.info("Saved primary {}", ServerStorage.MAIN.primaryAddress.get());
+			} else if(argList.contains("--no-replica")) {
+				Replica.setPrimary(null);
+				LOGGER.info("No longer a replica");
+			}
+		}
+
+		DeviceRegistry.init();
+
+		Metrics.init();
+
+		ActionJournal.init();
+
 		Library.init();
 
 		LoggingProxy.setUpProxies();
@@ -100,6 +152,8 @@ public class Main {
 
 		Playback.init();
 
+		Replica.init();
+
 		try {
 			TransferHandler.init();
 		} catch(IOException e) {
@@ -111,7 +165,7 @@ public class Main {
 		try {
 			serverSocket = (SSLServerSocket) Encryption.getSslContext()
 					.getServerSocketFactory()
-					.createServerSocket(PMPConnection.DEFAULT_MESSAGE_PORT);
+					.createServerSocket(ServerStorage.MAIN.messagePort.get());
 		} catch(IOException e) {
 			LOGGER.fatal("Failed to create server socket", e);
 			System.exit(1);
@@ -133,7 +187,8 @@ public class Main {
 	}
 
 	/// Register [MessageHandler]s to handle incoming messages by clients and an event listener
-	/// to block all non-login messages from non logged in clients.
+	/// to block all non-login messages from non logged in clients, and messages a [Replica] does not accept from
+	/// logged in ones.
 	private static void registerHandlers() {
 		new LoginAsNewDeviceRequestHandler().register();
 		new LoginAsExistingDeviceRequestHandler().register();
@@ -143,12 +198,19 @@ public class Main {
 		new FilterListMessageHandler().register();
 		new GetActionsRequestHandler().register();
 		new ActionRequestHandler().register();
+		new SearchRequestHandler().register();
+		new PeerAnnounceMessageHandler().register();
+		new PeersRequestHandler().register();
+		new SelectionRequestHandler().register();
 
 		PMPConnection.EVENT_RECEIVING_MESSAGE.register(evt -> {
 			if(!(evt.connection instanceof ClientConnection connection)) {
 				return;
 			}
 			if(connection.device != null) {
+				if(Replica.isEnabled() && !Replica.isAllowed(evt.message)) {
+					evt.cancel();
+				}
 				return;
 			}
 
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package dev.blackilykat.pmp.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import dev.blackilykat.pmp.PMPConnection;
+import dev.blackilykat.pmp.storage.Storage;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/// Collects operational metrics of the running server and renders them in the Prometheus text format, to be served
+/// by [TransferHandler] at `/metrics`.
+///
+/// Collecting is cheap and lock-free: counters are [LongAdder]s and values which are only needed when rendering,
+/// such as connected devices and JVM state, are read at that time.
+public class Metrics {
+	/// Upper bounds, in seconds, of the buckets of every histogram.
+	private static final double[] BUCKETS = {0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 60};
+
+	/// Each message class's `messageType`, as used in JSON.
+	private static final ClassValue<String> MESSAGE_TYPES = new ClassValue<>() {
+		@Override
+		protected String computeValue(Class<?> type) {
+			try {
+				return (String) type.getField("MESSAGE_TYPE").get(null);
+			} catch(ReflectiveOperationException | ClassCastException _) {
+				return type.getSimpleName();
+			}
+		}
+	};
+
+	private static final Map<String, LongAdder> MESSAGES_IN = new ConcurrentHashMap<>();
+	private static final Map<String, LongAdder> MESSAGES_OUT = new ConcurrentHashMap<>();
+	private static final Map<String, LongAdder> BYTES_IN = new ConcurrentHashMap<>();
+	private static final Map<String, LongAdder> BYTES_OUT = new ConcurrentHashMap<>();
+	private static final Map<String, Histogram> HANDLING_SECONDS = new ConcurrentHashMap<>();
+	private static final Map<String, Histogram> STORAGE_SAVE_SECONDS = new ConcurrentHashMap<>();
+	private static final LongAdder TRANSFER_BYTES_IN = new LongAdder();
+	private static final LongAdder TRANSFER_BYTES_OUT = new LongAdder();
+	private static final LongAdder TRANSFER_REQUESTS = new LongAdder();
+	private static final Histogram PENDING_ACTION_WAIT_SECONDS = new Histogram();
+
+	/// Starts collecting metrics about messages and storage.
+	public static void init() {
+		PMPConnection.EVENT_MESSAGE_SENT.register(event -> {
+			String type = MESSAGE_TYPES.get(event.message().getClass());
+			MESSAGES_OUT.computeIfAbsent(type, _ -> new LongAdder()).increment();
+			BYTES_OUT.computeIfAbsent(type, _ -> new LongAdder()).add(event.bytes());
+		});
+		PMPConnection.EVENT_MESSAGE_RECEIVED.register(event -> {
+			String type = MESSAGE_TYPES.get(event.message().getClass());
+			MESSAGES_IN.computeIfAbsent(type, _ -> new LongAdder()).increment();
+			BYTES_IN.computeIfAbsent(type, _ -> new LongAdder()).add(event.bytes());
+			HANDLING_SECONDS.computeIfAbsent(type, _ -> new Histogram()).observeNanos(event.handlingNanos());
+		});
+
+		for(Storage storage : new Storage[]{ServerStorage.MAIN, ServerStorage.SENSITIVE}) {
+			Histogram histogram = new Histogram();
+			STORAGE_SAVE_SECONDS.put(storage.name, histogram);
+			storage.eventSaved.register(histogram::observeNanos);
+		}
+	}
+
+	/// Counts the bytes read from and written to an HTTP exchange's body in the transfer metrics. Must be called
+	/// before either stream is used.
+	public static void countTransfer(HttpExchange exchange) {
+		TRANSFER_REQUESTS.increment();
+		exchange.setStreams(new FilterInputStream(exchange.getRequestBody()) {
+			@Override
+			public int read() throws IOException {
+				int read = super.read();
+				if(read != -1) {
+					TRANSFER_BYTES_IN.increment();
+				}
+				return read;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = super.read(b, off, len);
+				if(read > 0) {
+					TRANSFER_BYTES_IN.add(read);
+				}
+				return read;
+			}
+		}, new FilterOutputStream(exchange.getResponseBody()) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				TRANSFER_BYTES_OUT.increment();
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				TRANSFER_BYTES_OUT.add(len);
+			}
+		});
+	}
+
+	/// Records how long an action request waited before becoming the [Library.PendingAction].
+	public static void observePendingActionWait(long nanos) {
+		PENDING_ACTION_WAIT_SECONDS.observeNanos(nanos);
+	}
+
+	/// @return all metrics in the Prometheus text exposition format
+	public static String render() {
+		StringBuilder out = new StringBuilder();
+
+		header(out, "pmp_connected_devices", "gauge", "Devices currently logged in.");
+		sample(out, "pmp_connected_devices", "", DeviceRegistry.online().size());
+
+		header(out, "pmp_connection_queued_messages", "gauge", "Messages waiting to be sent to each device.");
+		for(Device device : DeviceRegistry.online()) {
+			ClientConnection connection = device.getClientConnection();
+			if(connection != null) {
+				sample(out, "pmp_connection_queued_messages", label("device", String.valueOf(device.id)),
+						connection.getQueuedMessages());
+			}
+		}
+
+		counters(out, "pmp_messages_received_total", "Messages received by type.", MESSAGES_IN);
+		counters(out, "pmp_messages_sent_total", "Messages sent by type.", MESSAGES_OUT);
+		counters(out, "pmp_message_bytes_received_total", "Bytes of messages received by type.", BYTES_IN);
+		counters(out, "pmp_message_bytes_sent_total", "Bytes of messages sent by type.", BYTES_OUT);
+
+		header(out, "pmp_message_handling_seconds", "histogram", "Time spent handling received messages by type.");
+		for(Map.Entry<String, Histogram> entry : new TreeMap<>(HANDLING_SECONDS).entrySet()) {
+			entry.getValue().render(out, "pmp_message_handling_seconds", label("messageType", entry.getKey()));
+		}
+
+		header(out, "pmp_transfer_requests_total", "counter", "HTTP requests to the transfer server.");
+		sample(out, "pmp_transfer_requests_total", "", TRANSFER_REQUESTS.sum());
+		header(out, "pmp_transfer_bytes_total", "counter", "Bytes of HTTP bodies transferred.");
+		sample(out, "pmp_transfer_bytes_total", label("direction", "in"), TRANSFER_BYTES_IN.sum());
+		sample(out, "pmp_transfer_bytes_total", label("direction", "out"), TRANSFER_BYTES_OUT.sum());
+
+		header(out, "pmp_pending_action_wait_seconds", "histogram",
+				"Time action requests waited for other pending actions.");
+		PENDING_ACTION_WAIT_SECONDS.render(out, "pmp_pending_action_wait_seconds", "");
+
+		header(out, "pmp_storage_save_seconds", "histogram", "Time spent writing storage to disk.");
+		for(Map.Entry<String, Histogram> entry : new TreeMap<>(STORAGE_SAVE_SECONDS).entrySet()) {
+			entry.getValue().render(out, "pmp_storage_save_seconds", label("storage", entry.getKey()));
+		}
+
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		MemoryUsage heap = memory.getHeapMemoryUsage();
+		MemoryUsage nonHeap = memory.getNonHeapMemoryUsage();
+		header(out, "pmp_jvm_memory_used_bytes", "gauge", "JVM memory in use.");
+		sample(out, "pmp_jvm_memory_used_bytes", label("area", "heap"), heap.getUsed());
+		sample(out, "pmp_jvm_memory_used_bytes", label("area", "nonheap"), nonHeap.getUsed());
+		header(out, "pmp_jvm_memory_committed_bytes", "gauge", "JVM memory committed by the operating system.");
+		sample(out, "pmp_jvm_memory_committed_bytes", label("area", "heap"), heap.getCommitted());
+		sample(out, "pmp_jvm_memory_committed_bytes", label("area", "nonheap"), nonHeap.getCommitted());
+		header(out, "pmp_jvm_memory_max_bytes", "gauge", "Maximum JVM heap size.");
+		sample(out, "pmp_jvm_memory_max_bytes", label("area", "heap"), heap.getMax());
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		header(out, "pmp_jvm_threads", "gauge", "Live JVM threads.");
+		sample(out, "pmp_jvm_threads", label("state", "live"), threads.getThreadCount());
+		sample(out, "pmp_jvm_threads", label("state", "daemon"), threads.getDaemonThreadCount());
+
+		return out.toString();
+	}
+
+	private static void counters(StringBuilder out, String name, String help, Map<String, LongAdder> counters) {
+		header(out, name, "counter", help);
+		for(Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+			sample(out, name, label("messageType", entry.getKey()), entry.getValue().sum());
+		}
+	}
+
+	private static void header(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder out, String name, String labels, double value) {
+		out.append(name);
+		if(!labels.isEmpty()) {
+			out.append('{').append(labels).append('}');
+		}
+		out.append(' ');
+		if(value == Math.rint(value) && !Double.isInfinite(value)) {
+			out.append((long) value);
+		} else {
+			out.append(value);
+		}
+		out.append('\n');
+	}
+
+	private static String label(String name, String value) {
+		return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + '"';
+	}
+
+	/// A histogram with the bucket bounds in [#BUCKETS].
+	private static class Histogram {
+		/// Observations per bucket, with an extra last bucket for values above every bound.
+		private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+		private final DoubleAdder sum = new DoubleAdder();
+
+		Histogram() {
+			for(int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		void observeNanos(long nanos) {
+			double seconds = nanos / 1e9;
+			int bucket = 0;
+			while(bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+				bucket++;
+			}
+			buckets[bucket].increment();
+			sum.add(seconds);
+		}
+
+		void render(StringBuilder out, String name, String labels) {
+			String prefix = labels.isEmpty() ? "" : labels + ",";
+			long cumulative = 0;
+			for(int i = 0; i < buckets.length; i++) {
+				cumulative += buckets[i].sum();
+				String bound = i < BUCKETS.length ? String.valueOf(BUCKETS[i]) : "+Inf";
+				sample(out, name + "_bucket", prefix + label("le", bound), cumulative);
+			}
+			sample(out, name + "_sum", labels, sum.sum());
+			sample(out, name + "_count", labels, cumulative);
+		}
+	}
+}
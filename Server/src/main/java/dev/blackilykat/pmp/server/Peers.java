@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.pmp.server;
+
+import dev.blackilykat.pmp.PeerInfo;
+import dev.blackilykat.pmp.messages.PeerAnnounceMessage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/// Tracker of which online devices share which tracks, so that devices can fetch tracks from each other instead
+/// of the server.
+///
+/// Devices tell what they have through [PeerAnnounceMessage]s. Announcements only last as long as the connection
+/// they were sent in: a device which reconnects must announce itself again. Only the last announcement of each device
+/// is kept, so those from closed connections are simply ignored until replaced.
+public class Peers {
+	/// The last announcement of each device, by [Device#id].
+	private static final Map<Integer, Announcement> ANNOUNCEMENTS = new ConcurrentHashMap<>();
+
+	/// Stores an announcement of the device logged in through `connection`.
+	///
+	/// @param full whether `contentHashes` replace the ones previously announced in this connection instead of being
+	///             added to them
+	public static void announce(ClientConnection connection, String address, int port, String secret,
+			Collection<String> contentHashes, boolean full) {
+		Device device = connection.device;
+		ANNOUNCEMENTS.compute(device.id, (_, previous) -> {
+			Set<String> held = ConcurrentHashMap.newKeySet();
+			if(!full && previous != null && previous.connection == connection) {
+				held = previous.contentHashes;
+			}
+			held.addAll(contentHashes);
+			return new Announcement(connection, new PeerInfo(device.id, address, port, secret), held);
+		});
+	}
+
+	/// Returns the online devices which announced a track with the given content hash.
+	///
+	/// @param except the device asking, which is never included
+	public static List<PeerInfo> find(String contentHash, Device except) {
+		List<PeerInfo> peers = new ArrayList<>();
+		for(Announcement announcement : ANNOUNCEMENTS.values()) {
+			Device device = announcement.connection.device;
+			if(device == except || device.getClientConnection() != announcement.connection) {
+				continue;
+			}
+			if(announcement.contentHashes.contains(contentHash)) {
+				peers.add(announcement.peer);
+			}
+		}
+		return peers;
+	}
+
+	private record Announcement(ClientConnection connection, PeerInfo peer, Set<String> contentHashes) {}
+}
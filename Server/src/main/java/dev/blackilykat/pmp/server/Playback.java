@@ -18,84 +18,163 @@
 package dev.blackilykat.pmp.server;
 
 import dev.blackilykat.pmp.PMPConnection;
+import dev.blackilykat.pmp.RepeatOption;
+import dev.blackilykat.pmp.ShuffleOption;
 import dev.blackilykat.pmp.messages.LoginSuccessResponse;
 import dev.blackilykat.pmp.messages.PlaybackControlMessage;
 import dev.blackilykat.pmp.messages.PlaybackOwnershipMessage;
 import dev.blackilykat.pmp.messages.PlaybackUpdateMessage;
+import dev.blackilykat.pmp.util.Pair;
 
 import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 /// Management of the state of playback.
+///
+/// The state is kept in an immutable [State] which is replaced atomically on every change, so that it can be read
+/// from any thread without locking and always be consistent.
 public class Playback {
-	/// The device which currently owns playback.
-	///
-	/// This is the device which is meant to be playing audio.
-	///
-	/// The playback owner has the final say on any playback update. Devices which do not own playback
-	/// are allowed to send [PlaybackControlMessage]s but cannot directly call updates. Only the playback
-	/// owner can send [PlaybackUpdateMessage]s which get broadcasted to all connected devices.
-	public static Device owner = null;
+	/// The current state of playback.
+	private static final AtomicReference<State> STATE = new AtomicReference<>();
 
-	/// True if playing, false if paused. Does not get stored.
-	public static boolean playing = false;
-
-	/// If [#playing], the epoch of when playback started.
-	///
-	/// Else, the position in milliseconds in the track.
-	public static long positionOrEpoch;
+	/// The [State#version] last written to storage.
+	private static volatile long savedVersion = -1;
 
-	/// Initializes saving and storing state to storage and register events related to the playback [#owner].
+	/// Initializes saving and storing state to storage and register events related to the playback
+	/// [State#owner].
 	public static void init() {
-		positionOrEpoch = ServerStorage.MAIN.position.get();
+		ServerStorage.Main main = ServerStorage.MAIN;
+		State initial = new State(0, null, -1, false, main.position.get(), main.track.get(), main.shuffle.get(),
+				main.repeat.get(), List.copyOf(main.positiveFilterOptions.get()),
+				List.copyOf(main.negativeFilterOptions.get()));
+		STATE.set(initial);
+		savedVersion = initial.version;
 
 		PMPConnection.EVENT_DISCONNECTED.register(pmpConn -> {
 			if(!(pmpConn instanceof ClientConnection connection)) {
 				return;
 			}
-			if(connection.device != owner) {
-				return;
-			}
-			owner = null;
-			if(playing) {
-				playing = false;
-				positionOrEpoch = Instant.now().toEpochMilli() - positionOrEpoch;
-			}
+			State state;
+			State newState;
+			do {
+				state = STATE.get();
+				if(connection.device == null || connection.device != state.owner) {
+					return;
+				}
+				long position = state.playing
+						? Instant.now().toEpochMilli() - state.positionOrEpoch
+						: state.positionOrEpoch;
+				newState = new State(state.version + 1, null, -1, false, position, state.track, state.shuffle,
+						state.repeat, state.positiveOptions, state.negativeOptions);
+			} while(!STATE.compareAndSet(state, newState));
+
 			Device.broadcast(new PlaybackOwnershipMessage());
 			PlaybackUpdateMessage update = new PlaybackUpdateMessage();
 			update.playing = false;
-			update.positionOrEpoch = positionOrEpoch;
+			update.positionOrEpoch = newState.positionOrEpoch;
+			update.version = newState.version;
 			Device.broadcast(update);
 		});
 
 		ServerStorage.MAIN.eventMaybeSaving.register(storage -> {
-			if(playing) {
-				storage.markDirty();
-				return;
-			}
-			if(positionOrEpoch != ((ServerStorage.Main) storage).position.get()) {
+			State state = STATE.get();
+			if(state.playing || state.version != savedVersion) {
 				storage.markDirty();
 			}
 		});
 
 		ServerStorage.MAIN.eventSaving.register(s -> {
-			ServerStorage.Main main = (ServerStorage.Main) s;
-			if(playing) {
-				main.position.set(Instant.now().toEpochMilli() - positionOrEpoch);
+			ServerStorage.Main storage = (ServerStorage.Main) s;
+			State state = STATE.get();
+			if(state.playing) {
+				storage.position.set(Instant.now().toEpochMilli() - state.positionOrEpoch);
 			} else {
-				main.position.set(positionOrEpoch);
+				storage.position.set(state.positionOrEpoch);
 			}
+			storage.track.set(state.track);
+			storage.shuffle.set(state.shuffle);
+			storage.repeat.set(state.repeat);
+			storage.positiveFilterOptions.set(state.positiveOptions);
+			storage.negativeFilterOptions.set(state.negativeOptions);
+			savedVersion = state.version;
 		});
 	}
 
+	/// @return the current state of playback
+	public static State get() {
+		return STATE.get();
+	}
+
+	/// Makes a device the playback owner.
+	///
+	/// @return the new state
+	public static State setOwner(Device owner) {
+		return STATE.updateAndGet(state -> new State(state.version + 1, owner, -1, state.playing, state.positionOrEpoch,
+				state.track, state.shuffle, state.repeat, state.positiveOptions, state.negativeOptions));
+	}
+
+	/// Applies a [PlaybackUpdateMessage] if it was sent by the current owner and, when versioned, is newer than the
+	/// last update applied from it. On success, the message's [PlaybackUpdateMessage#version] is set to the new
+	/// state's version so that it can be broadcast.
+	///
+	/// @return the new state, or null if the update was rejected
+	public static State update(Device device, PlaybackUpdateMessage message) {
+		State state;
+		State newState;
+		do {
+			state = STATE.get();
+			if(device != state.owner) {
+				return null;
+			}
+			if(message.version != null && message.version <= state.ownerVersion) {
+				return null;
+			}
+			newState = new State(state.version + 1, state.owner,
+					message.version != null ? message.version : state.ownerVersion,
+					message.playing != null ? message.playing : state.playing,
+					message.positionOrEpoch != null ? message.positionOrEpoch : state.positionOrEpoch,
+					message.track != null ? message.track : state.track,
+					message.shuffle != null ? message.shuffle : state.shuffle,
+					message.repeat != null ? message.repeat : state.repeat,
+					message.positiveOptions != null ? List.copyOf(message.positiveOptions) : state.positiveOptions,
+					message.negativeOptions != null ? List.copyOf(message.negativeOptions) : state.negativeOptions);
+		} while(!STATE.compareAndSet(state, newState));
+
+		message.version = newState.version;
+		return newState;
+	}
+
 	/// Fill fields of a [LoginSuccessResponse] with information related to playback.
 	public static void fillLoginSuccessResponse(LoginSuccessResponse response) {
-		response.playbackOwner = owner == null ? null : owner.id;
-		response.playing = playing;
-		response.track = ServerStorage.MAIN.track.get();
-		response.positionOrEpoch = positionOrEpoch;
-		response.positiveOptions = ServerStorage.MAIN.positiveFilterOptions.get();
-		response.negativeOptions = ServerStorage.MAIN.positiveFilterOptions.get();
-		response.repeat = ServerStorage.MAIN.repeat.get();
-		response.shuffle = ServerStorage.MAIN.shuffle.get();
+		State state = STATE.get();
+		response.playbackOwner = state.owner == null ? null : state.owner.id;
+		response.playing = state.playing;
+		response.track = state.track;
+		response.positionOrEpoch = state.positionOrEpoch;
+		response.positiveOptions = state.positiveOptions;
+		response.negativeOptions = state.negativeOptions;
+		response.repeat = state.repeat;
+		response.shuffle = state.shuffle;
+	}
+
+	/// An immutable snapshot of the state of playback.
+	///
+	/// @param version incremented every time the state changes
+	/// @param owner the device which currently owns playback. This is the device which is meant to be playing
+	///  audio. The playback owner has the final say on any playback update. Devices which do not own playback are
+	///  allowed to send [PlaybackControlMessage]s but cannot directly call updates. Only the playback owner can send
+	///  [PlaybackUpdateMessage]s which get broadcasted to all connected devices.
+	/// @param ownerVersion the [PlaybackUpdateMessage#version] of the last update applied from the current owner,
+	///  or -1 if there is none
+	/// @param playing true if playing, false if paused
+	/// @param positionOrEpoch if playing, the epoch of when playback started. Else, the position in milliseconds in
+	///  the track.
+	/// @param track the filename of the current track
+	/// @param positiveOptions the selected positive filter options
+	/// @param negativeOptions the selected negative filter options
+	public record State(long version, Device owner, long ownerVersion, boolean playing, long positionOrEpoch,
+			String track, ShuffleOption shuffle, RepeatOption repeat, List<Pair<Integer, String>> positiveOptions,
+			List<Pair<Integer, String>> negativeOptions) {
 	}
 }
@@ -0,0 +1,500 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.pmp.server;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.blackilykat.pmp.Action;
+import dev.blackilykat.pmp.MessageListener;
+import dev.blackilykat.pmp.PMPConnection;
+import dev.blackilykat.pmp.messages.ActionMessage;
+import dev.blackilykat.pmp.messages.ActionRequest;
+import dev.blackilykat.pmp.messages.DisconnectMessage;
+import dev.blackilykat.pmp.messages.GetActionsRequest;
+import dev.blackilykat.pmp.messages.GetActionsResponse;
+import dev.blackilykat.pmp.messages.LoginAsExistingDeviceRequest;
+import dev.blackilykat.pmp.messages.LoginAsNewDeviceRequest;
+import dev.blackilykat.pmp.messages.LoginFailResponse;
+import dev.blackilykat.pmp.messages.LoginSuccessResponse;
+import dev.blackilykat.pmp.messages.Message;
+import dev.blackilykat.pmp.messages.PeerAnnounceMessage;
+import dev.blackilykat.pmp.messages.PeersRequest;
+import dev.blackilykat.pmp.messages.Request;
+import dev.blackilykat.pmp.messages.Response;
+import dev.blackilykat.pmp.messages.SearchRequest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/// Read-replica mode, in which this server mirrors the library of a primary server instead of accepting changes
+/// from its own devices.
+///
+/// The replica logs in to the primary as a device, follows its action log through [GetActionsRequest]s and
+/// [ActionMessage]s and applies each action to its own [Library], downloading tracks from the primary's transfer
+/// port. Applied actions are recorded in the replica's own [ActionJournal], so its devices can download tracks and
+/// follow the catalog from it as they would from the primary, while any change to the library and playback
+/// coordination stay on the primary. The replica's action ids are its own and do not match the primary's.
+///
+/// The id of the last applied action of the primary is kept in [ServerStorage.Main#primaryActionId]. If it is not
+/// known, or the primary no longer has the actions following it, the whole library is compared with the primary's
+/// track list instead (see [#resync]).
+public class Replica {
+	private static final Logger LOGGER = LogManager.getLogger(Replica.class);
+	/// How long to wait before reconnecting after the connection to the primary drops.
+	private static final int RECONNECT_COOLDOWN_MS = 5000;
+	/// Messages the replica's own devices may still send once logged in. Everything else is either a change to the
+	/// library or playback coordination, which must be performed on the primary.
+	private static final List<Class<? extends Message>> ALLOWED_MESSAGES = List.of(GetActionsRequest.class,
+			SearchRequest.class, ActionRequest.class, PeerAnnounceMessage.class, PeersRequest.class,
+			DisconnectMessage.class);
+
+	private static PMPConnection connection = null;
+	private static SSLContext sslContext = null;
+
+	/// Returns whether this server is a replica of another one.
+	public static boolean isEnabled() {
+		return ServerStorage.MAIN.primaryAddress.get() != null;
+	}
+
+	/// Returns whether a logged in device may send this message to the replica.
+	public static boolean isAllowed(Message message) {
+		return ALLOWED_MESSAGES.contains(message.getClass());
+	}
+
+	/// Makes this server a replica of the one at `address`, in the form `host[:port[:filePort]]`, or makes it a
+	/// standalone server again if `address` is null. Any state about a previous primary is discarded, so the new
+	/// one is followed from scratch.
+	///
+	/// @throws IllegalArgumentException if the ports are not numbers
+	public static void setPrimary(String address) throws IllegalArgumentException {
+		int port = PMPConnection.DEFAULT_MESSAGE_PORT;
+		int filePort = PMPConnection.DEFAULT_FILE_PORT;
+		if(address != null) {
+			String[] parts = address.split(":");
+			if(parts.length > 3) {
+				throw new IllegalArgumentException("Expected host[:port[:filePort]], got " + address);
+			}
+			try {
+				if(parts.length > 1) {
+					port = Integer.parseInt(parts[1]);
+				}
+				if(parts.length > 2) {
+					filePort = Integer.parseInt(parts[2]);
+				}
+			} catch(NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid port in " + address, e);
+			}
+			address = parts[0];
+		}
+
+		ServerStorage.MAIN.primaryAddress.set(address);
+		ServerStorage.MAIN.primaryPort.set(port);
+		ServerStorage.MAIN.primaryFilePort.set(filePort);
+		ServerStorage.MAIN.primaryActionId.set(-1);
+		ServerStorage.SENSITIVE.primaryDeviceId.set(null);
+		ServerStorage.SENSITIVE.primaryToken.set(null);
+		ServerStorage.SENSITIVE.primaryPublicKey.set(null);
+	}
+
+	/// If this server [#isEnabled] as a replica, starts following the primary in a background thread once the
+	/// [Library] scan has finished, so that the scan does not race with the changes being applied.
+	public static void init() {
+		if(!isEnabled()) {
+			return;
+		}
+		LOGGER.info("Initializing replica of {}...", ServerStorage.MAIN.primaryAddress.get());
+
+		try {
+			sslContext = SSLContext.getInstance("TLS");
+			sslContext.init(null, new TrustManager[]{new PrimaryTrustManager()}, SecureRandom.getInstanceStrong());
+		} catch(GeneralSecurityException e) {
+			LOGGER.fatal("Failed to initialize SSL for the replica", e);
+			System.exit(1);
+		}
+
+		Library.EVENT_SCAN_FINISHED.register(_ -> {
+			Thread thread = new Thread(Replica::run, "Replica thread");
+			thread.setDaemon(true);
+			thread.start();
+		});
+	}
+
+	/// Follows the primary, reconnecting whenever the connection drops, until the primary refuses to log in.
+	private static void run() {
+		String address = ServerStorage.MAIN.primaryAddress.get();
+		int port = ServerStorage.MAIN.primaryPort.get();
+		while(true) {
+			try {
+				follow(address, port);
+			} catch(LoginException e) {
+				LOGGER.fatal("Primary refused to log in ({}), no longer following it. Run with --replica-of to log "
+						+ "in again", e.getMessage());
+				return;
+			} catch(ConnectException e) {
+				LOGGER.warn("Could not connect to primary {}:{}", address, port);
+			} catch(IOException e) {
+				LOGGER.error("Error while following primary {}:{}", address, port, e);
+			} catch(InterruptedException e) {
+				LOGGER.error("Interrupted while following primary", e);
+				return;
+			} finally {
+				if(connection != null) {
+					connection.disconnect("Stopped following primary");
+					connection = null;
+				}
+			}
+
+			try {
+				Thread.sleep(RECONNECT_COOLDOWN_MS);
+			} catch(InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/// Connects and logs in to the primary, catches up with its actions and applies all following ones as they
+	/// arrive, until the connection drops.
+	private static void follow(String address, int port) throws IOException, InterruptedException {
+		connection = new PMPConnection(sslContext.getSocketFactory().createSocket(address, port), "Primary");
+
+		BlockingQueue<ActionMessage> incoming = new LinkedBlockingQueue<>();
+		// Messages from the primary must not reach the handlers, which expect them to come from devices. Responses
+		// still reach their request, as they are passed to it before listeners run.
+		connection.registerListener(new MessageListener<>(Message.class) {
+			@Override
+			public void run(Message message, AtomicBoolean cancelled) {
+				if(message instanceof DisconnectMessage) {
+					return;
+				}
+				if(message instanceof ActionMessage actionMessage) {
+					incoming.add(actionMessage);
+				}
+				cancelled.set(true);
+			}
+		});
+
+		int lastActionId = login();
+		catchUp(lastActionId);
+		LOGGER.info("Caught up with primary at action {}", ServerStorage.MAIN.primaryActionId.get());
+
+		while(connection.connected) {
+			ActionMessage message = incoming.poll(1, TimeUnit.SECONDS);
+			if(message == null) {
+				continue;
+			}
+			int applied = ServerStorage.MAIN.primaryActionId.get();
+			if(message.id <= applied) {
+				continue;
+			}
+			if(message.id > applied + 1) {
+				LOGGER.warn("Missed actions {} to {} of primary, catching up", applied + 1, message.id - 1);
+				catchUp(message.id);
+				continue;
+			}
+			apply(message.action);
+			ServerStorage.MAIN.primaryActionId.set(message.id);
+		}
+	}
+
+	/// Logs in to the primary with the stored token, falling back to [ServerStorage.Sensitive#primaryPassword].
+	///
+	/// @return the primary's last action id
+	/// @throws LoginException if the primary refuses both
+	private static int login() throws IOException, InterruptedException {
+		Integer deviceId = ServerStorage.SENSITIVE.primaryDeviceId.get();
+		String token = ServerStorage.SENSITIVE.primaryToken.get();
+		String password = ServerStorage.SENSITIVE.primaryPassword.get();
+
+		Response response = null;
+		if(deviceId != null && token != null) {
+			response = request(LoginAsExistingDeviceRequest.newWithToken(token, deviceId));
+		}
+		if(!(response instanceof LoginSuccessResponse) && password != null) {
+			if(deviceId == null) {
+				String hostname = InetAddress.getLocalHost().getHostName();
+				response = request(new LoginAsNewDeviceRequest(password, hostname + " (replica)"));
+			} else {
+				response = request(LoginAsExistingDeviceRequest.newWithPassword(password, deviceId));
+			}
+		}
+
+		if(response instanceof LoginFailResponse fail) {
+			throw new LoginException(fail.reason.toString());
+		}
+		if(!(response instanceof LoginSuccessResponse success)) {
+			throw new LoginException("no token or password");
+		}
+
+		ServerStorage.SENSITIVE.primaryDeviceId.set(success.deviceId);
+		ServerStorage.SENSITIVE.primaryToken.set(success.token);
+		ServerStorage.SENSITIVE.primaryPassword.set(null);
+		LOGGER.info("Logged in to primary as device {}", success.deviceId);
+		return success.lastActionId;
+	}
+
+	private static Response request(Request request) throws IOException, InterruptedException {
+		connection.send(request);
+		return request.takeResponse();
+	}
+
+	/// Applies the primary's actions up to `lastActionId` which were not applied yet, or [#resync]s if they are not
+	/// known or no longer available.
+	private static void catchUp(int lastActionId) throws IOException, InterruptedException {
+		int applied = ServerStorage.MAIN.primaryActionId.get();
+		if(applied != -1 && lastActionId > applied) {
+			GetActionsRequest request = new GetActionsRequest(applied + 1);
+			connection.send(request);
+			GetActionsResponse response;
+			do {
+				response = request.takeResponse();
+				if(response.resync) {
+					LOGGER.info("Primary no longer has actions since {}, resyncing", applied);
+					applied = -1;
+					continue;
+				}
+				for(int i = 0; i < response.actions.size(); i++) {
+					apply(response.actions.get(i));
+					// ids skip actions the primary compacted away
+					applied = response.ids.get(i);
+					ServerStorage.MAIN.primaryActionId.set(applied);
+				}
+			} while(!response.isLastResponse());
+		}
+
+		if(applied == -1) {
+			resync(lastActionId);
+		}
+	}
+
+	/// Compares the whole library with the primary's track list, removing tracks the primary does not have and
+	/// downloading the ones which are missing or different.
+	///
+	/// Actions performed on the primary after `lastActionId` may already be reflected in the list. That is fine, as
+	/// applying them again once they arrive changes nothing.
+	private static void resync(int lastActionId) throws IOException {
+		HttpsURLConnection conn = startTransferRequest("/");
+		if(conn.getResponseCode() != 200) {
+			throw new IOException("Primary responded " + conn.getResponseCode() + " to track list request");
+		}
+		List<PrimaryTrack> primaryTracks;
+		try(InputStream is = conn.getInputStream()) {
+			primaryTracks = List.of(new ObjectMapper().readValue(is, PrimaryTrack[].class));
+		}
+
+		Map<String, PrimaryTrack> byFilename = new HashMap<>();
+		for(PrimaryTrack track : primaryTracks) {
+			byFilename.put(track.filename(), track);
+		}
+
+		int removed = 0;
+		for(String filename : List.copyOf(ServerStorage.MAIN.tracks.get().keySet())) {
+			if(!byFilename.containsKey(filename) && mirrorRemove(filename)) {
+				removed++;
+			}
+		}
+
+		int downloaded = 0;
+		for(PrimaryTrack primaryTrack : primaryTracks) {
+			Track track = ServerStorage.MAIN.tracks.get(primaryTrack.filename());
+			if(track != null && track.checksum == primaryTrack.checksum()) {
+				continue;
+			}
+			if(mirror(primaryTrack.filename(), primaryTrack.contentHash())) {
+				downloaded++;
+			}
+		}
+
+		LOGGER.info("Resynced with primary: {} tracks downloaded, {} removed", downloaded, removed);
+		ServerStorage.MAIN.primaryActionId.set(lastActionId);
+	}
+
+	/// Applies an action of the primary to the library, recording the resulting changes as actions of this server.
+	private static void apply(Action action) throws IOException {
+		switch(action.actionType) {
+			case ADD, REPLACE -> mirror(action.filename, action.contentHash);
+			case REMOVE -> mirrorRemove(action.filename);
+			case RENAME -> {
+				Track track = ServerStorage.MAIN.tracks.get(action.filename);
+				try {
+					Library.rename(action.filename, action.newFilename, action.contentHash);
+					Action rename = new Action(action.filename, action.newFilename);
+					rename.contentHash = action.contentHash;
+					Library.recordAction(rename, null);
+				} catch(FileNotFoundException | FileAlreadyExistsException | IllegalArgumentException e) {
+					LOGGER.info("Could not mirror rename of {} to {} ({}), downloading it instead", action.filename,
+							action.newFilename, e.toString());
+					mirrorRemove(action.filename);
+					mirror(action.newFilename, track == null ? null : track.contentHash);
+				}
+			}
+			case CHANGE_METADATA -> {
+				String contentHash;
+				try {
+					contentHash = Library.changeMetadata(action.filename, action.newMetadata);
+				} catch(FileNotFoundException | IllegalArgumentException e) {
+					LOGGER.info("Could not mirror metadata change of {} ({}), downloading it instead",
+							action.filename, e.toString());
+					mirror(action.filename, action.contentHash);
+					return;
+				}
+				if(action.contentHash != null && !action.contentHash.equals(contentHash)) {
+					// the same change resulted in a different file, the primary's must be downloaded to match it
+					mirror(action.filename, action.contentHash);
+					return;
+				}
+				Action recorded = new Action(action.filename, action.newMetadata);
+				recorded.contentHash = contentHash;
+				Library.recordAction(recorded, null);
+			}
+		}
+	}
+
+	/// Makes the track with the given filename match the primary's, downloading it unless a track with the same
+	/// [dev.blackilykat.pmp.util.ContentHash] is already available.
+	///
+	/// @param contentHash the expected content hash of the primary's track, or null if not known
+	/// @return whether the library was changed, false if it already matched or the primary no longer has the track
+	private static boolean mirror(String filename, String contentHash) throws IOException {
+		Track existing = ServerStorage.MAIN.tracks.get(filename);
+		if(existing != null && contentHash != null && contentHash.equals(existing.contentHash)) {
+			return false;
+		}
+
+		if(contentHash == null || !Library.addExisting(filename, contentHash)) {
+			HttpsURLConnection conn = startTransferRequest("/" + filename);
+			int code = conn.getResponseCode();
+			if(code == 404) {
+				// removed or renamed since, which a later action will tell
+				LOGGER.info("Primary no longer has {}, not downloading it", filename);
+				return false;
+			}
+			if(code != 200) {
+				throw new IOException("Primary responded " + code + " to download of " + filename);
+			}
+			try(InputStream is = conn.getInputStream()) {
+				Library.add(filename, is);
+			} catch(IllegalArgumentException e) {
+				LOGGER.error("Primary sent invalid track {}", filename, e);
+				return false;
+			}
+		}
+
+		Action action = new Action(filename, existing == null ? Action.Type.ADD : Action.Type.REPLACE);
+		action.contentHash = ServerStorage.MAIN.tracks.get(filename).contentHash;
+		Library.recordAction(action, null);
+		return true;
+	}
+
+	/// Removes the track with the given filename, if there is one.
+	///
+	/// @return whether the library was changed
+	private static boolean mirrorRemove(String filename) throws IOException {
+		try {
+			Library.remove(filename);
+		} catch(FileNotFoundException _) {
+			return false;
+		}
+		Library.recordAction(new Action(filename, Action.Type.REMOVE), null);
+		return true;
+	}
+
+	/// Creates a GET request to the primary's transfer port, filling required authentication headers.
+	///
+	/// @param target URL path with the leading slash
+	private static HttpsURLConnection startTransferRequest(String target) throws IOException {
+		target = URLEncoder.encode(target, StandardCharsets.UTF_8).replace("%2F", "/");
+		URL url = URI.create("https://" + ServerStorage.MAIN.primaryAddress.get() + ":"
+				+ ServerStorage.MAIN.primaryFilePort.get() + target).toURL();
+
+		HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
+		conn.setSSLSocketFactory(sslContext.getSocketFactory());
+		// The expected certificate was checked in the socket factory. Hostname is irrelevant, skip this check.
+		conn.setHostnameVerifier((_, _) -> true);
+		conn.setRequestProperty("device", String.valueOf(ServerStorage.SENSITIVE.primaryDeviceId.get()));
+		conn.setRequestProperty("token", ServerStorage.SENSITIVE.primaryToken.get());
+		conn.setRequestMethod("GET");
+		return conn;
+	}
+
+	/// A track in the primary's track list.
+	@JsonIgnoreProperties(ignoreUnknown = true)
+	private record PrimaryTrack(String filename, long checksum, String contentHash) {}
+
+	/// The primary refused to log in, which retrying will not change.
+	private static class LoginException extends IOException {
+		public LoginException(String message) {
+			super(message);
+		}
+	}
+
+	/// Expects the primary to always have the same public key as when the replica first connected to it, as clients
+	/// do with their server.
+	private static class PrimaryTrustManager implements X509TrustManager {
+		@Override
+		public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+			if(chain.length != 1) {
+				throw new CertificateException(
+						"Unexpected chain length, should contain 1 certificate but contains " + chain.length);
+			}
+
+			Key primaryKey = ServerStorage.SENSITIVE.primaryPublicKey.getDecoded();
+
+			if(primaryKey == null) {
+				ServerStorage.SENSITIVE.primaryPublicKey.setDecoded(chain[0].getPublicKey());
+			} else if(!primaryKey.equals(chain[0].getPublicKey())) {
+				throw new CertificateException("Mismatching public keys");
+			}
+		}
+
+		@Override
+		public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+			checkClientTrusted(chain, authType);
+		}
+
+		@Override
+		public X509Certificate[] getAcceptedIssuers() {
+			return new X509Certificate[0];
+		}
+	}
+}
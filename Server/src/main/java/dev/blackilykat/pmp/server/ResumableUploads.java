@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.pmp.server;
+
+import dev.blackilykat.pmp.Action;
+import dev.blackilykat.pmp.util.ContentHash;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/// Partial data of uploads performed in multiple chunks, stored in [#UPLOADS] so that uploads can be resumed
+/// after losing connection, even after the pending action expires.
+///
+/// Each upload is identified by the device performing it, the track's filename, the total size and the action's
+/// [Action#contentHash], so that a changed file is never resumed with the old file's data. Uploads without a
+/// content hash must be [#discard]ed before starting, as a file with different contents but the same size would
+/// otherwise be resumed with the old file's data.
+///
+/// Chunks are written at their own offset rather than appended, so that a chunk repeated by a client which never
+/// got the response to it overwrites the same bytes with the same data.
+public class ResumableUploads {
+	/// The directory containing partial uploads.
+	public static final File UPLOADS = new File(Library.LIBRARY, ".uploads");
+	private static final Logger LOGGER = LogManager.getLogger(ResumableUploads.class);
+	/// How long, in milliseconds, partial uploads are kept after their last chunk was received.
+	private static final long MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+	/// Deletes partial uploads which have not been continued in a long time.
+	public static void init() {
+		if(!UPLOADS.isDirectory()) {
+			return;
+		}
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(UPLOADS.toPath())) {
+			for(Path path : stream) {
+				if(System.currentTimeMillis() - path.toFile().lastModified() > MAX_AGE_MS) {
+					LOGGER.info("Deleting abandoned partial upload {}", path.getFileName());
+					Files.deleteIfExists(path);
+				}
+			}
+		} catch(IOException e) {
+			LOGGER.error("Failed to clean up partial uploads", e);
+		}
+	}
+
+	/// Returns the file containing the partial data of the given upload, whether or not it exists.
+	public static File partFile(Device device, Action action, long total) {
+		MessageDigest digest = ContentHash.newDigest();
+		String key = device.id + "/" + action.filename + "/" + total + "/" + action.contentHash;
+		digest.update(key.getBytes(StandardCharsets.UTF_8));
+		return new File(UPLOADS, ContentHash.toString(digest));
+	}
+
+	/// Returns how many bytes from the start of the given upload have been received.
+	public static long receivedBytes(Device device, Action action, long total) {
+		File part = partFile(device, action, total);
+		return part.isFile() ? part.length() : 0;
+	}
+
+	/// Deletes the partial data of the given upload, if any.
+	public static void discard(Device device, Action action, long total) throws IOException {
+		Files.deleteIfExists(partFile(device, action, total).toPath());
+	}
+
+	/// Writes the given chunk of the upload at its offset.
+	///
+	/// @param start the offset of the chunk, which must not be after the end of the received data
+	/// @param length the amount of bytes expected in the chunk
+	/// @return how many bytes from the start of the upload have been received after writing the chunk
+	/// @throws IOException if the chunk could not be read entirely. The part of it which was received is kept
+	public static long writeChunk(Device device, Action action, long total, long start, long length, InputStream is)
+			throws IOException {
+		Files.createDirectories(UPLOADS.toPath());
+		File part = partFile(device, action, total);
+		try(FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE)) {
+			if(start > channel.size()) {
+				throw new IllegalArgumentException("Chunk starts after the end of the received data");
+			}
+
+			// 0.125 MiB
+			byte[] buf = new byte[0x20_000];
+			long position = start;
+			long end = start + length;
+			while(position < end) {
+				int read = is.read(buf, 0, (int) Math.min(buf.length, end - position));
+				if(read == -1) {
+					throw new IOException("Chunk ended after " + (position - start) + " of " + length + " bytes");
+				}
+				ByteBuffer buffer = ByteBuffer.wrap(buf, 0, read);
+				while(buffer.hasRemaining()) {
+					position += channel.write(buffer, position);
+				}
+			}
+			return channel.size();
+		}
+	}
+}
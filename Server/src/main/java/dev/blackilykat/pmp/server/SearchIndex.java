@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package dev.blackilykat.pmp.server;
+
+import dev.blackilykat.pmp.messages.SearchRequest;
+import dev.blackilykat.pmp.util.Pair;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/// Inverted index over the filename and [Track#metadata] of every track in the library, used to answer
+/// [SearchRequest]s without going through every track.
+///
+/// Words are lowercased and kept sorted so that terms can match any word they are a prefix of. The index is kept
+/// up to date by [Library] whenever a track is cached or uncached.
+public class SearchIndex {
+	private static final Logger LOGGER = LogManager.getLogger(SearchIndex.class);
+	private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+	/// word -> filenames of the tracks containing it in any field or in their filename
+	private static final NavigableMap<String, Set<String>> WORDS = new TreeMap<>();
+	/// lowercase field name -> word -> filenames of the tracks containing it in that field
+	private static final Map<String, NavigableMap<String, Set<String>>> FIELDS = new HashMap<>();
+	/// The tracks currently in the index, needed to remove them.
+	private static final Map<String, Track> INDEXED = new HashMap<>();
+	private static final ReadWriteLock LOCK = new ReentrantReadWriteLock();
+
+	/// Indexes all cached tracks. Tracks changing later are indexed through [#update].
+	public static void init() {
+		long start = System.currentTimeMillis();
+		Collection<Track> tracks = ServerStorage.MAIN.tracks.get().values();
+		for(Track track : tracks.toArray(new Track[0])) {
+			update(track.filename, track);
+		}
+		LOGGER.info("Indexed {} tracks for search in {} ms", INDEXED.size(), System.currentTimeMillis() - start);
+	}
+
+	/// Replaces whatever is indexed for a filename with the given track.
+	///
+	/// @param track the new track, or null to only remove the previous one
+	public static void update(String filename, Track track) {
+		LOCK.writeLock().lock();
+		try {
+			Track previous = INDEXED.remove(filename);
+			if(previous != null) {
+				forEachWord(previous, (field, word) -> {
+					unindex(WORDS, word, filename);
+					NavigableMap<String, Set<String>> fieldWords = FIELDS.get(field);
+					if(fieldWords != null) {
+						unindex(fieldWords, word, filename);
+						if(fieldWords.isEmpty()) {
+							FIELDS.remove(field);
+						}
+					}
+				});
+			}
+			if(track != null) {
+				INDEXED.put(filename, track);
+				forEachWord(track, (field, word) -> {
+					WORDS.computeIfAbsent(word, _ -> new HashSet<>()).add(filename);
+					if(field != null) {
+						FIELDS.computeIfAbsent(field, _ -> new TreeMap<>())
+								.computeIfAbsent(word, _ -> new HashSet<>())
+								.add(filename);
+					}
+				});
+			}
+		} finally {
+			LOCK.writeLock().unlock();
+		}
+	}
+
+	/// Finds the tracks matching a query, as described in [SearchRequest].
+	///
+	/// @return the filenames of all matching tracks, sorted. Empty if the query has no terms.
+	public static List<String> search(String query) {
+		List<Pair<String, String>> terms = new ArrayList<>();
+		for(String term : query.trim().split("\\s+")) {
+			String field = null;
+			int colon = term.indexOf(':');
+			if(colon > 0) {
+				field = term.substring(0, colon).toLowerCase(Locale.ROOT);
+				term = term.substring(colon + 1);
+			}
+			for(String word : words(term)) {
+				terms.add(new Pair<>(field, word));
+			}
+		}
+		if(terms.isEmpty()) {
+			return List.of();
+		}
+
+		LOCK.readLock().lock();
+		try {
+			Set<String> result = null;
+			for(Pair<String, String> term : terms) {
+				NavigableMap<String, Set<String>> words = term.key == null ? WORDS : FIELDS.get(term.key);
+				Set<String> matches = new HashSet<>();
+				if(words != null) {
+					for(Set<String> filenames : words.subMap(term.value, true, term.value + Character.MAX_VALUE,
+							false).values()) {
+						if(result == null) {
+							matches.addAll(filenames);
+						} else {
+							for(String filename : filenames) {
+								if(result.contains(filename)) {
+									matches.add(filename);
+								}
+							}
+						}
+					}
+				}
+				result = matches;
+				if(result.isEmpty()) {
+					break;
+				}
+			}
+
+			List<String> sorted = new ArrayList<>(result);
+			sorted.sort(null);
+			return sorted;
+		} finally {
+			LOCK.readLock().unlock();
+		}
+	}
+
+	private static void unindex(NavigableMap<String, Set<String>> words, String word, String filename) {
+		Set<String> filenames = words.get(word);
+		if(filenames == null) {
+			return;
+		}
+		filenames.remove(filename);
+		if(filenames.isEmpty()) {
+			words.remove(word);
+		}
+	}
+
+	/// Calls the consumer for every word in the track's filename, with a null field, and in its metadata, with the
+	/// lowercase field name.
+	private static void forEachWord(Track track, WordConsumer consumer) {
+		for(String word : words(track.filename)) {
+			consumer.accept(null, word);
+		}
+		if(track.metadata == null) {
+			return;
+		}
+		for(Pair<String, String> entry : track.metadata) {
+			if(entry.key == null || entry.value == null) {
+				continue;
+			}
+			String field = entry.key.toLowerCase(Locale.ROOT);
+			for(String word : words(entry.value)) {
+				consumer.accept(field, word);
+			}
+		}
+	}
+
+	private static List<String> words(String text) {
+		List<String> words = new ArrayList<>();
+		for(String word : WORD_SEPARATOR.split(text.toLowerCase(Locale.ROOT))) {
+			if(!word.isEmpty()) {
+				words.add(word);
+			}
+		}
+		return words;
+	}
+
+	private interface WordConsumer {
+		void accept(String field, String word);
+	}
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.pmp.server;
+
+import dev.blackilykat.pmp.FilterInfo;
+import dev.blackilykat.pmp.PMPConnection;
+import dev.blackilykat.pmp.messages.SelectionRequest;
+import dev.blackilykat.pmp.messages.SelectionResponse;
+import dev.blackilykat.pmp.messages.SelectionUpdateMessage;
+import dev.blackilykat.pmp.util.Pair;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/// Index of the metadata values of every track in the library, used to evaluate the shared filter state for clients
+/// through [SelectionRequest]s without them going through their whole library.
+///
+/// Filters are evaluated the same way clients do: in order, each one keeping the tracks matching any of its positive
+/// options, or all of them if there are none, except those matching any of its negative options. Selected options
+/// whose value is not found in the tracks left by the previous filters are ignored, as clients remove those options.
+///
+/// The selection is evaluated again shortly after the filters, the selected filter options or the library change,
+/// and subscribed clients are sent what changed through [SelectionUpdateMessage]s. The index is kept up to date by
+/// [Library] whenever a track is cached or uncached.
+public class SelectionIndex {
+	private static final Logger LOGGER = LogManager.getLogger(SelectionIndex.class);
+	/// How long to wait after a change before evaluating the selection again, so that changes in bulk such as a
+	/// library scan only cause one evaluation.
+	private static final long EVALUATION_DELAY_MS = 200;
+
+	/// lowercase key -> value -> filenames of the tracks with that value for the key
+	private static final Map<String, Map<String, Set<String>>> VALUES = new HashMap<>();
+	/// lowercase key -> lowercase value -> filenames of the tracks with that value for the key, in any case. Used to
+	/// match options, which clients compare case-insensitively.
+	private static final Map<String, Map<String, Set<String>>> FOLDED_VALUES = new HashMap<>();
+	/// lowercase key -> filenames of the tracks with any value for the key
+	private static final Map<String, Set<String>> KEYED = new HashMap<>();
+	/// The tracks currently in the index, needed to remove them.
+	private static final Map<String, Track> INDEXED = new HashMap<>();
+	private static final ReadWriteLock LOCK = new ReentrantReadWriteLock();
+
+	/// The connections which subscribed to [SelectionUpdateMessage]s. Synchronized on to access [#current] and
+	/// [#version], so that no update is sent between evaluating a selection and sending it.
+	private static final Set<ClientConnection> SUBSCRIBERS = ConcurrentHashMap.newKeySet();
+	private static final ScheduledExecutorService EVALUATOR = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "Selection evaluator");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private static final AtomicBoolean EVALUATION_SCHEDULED = new AtomicBoolean(false);
+
+	/// The last evaluated selection, or null if it needs to be evaluated again.
+	private static Selection current = null;
+	/// Incremented every time [#current] changes.
+	private static long version = 0;
+
+	/// Indexes all cached tracks. Tracks changing later are indexed through [#update].
+	public static void init() {
+		long start = System.currentTimeMillis();
+		Collection<Track> tracks = ServerStorage.MAIN.tracks.get().values();
+		for(Track track : tracks.toArray(new Track[0])) {
+			update(track.filename, track);
+		}
+		LOGGER.info("Indexed {} tracks for selections in {} ms", INDEXED.size(), System.currentTimeMillis() - start);
+
+		PMPConnection.EVENT_DISCONNECTED.register(pmpConn -> {
+			if(pmpConn instanceof ClientConnection connection) {
+				SUBSCRIBERS.remove(connection);
+			}
+		});
+	}
+
+	/// Replaces whatever is indexed for a filename with the given track.
+	///
+	/// @param track the new track, or null to only remove the previous one
+	public static void update(String filename, Track track) {
+		LOCK.writeLock().lock();
+		try {
+			Track previous = INDEXED.remove(filename);
+			if(previous != null && previous.metadata != null) {
+				for(Pair<String, String> entry : previous.metadata) {
+					if(entry.key == null || entry.value == null) {
+						continue;
+					}
+					String key = entry.key.toLowerCase(Locale.ROOT);
+					unindex(VALUES, key, entry.value, filename);
+					unindex(FOLDED_VALUES, key, entry.value.toLowerCase(Locale.ROOT), filename);
+					Set<String> keyed = KEYED.get(key);
+					if(keyed != null) {
+						keyed.remove(filename);
+						if(keyed.isEmpty()) {
+							KEYED.remove(key);
+						}
+					}
+				}
+			}
+			if(track != null) {
+				INDEXED.put(filename, track);
+				if(track.metadata != null) {
+					for(Pair<String, String> entry : track.metadata) {
+						if(entry.key == null || entry.value == null) {
+							continue;
+						}
+						String key = entry.key.toLowerCase(Locale.ROOT);
+						VALUES.computeIfAbsent(key, _ -> new HashMap<>())
+								.computeIfAbsent(entry.value, _ -> new HashSet<>())
+								.add(filename);
+						FOLDED_VALUES.computeIfAbsent(key, _ -> new HashMap<>())
+								.computeIfAbsent(entry.value.toLowerCase(Locale.ROOT), _ -> new HashSet<>())
+								.add(filename);
+						KEYED.computeIfAbsent(key, _ -> new HashSet<>()).add(filename);
+					}
+				}
+			}
+		} finally {
+			LOCK.writeLock().unlock();
+		}
+		invalidate();
+	}
+
+	/// Schedules the selection to be evaluated again, sending what changed to subscribers. Called whenever anything
+	/// the selection depends on changes.
+	public static void invalidate() {
+		if(EVALUATION_SCHEDULED.compareAndSet(false, true)) {
+			EVALUATOR.schedule(SelectionIndex::reevaluate, EVALUATION_DELAY_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/// Sends the current selection to a connection in response to a [SelectionRequest], subscribing it to updates if
+	/// requested.
+	public static void respond(ClientConnection connection, SelectionRequest request) {
+		synchronized(SUBSCRIBERS) {
+			if(current == null) {
+				current = evaluate();
+				version++;
+			}
+			if(request.subscribe) {
+				SUBSCRIBERS.add(connection);
+			}
+			List<String> filenames = new ArrayList<>(current.filenames);
+			filenames.sort(null);
+			connection.send(new SelectionResponse(request.requestId, version, filenames, current.optionValues));
+		}
+	}
+
+	private static void reevaluate() {
+		EVALUATION_SCHEDULED.set(false);
+		synchronized(SUBSCRIBERS) {
+			if(SUBSCRIBERS.isEmpty()) {
+				// evaluated again once requested
+				current = null;
+				return;
+			}
+			Selection previous = current;
+			long start = System.currentTimeMillis();
+			current = evaluate();
+
+			List<String> added = new ArrayList<>();
+			for(String filename : current.filenames) {
+				if(previous == null || !previous.filenames.contains(filename)) {
+					added.add(filename);
+				}
+			}
+			List<String> removed = new ArrayList<>();
+			if(previous != null) {
+				for(String filename : previous.filenames) {
+					if(!current.filenames.contains(filename)) {
+						removed.add(filename);
+					}
+				}
+			}
+			Map<Integer, List<String>> optionValues = new HashMap<>();
+			for(Map.Entry<Integer, List<String>> entry : current.optionValues.entrySet()) {
+				if(previous == null || !Objects.equals(previous.optionValues.get(entry.getKey()), entry.getValue())) {
+					optionValues.put(entry.getKey(), entry.getValue());
+				}
+			}
+			if(added.isEmpty() && removed.isEmpty() && optionValues.isEmpty()) {
+				return;
+			}
+			version++;
+			LOGGER.debug("Selection version {}: {} added, {} removed in {} ms", version, added.size(), removed.size(),
+					System.currentTimeMillis() - start);
+
+			added.sort(null);
+			removed.sort(null);
+			SelectionUpdateMessage message = new SelectionUpdateMessage(version, added, removed, optionValues);
+			for(ClientConnection connection : SUBSCRIBERS) {
+				if(connection.device == null || connection.device.getClientConnection() != connection) {
+					SUBSCRIBERS.remove(connection);
+					continue;
+				}
+				connection.send(message);
+			}
+		}
+	}
+
+	/// Evaluates the filters in [ServerStorage.Main#filters] with the options selected in the [Playback] state.
+	private static Selection evaluate() {
+		List<FilterInfo> filters = List.copyOf(ServerStorage.MAIN.filters.get());
+		Playback.State state = Playback.get();
+
+		LOCK.readLock().lock();
+		try {
+			Set<String> selection = new HashSet<>(INDEXED.keySet());
+			Map<Integer, List<String>> optionValues = new HashMap<>();
+			for(FilterInfo filter : filters) {
+				String key = filter.key().toLowerCase(Locale.ROOT);
+				Map<String, Set<String>> values = VALUES.getOrDefault(key, Map.of());
+				Map<String, Set<String>> foldedValues = FOLDED_VALUES.getOrDefault(key, Map.of());
+				Set<String> keyed = KEYED.getOrDefault(key, Set.of());
+
+				List<String> found = new ArrayList<>();
+				found.add(FilterInfo.OPTION_EVERYTHING);
+				for(Map.Entry<String, Set<String>> entry : values.entrySet()) {
+					if(intersects(entry.getValue(), selection)) {
+						found.add(entry.getKey());
+					}
+				}
+				if(!keyed.containsAll(selection)) {
+					found.add(FilterInfo.OPTION_UNKNOWN);
+				}
+				found.sort(null);
+				optionValues.put(filter.id(), found);
+				Set<String> foundSet = new HashSet<>(found);
+
+				Set<String> next = new HashSet<>();
+				boolean anyPositive = false;
+				for(Pair<Integer, String> option : state.positiveOptions()) {
+					if(option.key != filter.id() || !foundSet.contains(option.value)) {
+						continue;
+					}
+					anyPositive = true;
+					next.addAll(matching(option.value, foldedValues, keyed, selection));
+				}
+				if(!anyPositive) {
+					next = selection;
+				}
+				for(Pair<Integer, String> option : state.negativeOptions()) {
+					if(option.key != filter.id() || !foundSet.contains(option.value)) {
+						continue;
+					}
+					next.removeAll(matching(option.value, foldedValues, keyed, selection));
+				}
+				selection = next;
+			}
+			return new Selection(selection, optionValues);
+		} finally {
+			LOCK.readLock().unlock();
+		}
+	}
+
+	/// Returns the tracks in `selection` matching an option of a filter, which [FilterInfo#OPTION_EVERYTHING] always
+	/// does and [FilterInfo#OPTION_UNKNOWN] does when they have no value for the filter's key.
+	private static Set<String> matching(String option, Map<String, Set<String>> foldedValues, Set<String> keyed,
+			Set<String> selection) {
+		Set<String> matches = new HashSet<>();
+		if(option.equals(FilterInfo.OPTION_EVERYTHING)) {
+			matches.addAll(selection);
+		} else if(option.equals(FilterInfo.OPTION_UNKNOWN)) {
+			for(String filename : selection) {
+				if(!keyed.contains(filename)) {
+					matches.add(filename);
+				}
+			}
+		} else {
+			for(String filename : foldedValues.getOrDefault(option.toLowerCase(Locale.ROOT), Set.of())) {
+				if(selection.contains(filename)) {
+					matches.add(filename);
+				}
+			}
+		}
+		return matches;
+	}
+
+	private static boolean intersects(Set<String> a, Set<String> b) {
+		Set<String> smaller = a.size() < b.size() ? a : b;
+		Set<String> larger = smaller == a ? b : a;
+		for(String element : smaller) {
+			if(larger.contains(element)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void unindex(Map<String, Map<String, Set<String>>> index, String key, String value,
+			String filename) {
+		Map<String, Set<String>> values = index.get(key);
+		if(values == null) {
+			return;
+		}
+		Set<String> filenames = values.get(value);
+		if(filenames == null) {
+			return;
+		}
+		filenames.remove(filename);
+		if(filenames.isEmpty()) {
+			values.remove(value);
+			if(values.isEmpty()) {
+				index.remove(key);
+			}
+		}
+	}
+
+	/// @param filenames the matching tracks
+	/// @param optionValues the values of the options of each filter, by filter id
+	private record Selection(Set<String> filenames, Map<Integer, List<String>> optionValues) {}
+}
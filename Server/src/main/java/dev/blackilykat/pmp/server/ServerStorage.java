@@ -20,11 +20,13 @@ package dev.blackilykat.pmp.server;
 import dev.blackilykat.pmp.Action;
 import dev.blackilykat.pmp.FilterInfo;
 import dev.blackilykat.pmp.RepeatOption;
+import dev.blackilykat.pmp.PMPConnection;
 import dev.blackilykat.pmp.ShuffleOption;
 import dev.blackilykat.pmp.storage.SensitiveStorage;
 import dev.blackilykat.pmp.storage.Storage;
 import dev.blackilykat.pmp.storage.Stored;
 import dev.blackilykat.pmp.storage.StoredInt;
+import dev.blackilykat.pmp.storage.StoredKey;
 import dev.blackilykat.pmp.storage.StoredList;
 import dev.blackilykat.pmp.storage.StoredMap;
 import dev.blackilykat.pmp.util.Pair;
@@ -57,6 +59,9 @@ public class ServerStorage {
 		public final StoredMap<String, Track> tracks = new StoredMap<>(String.class, Track.class, this);
 
 		/// All actions ever performed on the library. Their index is equivalent to the action ID.
+		///
+		/// No longer used: actions are kept in the [ActionJournal], which moves any action found here to itself when
+		/// initializing.
 		public final StoredList<Action> actions = new StoredList<>(Action.class, this);
 
 		/// The currently playing track's filename.
@@ -86,6 +91,43 @@ public class ServerStorage {
 		// Basic information on filters.
 		public final StoredList<FilterInfo> filters = new StoredList<>(FilterInfo.class, this);
 
+		/// Whether received tracks are kept in the [BlobStore], allowing identical uploads to complete without
+		/// transferring the file. Off by default, as it relies on hard links.
+		public final Stored<Boolean> contentAddressedStorage = new Stored<>(Boolean.class, this, false);
+
+		/// [Analysis] results of the tracks in the library, by [Track#contentKey].
+		public final StoredMap<String, Analysis.Result> analyses = new StoredMap<>(String.class, Analysis.Result.class,
+				this);
+
+		/// How many tracks the [Analysis] pool decodes at the same time.
+		public final StoredInt analysisThreads = new StoredInt(this, 1);
+
+		/// How many tracks the [Transcoder] pool transcodes at the same time.
+		public final StoredInt transcodeThreads = new StoredInt(this, 1);
+
+		/// The port the server accepts [PMPConnection]s on.
+		///
+		/// Defaults to {@value PMPConnection#DEFAULT_MESSAGE_PORT}.
+		public final StoredInt messagePort = new StoredInt(this, PMPConnection.DEFAULT_MESSAGE_PORT);
+
+		/// The port the [TransferHandler] listens on.
+		///
+		/// Defaults to {@value PMPConnection#DEFAULT_FILE_PORT}.
+		public final StoredInt filePort = new StoredInt(this, PMPConnection.DEFAULT_FILE_PORT);
+
+		/// The address of the primary server this server is a [Replica] of, or null if it is not a replica.
+		public final Stored<String> primaryAddress = new Stored<>(String.class, this, null);
+
+		/// The message port of the primary server.
+		public final StoredInt primaryPort = new StoredInt(this, PMPConnection.DEFAULT_MESSAGE_PORT);
+
+		/// The file port of the primary server.
+		public final StoredInt primaryFilePort = new StoredInt(this, PMPConnection.DEFAULT_FILE_PORT);
+
+		/// The id of the last action of the primary server which the [Replica] has applied, or -1 if it has never
+		/// followed it.
+		public final StoredInt primaryActionId = new StoredInt(this, -1);
+
 		public Main() {
 			super(NAME);
 		}
@@ -99,6 +141,14 @@ public class ServerStorage {
 		public final StoredList<Device> devices = new StoredList<>(Device.class, this);
 		/// The password the user must enter to log in with a new device.
 		public final Stored<String> password = new Stored<>(String.class, this, null);
+		/// The password of the primary server, only kept until the [Replica] logs in to it for the first time.
+		public final Stored<String> primaryPassword = new Stored<>(String.class, this, null);
+		/// The device id the [Replica] is logged in to the primary server as.
+		public final Stored<Integer> primaryDeviceId = new Stored<>(Integer.class, this, null);
+		/// The token the [Replica] logs in to the primary server with.
+		public final Stored<String> primaryToken = new Stored<>(String.class, this, null);
+		/// The public key of the primary server, expected to stay the same as when the [Replica] first connected.
+		public final StoredKey primaryPublicKey = new StoredKey(this);
 
 		public Sensitive() {
 			super(NAME);
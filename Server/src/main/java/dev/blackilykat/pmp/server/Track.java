@@ -21,6 +21,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.List;
 import java.util.zip.CRC32;
 import java.util.zip.CheckedInputStream;
@@ -33,6 +35,7 @@ import org.kc7bfi.jflac.FLACDecoder;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
+import dev.blackilykat.pmp.util.ContentHash;
 import dev.blackilykat.pmp.util.FLACUtil;
 import dev.blackilykat.pmp.util.Pair;
 
@@ -51,17 +54,22 @@ public class Track {
 	public long checksum;
 	/// All FLAC metadata in the file.
 	public List<Pair<String, String>> metadata;
+	/// [ContentHash] of [#file], used to find files with identical contents. May be null for tracks cached before
+	/// it was introduced, until they are read again by the library scan.
+	public String contentHash;
 
 	/// Create a track with known details, used in storage deserialization.
 	///
 	/// This constructor trusts the input data and does not read the file at all.
 	@JsonCreator
-	public Track(String filename, long lastModified, long checksum, List<Pair<String, String>> metadata) {
+	public Track(String filename, long lastModified, long checksum, List<Pair<String, String>> metadata,
+			String contentHash) {
 		this.filename = filename;
-		this.file = Library.LIBRARY.toPath().resolve(filename).toFile();
+		this.file = LibraryLayout.fileFor(filename);
 		this.lastModified = lastModified;
 		this.checksum = checksum;
 		this.metadata = metadata;
+		this.contentHash = contentHash;
 	}
 
 	/// Create a track with unknown details by reading `file`.
@@ -73,7 +81,20 @@ public class Track {
 		reload();
 	}
 
-	/// Reload lastModified, checksum and metadata from file
+	/// Returns a key identifying the track's contents, which changes whenever they do. Used to name data derived from
+	/// the contents, such as [AlbumArt] thumbnails and [Analysis] results.
+	///
+	/// Tracks without a [#contentHash] fall back to their checksum and size, which tell most different contents
+	/// apart, until the library scan calculates their content hash.
+	@JsonIgnore
+	public String contentKey() {
+		if(contentHash != null) {
+			return contentHash;
+		}
+		return "crc-" + Long.toHexString(checksum) + "-" + file.length();
+	}
+
+	/// Reload lastModified, checksum, metadata and content hash from file
 	public void reload() throws IOException {
 		if(!file.exists()) {
 			throw new IllegalStateException("File does not exist");
@@ -82,7 +103,9 @@ public class Track {
 		lastModified = file.lastModified();
 
 		Checksum checksum = new CRC32();
-		try(CheckedInputStream is = new CheckedInputStream(new FileInputStream(file), checksum)) {
+		MessageDigest digest = ContentHash.newDigest();
+		try(CheckedInputStream is = new CheckedInputStream(new DigestInputStream(new FileInputStream(file), digest),
+				checksum)) {
 			FLACDecoder decoder = new FLACDecoder(is);
 
 			this.metadata = FLACUtil.extractMetadata(decoder.readMetadata());
@@ -99,5 +122,6 @@ public class Track {
 		}
 
 		this.checksum = checksum.getValue();
+		this.contentHash = ContentHash.toString(digest);
 	}
 }
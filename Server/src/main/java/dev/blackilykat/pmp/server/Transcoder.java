@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.pmp.server;
+
+import dev.blackilykat.pmp.Globals;
+import dev.blackilykat.pmp.TranscodeProfile;
+import dev.blackilykat.pmp.util.FLACEncoder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.kc7bfi.jflac.FLACDecoder;
+import org.kc7bfi.jflac.PCMProcessor;
+import org.kc7bfi.jflac.metadata.Metadata;
+import org.kc7bfi.jflac.metadata.StreamInfo;
+import org.kc7bfi.jflac.util.ByteData;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/// Cache of smaller versions of tracks, for devices which ask for a [TranscodeProfile] when downloading them. The
+/// tracks in the library are never modified.
+///
+/// Transcoded tracks are FLAC files in [#DIRECTORY], named after the [Track#contentKey] of the original and the
+/// profile. They are made when first asked for by a pool of [ServerStorage.Main#transcodeThreads] low priority
+/// threads, decoding the original and encoding it again through [FLACEncoder]. Tracks a profile would not change get
+/// an empty `.same` file instead, so they are not read again. Files no longer used by any track are deleted once the
+/// library scan is over.
+///
+/// Transcoded tracks keep the original's vorbis comments but not its pictures, as devices can get album art from
+/// [AlbumArt] instead.
+public class Transcoder {
+	/// The directory containing the transcoded tracks.
+	public static final File DIRECTORY = new File(Globals.dataRoot, "transcodes");
+	private static final Logger LOGGER = LogManager.getLogger(Transcoder.class);
+	/// Transcodes which are queued or in progress by file name, so that tracks are not transcoded twice at once.
+	private static final Map<String, CompletableFuture<File>> IN_PROGRESS = new ConcurrentHashMap<>();
+	private static ExecutorService pool = null;
+
+	/// Creates [#DIRECTORY], deletes incomplete transcodes and starts the transcoding pool. Once the library scan is
+	/// over, deletes transcodes no track uses anymore.
+	public static void init() {
+		if(!DIRECTORY.isDirectory() && !DIRECTORY.mkdirs()) {
+			LOGGER.error("Failed to create transcode directory, tracks will only be sent as they are");
+			return;
+		}
+		File[] leftovers = DIRECTORY.listFiles((_, name) -> name.endsWith(".tmp"));
+		if(leftovers != null) {
+			for(File leftover : leftovers) {
+				var _ = leftover.delete();
+			}
+		}
+
+		int threads = Math.max(1, ServerStorage.MAIN.transcodeThreads.get());
+		AtomicInteger count = new AtomicInteger();
+		pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "Transcoding thread " + count.incrementAndGet());
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+
+		Library.EVENT_SCAN_FINISHED.register(_ -> {
+			Set<String> keys = new HashSet<>();
+			for(Track track : ServerStorage.MAIN.tracks.get().values().toArray(new Track[0])) {
+				keys.add(track.contentKey());
+			}
+			collectGarbage(keys);
+		});
+	}
+
+	/// Returns the version of a track for a profile, transcoding it in the background first if it was not yet.
+	///
+	/// @return a future completed with the transcoded file, or with the track's own file if the profile would not
+	/// change it or transcoding is not available
+	public static CompletableFuture<File> get(Track track, TranscodeProfile profile) {
+		if(pool == null) {
+			return CompletableFuture.completedFuture(track.file);
+		}
+		String name = track.contentKey() + "-" + profile.name().toLowerCase(Locale.ROOT);
+		File transcoded = new File(DIRECTORY, name + ".flac");
+		File same = new File(DIRECTORY, name + ".same");
+		if(transcoded.isFile()) {
+			return CompletableFuture.completedFuture(transcoded);
+		}
+		if(same.isFile()) {
+			return CompletableFuture.completedFuture(track.file);
+		}
+
+		CompletableFuture<File> future = IN_PROGRESS.computeIfAbsent(name, _ -> CompletableFuture.supplyAsync(() -> {
+			try {
+				if(transcode(track, profile, transcoded)) {
+					LOGGER.debug("Transcoded {} to {}", track.filename, profile);
+					return transcoded;
+				}
+				var _ = same.createNewFile();
+				return track.file;
+			} catch(IOException | IllegalArgumentException e) {
+				// the file may have changed or been removed while reading it
+				LOGGER.warn("Failed to transcode {} to {}", track.filename, profile, e);
+				throw new CompletionException(e);
+			}
+		}, pool));
+		// only once the future is in the map, as the task may complete before computeIfAbsent returns
+		future.whenComplete((_, _) -> IN_PROGRESS.remove(name, future));
+		return future;
+	}
+
+	/// Transcodes a track to `target`, through a `.tmp` file so that it is never seen incomplete.
+	///
+	/// @return false, writing nothing, if the profile would not change the track
+	private static boolean transcode(Track track, TranscodeProfile profile, File target) throws IOException {
+		StreamInfo streamInfo = null;
+		try(InputStream is = new FileInputStream(track.file)) {
+			for(Metadata metadatum : new FLACDecoder(is).readMetadata()) {
+				if(metadatum instanceof StreamInfo info) {
+					streamInfo = info;
+					break;
+				}
+			}
+		}
+		if(streamInfo == null) {
+			throw new IOException("Track has no STREAMINFO");
+		}
+		if(!profile.reduces(streamInfo.getSampleRate(), streamInfo.getBitsPerSample())) {
+			return false;
+		}
+
+		File tmp = new File(target.getPath() + ".tmp");
+		try {
+			Converter converter;
+			try(InputStream is = new BufferedInputStream(new FileInputStream(track.file))) {
+				FLACDecoder decoder = new FLACDecoder(is);
+				converter = new Converter(streamInfo, profile, tmp, track);
+				decoder.addPCMProcessor(converter);
+				try {
+					decoder.decode();
+				} finally {
+					converter.finish();
+				}
+			}
+			if(converter.error != null) {
+				throw converter.error;
+			}
+			if(converter.samples == 0) {
+				throw new IOException("Could not decode any audio");
+			}
+
+			try {
+				Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch(AtomicMoveNotSupportedException _) {
+				Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			return true;
+		} finally {
+			var _ = tmp.delete();
+		}
+	}
+
+	/// Deletes transcodes and `.same` files of tracks whose [Track#contentKey] is not in `keys`.
+	private static void collectGarbage(Set<String> keys) {
+		File[] files = DIRECTORY.listFiles();
+		if(files == null) {
+			return;
+		}
+		int deleted = 0;
+		for(File file : files) {
+			String name = file.getName();
+			int end = name.lastIndexOf('-');
+			if(name.endsWith(".tmp") || (end > 0 && keys.contains(name.substring(0, end)))) {
+				continue;
+			}
+			if(file.delete()) {
+				deleted++;
+			}
+		}
+		if(deleted > 0) {
+			LOGGER.info("Deleted {} unused transcoded tracks", deleted);
+		}
+	}
+
+	/// Converts decoded audio to a [TranscodeProfile] and encodes it.
+	///
+	/// The sample rate is divided by [TranscodeProfile#decimationFactor] after a windowed sinc low-pass filter,
+	/// which removes what could not be represented at the new rate. Samples are then rounded to
+	/// [TranscodeProfile#bitsPerSample] significant bits with triangular dither, which turns the rounding error into
+	/// a constant low noise rather than distortion.
+	private static class Converter implements PCMProcessor {
+		/// How many taps of the low-pass filter there are for each time the sample rate is divided.
+		private static final int TAPS_PER_FACTOR = 32;
+		/// Where the low-pass filter starts cutting, relative to the new Nyquist frequency.
+		private static final double CUTOFF = 0.9;
+
+		private final FLACEncoder encoder;
+		private final int channels;
+		private final int bytesPerSample;
+		private final int factor;
+		private final double[] kernel;
+		/// The last [#kernel] length input samples of each channel, as a ring buffer.
+		private final double[][] history;
+		/// Samples are divided by this to go from the original bit depth to the stored one.
+		private final double scale;
+		/// The distance between representable values at the stored bit depth, a power of two.
+		private final int step;
+		private final int min;
+		private final int max;
+		private final boolean dither;
+		private final Random random = new Random(0);
+		private final int[][] output;
+		private int buffered = 0;
+		private long inputs = 0;
+		/// The amount of samples per channel given to the encoder.
+		long samples = 0;
+		/// The first error encountered while encoding, as decoders do not let processors throw.
+		IOException error = null;
+
+		Converter(StreamInfo streamInfo, TranscodeProfile profile, File target, Track track) throws IOException {
+			int bitsPerSample = streamInfo.getBitsPerSample();
+			int storedBitsPerSample = profile.storedBitsPerSample(bitsPerSample);
+			channels = streamInfo.getChannels();
+			bytesPerSample = (bitsPerSample + 7) / 8;
+			factor = profile.decimationFactor(streamInfo.getSampleRate());
+			kernel = lowPass(factor);
+			history = new double[channels][kernel.length];
+			scale = 1 << (bitsPerSample - storedBitsPerSample);
+			step = 1 << (storedBitsPerSample - profile.bitsPerSample(bitsPerSample));
+			min = -(1 << (storedBitsPerSample - 1));
+			max = (1 << (storedBitsPerSample - 1)) - step;
+			dither = profile.bitsPerSample(bitsPerSample) < bitsPerSample;
+			output = new int[channels][FLACEncoder.BLOCK_SIZE];
+			encoder = new FLACEncoder(target, streamInfo.getSampleRate() / factor, channels, storedBitsPerSample,
+					track.metadata);
+		}
+
+		/// @return the coefficients of a low-pass filter for dividing the sample rate by `factor`, or a filter doing
+		/// nothing if it is 1
+		private static double[] lowPass(int factor) {
+			if(factor == 1) {
+				return new double[] {1};
+			}
+			int length = TAPS_PER_FACTOR * factor + 1;
+			int center = length / 2;
+			// in cycles per input sample
+			double cutoff = CUTOFF * 0.5 / factor;
+			double[] kernel = new double[length];
+			double sum = 0;
+			for(int i = 0; i < length; i++) {
+				double x = i - center;
+				double sinc = x == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * x) / (Math.PI * x);
+				double blackman = 0.42 - 0.5 * Math.cos(2 * Math.PI * i / (length - 1))
+						+ 0.08 * Math.cos(4 * Math.PI * i / (length - 1));
+				kernel[i] = sinc * blackman;
+				sum += kernel[i];
+			}
+			for(int i = 0; i < length; i++) {
+				kernel[i] /= sum;
+			}
+			return kernel;
+		}
+
+		@Override
+		public void processStreamInfo(StreamInfo streamInfo) {
+		}
+
+		@Override
+		public void processPCM(ByteData pcm) {
+			if(error != null) {
+				return;
+			}
+			byte[] data = pcm.getData();
+			int frameBytes = bytesPerSample * channels;
+			double[] frame = new double[channels];
+			for(int offset = 0; offset + frameBytes <= pcm.getLen(); offset += frameBytes) {
+				for(int channel = 0; channel < channels; channel++) {
+					frame[channel] = sample(data, offset + channel * bytesPerSample);
+				}
+				push(frame);
+			}
+		}
+
+		/// Flushes the filter and the last samples, then completes the encoded file.
+		void finish() {
+			try {
+				if(error == null) {
+					double[] silence = new double[channels];
+					for(int i = 0; i < kernel.length / 2; i++) {
+						push(silence);
+					}
+					flush();
+				}
+				encoder.close();
+			} catch(IOException e) {
+				if(error == null) {
+					error = e;
+				}
+			}
+		}
+
+		private void push(double[] frame) {
+			int position = (int) (inputs % kernel.length);
+			for(int channel = 0; channel < channels; channel++) {
+				history[channel][position] = frame[channel];
+			}
+			// the filter is centered on the sample half a kernel ago
+			long center = inputs - kernel.length / 2;
+			inputs++;
+			if(center < 0 || center % factor != 0) {
+				return;
+			}
+
+			for(int channel = 0; channel < channels; channel++) {
+				double[] samples = history[channel];
+				double value = 0;
+				for(int i = 0; i < kernel.length; i++) {
+					int index = position - i;
+					if(index < 0) {
+						index += kernel.length;
+					}
+					value += kernel[i] * samples[index];
+				}
+				output[channel][buffered] = quantize(value / scale);
+			}
+			if(++buffered == FLACEncoder.BLOCK_SIZE) {
+				flush();
+			}
+		}
+
+		private int quantize(double value) {
+			if(dither) {
+				value += (random.nextDouble() - random.nextDouble()) * step;
+			}
+			long quantized = Math.round(value / step) * step;
+			return (int) Math.max(min, Math.min(max, quantized));
+		}
+
+		private void flush() {
+			if(buffered == 0 || error != null) {
+				return;
+			}
+			try {
+				encoder.write(output, buffered);
+			} catch(IOException e) {
+				error = e;
+			}
+			samples += buffered;
+			buffered = 0;
+		}
+
+		private int sample(byte[] data, int offset) {
+			if(bytesPerSample == 1) {
+				return (data[offset] & 0xFF) - 128;
+			}
+			int value = data[offset + bytesPerSample - 1];
+			for(int i = bytesPerSample - 2; i >= 0; i--) {
+				value = (value << 8) | (data[offset + i] & 0xFF);
+			}
+			return value;
+		}
+	}
+}
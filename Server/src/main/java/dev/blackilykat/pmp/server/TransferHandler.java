@@ -24,33 +24,66 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpsConfigurator;
 import com.sun.net.httpserver.HttpsServer;
+import dev.blackilykat.pmp.Action;
 import dev.blackilykat.pmp.PMPConnection;
+import dev.blackilykat.pmp.TranscodeProfile;
 import dev.blackilykat.pmp.messages.ActionRequest;
 import dev.blackilykat.pmp.messages.ActionResponse;
+import dev.blackilykat.pmp.util.ContentHash;
+import dev.blackilykat.pmp.util.Delta;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.util.Objects;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /// Manages the HTTP server for transferring files.
 ///
 /// # Endpoints
 ///
 /// There is a special endpoint `GET /` which returns a list of tracks known by the server, as specified
-/// in [#sendTrackList].
+/// in [#sendTrackList]. With a `since` query parameter, it only returns what changed after a given action, as
+/// specified in [#sendTrackListDelta].
 ///
 /// All other endpoints are assumed to refer to a track, with the path being the track's filename.
 ///
-/// In GET, this returns the contents of the track as specified in [#handleAuthenticatedGet].
+/// The endpoint `GET /art/<filename>` returns a thumbnail of the track's album art, as specified in
+/// [#sendAlbumArt]. The endpoint `GET /analysis/<filename>` returns the track's [Analysis], as specified in
+/// [#sendAnalysis].
 ///
-/// In PUT, this sends the contents of the track to the server as specified in [#handleAuthenticatedPut].
+/// In GET, this returns the contents of the track, or a smaller version of it for a [TranscodeProfile], as specified
+/// in [#handleAuthenticatedGet].
+///
+/// In PUT, this sends the contents of the track to the server, either at once, in resumable chunks or as a [Delta]
+/// from the server's current version, as specified in [#handleAuthenticatedPut].
+///
+/// # Deltas
+///
+/// Devices which already have a version of a track can transfer only what changed through [Delta]s:
+/// - `GET /signature/<filename>` returns the [Delta.Signature] of the server's version, to upload a delta from it;
+/// - `POST /delta/<filename>` with the [Delta.Signature] of the device's version as body returns a delta from it,
+///   as specified in [#sendDelta].
 ///
 /// # Authentication
 ///
@@ -65,6 +98,11 @@ import java.util.Objects;
 ///
 /// The same SSL certificate used in [PMPConnection] is also used here, as defined in [Encryption].
 public class TransferHandler implements HttpHandler {
+	/// How long, in seconds, clients are told to wait before asking again for a track which is being transcoded.
+	private static final long TRANSCODE_RETRY_AFTER_SECONDS = 2;
+	/// How many requests are handled at the same time, so that slow ones such as big downloads do not hold up the
+	/// others.
+	private static final int THREADS = 16;
 	private static final Logger LOGGER = LogManager.getLogger(TransferHandler.class);
 
 	@Override
@@ -72,6 +110,7 @@ public class TransferHandler implements HttpHandler {
 		InetSocketAddress address = exchange.getRemoteAddress();
 		LOGGER.info("(HTTP) Handling {} request at {} from {}", exchange.getRequestMethod(), exchange.getRequestURI(),
 				address);
+		Metrics.countTransfer(exchange);
 		Integer deviceId = checkAuthorization(exchange);
 		if(deviceId == null) {
 			return;
@@ -80,6 +119,7 @@ public class TransferHandler implements HttpHandler {
 		switch(exchange.getRequestMethod()) {
 			case "GET" -> handleAuthenticatedGet(exchange);
 			case "PUT" -> handleAuthenticatedPut(exchange, deviceId);
+			case "POST" -> handleAuthenticatedPost(exchange);
 			default -> {
 				LOGGER.info("(HTTP) {} sent unsupported {} request -> 405", address, exchange.getRequestMethod());
 				exchange.sendResponseHeaders(405, 0);
@@ -90,21 +130,54 @@ public class TransferHandler implements HttpHandler {
 
 	/// Handle a GET request after verifying authorization headers.
 	///
-	/// If the path is "/", calls [#sendTrackList].
+	/// If the path is "/metrics", calls [#sendMetrics].
+	/// If the path starts with "/art/", calls [#sendAlbumArt].
+	/// If the path starts with "/analysis/", calls [#sendAnalysis].
+	/// If the path starts with "/signature/", calls [#sendSignature].
+	/// If the path is "/", calls [#sendTrackListDelta] if the `since` query parameter is present, [#sendTrackList]
+	/// otherwise.
 	/// Else, attempts to send the requested track responding with the following status codes:
 	///
-	/// | Status code | Description                                                       |
-	/// |:-----------:|-------------------------------------------------------------------|
-	/// |         200 | Valid request, response body contains file contents of the track. |
-	/// |         404 | Requested file is not in the server's [Library#LIBRARY].          |
-	/// |         400 | Found '/' in the path, which is not a legal filename in PMP.      |
-	/// |         500 | Requested file is a directory, should never happen.               |
+	/// | Status code | Description                                                        |
+	/// |:-----------:|--------------------------------------------------------------------|
+	/// |         200 | Valid request, response body contains file contents of the track.  |
+	/// |         206 | Valid request, response body contains the range requested.         |
+	/// |         202 | The track is still being transcoded for the requested `profile`.   |
+	/// |         404 | Requested file is not in the server's [Library#LIBRARY].           |
+	/// |         400 | Found '/' in the path, which is not a legal filename in PMP.       |
+	/// |         400 | The `profile` query parameter is not a [TranscodeProfile].         |
+	/// |         416 | The `Range` header is not a single range within the file.          |
+	/// |         500 | Requested file is a directory, should never happen.                |
+	///
+	/// With a `profile` query parameter, the track is sent as transcoded by the [Transcoder] for that
+	/// [TranscodeProfile]. The response then has an `original-checksum` header with the checksum of the track in the
+	/// library. If the profile would not change the track or it cannot be transcoded, the track is sent as it is
+	/// without the header. If it is still being transcoded, the response is a `202 Accepted` with no body and a
+	/// `Retry-After` header with how many seconds to wait before asking again, so that no thread is held up waiting
+	/// for it.
+	///
+	/// With a `Range` header, only the requested range of the file is sent, so that devices streaming a track can
+	/// start or resume from any point (see [#parseRange]). The response has a `checksum` header with the checksum of
+	/// the track in the library either way.
 	private void handleAuthenticatedGet(HttpExchange exchange) throws IOException {
 		LOGGER.info("(HTTP) Authenticated get");
 		InetSocketAddress address = exchange.getRemoteAddress();
 		String path = exchange.getRequestURI().getPath();
-		if(path.equals("/")) {
-			sendTrackList(exchange);
+		if(path.equals("/metrics")) {
+			sendMetrics(exchange);
+		} else if(path.startsWith("/art/")) {
+			sendAlbumArt(exchange, path.substring("/art/".length()));
+		} else if(path.startsWith("/analysis/")) {
+			sendAnalysis(exchange, path.substring("/analysis/".length()));
+		} else if(path.startsWith("/signature/")) {
+			sendSignature(exchange, path.substring("/signature/".length()));
+		} else if(path.equals("/")) {
+			String since = getQueryParameter(exchange, "since");
+			if(since != null) {
+				sendTrackListDelta(exchange, since);
+			} else {
+				sendTrackList(exchange);
+			}
 		} else {
 			if(path.lastIndexOf('/') != 0) {
 				LOGGER.info("(HTTP) {} requested resource with '/' in filename -> 400", address);
@@ -112,7 +185,7 @@ public class TransferHandler implements HttpHandler {
 				exchange.close();
 				return;
 			}
-			File file = Library.LIBRARY.toPath().resolve(path.substring(1)).toFile();
+			File file = LibraryLayout.fileFor(path.substring(1));
 			if(!file.exists()) {
 				LOGGER.info("(HTTP) {} requested unknown resource -> 404", address);
 				exchange.sendResponseHeaders(404, 0);
@@ -126,9 +199,67 @@ public class TransferHandler implements HttpHandler {
 				return;
 			}
 
+			String profileParameter = getQueryParameter(exchange, "profile");
+			Track track = ServerStorage.MAIN.tracks.get(file.getName());
+			if(profileParameter != null && track != null) {
+				TranscodeProfile profile;
+				try {
+					profile = TranscodeProfile.valueOf(profileParameter.toUpperCase(Locale.ROOT));
+				} catch(IllegalArgumentException e) {
+					LOGGER.info("(HTTP) {} requested unknown transcode profile {} -> 400", address, profileParameter);
+					exchange.sendResponseHeaders(400, 0);
+					exchange.close();
+					return;
+				}
+				File transcoded = getTranscoded(track, profile);
+				if(transcoded == null) {
+					LOGGER.info("(HTTP) {} requested {} while it is being transcoded to {} -> 202", address,
+							track.filename, profile);
+					exchange.getResponseHeaders().set("Retry-After", Long.toString(TRANSCODE_RETRY_AFTER_SECONDS));
+					exchange.sendResponseHeaders(202, -1);
+					exchange.close();
+					return;
+				}
+				if(!transcoded.equals(track.file)) {
+					exchange.getResponseHeaders().set("original-checksum", Long.toString(track.checksum));
+					file = transcoded;
+				}
+			}
+			if(track != null) {
+				exchange.getResponseHeaders().set("checksum", Long.toString(track.checksum));
+			}
+			exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+
+			long length = file.length();
+			String rangeHeader = exchange.getRequestHeaders().getFirst("Range");
+			long[] range = rangeHeader == null ? new long[]{0, length - 1} : parseRange(rangeHeader, length);
+			if(range == null) {
+				LOGGER.info("(HTTP) {} requested invalid range {} -> 416", address, rangeHeader);
+				exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+				exchange.sendResponseHeaders(416, -1);
+				exchange.close();
+				return;
+			}
+
 			try {
-				exchange.sendResponseHeaders(200, file.length());
-				Files.copy(file.toPath(), exchange.getResponseBody());
+				if(rangeHeader == null) {
+					exchange.sendResponseHeaders(200, length);
+				} else {
+					exchange.getResponseHeaders()
+							.set("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+					exchange.sendResponseHeaders(206, range[1] - range[0] + 1);
+				}
+				try(FileChannel channel = FileChannel.open(file.toPath())) {
+					WritableByteChannel out = Channels.newChannel(exchange.getResponseBody());
+					long position = range[0];
+					while(position <= range[1]) {
+						long sent = channel.transferTo(position, range[1] - position + 1, out);
+						if(sent == 0 && position >= channel.size()) {
+							throw new IOException("File shrank while sending it");
+						}
+						position += sent;
+					}
+				}
 				exchange.close();
 			} catch(IOException e) {
 				LOGGER.error("(HTTP) IO exception when serving file {} to {}", file, address, e);
@@ -137,6 +268,57 @@ public class TransferHandler implements HttpHandler {
 		}
 	}
 
+	/// Parses a `Range` header with a single range of bytes, in any of the forms `bytes=<first>-<last>`,
+	/// `bytes=<first>-` or `bytes=-<suffix length>`. A last byte past the end of the file is clamped to it.
+	///
+	/// @return the first and last byte of the range, or null if the header is malformed or the range is not
+	/// satisfiable
+	private static long[] parseRange(String header, long length) {
+		if(!header.startsWith("bytes=") || header.contains(",")) {
+			return null;
+		}
+		String[] bounds = header.substring("bytes=".length()).split("-", -1);
+		if(bounds.length != 2) {
+			return null;
+		}
+		long first;
+		long last;
+		try {
+			if(bounds[0].isEmpty()) {
+				first = Math.max(0, length - Long.parseLong(bounds[1]));
+				last = length - 1;
+			} else {
+				first = Long.parseLong(bounds[0]);
+				last = bounds[1].isEmpty() ? length - 1 : Math.min(Long.parseLong(bounds[1]), length - 1);
+			}
+		} catch(NumberFormatException _) {
+			return null;
+		}
+		if(first < 0 || first > last) {
+			return null;
+		}
+		return new long[]{first, last};
+	}
+
+	/// Returns the track as transcoded by the [Transcoder], starting to transcode it if it was not yet.
+	///
+	/// @return the transcoded file, the track's own file if it cannot be transcoded, or null if it is still being
+	/// transcoded
+	private static File getTranscoded(Track track, TranscodeProfile profile) {
+		CompletableFuture<File> future = Transcoder.get(track, profile);
+		if(!future.isDone()) {
+			return null;
+		}
+		try {
+			return future.get();
+		} catch(ExecutionException e) {
+			LOGGER.warn("(HTTP) Could not transcode {} to {}, sending the original", track.filename, profile);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return track.file;
+	}
+
 	/// Handle a PUT request after verifying authorization headers.
 	///
 	/// The procedure to alter the server's library does not start here, but by sending an [ActionRequest].
@@ -144,9 +326,14 @@ public class TransferHandler implements HttpHandler {
 	/// Once the server allows the action through an [ActionResponse] where the type is
 	/// [ActionResponse.Type#APPROVED], the client can finally perform the request to this endpoint.
 	///
+	/// If the request has a `Content-Encoding: pmp-delta` header, the body is a [Delta] as specified in
+	/// [#handleDeltaPut]. If the request has a `Content-Range` header, it is a chunk of a resumable upload as
+	/// specified in [#handleChunkPut]. Otherwise, the request body is the whole file.
+	///
 	/// | Status code | Description                                                                                           |
 	/// |:-----------:|-------------------------------------------------------------------------------------------------------|
 	/// |         403 | The device and filename do not match the pending action as specified by [Library#startPendingAction]. |
+	/// |         403 | This server is a [Replica], which does not accept changes from its own devices.                       |
 	/// |         500 | The server was unable to read the request body.                                                       |
 	/// |         400 | The request body contains a file that is not parsable as a FLAC file.                                 |
 	/// |         200 | Valid request, track has been received successfully and saved to the server's library.                |
@@ -155,15 +342,28 @@ public class TransferHandler implements HttpHandler {
 		InetSocketAddress address = exchange.getRemoteAddress();
 		String filename = exchange.getRequestURI().getPath().substring(1);
 
-		Device device = null;
-		for(var d : ServerStorage.SENSITIVE.devices.get()) {
-			if(d.id == deviceId) {
-				device = d;
-				break;
-			}
+		if(Replica.isEnabled()) {
+			LOGGER.info("(HTTP) {} tried to upload to a replica -> 403", address);
+			exchange.sendResponseHeaders(403, 0);
+			exchange.close();
+			return;
 		}
 
-		if(!Library.startPendingAction(device, filename)) {
+		Device device = DeviceRegistry.get(deviceId);
+
+		if("pmp-delta".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+			handleDeltaPut(exchange, device, filename);
+			return;
+		}
+
+		String contentRange = exchange.getRequestHeaders().getFirst("Content-Range");
+		if(contentRange != null) {
+			handleChunkPut(exchange, device, filename, contentRange);
+			return;
+		}
+
+		Library.PendingAction pendingAction = Library.startPendingAction(device, filename);
+		if(pendingAction == null) {
 			LOGGER.info("(HTTP) {} tried to send non-pending action -> 403", address);
 			exchange.sendResponseHeaders(403, 0);
 			exchange.close();
@@ -172,25 +372,419 @@ public class TransferHandler implements HttpHandler {
 
 		try {
 			Library.add(filename, exchange.getRequestBody());
-			Library.finishPendingAction(true);
+			Library.finishPendingAction(pendingAction, true);
 		} catch(IOException e) {
 			LOGGER.error("(HTTP) Unexpected IOException when receiving track from {} -> 500", address, e);
 			exchange.sendResponseHeaders(500, 0);
 			exchange.close();
-			Library.finishPendingAction(false);
+			Library.finishPendingAction(pendingAction, false);
+			return;
+		} catch(IllegalArgumentException e) {
+			LOGGER.info("(HTTP) {} sent an invalid flac file -> 400", address);
+			exchange.sendResponseHeaders(400, 0);
+			exchange.close();
+			Library.finishPendingAction(pendingAction, false);
+			return;
+		}
+
+		exchange.sendResponseHeaders(200, 0);
+		exchange.close();
+	}
+
+	/// Handle a PUT request which is part of a resumable upload, after verifying authorization headers.
+	///
+	/// The `Content-Range` header is either:
+	/// - `bytes <first>-<last>/<total>`, where the body contains the bytes from `first` to `last` (inclusive) of
+	///   a file which is `total` bytes long. `first` must not be after the end of the data received so far;
+	/// - `bytes */<total>` with an empty body, to ask how much of the file has been received so far.
+	///
+	/// Every request should have a `content-hash` header with the [ContentHash] of the whole file, unless the
+	/// action already has one. Partial data is kept in [ResumableUploads] and survives the pending action expiring:
+	/// once the client gets the action [ActionResponse.Type#APPROVED] again, it can ask how much was received and
+	/// continue from there. Uploads without a content hash are never resumed. The
+	/// [Library.PendingAction#CONNECTION_TIMEOUT_SECONDS] restarts with every chunk.
+	///
+	/// Once the whole file has been received, it is checked against the content hash and added to the library at
+	/// once.
+	///
+	/// | Status code | Description                                                                                       |
+	/// |:-----------:|---------------------------------------------------------------------------------------------------|
+	/// |         308 | The file is incomplete. The `Range` header, if present, is `bytes=0-<last>`, with `last` being the last byte received. |
+	/// |         403 | The device and filename do not match the pending action as specified by [Library#continuePendingAction]. |
+	/// |         400 | The `Content-Range` or `content-hash` header is malformed, or the file is not a valid FLAC file or does not match the content hash. |
+	/// |         500 | The server was unable to read the chunk or to save the file.                                      |
+	/// |         200 | Valid request, track has been received successfully and saved to the server's library.            |
+	private void handleChunkPut(HttpExchange exchange, Device device, String filename, String contentRange)
+			throws IOException {
+		InetSocketAddress address = exchange.getRemoteAddress();
+
+		long first;
+		long last;
+		long total;
+		try {
+			if(!contentRange.startsWith("bytes ")) {
+				throw new IllegalArgumentException("Unsupported unit");
+			}
+			String range = contentRange.substring("bytes ".length());
+			int slash = range.indexOf('/');
+			total = Long.parseLong(range.substring(slash + 1));
+			if(total <= 0) {
+				throw new IllegalArgumentException("Invalid total");
+			}
+			if(range.substring(0, slash).equals("*")) {
+				first = -1;
+				last = -1;
+			} else {
+				int dash = range.indexOf('-');
+				first = Long.parseLong(range.substring(0, dash));
+				last = Long.parseLong(range.substring(dash + 1, slash));
+				if(first < 0 || last < first || last >= total) {
+					throw new IllegalArgumentException("Invalid range");
+				}
+			}
+		} catch(IllegalArgumentException | IndexOutOfBoundsException e) {
+			LOGGER.info("(HTTP) {} sent malformed Content-Range '{}' -> 400", address, contentRange);
+			exchange.sendResponseHeaders(400, 0);
+			exchange.close();
+			return;
+		}
+
+		Library.PendingAction pendingAction = Library.continuePendingAction(device, filename);
+		if(pendingAction == null) {
+			LOGGER.info("(HTTP) {} tried to send chunk of non-pending action -> 403", address);
+			exchange.sendResponseHeaders(403, 0);
+			exchange.close();
+			return;
+		}
+		Action action = pendingAction.action;
+
+		String contentHash = exchange.getRequestHeaders().getFirst("content-hash");
+		if(contentHash != null && (!ContentHash.isValid(contentHash) || (action.contentHash != null
+				&& !action.contentHash.equals(contentHash)))) {
+			LOGGER.info("(HTTP) {} sent invalid content hash for {} -> 400", address, filename);
+			exchange.sendResponseHeaders(400, 0);
+			exchange.close();
+			return;
+		}
+		if(action.contentHash == null) {
+			action.contentHash = contentHash;
+		}
+		if(action.contentHash == null && first == -1) {
+			// without a content hash, leftover data might belong to a different file of the same size
+			ResumableUploads.discard(device, action, total);
+		}
+
+		long received = ResumableUploads.receivedBytes(device, action, total);
+		if(first != -1 && first <= received) {
+			try {
+				received = ResumableUploads.writeChunk(device, action, total, first, last - first + 1,
+						exchange.getRequestBody());
+			} catch(IOException e) {
+				LOGGER.info("(HTTP) {} failed to send chunk of {}, keeping partial data -> 500", address, filename,
+						e);
+				Library.continuePendingAction(device, filename);
+				exchange.sendResponseHeaders(500, 0);
+				exchange.close();
+				return;
+			}
+			// the timeout applies between chunks
+			Library.continuePendingAction(device, filename);
+		}
+
+		if(received < total) {
+			if(received > 0) {
+				exchange.getResponseHeaders().set("Range", "bytes=0-" + (received - 1));
+			}
+			exchange.sendResponseHeaders(308, -1);
+			exchange.close();
+			return;
+		}
+
+		try {
+			Library.addFile(filename, ResumableUploads.partFile(device, action, total), action.contentHash);
+			Library.finishPendingAction(pendingAction, true);
+		} catch(IOException e) {
+			LOGGER.error("(HTTP) Unexpected IOException when saving track from {} -> 500", address, e);
+			exchange.sendResponseHeaders(500, 0);
+			exchange.close();
+			Library.finishPendingAction(pendingAction, false);
 			return;
 		} catch(IllegalArgumentException e) {
 			LOGGER.info("(HTTP) {} sent an invalid flac file -> 400", address);
 			exchange.sendResponseHeaders(400, 0);
 			exchange.close();
-			Library.finishPendingAction(false);
+			Library.finishPendingAction(pendingAction, false);
+			return;
+		}
+
+		exchange.sendResponseHeaders(200, 0);
+		exchange.close();
+	}
+
+	/// Handle a PUT request whose body is a [Delta] from the server's current version of the track, after verifying
+	/// authorization headers.
+	///
+	/// The new version is rebuilt next to the current one and added to the library only if it has the
+	/// [ContentHash] the delta ends with. A delta which is rejected leaves the pending action as it was, so the
+	/// client can still upload the whole file.
+	///
+	/// | Status code | Description                                                                                           |
+	/// |:-----------:|-------------------------------------------------------------------------------------------------------|
+	/// |         403 | The device and filename do not match the pending action as specified by [Library#continuePendingAction]. |
+	/// |         409 | The server does not have a version of the track to apply the delta to.                                |
+	/// |         400 | The delta is malformed or does not match the server's version, or the result is not a valid FLAC file. |
+	/// |         500 | The server was unable to read the delta or to save the file.                                          |
+	/// |         200 | Valid request, track has been rebuilt successfully and saved to the server's library.                 |
+	private void handleDeltaPut(HttpExchange exchange, Device device, String filename) throws IOException {
+		InetSocketAddress address = exchange.getRemoteAddress();
+
+		if(Library.continuePendingAction(device, filename) == null) {
+			LOGGER.info("(HTTP) {} tried to send delta of non-pending action -> 403", address);
+			exchange.sendResponseHeaders(403, -1);
+			exchange.close();
+			return;
+		}
+
+		File base = LibraryLayout.fileFor(filename);
+		if(!base.isFile()) {
+			LOGGER.info("(HTTP) {} sent delta of {} which the server does not have -> 409", address, filename);
+			exchange.sendResponseHeaders(409, -1);
+			exchange.close();
+			return;
+		}
+
+		File tmpFile = new File(base.getParentFile(), filename + ".delta.tmp");
+		try(OutputStream os = Files.newOutputStream(tmpFile.toPath())) {
+			Delta.patch(base, exchange.getRequestBody(), os);
+		} catch(IllegalArgumentException e) {
+			var _ = tmpFile.delete();
+			LOGGER.info("(HTTP) {} sent a delta of {} which could not be applied -> 400", address, filename, e);
+			exchange.sendResponseHeaders(400, -1);
+			exchange.close();
+			return;
+		} catch(IOException e) {
+			var _ = tmpFile.delete();
+			LOGGER.error("(HTTP) Unexpected IOException when receiving delta from {} -> 500", address, e);
+			exchange.sendResponseHeaders(500, -1);
+			exchange.close();
+			return;
+		}
+
+		Library.PendingAction pendingAction = Library.startPendingAction(device, filename);
+		if(pendingAction == null) {
+			var _ = tmpFile.delete();
+			LOGGER.info("(HTTP) {} action expired while sending delta -> 403", address);
+			exchange.sendResponseHeaders(403, -1);
+			exchange.close();
+			return;
+		}
+
+		try {
+			Library.addFile(filename, tmpFile, pendingAction.action.contentHash);
+			Library.finishPendingAction(pendingAction, true);
+		} catch(IOException e) {
+			LOGGER.error("(HTTP) Unexpected IOException when saving track from {} -> 500", address, e);
+			exchange.sendResponseHeaders(500, 0);
+			exchange.close();
+			Library.finishPendingAction(pendingAction, false);
+			return;
+		} catch(IllegalArgumentException e) {
+			LOGGER.info("(HTTP) {} sent a delta resulting in an invalid flac file -> 400", address);
+			exchange.sendResponseHeaders(400, 0);
+			exchange.close();
+			Library.finishPendingAction(pendingAction, false);
 			return;
 		}
 
+		LOGGER.info("(HTTP) Received {} from {} as a delta", filename, address);
 		exchange.sendResponseHeaders(200, 0);
 		exchange.close();
 	}
 
+	/// Handle a POST request after verifying authorization headers.
+	///
+	/// The only POST endpoint is `/delta/<filename>`, see [#sendDelta]. Other paths respond with 404.
+	private void handleAuthenticatedPost(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		if(path.startsWith("/delta/")) {
+			sendDelta(exchange, path.substring("/delta/".length()));
+		} else {
+			LOGGER.info("(HTTP) {} sent POST request to unknown endpoint -> 404", exchange.getRemoteAddress());
+			exchange.sendResponseHeaders(404, -1);
+			exchange.close();
+		}
+	}
+
+	/// Responds to a `GET /signature/<filename>` after verifying authorization headers and path.
+	///
+	/// Responds with the [Delta.Signature] of the server's version of the track, or 404 if there is no such track.
+	private void sendSignature(HttpExchange exchange, String filename) throws IOException {
+		File file = LibraryLayout.fileFor(filename);
+		if(filename.contains("/") || !file.isFile()) {
+			LOGGER.info("(HTTP) {} requested signature of unknown track -> 404", exchange.getRemoteAddress());
+			exchange.sendResponseHeaders(404, -1);
+			exchange.close();
+			return;
+		}
+
+		Delta.Signature signature = Delta.Signature.of(file);
+		exchange.sendResponseHeaders(200, 0);
+		try(OutputStream os = new BufferedOutputStream(exchange.getResponseBody())) {
+			signature.write(os);
+		}
+	}
+
+	/// Responds to a `POST /delta/<filename>` after verifying authorization headers and path.
+	///
+	/// The request body is the [Delta.Signature] of the version of the track the device has. Responds with a
+	/// [Delta] from that version to the server's one.
+	///
+	/// | Status code | Description                                                 |
+	/// |:-----------:|-------------------------------------------------------------|
+	/// |         200 | Valid request, response body contains the delta.            |
+	/// |         400 | The request body is not a valid signature.                  |
+	/// |         404 | There is no such track.                                     |
+	private void sendDelta(HttpExchange exchange, String filename) throws IOException {
+		InetSocketAddress address = exchange.getRemoteAddress();
+		File file = LibraryLayout.fileFor(filename);
+		if(filename.contains("/") || !file.isFile()) {
+			LOGGER.info("(HTTP) {} requested delta of unknown track -> 404", address);
+			exchange.sendResponseHeaders(404, -1);
+			exchange.close();
+			return;
+		}
+
+		Delta.Signature signature;
+		try(InputStream is = exchange.getRequestBody()) {
+			signature = Delta.Signature.read(new BufferedInputStream(is));
+		} catch(IllegalArgumentException e) {
+			LOGGER.info("(HTTP) {} sent an invalid signature -> 400", address);
+			exchange.sendResponseHeaders(400, -1);
+			exchange.close();
+			return;
+		}
+
+		exchange.sendResponseHeaders(200, 0);
+		try(OutputStream os = new BufferedOutputStream(exchange.getResponseBody())) {
+			Delta.diff(signature, file, os);
+		} catch(IOException e) {
+			LOGGER.error("(HTTP) IO exception when sending delta of {} to {}", filename, address, e);
+			exchange.close();
+		}
+	}
+
+	/// Responds to a `GET /metrics` after verifying authorization headers and path.
+	///
+	/// Responds with the server's [Metrics] in the Prometheus text format.
+	private void sendMetrics(HttpExchange exchange) throws IOException {
+		byte[] res = Metrics.render().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		exchange.sendResponseHeaders(200, res.length);
+		OutputStream os = exchange.getResponseBody();
+		os.write(res);
+		os.close();
+	}
+
+	/// Responds to a `GET /art/<filename>` after verifying authorization headers and path.
+	///
+	/// The `size` query parameter is the wanted length in pixels of the longest side, and is rounded to one of
+	/// [AlbumArt#SIZES]. If missing, it is 256. The response is a JPEG image with an `ETag` header which changes
+	/// along with the track's contents, and a request with a matching `If-None-Match` header gets no body.
+	///
+	/// | Status code | Description                                                 |
+	/// |:-----------:|-------------------------------------------------------------|
+	/// |         200 | Valid request, response body contains the thumbnail.        |
+	/// |         304 | The thumbnail matches the `If-None-Match` header.           |
+	/// |         400 | The `size` query parameter is not a positive number.        |
+	/// |         404 | There is no such track, or it has no usable album art.      |
+	private void sendAlbumArt(HttpExchange exchange, String filename) throws IOException {
+		InetSocketAddress address = exchange.getRemoteAddress();
+		int size = 256;
+		String sizeParameter = getQueryParameter(exchange, "size");
+		if(sizeParameter != null) {
+			try {
+				size = Integer.parseInt(sizeParameter);
+			} catch(NumberFormatException _) {
+				size = -1;
+			}
+			if(size <= 0) {
+				LOGGER.info("(HTTP) {} requested album art with invalid size '{}' -> 400", address, sizeParameter);
+				exchange.sendResponseHeaders(400, -1);
+				exchange.close();
+				return;
+			}
+		}
+		size = AlbumArt.closestSize(size);
+
+		Track track = ServerStorage.MAIN.tracks.get(filename);
+		if(track == null) {
+			LOGGER.info("(HTTP) {} requested album art of unknown track -> 404", address);
+			exchange.sendResponseHeaders(404, -1);
+			exchange.close();
+			return;
+		}
+
+		String etag = "\"" + track.contentKey() + "-" + size + "\"";
+		exchange.getResponseHeaders().set("ETag", etag);
+		if(etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+			exchange.sendResponseHeaders(304, -1);
+			exchange.close();
+			return;
+		}
+
+		File thumbnail = AlbumArt.get(track, size);
+		if(thumbnail == null) {
+			exchange.getResponseHeaders().remove("ETag");
+			exchange.sendResponseHeaders(404, -1);
+			exchange.close();
+			return;
+		}
+
+		try {
+			exchange.getResponseHeaders().set("Content-Type", "image/jpeg");
+			exchange.sendResponseHeaders(200, thumbnail.length());
+			Files.copy(thumbnail.toPath(), exchange.getResponseBody());
+			exchange.close();
+		} catch(IOException e) {
+			LOGGER.error("(HTTP) IO exception when serving album art of {} to {}", filename, address, e);
+			exchange.close();
+		}
+	}
+
+	/// Responds to a `GET /analysis/<filename>` after verifying authorization headers and path.
+	///
+	/// Responds with the track's [Analysis.Result] as a JSON object, where the waveform is encoded in base64.
+	///
+	/// | Status code | Description                                                 |
+	/// |:-----------:|-------------------------------------------------------------|
+	/// |         200 | Valid request, response body contains the analysis.         |
+	/// |         202 | The track was not analyzed yet.                             |
+	/// |         404 | There is no such track.                                     |
+	private void sendAnalysis(HttpExchange exchange, String filename) throws IOException {
+		Track track = ServerStorage.MAIN.tracks.get(filename);
+		if(track == null) {
+			LOGGER.info("(HTTP) {} requested analysis of unknown track -> 404", exchange.getRemoteAddress());
+			exchange.sendResponseHeaders(404, -1);
+			exchange.close();
+			return;
+		}
+
+		Analysis.Result result = Analysis.get(track);
+		if(result == null) {
+			Analysis.queue(track);
+			exchange.sendResponseHeaders(202, -1);
+			exchange.close();
+			return;
+		}
+
+		byte[] res = new ObjectMapper().writeValueAsBytes(result);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, res.length);
+		OutputStream os = exchange.getResponseBody();
+		os.write(res);
+		os.close();
+	}
+
 	/// Responds to a `GET /` after verifying authorization headers and path.
 	///
 	/// Responds with a JSON array containing information about all tracks in the server's library.
@@ -207,6 +801,104 @@ public class TransferHandler implements HttpHandler {
 		os.close();
 	}
 
+	/// Responds to a `GET /?since=<id>` after verifying authorization headers and path.
+	///
+	/// Responds with a JSON object describing how the server's library changed after the action with the given id:
+	/// - `lastActionId`: the id of the last action the response accounts for;
+	/// - `tracks`: tracks which were added or changed, serialized as in [#sendTrackList];
+	/// - `removed`: filenames of tracks which were removed.
+	///
+	/// A track which was removed and then added back is only present in `tracks`.
+	///
+	/// | Status code | Description                                                                  |
+	/// |:-----------:|------------------------------------------------------------------------------|
+	/// |         200 | Valid request, response body contains the changes.                           |
+	/// |         400 | The `since` parameter is not a number.                                       |
+	/// |         410 | The action is not in the server's history, the full list must be used.       |
+	private void sendTrackListDelta(HttpExchange exchange, String sinceStr) throws IOException {
+		InetSocketAddress address = exchange.getRemoteAddress();
+		int since;
+		try {
+			since = Integer.parseInt(sinceStr);
+		} catch(NumberFormatException _) {
+			LOGGER.info("(HTTP) {} requested track list since non-numerical action -> 400", address);
+			exchange.sendResponseHeaders(400, 0);
+			exchange.close();
+			return;
+		}
+
+		int lastActionId;
+		List<ActionJournal.Entry> entries;
+		synchronized(ActionJournal.class) {
+			lastActionId = ActionJournal.lastId();
+			entries = since < lastActionId ? ActionJournal.getFrom(since + 1) : List.of();
+		}
+		if(since < 0 || since > lastActionId || entries == null) {
+			LOGGER.info("(HTTP) {} requested track list since unknown action {} -> 410", address, since);
+			exchange.sendResponseHeaders(410, 0);
+			exchange.close();
+			return;
+		}
+
+		Set<String> changed = new LinkedHashSet<>();
+		Set<String> removed = new LinkedHashSet<>();
+		for(ActionJournal.Entry entry : entries) {
+			Action action = entry.action();
+			if(action.actionType == Action.Type.REMOVE) {
+				changed.remove(action.filename);
+				removed.add(action.filename);
+			} else if(action.actionType == Action.Type.RENAME) {
+				changed.remove(action.filename);
+				removed.add(action.filename);
+				removed.remove(action.newFilename);
+				changed.add(action.newFilename);
+			} else {
+				removed.remove(action.filename);
+				changed.add(action.filename);
+			}
+		}
+
+		List<Track> tracks = new ArrayList<>(changed.size());
+		for(String filename : changed) {
+			Track track = ServerStorage.MAIN.tracks.get(filename);
+			if(track == null) {
+				// removed in an action after lastActionId, which will be received separately
+				continue;
+			}
+			tracks.add(track);
+		}
+
+		ObjectMapper om = new ObjectMapper();
+		om.addMixIn(Track.class, TrackMixin.class);
+		byte[] res = om.writeValueAsString(new TrackListDelta(lastActionId, tracks, removed))
+				.getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(200, res.length);
+		OutputStream os = exchange.getResponseBody();
+		os.write(res);
+		os.close();
+	}
+
+	/// @return the decoded value of the first query parameter with the given name, or null if there is none
+	private static String getQueryParameter(HttpExchange exchange, String name) {
+		String query = exchange.getRequestURI().getQuery();
+		if(query == null) {
+			return null;
+		}
+		for(String parameter : query.split("&")) {
+			int separator = parameter.indexOf('=');
+			if(separator == -1) {
+				if(parameter.equals(name)) {
+					return "";
+				}
+				continue;
+			}
+			if(parameter.substring(0, separator).equals(name)) {
+				return parameter.substring(separator + 1);
+			}
+		}
+		return null;
+	}
+
 	/// Checks the request is coming from an authenticated device and responds as follows if not:
 	///
 	/// | Status code | Description                                                   |
@@ -241,23 +933,16 @@ public class TransferHandler implements HttpHandler {
 			return null;
 		}
 
-		boolean authorized = false;
-		for(Device device : ServerStorage.SENSITIVE.devices.get()) {
-			if(device.id != claimedDeviceId) {
-				continue;
-			}
-			if(Objects.equals(device.getToken(), claimedToken)) {
-				authorized = true;
-				break;
-			}
-			LOGGER.info("(HTTP) {} has an incorrect token for device {} -> 401", address, device.id);
+		Device device = DeviceRegistry.get(claimedDeviceId);
+		if(device == null) {
+			LOGGER.info("(HTTP) {} tried to log in with non-existent device {} -> 401", address, claimedDeviceId);
 			exchange.sendResponseHeaders(401, 0);
 			exchange.close();
 			return null;
 		}
 
-		if(!authorized) {
-			LOGGER.info("(HTTP) {} tried to log in with non-existent device {} -> 401", address, claimedDeviceId);
+		if(!device.hasToken(claimedToken)) {
+			LOGGER.info("(HTTP) {} has an incorrect token for device {} -> 401", address, device.id);
 			exchange.sendResponseHeaders(401, 0);
 			exchange.close();
 			return null;
@@ -266,15 +951,24 @@ public class TransferHandler implements HttpHandler {
 		return claimedDeviceId;
 	}
 
-	/// Starts the HTTP server in port {@value PMPConnection#DEFAULT_FILE_PORT}
+	/// Starts the HTTP server in port [ServerStorage.Main#filePort]
 	public static void init() throws IOException {
 		LOGGER.info("Initializing transfer server...");
-		HttpsServer server = HttpsServer.create(new InetSocketAddress(PMPConnection.DEFAULT_FILE_PORT), 0);
+		HttpsServer server = HttpsServer.create(new InetSocketAddress(ServerStorage.MAIN.filePort.get()), 0);
 		server.setHttpsConfigurator(new HttpsConfigurator(Encryption.getSslContext()));
 		server.createContext("/", new TransferHandler());
+		AtomicInteger count = new AtomicInteger();
+		server.setExecutor(Executors.newFixedThreadPool(THREADS, r -> {
+			Thread thread = new Thread(r, "Transfer thread " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}));
 		server.start();
 	}
 
+	/// Response body of [TransferHandler#sendTrackListDelta]
+	private record TrackListDelta(int lastActionId, Collection<Track> tracks, Collection<String> removed) {}
+
 	/// Jackson mixin used to omit `lastModified` in [TransferHandler#sendTrackList]
 	@JsonIgnoreProperties(value = {"lastModified"})
 	private static abstract class TrackMixin {}
@@ -17,23 +17,27 @@
 
 package dev.blackilykat.pmp.server.handlers;
 
+import dev.blackilykat.pmp.Action;
 import dev.blackilykat.pmp.MessageHandler;
 import dev.blackilykat.pmp.PMPConnection;
-import dev.blackilykat.pmp.event.Listener;
-import dev.blackilykat.pmp.messages.ActionMessage;
 import dev.blackilykat.pmp.messages.ActionRequest;
 import dev.blackilykat.pmp.messages.ActionResponse;
 import dev.blackilykat.pmp.messages.ErrorMessage;
 import dev.blackilykat.pmp.server.ClientConnection;
 import dev.blackilykat.pmp.server.Device;
 import dev.blackilykat.pmp.server.Library;
+import dev.blackilykat.pmp.server.LibraryLayout;
+import dev.blackilykat.pmp.server.Metrics;
+import dev.blackilykat.pmp.server.Replica;
 import dev.blackilykat.pmp.server.ServerStorage;
+import dev.blackilykat.pmp.server.Track;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -52,8 +56,14 @@ public class ActionRequestHandler extends MessageHandler<ActionRequest> {
 			return;
 		}
 
+		if(Replica.isEnabled()) {
+			// changes must be performed on the primary, which the replica will then mirror
+			pmpConn.send(new ActionResponse(message.requestId, ActionResponse.Type.INVALID, null));
+			return;
+		}
+
 		pmpConn.send(new ActionResponse(message.requestId, ActionResponse.Type.QUEUED, null));
-		QUEUE.add(new QueueEntry(connection, message));
+		QUEUE.add(new QueueEntry(connection, message, System.nanoTime()));
 	}
 
 	@Override
@@ -74,10 +84,11 @@ public class ActionRequestHandler extends MessageHandler<ActionRequest> {
 						}
 
 						switch(request.action.actionType) {
-							case ADD -> handleAddRequest(connection, request);
+							case ADD -> handleAddRequest(connection, request, entry.queuedNanos);
 							case REMOVE -> handleRemoveRequest(connection, request);
-							case REPLACE -> handleReplaceRequest(connection, request);
+							case REPLACE -> handleReplaceRequest(connection, request, entry.queuedNanos);
 							case CHANGE_METADATA -> handleChangeMetadataRequest(connection, request);
+							case RENAME -> handleRenameRequest(connection, request);
 							default -> {
 								LOGGER.error("(ActionRequestHandler#register) this should've been unreachable, type "
 										+ "is {}", request.action.actionType);
@@ -91,9 +102,9 @@ public class ActionRequestHandler extends MessageHandler<ActionRequest> {
 		}.start();
 	}
 
-	private static void handleAddRequest(ClientConnection connection, ActionRequest request)
+	private static void handleAddRequest(ClientConnection connection, ActionRequest request, long queuedNanos)
 			throws InterruptedException {
-		File target = Library.LIBRARY.toPath().resolve(request.action.filename).toFile();
+		File target = LibraryLayout.fileFor(request.action.filename);
 		if(target.exists()) {
 			LOGGER.warn("Got request to add existing file {}", target);
 			connection.send(new ActionResponse(request.requestId, ActionResponse.Type.INVALID, null));
@@ -101,22 +112,45 @@ public class ActionRequestHandler extends MessageHandler<ActionRequest> {
 		}
 		// after the check above, all logic is the same. When the action is stored, the type is kept from the request
 		// and is not overridden by calling this method.
-		handleReplaceRequest(connection, request);
+		handleReplaceRequest(connection, request, queuedNanos);
 	}
 
-	private static void handleReplaceRequest(ClientConnection connection, ActionRequest request)
+	private static void handleReplaceRequest(ClientConnection connection, ActionRequest request, long queuedNanos)
 			throws InterruptedException {
-		while(!Library.setPendingActionIfPossible(request.action, connection.device)) {
+		Runnable onSuccess = () -> {
+			// if the device reconnected while completing the action, its new connection has to be told about it
+			Device source = connection.connected ? connection.device : null;
+			// devices fetching the track from peers check it against the hash of what the server actually stored
+			Track track = ServerStorage.MAIN.tracks.get(request.action.filename);
+			request.action.contentHash = track != null ? track.contentHash : null;
+			int id = Library.recordAction(request.action, source);
+			connection.send(new ActionResponse(request.requestId, ActionResponse.Type.COMPLETED, id));
+		};
+
+		Library.PendingAction pendingAction;
+		while((pendingAction = Library.setPendingActionIfPossible(request.action, connection.device, onSuccess))
+				== null) {
 			Library.waitForFreePendingAction();
 		}
-		connection.send(new ActionResponse(request.requestId, ActionResponse.Type.APPROVED, null));
+		Metrics.observePendingActionWait(System.nanoTime() - queuedNanos);
+
+		if(request.action.contentHash != null) {
+			boolean added;
+			try {
+				added = Library.addExisting(request.action.filename, request.action.contentHash);
+			} catch(IOException e) {
+				LOGGER.error("Failed to add track {} from existing contents, asking for upload instead",
+						request.action.filename, e);
+				added = false;
+			}
+			if(added) {
+				LOGGER.info("Added track {} from existing contents, skipping upload", request.action.filename);
+				Library.finishPendingAction(pendingAction, true);
+				return;
+			}
+		}
 
-		Listener.registerOneTime(Library.EVENT_SUCCESSFUL_ACTION, _ -> {
-			int id = ServerStorage.MAIN.actions.size();
-			connection.send(new ActionResponse(request.requestId, ActionResponse.Type.COMPLETED, id));
-			Device.broadcastExcept(new ActionMessage(request.action, id), connection.device);
-			ServerStorage.MAIN.actions.add(request.action);
-		});
+		connection.send(new ActionResponse(request.requestId, ActionResponse.Type.APPROVED, null));
 	}
 
 	private static void handleRemoveRequest(ClientConnection connection, ActionRequest request) {
@@ -132,16 +166,71 @@ public class ActionRequestHandler extends MessageHandler<ActionRequest> {
 			return;
 		}
 
-		int id = ServerStorage.MAIN.actions.size();
+		int id = Library.recordAction(request.action, connection.device);
 		connection.send(new ActionResponse(request.requestId, ActionResponse.Type.COMPLETED, id));
-		Device.broadcastExcept(new ActionMessage(request.action, id), connection.device);
-		ServerStorage.MAIN.actions.add(request.action);
 	}
 
 	private static void handleChangeMetadataRequest(ClientConnection connection, ActionRequest request) {
-		connection.send(new ActionResponse(request.requestId, ActionResponse.Type.INVALID, null));
-		connection.send(new ErrorMessage("Changing metadata is not supported by the server yet."));
+		Action action = request.action;
+		if(action.newMetadata == null) {
+			connection.send(new ActionResponse(request.requestId, ActionResponse.Type.INVALID, null));
+			connection.send(new ErrorMessage("CHANGE_METADATA action without newMetadata"));
+			return;
+		}
+
+		try {
+			// lets other devices check that applying the change locally resulted in the same file
+			action.contentHash = Library.changeMetadata(action.filename, action.newMetadata);
+		} catch(FileNotFoundException e) {
+			LOGGER.warn("Got request to change metadata of non-existent file");
+			connection.send(new ActionResponse(request.requestId, ActionResponse.Type.INVALID, null));
+			return;
+		} catch(IllegalArgumentException e) {
+			LOGGER.warn("Could not change metadata of track {}", action.filename, e);
+			connection.send(new ActionResponse(request.requestId, ActionResponse.Type.INVALID, null));
+			return;
+		} catch(IOException e) {
+			LOGGER.error("Failed to change metadata of track {}", action.filename, e);
+			connection.send(new ActionResponse(request.requestId, ActionResponse.Type.INVALID, null));
+			return;
+		}
+
+		int id = Library.recordAction(action, connection.device);
+		connection.send(new ActionResponse(request.requestId, ActionResponse.Type.COMPLETED, id));
+	}
+
+	private static void handleRenameRequest(ClientConnection connection, ActionRequest request) {
+		Action action = request.action;
+		if(action.newFilename == null || action.contentHash == null) {
+			connection.send(new ActionResponse(request.requestId, ActionResponse.Type.INVALID, null));
+			connection.send(new ErrorMessage("RENAME action without newFilename or contentHash"));
+			return;
+		}
+
+		try {
+			Library.rename(action.filename, action.newFilename, action.contentHash);
+		} catch(FileNotFoundException e) {
+			LOGGER.warn("Got request to rename non-existent file");
+			connection.send(new ActionResponse(request.requestId, ActionResponse.Type.INVALID, null));
+			return;
+		} catch(FileAlreadyExistsException e) {
+			LOGGER.warn("Got request to rename {} to existing file {}", action.filename, action.newFilename);
+			connection.send(new ActionResponse(request.requestId, ActionResponse.Type.INVALID, null));
+			return;
+		} catch(IllegalArgumentException e) {
+			LOGGER.warn("Could not rename track {}", action.filename, e);
+			connection.send(new ActionResponse(request.requestId, ActionResponse.Type.INVALID, null));
+			return;
+		} catch(IOException e) {
+			LOGGER.error("Failed to rename track {} to {}", action.filename, action.newFilename, e);
+			connection.send(new ActionResponse(request.requestId, ActionResponse.Type.INVALID, null));
+			return;
+		}
+
+		int id = Library.recordAction(action, connection.device);
+		connection.send(new ActionResponse(request.requestId, ActionResponse.Type.COMPLETED, id));
 	}
 
-	private record QueueEntry(ClientConnection connection, ActionRequest request) {}
+	/// @param queuedNanos [System#nanoTime] when the request was queued
+	private record QueueEntry(ClientConnection connection, ActionRequest request, long queuedNanos) {}
 }
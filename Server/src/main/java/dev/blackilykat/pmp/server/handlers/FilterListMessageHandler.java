@@ -23,6 +23,7 @@ import dev.blackilykat.pmp.messages.FilterListMessage;
 import dev.blackilykat.pmp.messages.LoginSuccessResponse;
 import dev.blackilykat.pmp.server.ClientConnection;
 import dev.blackilykat.pmp.server.Device;
+import dev.blackilykat.pmp.server.SelectionIndex;
 import dev.blackilykat.pmp.server.ServerStorage;
 
 import java.util.LinkedList;
@@ -40,6 +41,7 @@ public class FilterListMessageHandler extends MessageHandler<FilterListMessage>
 		Device.broadcastExcept(message, connection.device);
 
 		ServerStorage.MAIN.filters.set(message.filters);
+		SelectionIndex.invalidate();
 	}
 
 	public static void fillLoginSuccessResponse(LoginSuccessResponse response) {
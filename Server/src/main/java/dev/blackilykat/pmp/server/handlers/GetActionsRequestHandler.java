@@ -20,26 +20,45 @@ package dev.blackilykat.pmp.server.handlers;
 import dev.blackilykat.pmp.Action;
 import dev.blackilykat.pmp.MessageHandler;
 import dev.blackilykat.pmp.PMPConnection;
-import dev.blackilykat.pmp.messages.ErrorMessage;
 import dev.blackilykat.pmp.messages.GetActionsRequest;
 import dev.blackilykat.pmp.messages.GetActionsResponse;
-import dev.blackilykat.pmp.server.ServerStorage;
+import dev.blackilykat.pmp.server.ActionJournal;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class GetActionsRequestHandler extends MessageHandler<GetActionsRequest> {
+	private static final Logger LOGGER = LogManager.getLogger(GetActionsRequestHandler.class);
+	/// The maximum amount of actions sent in a single [GetActionsResponse], so that clients far behind can start
+	/// handling them before receiving the whole list.
+	private static final int PAGE_SIZE = 500;
+
 	public GetActionsRequestHandler() {
 		super(GetActionsRequest.class);
 	}
 
 	@Override
 	public void run(PMPConnection connection, GetActionsRequest message) {
-		List<Action> allActions = ServerStorage.MAIN.actions.get();
-		try {
-			connection.send(
-					new GetActionsResponse(allActions.subList(message.from, allActions.size()), message.requestId));
-		} catch(IndexOutOfBoundsException e) {
-			connection.send(new ErrorMessage("Invalid 'from' value: " + e.getMessage()));
+		List<ActionJournal.Entry> entries = ActionJournal.getFrom(message.from);
+		if(entries == null) {
+			LOGGER.info("Actions from {} are not available, telling client to resync", message.from);
+			connection.send(new GetActionsResponse(List.of(), List.of(), true, true, message.requestId));
+			return;
 		}
+
+		int start = 0;
+		do {
+			int end = Math.min(start + PAGE_SIZE, entries.size());
+			List<Action> actions = new ArrayList<>(end - start);
+			List<Integer> ids = new ArrayList<>(end - start);
+			for(ActionJournal.Entry entry : entries.subList(start, end)) {
+				actions.add(entry.action());
+				ids.add(entry.id());
+			}
+			connection.send(new GetActionsResponse(actions, ids, false, end == entries.size(), message.requestId));
+			start = end;
+		} while(start < entries.size());
 	}
 }
@@ -22,15 +22,17 @@ import dev.blackilykat.pmp.PMPConnection;
 import dev.blackilykat.pmp.messages.LoginAsExistingDeviceRequest;
 import dev.blackilykat.pmp.messages.LoginFailResponse;
 import dev.blackilykat.pmp.messages.LoginSuccessResponse;
+import dev.blackilykat.pmp.server.ActionJournal;
+import dev.blackilykat.pmp.server.BlobStore;
 import dev.blackilykat.pmp.server.ClientConnection;
 import dev.blackilykat.pmp.server.Device;
+import dev.blackilykat.pmp.server.DeviceRegistry;
+import dev.blackilykat.pmp.server.LoginThrottle;
 import dev.blackilykat.pmp.server.Playback;
 import dev.blackilykat.pmp.server.ServerStorage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.util.List;
-
 public class LoginAsExistingDeviceRequestHandler extends MessageHandler<LoginAsExistingDeviceRequest> {
 	private static final Logger LOGGER = LogManager.getLogger(LoginAsExistingDeviceRequestHandler.class);
 
@@ -44,43 +46,43 @@ public class LoginAsExistingDeviceRequestHandler extends MessageHandler<LoginAsE
 
 		if(message.password == null && message.token == null) {
 			connection.send(new LoginFailResponse(message.requestId, LoginFailResponse.Reason.BAD_REQUEST));
+			return;
 		}
 
-		List<Device> devices = ServerStorage.SENSITIVE.devices.get();
-
-		for(Device device : devices) {
-			if(device.id == message.deviceId) {
-				if(device.getClientConnection() != null) {
-					connection.send(new LoginFailResponse(message.requestId,
-							LoginFailResponse.Reason.DEVICE_ALREADY_CONNECTED));
-					return;
-				}
-				if((message.password != null && message.password.equals(ServerStorage.SENSITIVE.password.get()) || (
-						message.token != null && message.token.equals(device.getToken())))) {
-					device.rerollToken();
-					device.setClientConnection(connection);
-					connection.device = device;
-					LoginSuccessResponse response = new LoginSuccessResponse(message.requestId, device.id,
-							device.getToken(), ServerStorage.MAIN.actions.size() - 1);
-					Playback.fillLoginSuccessResponse(response);
-					FilterListMessageHandler.fillLoginSuccessResponse(response);
-					connection.send(response);
-				} else {
-					connection.send(
-							new LoginFailResponse(message.requestId, LoginFailResponse.Reason.INCORRECT_CREDENTIALS));
+		if(!LoginThrottle.attempt(connection, message.deviceId, () -> login(connection, message))) {
+			connection.send(new LoginFailResponse(message.requestId, LoginFailResponse.Reason.BAD_REQUEST));
+		}
+	}
 
-					// Make brute-forcing attacks less viable. This sleeps in the specific client's input thread, no
-					// other clients are impacted.
-					try {
-						Thread.sleep(2000);
-					} catch(InterruptedException e) {
-						Thread.currentThread().interrupt();
-					}
-				}
-				return;
-			}
+	private static void login(ClientConnection connection, LoginAsExistingDeviceRequest message) {
+		Device device = DeviceRegistry.get(message.deviceId);
+		if(device == null) {
+			// counts as a failure so that device ids cannot be enumerated quickly
+			LoginThrottle.fail(connection, null,
+					new LoginFailResponse(message.requestId, LoginFailResponse.Reason.NO_SUCH_DEVICE));
+			return;
 		}
 
-		connection.send(new LoginFailResponse(message.requestId, LoginFailResponse.Reason.NO_SUCH_DEVICE));
+		if(device.getClientConnection() != null) {
+			connection.send(
+					new LoginFailResponse(message.requestId, LoginFailResponse.Reason.DEVICE_ALREADY_CONNECTED));
+			return;
+		}
+		if((message.password != null && message.password.equals(ServerStorage.SENSITIVE.password.get()) || (
+				message.token != null && device.hasToken(message.token)))) {
+			LoginThrottle.succeed(connection, device.id);
+			device.rerollToken();
+			device.setClientConnection(connection);
+			connection.device = device;
+			LoginSuccessResponse response = new LoginSuccessResponse(message.requestId, device.id, device.getToken(),
+					ActionJournal.lastId());
+			response.deduplicates = BlobStore.isEnabled();
+			Playback.fillLoginSuccessResponse(response);
+			FilterListMessageHandler.fillLoginSuccessResponse(response);
+			connection.send(response);
+		} else {
+			LoginThrottle.fail(connection, device.id,
+					new LoginFailResponse(message.requestId, LoginFailResponse.Reason.INCORRECT_CREDENTIALS));
+		}
 	}
 }
\ No newline at end of file
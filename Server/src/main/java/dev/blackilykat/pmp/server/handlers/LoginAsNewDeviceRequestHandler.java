@@ -22,8 +22,12 @@ import dev.blackilykat.pmp.PMPConnection;
 import dev.blackilykat.pmp.messages.LoginAsNewDeviceRequest;
 import dev.blackilykat.pmp.messages.LoginFailResponse;
 import dev.blackilykat.pmp.messages.LoginSuccessResponse;
+import dev.blackilykat.pmp.server.ActionJournal;
+import dev.blackilykat.pmp.server.BlobStore;
 import dev.blackilykat.pmp.server.ClientConnection;
 import dev.blackilykat.pmp.server.Device;
+import dev.blackilykat.pmp.server.DeviceRegistry;
+import dev.blackilykat.pmp.server.LoginThrottle;
 import dev.blackilykat.pmp.server.Playback;
 import dev.blackilykat.pmp.server.ServerStorage;
 import org.apache.logging.log4j.LogManager;
@@ -51,28 +55,29 @@ public class LoginAsNewDeviceRequestHandler extends MessageHandler<LoginAsNewDev
 			return;
 		}
 
-		if(!message.password.equals(ServerStorage.SENSITIVE.password.get())) {
-			connection.send(new LoginFailResponse(message.requestId, LoginFailResponse.Reason.INCORRECT_CREDENTIALS));
+		if(!LoginThrottle.attempt(connection, null, () -> login(connection, message))) {
+			connection.send(new LoginFailResponse(message.requestId, LoginFailResponse.Reason.BAD_REQUEST));
+		}
+	}
 
-			// Make brute-forcing attacks less viable. This sleeps in the specific client's input thread, no
-			// other clients are impacted.
-			try {
-				Thread.sleep(2000);
-			} catch(InterruptedException e) {
-				Thread.currentThread().interrupt();
-			}
+	private static void login(ClientConnection connection, LoginAsNewDeviceRequest message) {
+		if(!message.password.equals(ServerStorage.SENSITIVE.password.get())) {
+			LoginThrottle.fail(connection, null,
+					new LoginFailResponse(message.requestId, LoginFailResponse.Reason.INCORRECT_CREDENTIALS));
 			return;
 		}
+		LoginThrottle.succeed(connection, null);
 
 		Device device = new Device(message.hostname);
 		device.rerollToken();
 		device.setClientConnection(connection);
 
-		ServerStorage.SENSITIVE.devices.add(device);
+		DeviceRegistry.register(device);
 
 		connection.device = device;
 		LoginSuccessResponse response = new LoginSuccessResponse(message.requestId, device.id, device.getToken(),
-				ServerStorage.MAIN.actions.size() - 1);
+				ActionJournal.lastId());
+		response.deduplicates = BlobStore.isEnabled();
 		Playback.fillLoginSuccessResponse(response);
 		FilterListMessageHandler.fillLoginSuccessResponse(response);
 		connection.send(response);
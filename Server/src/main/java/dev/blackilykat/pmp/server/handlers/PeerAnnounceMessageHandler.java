@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.pmp.server.handlers;
+
+import dev.blackilykat.pmp.MessageHandler;
+import dev.blackilykat.pmp.PMPConnection;
+import dev.blackilykat.pmp.messages.ErrorMessage;
+import dev.blackilykat.pmp.messages.PeerAnnounceMessage;
+import dev.blackilykat.pmp.server.ClientConnection;
+import dev.blackilykat.pmp.server.Peers;
+
+public class PeerAnnounceMessageHandler extends MessageHandler<PeerAnnounceMessage> {
+	public PeerAnnounceMessageHandler() {
+		super(PeerAnnounceMessage.class);
+	}
+
+	@Override
+	public void run(PMPConnection pmpConn, PeerAnnounceMessage message) {
+		if(!(pmpConn instanceof ClientConnection connection)) {
+			return;
+		}
+		if(message.port <= 0 || message.port > 0xFFFF || message.secret == null || message.contentHashes == null) {
+			connection.send(new ErrorMessage("Invalid peer announcement"));
+			return;
+		}
+
+		String address = message.address;
+		if(address == null) {
+			address = connection.socket.getInetAddress().getHostAddress();
+		}
+		Peers.announce(connection, address, message.port, message.secret, message.contentHashes, message.full);
+	}
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package dev.blackilykat.pmp.server.handlers;
+
+import dev.blackilykat.pmp.MessageHandler;
+import dev.blackilykat.pmp.PMPConnection;
+import dev.blackilykat.pmp.messages.PeersRequest;
+import dev.blackilykat.pmp.messages.PeersResponse;
+import dev.blackilykat.pmp.server.ClientConnection;
+import dev.blackilykat.pmp.server.Peers;
+
+public class PeersRequestHandler extends MessageHandler<PeersRequest> {
+	public PeersRequestHandler() {
+		super(PeersRequest.class);
+	}
+
+	@Override
+	public void run(PMPConnection pmpConn, PeersRequest message) {
+		if(!(pmpConn instanceof ClientConnection connection)) {
+			return;
+		}
+		connection.send(new PeersResponse(message.requestId, Peers.find(message.contentHash, connection.device)));
+	}
+}
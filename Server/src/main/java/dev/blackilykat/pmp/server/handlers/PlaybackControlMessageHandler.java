@@ -22,6 +22,7 @@ import dev.blackilykat.pmp.PMPConnection;
 import dev.blackilykat.pmp.messages.ErrorMessage;
 import dev.blackilykat.pmp.messages.PlaybackControlMessage;
 import dev.blackilykat.pmp.server.ClientConnection;
+import dev.blackilykat.pmp.server.Device;
 import dev.blackilykat.pmp.server.Playback;
 
 public class PlaybackControlMessageHandler extends MessageHandler<PlaybackControlMessage> {
@@ -31,11 +32,12 @@ public class PlaybackControlMessageHandler extends MessageHandler<PlaybackContro
 
 	@Override
 	public void run(PMPConnection connection, PlaybackControlMessage message) {
-		if(Playback.owner == null) {
+		Device ownerDevice = Playback.get().owner();
+		if(ownerDevice == null) {
 			connection.send(new ErrorMessage("There is no playback owner to forward the PlaybackControlMessage to"));
 			return;
 		}
-		ClientConnection owner = Playback.owner.getClientConnection();
+		ClientConnection owner = ownerDevice.getClientConnection();
 		assert owner != null;
 		owner.send(message);
 	}
@@ -42,7 +42,7 @@ public class PlaybackOwnershipMessageHandler extends MessageHandler<PlaybackOwne
 			return;
 		}
 
-		Playback.owner = connection.device;
+		Playback.setOwner(connection.device);
 
 		PlaybackOwnershipMessage outMessage = new PlaybackOwnershipMessage(connection.device.id);
 		Device.broadcastExcept(outMessage, connection.device);
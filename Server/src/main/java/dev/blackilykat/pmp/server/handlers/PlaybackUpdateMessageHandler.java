@@ -24,9 +24,13 @@ import dev.blackilykat.pmp.messages.PlaybackUpdateMessage;
 import dev.blackilykat.pmp.server.ClientConnection;
 import dev.blackilykat.pmp.server.Device;
 import dev.blackilykat.pmp.server.Playback;
-import dev.blackilykat.pmp.server.ServerStorage;
+import dev.blackilykat.pmp.server.SelectionIndex;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 public class PlaybackUpdateMessageHandler extends MessageHandler<PlaybackUpdateMessage> {
+	private static final Logger LOGGER = LogManager.getLogger(PlaybackUpdateMessageHandler.class);
+
 	public PlaybackUpdateMessageHandler() {
 		super(PlaybackUpdateMessage.class);
 	}
@@ -36,33 +40,19 @@ public class PlaybackUpdateMessageHandler extends MessageHandler<PlaybackUpdateM
 		if(!(pmpConn instanceof ClientConnection connection)) {
 			return;
 		}
-		if(connection.device != Playback.owner) {
+		if(connection.device != Playback.get().owner()) {
 			connection.send(new ErrorMessage("Only the playback owner can send playback updates."));
 			return;
 		}
 
-		if(message.playing != null) {
-			Playback.playing = message.playing;
-		}
-		if(message.shuffle != null) {
-			ServerStorage.MAIN.shuffle.set(message.shuffle);
-		}
-		if(message.repeat != null) {
-			ServerStorage.MAIN.repeat.set(message.repeat);
-		}
-		if(message.track != null) {
-			ServerStorage.MAIN.track.set(message.track);
-		}
-		if(message.positionOrEpoch != null) {
-			Playback.positionOrEpoch = message.positionOrEpoch;
-		}
-		if(message.negativeOptions != null) {
-			ServerStorage.MAIN.negativeFilterOptions.set(message.negativeOptions);
-		}
-		if(message.positiveOptions != null) {
-			ServerStorage.MAIN.positiveFilterOptions.set(message.positiveOptions);
+		if(Playback.update(connection.device, message) == null) {
+			LOGGER.info("Ignoring outdated playback update from {}", connection.name);
+			return;
 		}
 
+		if(message.positiveOptions != null || message.negativeOptions != null) {
+			SelectionIndex.invalidate();
+		}
 		Device.broadcastExcept(message, connection.device);
 	}
 }
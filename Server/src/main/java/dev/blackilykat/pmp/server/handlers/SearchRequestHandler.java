@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2026 Blackilykat and contributors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package dev.blackilykat.pmp.server.handlers;
+
+import dev.blackilykat.pmp.MessageHandler;
+import dev.blackilykat.pmp.PMPConnection;
+import dev.blackilykat.pmp.messages.ErrorMessage;
+import dev.blackilykat.pmp.messages.SearchRequest;
+import dev.blackilykat.pmp.messages.SearchResponse;
+import dev.blackilykat.pmp.server.SearchIndex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SearchRequestHandler extends MessageHandler<SearchRequest> {
+	/// The maximum amount of filenames sent in a single [SearchResponse], regardless of [SearchRequest#limit].
+	private static final int MAX_LIMIT = 500;
+
+	public SearchRequestHandler() {
+		super(SearchRequest.class);
+	}
+
+	@Override
+	public void run(PMPConnection connection, SearchRequest message) {
+		if(message.query == null || message.offset < 0 || message.limit < 0) {
+			connection.send(new ErrorMessage("Invalid search request"));
+			return;
+		}
+
+		List<String> matches = SearchIndex.search(message.query);
+		int start = Math.min(message.offset, matches.size());
+		int end = Math.min(start + Math.min(message.limit, MAX_LIMIT), matches.size());
+		connection.send(new SearchResponse(message.requestId, new ArrayList<>(matches.subList(start, end)),
+				matches.size()));
+	}
+}